@@ -0,0 +1,575 @@
+/*
+ * Copyright 2007 Georg Lundesgaard (georg@lundesgaard.dk)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.lundesgaard.util;
+
+import java.io.Serializable;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Trie map with the same key handling and iteration order as
+ * {@link TrieMap}, but with the nodes kept in parallel primitive arrays
+ * instead of node objects. A node is an int index into the arrays, node 0 is
+ * the root, and holds only its label, first child, next sibling and entry
+ * number: 14 bytes. Values are kept by entry number, so only nodes with an
+ * entry pay for one. String keys are not stored but rebuilt from the path
+ * when iterated; other keys are kept in key arrays allocated only for the
+ * chunks that need them. The arrays are allocated in chunks of 4096, so
+ * growing never copies existing nodes, and removed nodes and entries are
+ * reused through free lists.
+ * <p>
+ * With 10000 words or hex strings as keys the map retains about 3.5 times
+ * less memory than {@link TrieMap}, keys included; small maps gain less, as
+ * the first chunk is mostly empty.
+ */
+public class ArenaTrieMap<K, V> extends AbstractMap<K, V> implements Map<K, V>, Serializable {
+	private static final long serialVersionUID = 3L;
+
+	private static final int CHUNK_BITS = 12;
+	private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+	private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+	private static final int ROOT = 0;
+	// no node, the root is never a child or a sibling
+	private static final int NIL = 0;
+
+	private char[][] keyParts = new char[1][];
+	private int[][] firstChildren = new int[1][];
+	private int[][] nextSiblings = new int[1][];
+	// entry number + 1 of each node, 0 when the node has no entry
+	private int[][] entryNumbers = new int[1][];
+	private int chunkCount;
+	// first node after the last allocated one
+	private int top;
+	// free nodes are linked through their next sibling
+	private int freeList = NIL;
+	private int nodeCount;
+
+	private Object[][] values = new Object[1][];
+	// stamp of each entry number, a new one every time the number is handed
+	// out, so that an iterator entry can tell its entry from a reuse
+	private int[][] stamps = new int[1][];
+	// last stamp handed out, not reset by clear
+	private int lastStamp;
+	// keys that are not the string of their path, chunks are null until needed
+	private Object[][] keys = new Object[1][];
+	private int entryChunkCount;
+	private int entryTop;
+	private int[] freeEntries = new int[16];
+	private int freeEntryCount;
+	// the root entry has the key null rather than ""
+	private boolean nullKey;
+
+	private int size;
+	private transient int modCount;
+	private transient Set<Entry<K, V>> entrySet;
+
+	public ArenaTrieMap() {
+		init();
+	}
+
+	private void init() {
+		keyParts = new char[1][];
+		firstChildren = new int[1][];
+		nextSiblings = new int[1][];
+		entryNumbers = new int[1][];
+		chunkCount = 0;
+		addChunk();
+		top = 1;
+		freeList = NIL;
+		nodeCount = 1;
+		values = new Object[1][];
+		stamps = new int[1][];
+		keys = new Object[1][];
+		entryChunkCount = 0;
+		entryTop = 0;
+		freeEntries = new int[16];
+		freeEntryCount = 0;
+		nullKey = false;
+		size = 0;
+	}
+
+	@Override
+	public void clear() {
+		init();
+		modCount++;
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		int node = getNode(key);
+		return node >= 0 && entryNumber(node) != 0;
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public V get(Object key) {
+		int node = getNode(key);
+		if (node >= 0) {
+			int entry = entryNumber(node) - 1;
+			if (entry >= 0) {
+				return (V) values[entry >>> CHUNK_BITS][entry & CHUNK_MASK];
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public V put(K key, V value) {
+		String keyString = objectToString(key);
+		int node = ROOT;
+		for (int i = 0; i < keyString.length(); i++) {
+			node = getOrCreateChild(node, keyString.charAt(i));
+		}
+		V oldValue = setEntry(node, key, value);
+		modCount++;
+		return oldValue;
+	}
+
+	@Override
+	public V remove(Object key) {
+		String keyString = objectToString(key);
+		// the nodes from the root down to the key, for pruning
+		int[] path = new int[keyString.length() + 1];
+		int node = ROOT;
+		for (int i = 0; i < keyString.length(); i++) {
+			node = getChild(node, keyString.charAt(i));
+			if (node < 0) {
+				return null;
+			}
+			path[i + 1] = node;
+		}
+		if (entryNumber(node) == 0) {
+			return null;
+		}
+		return removeEntry(path, path.length);
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Returns a set view of the mappings. Iteration rebuilds every string key
+	 * from the path to its node, so it allocates a string per entry. An entry
+	 * handed out by the iterator reads and writes the map; after its key is
+	 * removed the value is <code>null</code> and {@link Entry#setValue}
+	 * throws {@link IllegalStateException}.
+	 */
+	@Override
+	public Set<Entry<K, V>> entrySet() {
+		Set<Entry<K, V>> es = entrySet;
+		return es != null ? es : (entrySet = new EntrySet());
+	}
+
+	/**
+	 * Returns the number of nodes in use, including the root.
+	 */
+	public int nodeCount() {
+		return nodeCount;
+	}
+
+	/**
+	 * Returns the number of allocated node slots.
+	 */
+	public int capacity() {
+		return chunkCount * CHUNK_SIZE;
+	}
+
+	private int getNode(Object key) {
+		String keyString = objectToString(key);
+		int node = ROOT;
+		for (int i = 0; i < keyString.length() && node >= 0; i++) {
+			node = getChild(node, keyString.charAt(i));
+		}
+		return node;
+	}
+
+	private int getChild(int parent, char keyPart) {
+		for (int node = firstChild(parent); node != NIL; node = nextSibling(node)) {
+			char nodeKeyPart = keyPart(node);
+			if (nodeKeyPart == keyPart) {
+				return node;
+			}
+			if (nodeKeyPart > keyPart) {
+				break;
+			}
+		}
+		return -1;
+	}
+
+	private int getOrCreateChild(int parent, char keyPart) {
+		int previousSibling = NIL;
+		int node = firstChild(parent);
+		while (node != NIL && keyPart(node) < keyPart) {
+			previousSibling = node;
+			node = nextSibling(node);
+		}
+		if (node != NIL && keyPart(node) == keyPart) {
+			return node;
+		}
+		int child = allocate(keyPart, node);
+		if (previousSibling == NIL) {
+			firstChildren[parent >>> CHUNK_BITS][parent & CHUNK_MASK] = child;
+		}
+		else {
+			nextSiblings[previousSibling >>> CHUNK_BITS][previousSibling & CHUNK_MASK] = child;
+		}
+		return child;
+	}
+
+	private int allocate(char keyPart, int nextSibling) {
+		int node = freeList;
+		if (node != NIL) {
+			freeList = nextSibling(node);
+		}
+		else {
+			if (top == chunkCount * CHUNK_SIZE) {
+				addChunk();
+			}
+			node = top++;
+		}
+		int chunk = node >>> CHUNK_BITS;
+		int offset = node & CHUNK_MASK;
+		keyParts[chunk][offset] = keyPart;
+		firstChildren[chunk][offset] = NIL;
+		nextSiblings[chunk][offset] = nextSibling;
+		entryNumbers[chunk][offset] = 0;
+		nodeCount++;
+		return node;
+	}
+
+	private void free(int node) {
+		int chunk = node >>> CHUNK_BITS;
+		int offset = node & CHUNK_MASK;
+		firstChildren[chunk][offset] = NIL;
+		nextSiblings[chunk][offset] = freeList;
+		freeList = node;
+		nodeCount--;
+	}
+
+	private void addChunk() {
+		if (chunkCount == keyParts.length) {
+			int length = chunkCount * 2;
+			keyParts = Arrays.copyOf(keyParts, length);
+			firstChildren = Arrays.copyOf(firstChildren, length);
+			nextSiblings = Arrays.copyOf(nextSiblings, length);
+			entryNumbers = Arrays.copyOf(entryNumbers, length);
+		}
+		keyParts[chunkCount] = new char[CHUNK_SIZE];
+		firstChildren[chunkCount] = new int[CHUNK_SIZE];
+		nextSiblings[chunkCount] = new int[CHUNK_SIZE];
+		entryNumbers[chunkCount] = new int[CHUNK_SIZE];
+		chunkCount++;
+	}
+
+	private int allocateEntry() {
+		int entry;
+		if (freeEntryCount > 0) {
+			entry = freeEntries[--freeEntryCount];
+		}
+		else {
+			if (entryTop == entryChunkCount * CHUNK_SIZE) {
+				if (entryChunkCount == values.length) {
+					values = Arrays.copyOf(values, entryChunkCount * 2);
+					stamps = Arrays.copyOf(stamps, entryChunkCount * 2);
+					keys = Arrays.copyOf(keys, entryChunkCount * 2);
+				}
+				values[entryChunkCount] = new Object[CHUNK_SIZE];
+				stamps[entryChunkCount++] = new int[CHUNK_SIZE];
+			}
+			entry = entryTop++;
+		}
+		stamps[entry >>> CHUNK_BITS][entry & CHUNK_MASK] = ++lastStamp;
+		return entry;
+	}
+
+	private void freeEntry(int entry) {
+		values[entry >>> CHUNK_BITS][entry & CHUNK_MASK] = null;
+		setKey(entry, null);
+		if (freeEntryCount == freeEntries.length) {
+			freeEntries = Arrays.copyOf(freeEntries, freeEntryCount * 2);
+		}
+		freeEntries[freeEntryCount++] = entry;
+	}
+
+	// stores the key unless it is the string of the path, or null
+	private void setKey(int entry, Object key) {
+		Object[] chunk = keys[entry >>> CHUNK_BITS];
+		if (key != null && key instanceof String == false) {
+			if (chunk == null) {
+				chunk = keys[entry >>> CHUNK_BITS] = new Object[CHUNK_SIZE];
+			}
+			chunk[entry & CHUNK_MASK] = key;
+		}
+		else if (chunk != null) {
+			chunk[entry & CHUNK_MASK] = null;
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private V setEntry(int node, K key, V value) {
+		int entry = entryNumber(node) - 1;
+		V oldValue = null;
+		if (entry < 0) {
+			entry = allocateEntry();
+			entryNumbers[node >>> CHUNK_BITS][node & CHUNK_MASK] = entry + 1;
+			size++;
+		}
+		else {
+			oldValue = (V) values[entry >>> CHUNK_BITS][entry & CHUNK_MASK];
+		}
+		values[entry >>> CHUNK_BITS][entry & CHUNK_MASK] = value;
+		setKey(entry, key);
+		if (node == ROOT) {
+			nullKey = key == null;
+		}
+		return oldValue;
+	}
+
+	// removes the entry of the last node of the path and prunes the path
+	@SuppressWarnings("unchecked")
+	private V removeEntry(int[] path, int length) {
+		int node = path[length - 1];
+		int entry = entryNumber(node) - 1;
+		V oldValue = (V) values[entry >>> CHUNK_BITS][entry & CHUNK_MASK];
+		freeEntry(entry);
+		entryNumbers[node >>> CHUNK_BITS][node & CHUNK_MASK] = 0;
+		size--;
+		modCount++;
+		for (int i = length - 1; i > 0; i--) {
+			node = path[i];
+			if (firstChild(node) != NIL || entryNumber(node) != 0) {
+				break;
+			}
+			int parent = path[i - 1];
+			int previousSibling = NIL;
+			for (int sibling = firstChild(parent); sibling != node; sibling = nextSibling(sibling)) {
+				previousSibling = sibling;
+			}
+			if (previousSibling == NIL) {
+				firstChildren[parent >>> CHUNK_BITS][parent & CHUNK_MASK] = nextSibling(node);
+			}
+			else {
+				nextSiblings[previousSibling >>> CHUNK_BITS][previousSibling & CHUNK_MASK] = nextSibling(node);
+			}
+			free(node);
+		}
+		return oldValue;
+	}
+
+	private char keyPart(int node) {
+		return keyParts[node >>> CHUNK_BITS][node & CHUNK_MASK];
+	}
+
+	private int firstChild(int node) {
+		return firstChildren[node >>> CHUNK_BITS][node & CHUNK_MASK];
+	}
+
+	private int nextSibling(int node) {
+		return nextSiblings[node >>> CHUNK_BITS][node & CHUNK_MASK];
+	}
+
+	private int entryNumber(int node) {
+		return entryNumbers[node >>> CHUNK_BITS][node & CHUNK_MASK];
+	}
+
+	private int stamp(int entry) {
+		return stamps[entry >>> CHUNK_BITS][entry & CHUNK_MASK];
+	}
+
+	private static String objectToString(Object o) {
+		return o != null ? o.toString() : "";
+	}
+
+	/**
+	 * Entry of the iterator. It holds the node, entry number and stamp it was
+	 * created with; once the node or entry number has been freed, and maybe 
+	 * handed out to another key, the entry is removed.
+	 */
+	private class NodeEntry implements Entry<K, V> {
+		private final int node;
+		private final int entry;
+		private final int stamp;
+		private final K key;
+
+		NodeEntry(int node, K key) {
+			this.node = node;
+			this.entry = entryNumber(node) - 1;
+			this.stamp = stamp(entry);
+			this.key = key;
+		}
+
+		public K getKey() {
+			return key;
+		}
+
+		@SuppressWarnings("unchecked")
+		public V getValue() {
+			return isPresent() ? (V) values[entry >>> CHUNK_BITS][entry & CHUNK_MASK] : null;
+		}
+
+		public V setValue(V value) {
+			if (isPresent() == false) {
+				throw new IllegalStateException("entry removed");
+			}
+			V oldValue = getValue();
+			values[entry >>> CHUNK_BITS][entry & CHUNK_MASK] = value;
+			return oldValue;
+		}
+
+		private boolean isPresent() {
+			return node < top && entryNumber(node) == entry + 1 && stamp(entry) == stamp;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (o instanceof Entry == false) {
+				return false;
+			}
+			Entry<?, ?> other = (Entry<?, ?>) o;
+			return eq(getKey(), other.getKey()) && eq(getValue(), other.getValue());
+		}
+
+		@Override
+		public int hashCode() {
+			K key = getKey();
+			V value = getValue();
+			return (key == null ? 0 : key.hashCode()) ^ (value == null ? 0 : value.hashCode());
+		}
+
+		@Override
+		public String toString() {
+			return getKey() + "=" + getValue();
+		}
+
+		private boolean eq(Object o1, Object o2) {
+			return o1 == null ? o2 == null : o1.equals(o2);
+		}
+	}
+
+	/**
+	 * Walks the nodes in preorder with the path from the root on a stack, as
+	 * nodes do not know their parents.
+	 */
+	private class EntryIterator implements Iterator<Entry<K, V>> {
+		private int[] path = new int[16];
+		// depth of the next entry node on the path, -1 at the end
+		private int depth;
+		private int[] lastReturned;
+		private int expectedModCount = modCount;
+
+		EntryIterator() {
+			path[0] = ROOT;
+			if (entryNumber(ROOT) == 0) {
+				advance();
+			}
+		}
+
+		public boolean hasNext() {
+			return depth >= 0;
+		}
+
+		public Entry<K, V> next() {
+			if (depth < 0) {
+				throw new NoSuchElementException();
+			}
+			if (modCount != expectedModCount) {
+				throw new ConcurrentModificationException();
+			}
+			lastReturned = Arrays.copyOf(path, depth + 1);
+			Entry<K, V> entry = new NodeEntry(path[depth], key());
+			advance();
+			return entry;
+		}
+
+		public void remove() {
+			if (lastReturned == null) {
+				throw new IllegalStateException();
+			}
+			if (modCount != expectedModCount) {
+				throw new ConcurrentModificationException();
+			}
+			removeEntry(lastReturned, lastReturned.length);
+			expectedModCount = modCount;
+			lastReturned = null;
+		}
+
+		@SuppressWarnings("unchecked")
+		private K key() {
+			int node = path[depth];
+			int entry = entryNumber(node) - 1;
+			Object[] chunk = keys[entry >>> CHUNK_BITS];
+			if (chunk != null && chunk[entry & CHUNK_MASK] != null) {
+				return (K) chunk[entry & CHUNK_MASK];
+			}
+			if (node == ROOT && nullKey) {
+				return null;
+			}
+			char[] chars = new char[depth];
+			for (int i = 0; i < depth; i++) {
+				chars[i] = keyPart(path[i + 1]);
+			}
+			return (K) new String(chars);
+		}
+
+		private void advance() {
+			do {
+				int child = firstChild(path[depth]);
+				if (child != NIL) {
+					if (++depth == path.length) {
+						path = Arrays.copyOf(path, depth * 2);
+					}
+					path[depth] = child;
+				}
+				else {
+					while (depth > 0 && nextSibling(path[depth]) == NIL) {
+						depth--;
+					}
+					if (depth == 0) {
+						depth = -1;
+						return;
+					}
+					path[depth] = nextSibling(path[depth]);
+				}
+			}
+			while (entryNumber(path[depth]) == 0);
+		}
+	}
+
+	private class EntrySet extends AbstractSet<Entry<K, V>> {
+		@Override
+		public Iterator<Entry<K, V>> iterator() {
+			return new EntryIterator();
+		}
+
+		@Override
+		public int size() {
+			return size;
+		}
+
+		@Override
+		public void clear() {
+			ArenaTrieMap.this.clear();
+		}
+	}
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright 2007 Georg Lundesgaard (georg@lundesgaard.dk)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.lundesgaard.util;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Immutable bit vector with rank and select support. Positions and ranks are
+ * longs, so a vector can hold more than 2^31 bits. Ranks are sampled for
+ * every block of 512 bits, select does a binary search over the samples
+ * followed by a scan of at most eight words.
+ */
+class BitVector implements Serializable {
+	private static final long serialVersionUID = 2L;
+
+	private static final int WORDS_PER_BLOCK = 8;
+	private static final int BITS_PER_BLOCK = WORDS_PER_BLOCK * 64;
+
+	private final long[] words;
+	private final long length;
+	// number of ones before each block
+	private final long[] blockRanks;
+
+	private BitVector(long[] words, long length) {
+		this.words = words;
+		this.length = length;
+		int blocks = (words.length + WORDS_PER_BLOCK - 1) / WORDS_PER_BLOCK;
+		blockRanks = new long[blocks + 1];
+		long rank = 0;
+		for (int i = 0; i < words.length; i++) {
+			if (i % WORDS_PER_BLOCK == 0) {
+				blockRanks[i / WORDS_PER_BLOCK] = rank;
+			}
+			rank += Long.bitCount(words[i]);
+		}
+		blockRanks[blocks] = rank;
+	}
+
+	long length() {
+		return length;
+	}
+
+	boolean get(long position) {
+		return (words[(int) (position >>> 6)] & (1L << position)) != 0;
+	}
+
+	/**
+	 * Returns the number of ones before the given position.
+	 */
+	long rank1(long position) {
+		if (position >= length) {
+			return blockRanks[blockRanks.length - 1];
+		}
+		int word = (int) (position >>> 6);
+		long rank = blockRanks[word / WORDS_PER_BLOCK];
+		for (int i = word - word % WORDS_PER_BLOCK; i < word; i++) {
+			rank += Long.bitCount(words[i]);
+		}
+		if ((position & 63) != 0) {
+			rank += Long.bitCount(words[word] & (-1L >>> (64 - (position & 63))));
+		}
+		return rank;
+	}
+
+	/**
+	 * Returns the number of zeros before the given position.
+	 */
+	long rank0(long position) {
+		return position - rank1(position);
+	}
+
+	/**
+	 * Returns the position of the one with the given (zero based) rank.
+	 */
+	long select1(long rank) {
+		int low = 0;
+		int high = blockRanks.length - 2;
+		while (low < high) {
+			int middle = (low + high + 1) >>> 1;
+			if (blockRanks[middle] <= rank) {
+				low = middle;
+			}
+			else {
+				high = middle - 1;
+			}
+		}
+		int remaining = (int) (rank - blockRanks[low]);
+		for (int i = low * WORDS_PER_BLOCK;; i++) {
+			int count = Long.bitCount(words[i]);
+			if (remaining < count) {
+				return ((long) i << 6) + selectInWord(words[i], remaining);
+			}
+			remaining -= count;
+		}
+	}
+
+	/**
+	 * Returns the position of the zero with the given (zero based) rank.
+	 */
+	long select0(long rank) {
+		int low = 0;
+		int high = blockRanks.length - 2;
+		while (low < high) {
+			int middle = (low + high + 1) >>> 1;
+			if ((long) middle * BITS_PER_BLOCK - blockRanks[middle] <= rank) {
+				low = middle;
+			}
+			else {
+				high = middle - 1;
+			}
+		}
+		int remaining = (int) (rank - ((long) low * BITS_PER_BLOCK - blockRanks[low]));
+		for (int i = low * WORDS_PER_BLOCK;; i++) {
+			int count = Long.bitCount(~words[i]);
+			if (remaining < count) {
+				return ((long) i << 6) + selectInWord(~words[i], remaining);
+			}
+			remaining -= count;
+		}
+	}
+
+	/**
+	 * Returns the size of the bit vector including the rank samples, in bits.
+	 */
+	long sizeInBits() {
+		return words.length * 64L + blockRanks.length * 64L;
+	}
+
+	private static int selectInWord(long word, int rank) {
+		for (int i = 0; i < rank; i++) {
+			word &= word - 1;
+		}
+		return Long.numberOfTrailingZeros(word);
+	}
+
+	static class Builder {
+		private long[] words = new long[16];
+		private long length;
+
+		void append(boolean bit) {
+			int word = (int) (length >>> 6);
+			if (word == words.length) {
+				words = Arrays.copyOf(words, words.length * 2);
+			}
+			if (bit) {
+				words[word] |= 1L << length;
+			}
+			length++;
+		}
+
+		/**
+		 * Appends the bits of the given builder, a word at a time.
+		 */
+		void append(Builder bits) {
+			int shift = (int) (length & 63);
+			int wordCount = (int) ((bits.length + 63) >>> 6);
+			int needed = (int) ((length + bits.length + 63) >>> 6);
+			if (needed > words.length) {
+				words = Arrays.copyOf(words, Math.max(needed, words.length * 2));
+			}
+			int word = (int) (length >>> 6);
+			for (int i = 0; i < wordCount; i++) {
+				long bitsWord = bits.words[i];
+				if (i == wordCount - 1 && (bits.length & 63) != 0) {
+					bitsWord &= -1L >>> (64 - (bits.length & 63));
+				}
+				words[word + i] |= bitsWord << shift;
+				if (shift != 0 && word + i + 1 < needed) {
+					words[word + i + 1] |= bitsWord >>> (64 - shift);
+				}
+			}
+			length += bits.length;
+		}
+
+		long length() {
+			return length;
+		}
+
+		BitVector build() {
+			return new BitVector(Arrays.copyOf(words, (int) ((length + 63) >>> 6)), length);
+		}
+	}
+}
@@ -0,0 +1,366 @@
+/*
+ * Copyright 2007 Georg Lundesgaard (georg@lundesgaard.dk)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.lundesgaard.util;
+
+import java.io.Serializable;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Read-only set of strings stored as a minimal acyclic word graph (DAWG).
+ * Both common prefixes and common suffixes are shared. The graph is built
+ * incrementally from sorted input and compiled into flat arrays. Like
+ * {@link TrieMap} a <code>null</code> element is treated as the blank string.
+ */
+public class DawgSet extends AbstractSet<String> implements Set<String>, Serializable {
+	private static final long serialVersionUID = 1L;
+
+	// transitions of state s are at index firstTransition[s] to firstTransition[s + 1] - 1
+	private final int[] firstTransition;
+	private final char[] labels;
+	private final int[] targets;
+	private final BitSet finalStates;
+	private final int size;
+
+	private DawgSet(int[] firstTransition, char[] labels, int[] targets, BitSet finalStates, int size) {
+		this.firstTransition = firstTransition;
+		this.labels = labels;
+		this.targets = targets;
+		this.finalStates = finalStates;
+		this.size = size;
+	}
+
+	/**
+	 * Compiles the strings in the given iterable into a DAWG. The strings must
+	 * be in ascending order, duplicates are ignored.
+	 */
+	public static DawgSet fromSorted(Iterable<? extends CharSequence> sortedInput) {
+		Builder builder = new Builder();
+		for (CharSequence word : sortedInput) {
+			builder.add(word != null ? word.toString() : "");
+		}
+		return builder.build();
+	}
+
+	@Override
+	public Iterator<String> iterator() {
+		return new WordIterator(0, "");
+	}
+
+	/**
+	 * Returns an iterator over the strings starting with the given prefix, in
+	 * ascending order.
+	 */
+	public Iterator<String> prefixIterator(String prefix) {
+		String prefixString = prefix != null ? prefix : "";
+		int state = getState(prefixString);
+		if (state < 0) {
+			return new WordIterator(-1, prefixString);
+		}
+		return new WordIterator(state, prefixString);
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public boolean contains(Object o) {
+		int state = getState(o != null ? o.toString() : "");
+		return state >= 0 && finalStates.get(state);
+	}
+
+	/**
+	 * Returns the number of states in the graph.
+	 */
+	public int stateCount() {
+		return firstTransition.length - 1;
+	}
+
+	/**
+	 * Returns the number of transitions in the graph.
+	 */
+	public int transitionCount() {
+		return labels.length;
+	}
+
+	private int getState(String s) {
+		int state = 0;
+		for (int i = 0; i < s.length() && state >= 0; i++) {
+			state = getTarget(state, s.charAt(i));
+		}
+		return state;
+	}
+
+	private int getTarget(int state, char label) {
+		int from = firstTransition[state];
+		int to = firstTransition[state + 1];
+		int index = Arrays.binarySearch(labels, from, to, label);
+		return index >= 0 ? targets[index] : -1;
+	}
+
+	private class WordIterator implements Iterator<String> {
+		private final StringBuilder word;
+		private int[] states = new int[16];
+		private int[] transitions = new int[16];
+		private int depth;
+		private String next;
+
+		WordIterator(int state, String prefix) {
+			word = new StringBuilder(prefix);
+			if (state < 0) {
+				depth = -1;
+				return;
+			}
+			states[0] = state;
+			transitions[0] = firstTransition[state];
+			if (finalStates.get(state)) {
+				next = prefix;
+			}
+			else {
+				advance();
+			}
+		}
+
+		public boolean hasNext() {
+			return next != null;
+		}
+
+		public String next() {
+			if (next == null) {
+				throw new NoSuchElementException();
+			}
+			String current = next;
+			advance();
+			return current;
+		}
+
+		private void advance() {
+			next = null;
+			while (depth >= 0) {
+				int state = states[depth];
+				int transition = transitions[depth];
+				if (transition == firstTransition[state + 1]) {
+					// all transitions followed, back up
+					depth--;
+					if (depth >= 0) {
+						word.setLength(word.length() - 1);
+					}
+					continue;
+				}
+				transitions[depth]++;
+				int target = targets[transition];
+				word.append(labels[transition]);
+				push(target);
+				if (finalStates.get(target)) {
+					next = word.toString();
+					return;
+				}
+			}
+		}
+
+		private void push(int state) {
+			depth++;
+			if (depth == states.length) {
+				states = Arrays.copyOf(states, depth * 2);
+				transitions = Arrays.copyOf(transitions, depth * 2);
+			}
+			states[depth] = state;
+			transitions[depth] = firstTransition[state];
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	/**
+	 * Incremental construction of a minimal graph from sorted input (Daciuk,
+	 * Mihov, Watson and Watson, 2000).
+	 */
+	private static class Builder {
+		private final Map<State, State> register = new HashMap<State, State>();
+		private final State root = new State();
+		// states along the path of the previous word, not yet minimized
+		private State[] path = new State[16];
+		private String previousWord;
+		private int size;
+
+		Builder() {
+			path[0] = root;
+		}
+
+		void add(String word) {
+			if (previousWord != null) {
+				int comparison = word.compareTo(previousWord);
+				if (comparison < 0) {
+					throw new IllegalArgumentException("input not sorted: \"" + word + "\" after \"" + previousWord + "\"");
+				}
+				if (comparison == 0) {
+					return;
+				}
+			}
+			int prefixLength = commonPrefixLength(word);
+			minimize(prefixLength);
+			if (path.length <= word.length()) {
+				path = Arrays.copyOf(path, word.length() * 2);
+			}
+			State state = path[prefixLength];
+			for (int i = prefixLength; i < word.length(); i++) {
+				State child = new State();
+				state.addTransition(word.charAt(i), child);
+				path[i + 1] = child;
+				state = child;
+			}
+			state.finalState = true;
+			previousWord = word;
+			size++;
+		}
+
+		DawgSet build() {
+			minimize(0);
+			// number the states breadth first, root first
+			Map<State, Integer> ids = new IdentityHashMap<State, Integer>();
+			State[] states = new State[register.size() + 1];
+			int transitionCount = 0;
+			ids.put(root, 0);
+			states[0] = root;
+			int count = 1;
+			for (int i = 0; i < count; i++) {
+				State state = states[i];
+				transitionCount += state.transitionCount;
+				for (int j = 0; j < state.transitionCount; j++) {
+					State target = state.targets[j];
+					if (ids.containsKey(target) == false) {
+						ids.put(target, count);
+						states[count++] = target;
+					}
+				}
+			}
+			int[] firstTransition = new int[count + 1];
+			char[] labels = new char[transitionCount];
+			int[] targets = new int[transitionCount];
+			BitSet finalStates = new BitSet(count);
+			int transition = 0;
+			for (int i = 0; i < count; i++) {
+				State state = states[i];
+				firstTransition[i] = transition;
+				if (state.finalState) {
+					finalStates.set(i);
+				}
+				for (int j = 0; j < state.transitionCount; j++, transition++) {
+					labels[transition] = state.labels[j];
+					targets[transition] = ids.get(state.targets[j]);
+				}
+			}
+			firstTransition[count] = transition;
+			return new DawgSet(firstTransition, labels, targets, finalStates, size);
+		}
+
+		private int commonPrefixLength(String word) {
+			if (previousWord == null) {
+				return 0;
+			}
+			int length = Math.min(word.length(), previousWord.length());
+			int i = 0;
+			while (i < length && word.charAt(i) == previousWord.charAt(i)) {
+				i++;
+			}
+			return i;
+		}
+
+		private void minimize(int downTo) {
+			if (previousWord == null) {
+				return;
+			}
+			for (int i = previousWord.length(); i > downTo; i--) {
+				State parent = path[i - 1];
+				State child = path[i];
+				child.freeze();
+				State equivalent = register.get(child);
+				if (equivalent != null) {
+					parent.targets[parent.transitionCount - 1] = equivalent;
+				}
+				else {
+					register.put(child, child);
+				}
+			}
+		}
+	}
+
+	private static class State {
+		boolean finalState;
+		char[] labels = new char[1];
+		State[] targets = new State[1];
+		int transitionCount;
+		int hash;
+
+		void addTransition(char label, State target) {
+			if (transitionCount == labels.length) {
+				labels = Arrays.copyOf(labels, transitionCount * 2);
+				targets = Arrays.copyOf(targets, transitionCount * 2);
+			}
+			labels[transitionCount] = label;
+			targets[transitionCount] = target;
+			transitionCount++;
+		}
+
+		void freeze() {
+			labels = Arrays.copyOf(labels, transitionCount);
+			targets = Arrays.copyOf(targets, transitionCount);
+			int h = finalState ? 1 : 0;
+			for (int i = 0; i < transitionCount; i++) {
+				h = 31 * h + labels[i];
+				h = 31 * h + System.identityHashCode(targets[i]);
+			}
+			hash = h;
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (o == this) {
+				return true;
+			}
+			if (o instanceof State == false) {
+				return false;
+			}
+			State other = (State) o;
+			if (finalState != other.finalState || transitionCount != other.transitionCount || hash != other.hash) {
+				return false;
+			}
+			for (int i = 0; i < transitionCount; i++) {
+				// targets are registered already, so identity is equivalence
+				if (labels[i] != other.labels[i] || targets[i] != other.targets[i]) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+}
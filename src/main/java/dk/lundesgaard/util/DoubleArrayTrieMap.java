@@ -0,0 +1,294 @@
+/*
+ * Copyright 2007 Georg Lundesgaard (georg@lundesgaard.dk)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.lundesgaard.util;
+
+import java.io.Serializable;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Read-only map compiled into a double-array trie. A transition from state
+ * <code>s</code> with character code <code>c</code> goes to state
+ * <code>t = base[s] + c</code> when <code>check[t] == s</code>. Code 0 marks
+ * the end of a key, and the base of that final state holds the (negated)
+ * index of the entry. Keys are converted to strings the same way as in
+ * {@link TrieMap}.
+ */
+public class DoubleArrayTrieMap<K, V> extends AbstractMap<K, V> implements Map<K, V>, Serializable {
+	private static final long serialVersionUID = 1L;
+
+	private static final int END = 0;
+	private static final int FREE = -1;
+
+	private int[] base;
+	private int[] check;
+	// character to code, 0 when the character is not in any key
+	private int[] codes;
+	// entries in key order
+	private final Object[] keys;
+	private final Object[] values;
+	private transient Set<Entry<K, V>> entrySet;
+
+	private DoubleArrayTrieMap(String[] keyStrings, Object[] keys, Object[] values) {
+		this.keys = keys;
+		this.values = values;
+		new Builder(keyStrings).build();
+	}
+
+	/**
+	 * Compiles the given map. Entries of a {@link TrieMap} are already in key
+	 * order, entries of other maps are sorted first.
+	 */
+	public static <K, V> DoubleArrayTrieMap<K, V> compile(Map<? extends K, ? extends V> map) {
+		List<Entry<? extends K, ? extends V>> entries = new ArrayList<Entry<? extends K, ? extends V>>(map.entrySet());
+		if (map instanceof TrieMap == false) {
+			Collections.sort(entries, new Comparator<Entry<? extends K, ? extends V>>() {
+				public int compare(Entry<? extends K, ? extends V> e1, Entry<? extends K, ? extends V> e2) {
+					return keyToString(e1.getKey()).compareTo(keyToString(e2.getKey()));
+				}
+			});
+		}
+		int size = entries.size();
+		String[] keyStrings = new String[size];
+		Object[] keys = new Object[size];
+		Object[] values = new Object[size];
+		for (int i = 0; i < size; i++) {
+			Entry<? extends K, ? extends V> entry = entries.get(i);
+			keyStrings[i] = keyToString(entry.getKey());
+			if (i > 0 && keyStrings[i].equals(keyStrings[i - 1])) {
+				throw new IllegalArgumentException("duplicate key string: \"" + keyStrings[i] + "\"");
+			}
+			keys[i] = entry.getKey();
+			values[i] = entry.getValue();
+		}
+		return new DoubleArrayTrieMap<K, V>(keyStrings, keys, values);
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return getEntryIndex(key) >= 0;
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public V get(Object key) {
+		int index = getEntryIndex(key);
+		return index >= 0 ? (V) values[index] : null;
+	}
+
+	@Override
+	public int size() {
+		return keys.length;
+	}
+
+	@Override
+	public Set<Entry<K, V>> entrySet() {
+		Set<Entry<K, V>> es = entrySet;
+		return es != null ? es : (entrySet = new EntrySet());
+	}
+
+	/**
+	 * Returns the number of slots in the base and check arrays.
+	 */
+	public int capacity() {
+		return base.length;
+	}
+
+	private int getEntryIndex(Object key) {
+		String keyString = keyToString(key);
+		int[] base = this.base;
+		int[] check = this.check;
+		int[] codes = this.codes;
+		int state = 0;
+		for (int i = 0; i < keyString.length(); i++) {
+			char c = keyString.charAt(i);
+			if (c >= codes.length || codes[c] == 0) {
+				return -1;
+			}
+			int next = base[state] + codes[c];
+			if (next >= check.length || check[next] != state) {
+				return -1;
+			}
+			state = next;
+		}
+		int end = base[state] + END;
+		if (end >= check.length || check[end] != state) {
+			return -1;
+		}
+		return -base[end] - 1;
+	}
+
+	private static String keyToString(Object key) {
+		return key != null ? key.toString() : "";
+	}
+
+	private class Builder {
+		private final String[] keyStrings;
+		private final BitSet used = new BitSet();
+		private int searchStart = 1;
+
+		Builder(String[] keyStrings) {
+			this.keyStrings = keyStrings;
+		}
+
+		void build() {
+			char maxChar = 0;
+			BitSet alphabet = new BitSet();
+			for (String keyString : keyStrings) {
+				for (int i = 0; i < keyString.length(); i++) {
+					char c = keyString.charAt(i);
+					alphabet.set(c);
+					maxChar = c > maxChar ? c : maxChar;
+				}
+			}
+			codes = new int[alphabet.isEmpty() ? 0 : maxChar + 1];
+			int code = END;
+			for (int c = alphabet.nextSetBit(0); c >= 0; c = alphabet.nextSetBit(c + 1)) {
+				codes[c] = ++code;
+			}
+			base = new int[Math.max(16, keyStrings.length * 2)];
+			check = new int[base.length];
+			Arrays.fill(check, FREE);
+			used.set(0);
+			if (keyStrings.length > 0) {
+				place(0, 0, keyStrings.length, 0);
+			}
+			int length = used.length();
+			base = Arrays.copyOf(base, length);
+			check = Arrays.copyOf(check, length);
+		}
+
+		private void place(int state, int from, int to, int depth) {
+			// child codes in ascending order with the index of the first key of each child
+			int[] childCodes = new int[Math.min(to - from, codes.length + 1)];
+			int[] childFrom = new int[childCodes.length + 1];
+			int childCount = 0;
+			for (int i = from; i < to; i++) {
+				int code = codeAt(keyStrings[i], depth);
+				if (childCount == 0 || childCodes[childCount - 1] != code) {
+					childCodes[childCount] = code;
+					childFrom[childCount] = i;
+					childCount++;
+				}
+			}
+			childFrom[childCount] = to;
+
+			int stateBase = findBase(childCodes, childCount);
+			base[state] = stateBase;
+			for (int i = 0; i < childCount; i++) {
+				int next = stateBase + childCodes[i];
+				check[next] = state;
+				used.set(next);
+			}
+			for (int i = 0; i < childCount; i++) {
+				int next = stateBase + childCodes[i];
+				if (childCodes[i] == END) {
+					base[next] = -childFrom[i] - 1;
+				}
+				else {
+					place(next, childFrom[i], childFrom[i + 1], depth + 1);
+				}
+			}
+		}
+
+		private int codeAt(String keyString, int position) {
+			return position < keyString.length() ? codes[keyString.charAt(position)] : END;
+		}
+
+		private int findBase(int[] childCodes, int childCount) {
+			searchStart = used.nextClearBit(searchStart);
+			for (int position = searchStart;; position = used.nextClearBit(position + 1)) {
+				int candidate = position - childCodes[0];
+				if (candidate < 1) {
+					continue;
+				}
+				boolean free = true;
+				for (int i = 1; i < childCount && free; i++) {
+					free = used.get(candidate + childCodes[i]) == false;
+				}
+				if (free) {
+					ensureCapacity(candidate + childCodes[childCount - 1] + 1);
+					return candidate;
+				}
+			}
+		}
+
+		private void ensureCapacity(int capacity) {
+			if (capacity > base.length) {
+				int length = Math.max(capacity, base.length * 2);
+				base = Arrays.copyOf(base, length);
+				int oldLength = check.length;
+				check = Arrays.copyOf(check, length);
+				Arrays.fill(check, oldLength, length, FREE);
+			}
+		}
+	}
+
+	private class EntrySet extends AbstractSet<Entry<K, V>> {
+		@Override
+		public Iterator<Entry<K, V>> iterator() {
+			return new Iterator<Entry<K, V>>() {
+				private int index;
+
+				public boolean hasNext() {
+					return index < keys.length;
+				}
+
+				@SuppressWarnings("unchecked")
+				public Entry<K, V> next() {
+					if (index >= keys.length) {
+						throw new NoSuchElementException();
+					}
+					int i = index++;
+					return new SimpleImmutableEntry<K, V>((K) keys[i], (V) values[i]);
+				}
+
+				public void remove() {
+					throw new UnsupportedOperationException();
+				}
+			};
+		}
+
+		@Override
+		public int size() {
+			return keys.length;
+		}
+
+		@Override
+		public boolean contains(Object o) {
+			if (o instanceof Entry == false) {
+				return false;
+			}
+			Entry<?, ?> entry = (Entry<?, ?>) o;
+			int index = getEntryIndex(entry.getKey());
+			if (index < 0) {
+				return false;
+			}
+			Object value = values[index];
+			return value == null ? entry.getValue() == null : value.equals(entry.getValue());
+		}
+	}
+}
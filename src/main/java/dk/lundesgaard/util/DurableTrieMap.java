@@ -0,0 +1,876 @@
+/*
+ * Copyright 2007 Georg Lundesgaard (georg@lundesgaard.dk)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.lundesgaard.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * {@link TrieMap} persisted in a directory as a snapshot and a write-ahead
+ * log. Every modification is appended to the log before it returns; when it
+ * is forced to disk depends on the {@link SyncPolicy}. With
+ * {@link SyncPolicy#ALWAYS} concurrent writers share one force (group
+ * commit). A modification is applied to the map only after its record
+ * has been appended, so a failing codec or log leaves the map unchanged.
+ * <p>
+ * After a number of log records a new log is started and a copy of the
+ * map is written to a snapshot by a background thread; only the copy is
+ * taken while writers wait. Opening the map loads the latest snapshot and
+ * replays the logs from there on. A record torn by a crash ends the replay
+ * and is cut off the log.
+ * <p>
+ * The map is synchronized on itself. Iteration over the views must be
+ * synchronized on the map by the caller, and the views are read-only.
+ */
+public class DurableTrieMap<K, V> extends AbstractMap<K, V> implements Closeable {
+	/**
+	 * When the log is forced to disk.
+	 */
+	public enum SyncPolicy {
+		/**
+		 * Every modification waits until its record has been forced to disk.
+		 */
+		ALWAYS,
+		/**
+		 * The log is forced by a background thread at a fixed interval. A
+		 * crash loses at most the modifications of the last interval.
+		 */
+		INTERVAL,
+		/**
+		 * The log is written when its buffer is full and forced only at
+		 * snapshots and on close. A crash of the process loses at most the
+		 * buffer, a crash of the machine what the operating system has not
+		 * written.
+		 */
+		NEVER
+	}
+
+	/**
+	 * Binary form of keys or values.
+	 */
+	public interface Codec<T> {
+		void write(DataOutput out, T value) throws IOException;
+
+		T read(DataInput in) throws IOException;
+	}
+
+	/**
+	 * Codec of strings, <code>null</code> included, as UTF-8.
+	 */
+	public static final Codec<String> STRING_CODEC = new Codec<String>() {
+		public void write(DataOutput out, String value) throws IOException {
+			if (value == null) {
+				out.writeInt(-1);
+				return;
+			}
+			byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+
+		public String read(DataInput in) throws IOException {
+			int length = in.readInt();
+			if (length < 0) {
+				return null;
+			}
+			byte[] bytes = new byte[length];
+			in.readFully(bytes);
+			return new String(bytes, StandardCharsets.UTF_8);
+		}
+	};
+
+	private static final int SNAPSHOT_MAGIC = 0x54534e50;
+	private static final byte PUT = 1;
+	private static final byte REMOVE = 2;
+	private static final byte REMOVE_PREFIX = 3;
+	private static final byte CLEAR = 4;
+	// header of a log record: payload length and checksum
+	private static final int RECORD_HEADER_SIZE = 8;
+	private static final int MAX_RECORD_SIZE = 1 << 30;
+	private static final int LOG_BUFFER_SIZE = 64 * 1024;
+	private static final Pattern SNAPSHOT_NAME = Pattern.compile("snapshot\\.[0-9]{1,18}");
+
+	private final File directory;
+	private final Codec<K> keyCodec;
+	private final Codec<V> valueCodec;
+	private final SyncPolicy syncPolicy;
+	private final long snapshotThreshold;
+	private final TrieMap<K, V> map = new TrieMap<K, V>();
+	private final RecordBuffer record = new RecordBuffer();
+	private final DataOutputStream recordOut = new DataOutputStream(record);
+	private final ScheduledExecutorService syncer;
+	private final ExecutorService snapshotter;
+	private volatile WriteAheadLog log;
+	private volatile IOException syncFailure;
+	private volatile IOException snapshotFailure;
+	private long generation;
+	private long logRecords;
+	private boolean closed;
+	private transient Set<Entry<K, V>> entrySet;
+
+	private DurableTrieMap(Builder<K, V> builder) throws IOException {
+		directory = builder.directory;
+		keyCodec = builder.keyCodec;
+		valueCodec = builder.valueCodec;
+		syncPolicy = builder.syncPolicy;
+		snapshotThreshold = builder.snapshotThreshold;
+		if (directory.isDirectory() == false && directory.mkdirs() == false) {
+			throw new IOException("could not create directory " + directory);
+		}
+		recover();
+		snapshotter = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "DurableTrieMap snapshot " + directory.getName());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		if (syncPolicy == SyncPolicy.INTERVAL) {
+			syncer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "DurableTrieMap sync " + directory.getName());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			syncer.scheduleWithFixedDelay(new Runnable() {
+				public void run() {
+					try {
+						log.sync(Long.MAX_VALUE, true);
+					}
+					catch (IOException e) {
+						syncFailure = e;
+					}
+				}
+			}, builder.syncIntervalNanos, builder.syncIntervalNanos, TimeUnit.NANOSECONDS);
+		}
+		else {
+			syncer = null;
+		}
+	}
+
+	@Override
+	public synchronized boolean containsKey(Object key) {
+		return map.containsKey(key);
+	}
+
+	@Override
+	public synchronized boolean containsValue(Object value) {
+		return map.containsValue(value);
+	}
+
+	@Override
+	public synchronized V get(Object key) {
+		return map.get(key);
+	}
+
+	@Override
+	public synchronized int size() {
+		return map.size();
+	}
+
+	@Override
+	public V put(K key, V value) {
+		V oldValue;
+		WriteAheadLog currentLog;
+		long sequence;
+		synchronized (this) {
+			checkOpen();
+			try {
+				startRecord(PUT);
+				keyCodec.write(recordOut, key);
+				valueCodec.write(recordOut, value);
+				currentLog = log;
+				sequence = appendRecord();
+				oldValue = map.put(key, value);
+				snapshotIfDue();
+			}
+			catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+		awaitDurable(currentLog, sequence);
+		return oldValue;
+	}
+
+	@Override
+	public V remove(Object key) {
+		V oldValue;
+		WriteAheadLog currentLog;
+		long sequence;
+		synchronized (this) {
+			checkOpen();
+			if (map.containsKey(key) == false) {
+				return null;
+			}
+			try {
+				// keys are found by their string form
+				startRecord(REMOVE);
+				STRING_CODEC.write(recordOut, key != null ? key.toString() : null);
+				currentLog = log;
+				sequence = appendRecord();
+				oldValue = map.remove(key);
+				snapshotIfDue();
+			}
+			catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+		awaitDurable(currentLog, sequence);
+		return oldValue;
+	}
+
+	/**
+	 * Removes all keys starting with the given prefix, logged as one record.
+	 * Returns the number of keys removed.
+	 */
+	public int removePrefix(String prefix) {
+		int removed;
+		WriteAheadLog currentLog;
+		long sequence;
+		synchronized (this) {
+			checkOpen();
+			if (map.countPrefix(prefix) == 0) {
+				return 0;
+			}
+			try {
+				startRecord(REMOVE_PREFIX);
+				STRING_CODEC.write(recordOut, prefix);
+				currentLog = log;
+				sequence = appendRecord();
+				removed = map.removePrefix(prefix);
+				snapshotIfDue();
+			}
+			catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+		awaitDurable(currentLog, sequence);
+		return removed;
+	}
+
+	@Override
+	public void clear() {
+		WriteAheadLog currentLog;
+		long sequence;
+		synchronized (this) {
+			checkOpen();
+			try {
+				startRecord(CLEAR);
+				currentLog = log;
+				sequence = appendRecord();
+				map.clear();
+				snapshotIfDue();
+			}
+			catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+		awaitDurable(currentLog, sequence);
+	}
+
+	@Override
+	public synchronized Set<Entry<K, V>> entrySet() {
+		Set<Entry<K, V>> es = entrySet;
+		return es != null ? es : (entrySet = Collections.unmodifiableMap(map).entrySet());
+	}
+
+	/**
+	 * Writes the map to a new snapshot and starts a new log, and waits until
+	 * the snapshot is on disk. Modifications may continue meanwhile.
+	 */
+	public void snapshot() throws IOException {
+		Future<?> written;
+		synchronized (this) {
+			checkOpen();
+			written = startSnapshot();
+		}
+		try {
+			written.get();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		}
+		catch (ExecutionException e) {
+			throw new IOException("snapshot failed", e.getCause());
+		}
+	}
+
+	/**
+	 * Returns the failure of the last snapshot written in the background, or
+	 * <code>null</code> when it succeeded. The map stays usable after a
+	 * failed snapshot, the logs are kept until a later snapshot succeeds.
+	 */
+	public IOException getSnapshotFailure() {
+		return snapshotFailure;
+	}
+
+	private void snapshotIfDue() throws IOException {
+		if (snapshotThreshold > 0 && logRecords >= snapshotThreshold) {
+			startSnapshot();
+		}
+	}
+
+	/**
+	 * Starts the log of a new generation and writes a copy of the map to the
+	 * snapshot of that generation in the background. The caller holds the
+	 * lock.
+	 */
+	private Future<?> startSnapshot() throws IOException {
+		final WriteAheadLog oldLog = log;
+		final long oldGeneration = generation;
+		final long newGeneration = generation + 1;
+		final TrieMap<K, V> copy = new TrieMap<K, V>();
+		copy.putAll(map);
+		log = new WriteAheadLog(logFile(newGeneration), 0);
+		generation = newGeneration;
+		logRecords = 0;
+		return snapshotter.submit(new Callable<Void>() {
+			public Void call() throws IOException {
+				try {
+					// the new log is only replayed after a complete old log
+					oldLog.sync(Long.MAX_VALUE, true);
+					oldLog.close();
+				}
+				catch (IOException e) {
+					oldLog.fail(e);
+					syncFailure = e;
+					throw e;
+				}
+				try {
+					writeSnapshot(copy, newGeneration);
+					deleteGenerations(oldGeneration);
+				}
+				catch (IOException e) {
+					snapshotFailure = e;
+					throw e;
+				}
+				snapshotFailure = null;
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Forces all logged modifications to disk.
+	 */
+	public void sync() throws IOException {
+		checkSyncFailure();
+		log.sync(Long.MAX_VALUE, true);
+	}
+
+	/**
+	 * Forces the log to disk and closes the map.
+	 */
+	public synchronized void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		if (syncer != null) {
+			syncer.shutdownNow();
+		}
+		snapshotter.shutdown();
+		try {
+			while (snapshotter.awaitTermination(1, TimeUnit.MINUTES) == false) {
+				// a snapshot of a large map is still being written
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		}
+		log.sync(Long.MAX_VALUE, true);
+		log.close();
+		log.markDurable();
+	}
+
+	private void checkOpen() {
+		if (closed) {
+			throw new IllegalStateException("map is closed");
+		}
+		try {
+			checkSyncFailure();
+		}
+		catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private void checkSyncFailure() throws IOException {
+		IOException failure = syncFailure;
+		if (failure != null) {
+			throw new IOException("background sync failed", failure);
+		}
+	}
+
+	private void startRecord(byte operation) throws IOException {
+		record.reset();
+		record.write(new byte[RECORD_HEADER_SIZE]);
+		recordOut.writeByte(operation);
+	}
+
+	private long appendRecord() throws IOException {
+		record.finish();
+		long sequence = log.append(record.buffer(), record.size(), syncPolicy != SyncPolicy.ALWAYS);
+		logRecords++;
+		return sequence;
+	}
+
+	private void awaitDurable(WriteAheadLog currentLog, long sequence) {
+		if (syncPolicy != SyncPolicy.ALWAYS) {
+			return;
+		}
+		try {
+			currentLog.sync(sequence, true);
+		}
+		catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private void recover() throws IOException {
+		long latest = -1;
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				String name = file.getName();
+				if (SNAPSHOT_NAME.matcher(name).matches()) {
+					latest = Math.max(latest, Long.parseLong(name.substring("snapshot.".length())));
+				}
+				else if (name.startsWith("snapshot.") && name.endsWith(".tmp")) {
+					// left by a crash while a snapshot was written
+					file.delete();
+				}
+			}
+		}
+		long first = Math.max(latest, 0);
+		if (latest >= 0) {
+			readSnapshot(snapshotFile(latest));
+		}
+		// the logs of the generations whose snapshot was not finished follow
+		generation = first;
+		File logFile = logFile(generation);
+		long validLength = logFile.exists() ? replayLog(logFile) : 0;
+		while (logFile(generation + 1).exists() && validLength == logFile.length()) {
+			generation++;
+			logFile = logFile(generation);
+			validLength = replayLog(logFile);
+		}
+		// logs after a torn one do not follow from it
+		for (long g = generation + 1; logFile(g).exists(); g++) {
+			Files.delete(logFile(g).toPath());
+		}
+		log = new WriteAheadLog(logFile, validLength);
+		// older generations left by a crash before they were deleted
+		deleteGenerations(first - 1);
+	}
+
+	private void readSnapshot(File file) throws IOException {
+		CheckedInputStream checked = new CheckedInputStream(new BufferedInputStream(new FileInputStream(file)), new CRC32());
+		DataInputStream in = new DataInputStream(checked);
+		try {
+			if (in.readInt() != SNAPSHOT_MAGIC) {
+				throw new IOException("not a snapshot: " + file);
+			}
+			long count = in.readLong();
+			for (long i = 0; i < count; i++) {
+				K key = keyCodec.read(in);
+				V value = valueCodec.read(in);
+				map.put(key, value);
+			}
+			long checksum = checked.getChecksum().getValue();
+			if (in.readLong() != checksum) {
+				throw new IOException("snapshot checksum mismatch: " + file);
+			}
+		}
+		finally {
+			in.close();
+		}
+	}
+
+	private void writeSnapshot(TrieMap<K, V> snapshotMap, long newGeneration) throws IOException {
+		File tmpFile = new File(directory, "snapshot." + newGeneration + ".tmp");
+		FileOutputStream fileOut = new FileOutputStream(tmpFile);
+		try {
+			CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(fileOut), new CRC32());
+			DataOutputStream out = new DataOutputStream(checked);
+			out.writeInt(SNAPSHOT_MAGIC);
+			out.writeLong(snapshotMap.size());
+			for (Entry<K, V> entry : snapshotMap.entrySet()) {
+				keyCodec.write(out, entry.getKey());
+				valueCodec.write(out, entry.getValue());
+			}
+			out.writeLong(checked.getChecksum().getValue());
+			out.flush();
+			fileOut.getChannel().force(true);
+		}
+		finally {
+			fileOut.close();
+		}
+		Files.move(tmpFile.toPath(), snapshotFile(newGeneration).toPath(), StandardCopyOption.ATOMIC_MOVE);
+		syncDirectory();
+	}
+
+	/**
+	 * Replays the records of the given log and returns the length of the
+	 * valid part of the log.
+	 */
+	private long replayLog(File file) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		long validLength = 0;
+		try {
+			CRC32 crc = new CRC32();
+			while (true) {
+				int length;
+				int checksum;
+				byte[] payload;
+				try {
+					length = in.readInt();
+					checksum = in.readInt();
+					if (length < 1 || length > MAX_RECORD_SIZE) {
+						break;
+					}
+					payload = new byte[length];
+					in.readFully(payload);
+				}
+				catch (EOFException e) {
+					break;
+				}
+				crc.reset();
+				crc.update(payload, 0, length);
+				if ((int) crc.getValue() != checksum) {
+					break;
+				}
+				DataInputStream recordIn = new DataInputStream(new ByteArrayInputStream(payload, 1, length - 1));
+				switch (payload[0]) {
+					case PUT:
+						K key = keyCodec.read(recordIn);
+						map.put(key, valueCodec.read(recordIn));
+						break;
+					case REMOVE:
+						map.remove(STRING_CODEC.read(recordIn));
+						break;
+					case REMOVE_PREFIX:
+						map.removePrefix(STRING_CODEC.read(recordIn));
+						break;
+					case CLEAR:
+						map.clear();
+						break;
+					default:
+						throw new IOException("unknown log record " + payload[0] + " at " + validLength + " in " + file);
+				}
+				validLength += RECORD_HEADER_SIZE + length;
+				logRecords++;
+			}
+		}
+		finally {
+			in.close();
+		}
+		return validLength;
+	}
+
+	// deletes the files of the given generation and the ones before it
+	private void deleteGenerations(long lastGeneration) throws IOException {
+		for (long g = lastGeneration; g >= 0 && (snapshotFile(g).exists() || logFile(g).exists()); g--) {
+			Files.deleteIfExists(logFile(g).toPath());
+			Files.deleteIfExists(snapshotFile(g).toPath());
+		}
+	}
+
+	private void syncDirectory() {
+		try {
+			FileChannel channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ);
+			try {
+				channel.force(true);
+			}
+			finally {
+				channel.close();
+			}
+		}
+		catch (IOException e) {
+			// directories can not be forced on every platform
+		}
+	}
+
+	private File snapshotFile(long snapshotGeneration) {
+		return new File(directory, "snapshot." + snapshotGeneration);
+	}
+
+	private File logFile(long logGeneration) {
+		return new File(directory, "log." + logGeneration);
+	}
+
+	/**
+	 * Builder of durable maps.
+	 */
+	public static class Builder<K, V> {
+		private final File directory;
+		private final Codec<K> keyCodec;
+		private final Codec<V> valueCodec;
+		private SyncPolicy syncPolicy = SyncPolicy.ALWAYS;
+		private long syncIntervalNanos = TimeUnit.MILLISECONDS.toNanos(100);
+		private long snapshotThreshold = 1000000;
+
+		public Builder(File directory, Codec<K> keyCodec, Codec<V> valueCodec) {
+			if (directory == null || keyCodec == null || valueCodec == null) {
+				throw new NullPointerException();
+			}
+			this.directory = directory;
+			this.keyCodec = keyCodec;
+			this.valueCodec = valueCodec;
+		}
+
+		public Builder<K, V> syncPolicy(SyncPolicy syncPolicy) {
+			if (syncPolicy == null) {
+				throw new NullPointerException("syncPolicy");
+			}
+			this.syncPolicy = syncPolicy;
+			return this;
+		}
+
+		/**
+		 * Sets the interval of {@link SyncPolicy#INTERVAL}, 100 ms by default.
+		 */
+		public Builder<K, V> syncInterval(long duration, TimeUnit unit) {
+			if (duration <= 0) {
+				throw new IllegalArgumentException("interval must be positive: " + duration);
+			}
+			this.syncIntervalNanos = unit.toNanos(duration);
+			return this;
+		}
+
+		/**
+		 * Sets the number of log records after which a snapshot is written,
+		 * one million by default. 0 disables automatic snapshots.
+		 */
+		public Builder<K, V> snapshotThreshold(long snapshotThreshold) {
+			if (snapshotThreshold < 0) {
+				throw new IllegalArgumentException("negative threshold: " + snapshotThreshold);
+			}
+			this.snapshotThreshold = snapshotThreshold;
+			return this;
+		}
+
+		/**
+		 * Opens the map, recovering it from the directory.
+		 */
+		public DurableTrieMap<K, V> open() throws IOException {
+			return new DurableTrieMap<K, V>(this);
+		}
+	}
+
+	/**
+	 * Record being encoded, with room for the header.
+	 */
+	private static class RecordBuffer extends ByteArrayOutputStream {
+		private final CRC32 crc = new CRC32();
+
+		byte[] buffer() {
+			return buf;
+		}
+
+		void finish() {
+			int length = count - RECORD_HEADER_SIZE;
+			crc.reset();
+			crc.update(buf, RECORD_HEADER_SIZE, length);
+			ByteBuffer header = ByteBuffer.wrap(buf, 0, RECORD_HEADER_SIZE);
+			header.putInt(length);
+			header.putInt((int) crc.getValue());
+		}
+	}
+
+	/**
+	 * Append-only log file. Records are collected in a buffer; one thread at
+	 * a time writes the buffer to the file and optionally forces it, while
+	 * the others append to a fresh buffer or wait for it.
+	 */
+	private static class WriteAheadLog {
+		private final FileChannel channel;
+		private byte[] buffer = new byte[LOG_BUFFER_SIZE];
+		private byte[] spare = new byte[LOG_BUFFER_SIZE];
+		private int size;
+		private long appended;
+		private long written;
+		private long synced;
+		private boolean writing;
+		private boolean closed;
+		private IOException failure;
+
+		WriteAheadLog(File file, long validLength) throws IOException {
+			channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+			if (channel.size() > validLength) {
+				// cut off a torn record
+				channel.truncate(validLength);
+				channel.force(false);
+			}
+			channel.position(validLength);
+		}
+
+		/**
+		 * Appends a record and returns its sequence number. When the buffer
+		 * is full and flushing is allowed, the buffer is written first.
+		 */
+		long append(byte[] record, int length, boolean flushWhenFull) throws IOException {
+			while (true) {
+				synchronized (this) {
+					if (size + length <= buffer.length || flushWhenFull == false || writing) {
+						if (size + length > buffer.length) {
+							buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + length));
+						}
+						System.arraycopy(record, 0, buffer, size, length);
+						size += length;
+						return ++appended;
+					}
+				}
+				sync(Long.MAX_VALUE, false);
+			}
+		}
+
+		/**
+		 * Writes the records up to the given sequence number, and forces them
+		 * to disk when asked to.
+		 */
+		void sync(long sequence, boolean force) throws IOException {
+			byte[] data;
+			int length;
+			long last;
+			synchronized (this) {
+				while (true) {
+					if (failure != null) {
+						throw new IOException("log failed", failure);
+					}
+					sequence = Math.min(sequence, appended);
+					if ((force ? synced : written) >= sequence) {
+						return;
+					}
+					if (writing == false && closed == false) {
+						break;
+					}
+					try {
+						wait();
+					}
+					catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new InterruptedIOException();
+					}
+				}
+				writing = true;
+				data = buffer;
+				length = size;
+				last = appended;
+				buffer = spare;
+				size = 0;
+			}
+			boolean done = false;
+			try {
+				ByteBuffer byteBuffer = ByteBuffer.wrap(data, 0, length);
+				while (byteBuffer.hasRemaining()) {
+					channel.write(byteBuffer);
+				}
+				if (force) {
+					channel.force(false);
+				}
+				done = true;
+			}
+			finally {
+				synchronized (this) {
+					writing = false;
+					if (done) {
+						written = last;
+						if (force) {
+							synced = last;
+						}
+					}
+					spare = data.length == LOG_BUFFER_SIZE ? data : new byte[LOG_BUFFER_SIZE];
+					notifyAll();
+				}
+			}
+		}
+
+		/**
+		 * Writes the buffer and closes the file, without forcing it.
+		 */
+		void close() throws IOException {
+			sync(Long.MAX_VALUE, false);
+			synchronized (this) {
+				while (writing) {
+					try {
+						wait();
+					}
+					catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new InterruptedIOException();
+					}
+				}
+				closed = true;
+				channel.close();
+			}
+		}
+
+		/**
+		 * Releases the waiters after the records have been made durable by
+		 * other means.
+		 */
+		synchronized void fail(IOException e) {
+			failure = e;
+			notifyAll();
+		}
+
+		synchronized void markDurable() {
+			written = appended;
+			synced = appended;
+			notifyAll();
+		}
+	}
+}
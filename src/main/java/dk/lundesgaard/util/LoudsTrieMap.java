@@ -0,0 +1,431 @@
+/*
+ * Copyright 2007 Georg Lundesgaard (georg@lundesgaard.dk)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.lundesgaard.util;
+
+import java.io.Serializable;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Read-only succinct trie. The tree shape is stored as a level-order unary
+ * degree sequence (LOUDS): nodes are numbered breadth first and every node
+ * is written as one 1-bit per child followed by a 0-bit, about two bits per
+ * node. Child labels are stored in node order, values in the order of the
+ * nodes having an entry. Keys are not stored, they are rebuilt from the
+ * labels, so the map is keyed by the string form of the original keys.
+ * <p>
+ * Node numbers and bit positions are longs, so the trie is not limited to
+ * 2^31 nodes; the number of keys is limited to {@link Integer#MAX_VALUE} as
+ * for any map. Keys in ascending order are compiled as they arrive, keeping
+ * only the output and the previous key, so large inputs should be given in
+ * key order: a {@link TrieMap}, a {@link TrieSet} or any sorted iterable.
+ */
+public class LoudsTrieMap<V> extends AbstractMap<String, V> implements Map<String, V>, Serializable {
+	private static final long serialVersionUID = 2L;
+
+	private final BitVector louds;
+	private final BitVector entries;
+	// label of node n (n > 0) at index n - 1
+	private final Labels labels;
+	// null when every value is null, as in a set
+	private final Object[] values;
+	private final int size;
+	private transient Set<Entry<String, V>> entrySet;
+
+	private LoudsTrieMap(BitVector louds, BitVector entries, Labels labels, Object[] values, int size) {
+		this.louds = louds;
+		this.entries = entries;
+		this.labels = labels;
+		this.values = values;
+		this.size = size;
+	}
+
+	/**
+	 * Compiles the given map. Entries of a {@link TrieMap} are already in key
+	 * order and are compiled as they are iterated, entries of other maps are
+	 * sorted first.
+	 */
+	public static <V> LoudsTrieMap<V> compile(Map<?, ? extends V> map) {
+		Builder builder = new Builder(true);
+		if (map instanceof TrieMap) {
+			for (Entry<?, ? extends V> entry : map.entrySet()) {
+				builder.add(keyToString(entry.getKey()), entry.getValue());
+			}
+		}
+		else {
+			Map<String, V> sortedMap = new TreeMap<String, V>();
+			for (Entry<?, ? extends V> entry : map.entrySet()) {
+				String keyString = keyToString(entry.getKey());
+				if (sortedMap.containsKey(keyString)) {
+					throw new IllegalArgumentException("duplicate key string: \"" + keyString + "\"");
+				}
+				sortedMap.put(keyString, entry.getValue());
+			}
+			for (Entry<String, V> entry : sortedMap.entrySet()) {
+				builder.add(entry.getKey(), entry.getValue());
+			}
+		}
+		return builder.build();
+	}
+
+	/**
+	 * Compiles the given keys, which must be in ascending order, with
+	 * <code>null</code> values. Use this for sets, for instance a
+	 * {@link TrieSet}. The keys are compiled as they are iterated.
+	 */
+	public static LoudsTrieMap<Object> fromSortedKeys(Iterable<?> sortedKeys) {
+		Builder builder = new Builder(false);
+		for (Object key : sortedKeys) {
+			builder.add(keyToString(key), null);
+		}
+		return builder.build();
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		long node = getNode(keyToString(key));
+		return node >= 0 && entries.get(node);
+	}
+
+	@Override
+	public V get(Object key) {
+		long node = getNode(keyToString(key));
+		if (node >= 0 && entries.get(node)) {
+			return valueAt(node);
+		}
+		return null;
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public Set<Entry<String, V>> entrySet() {
+		Set<Entry<String, V>> es = entrySet;
+		return es != null ? es : (entrySet = new EntrySet());
+	}
+
+	/**
+	 * Returns an iterator over the entries with keys starting with the given
+	 * prefix, in key order.
+	 */
+	public Iterator<Entry<String, V>> prefixIterator(String prefix) {
+		String prefixString = prefix != null ? prefix : "";
+		return new EntryIterator(getNode(prefixString), prefixString);
+	}
+
+	/**
+	 * Returns the number of trie nodes, including the root.
+	 */
+	public long nodeCount() {
+		return labels.length() + 1;
+	}
+
+	/**
+	 * Returns the size of the tree structure (the LOUDS and entry bit vectors
+	 * with their rank samples) in bits, not counting labels and values.
+	 */
+	public long structureBits() {
+		return louds.sizeInBits() + entries.sizeInBits();
+	}
+
+	private long getNode(String keyString) {
+		long node = 0;
+		for (int i = 0; i < keyString.length() && node >= 0; i++) {
+			node = getChild(node, keyString.charAt(i));
+		}
+		return node;
+	}
+
+	private long getChild(long node, char label) {
+		long start = firstBit(node);
+		long end = louds.select0(node);
+		// labels of the children are at firstChild - 1 and on, in order
+		long low = louds.rank1(start);
+		long high = low + end - start - 1;
+		while (low <= high) {
+			long middle = (low + high) >>> 1;
+			char middleLabel = labels.get(middle);
+			if (middleLabel < label) {
+				low = middle + 1;
+			}
+			else if (middleLabel > label) {
+				high = middle - 1;
+			}
+			else {
+				return middle + 1;
+			}
+		}
+		return -1;
+	}
+
+	private long firstBit(long node) {
+		return node == 0 ? 0 : louds.select0(node - 1) + 1;
+	}
+
+	@SuppressWarnings("unchecked")
+	private V valueAt(long node) {
+		return values != null ? (V) values[(int) entries.rank1(node)] : null;
+	}
+
+	private static String keyToString(Object key) {
+		return key != null ? key.toString() : "";
+	}
+
+	/**
+	 * Labels in node order, in pages so that there may be more than 2^31.
+	 */
+	private static class Labels implements Serializable {
+		private static final long serialVersionUID = 1L;
+
+		private static final int PAGE_BITS = 20;
+		private static final int PAGE_SIZE = 1 << PAGE_BITS;
+
+		private final char[][] pages;
+		private final long length;
+
+		Labels(List<StringBuilder> levels) {
+			long total = 0;
+			for (StringBuilder level : levels) {
+				total += level.length();
+			}
+			length = total;
+			pages = new char[(int) ((total + PAGE_SIZE - 1) >>> PAGE_BITS)][];
+			for (int i = 0; i < pages.length; i++) {
+				pages[i] = new char[(int) Math.min(PAGE_SIZE, total - ((long) i << PAGE_BITS))];
+			}
+			long index = 0;
+			for (StringBuilder level : levels) {
+				for (int from = 0; from < level.length();) {
+					char[] page = pages[(int) (index >>> PAGE_BITS)];
+					int offset = (int) (index & (PAGE_SIZE - 1));
+					int count = Math.min(level.length() - from, page.length - offset);
+					level.getChars(from, from + count, page, offset);
+					from += count;
+					index += count;
+				}
+			}
+		}
+
+		long length() {
+			return length;
+		}
+
+		char get(long index) {
+			return pages[(int) (index >>> PAGE_BITS)][(int) (index & (PAGE_SIZE - 1))];
+		}
+	}
+
+	/**
+	 * Compiles keys given in ascending order. Nodes of one level are created
+	 * in key order, which is their breadth first order, so every level gets
+	 * its own bit vectors, labels and values, and the levels are concatenated
+	 * at the end. A node is closed with its 0-bit when a key no longer shares
+	 * its prefix.
+	 */
+	private static class Builder {
+		private final List<BitVector.Builder> louds = new ArrayList<BitVector.Builder>();
+		private final List<BitVector.Builder> entries = new ArrayList<BitVector.Builder>();
+		// labels of the nodes of each level, level 0 (the root) has none
+		private final List<StringBuilder> labels = new ArrayList<StringBuilder>();
+		private final List<List<Object>> values;
+		private String previous;
+		private int size;
+
+		Builder(boolean hasValues) {
+			values = hasValues ? new ArrayList<List<Object>>() : null;
+		}
+
+		void add(String key, Object value) {
+			int common = 0;
+			if (previous == null) {
+				addNode(0, key.length() == 0, value);
+			}
+			else {
+				int comparison = key.compareTo(previous);
+				if (comparison < 0) {
+					throw new IllegalArgumentException("input not sorted: \"" + key + "\"");
+				}
+				if (comparison == 0) {
+					return;
+				}
+				int length = Math.min(key.length(), previous.length());
+				while (common < length && key.charAt(common) == previous.charAt(common)) {
+					common++;
+				}
+				for (int depth = previous.length(); depth > common; depth--) {
+					louds.get(depth).append(false);
+				}
+			}
+			if (size == Integer.MAX_VALUE) {
+				throw new IllegalArgumentException("too many keys");
+			}
+			// key follows previous, so it is longer than the common prefix
+			for (int depth = common + 1; depth <= key.length(); depth++) {
+				louds.get(depth - 1).append(true);
+				addNode(depth, depth == key.length(), value);
+				labels.get(depth).append(key.charAt(depth - 1));
+			}
+			previous = key;
+			size++;
+		}
+
+		private void addNode(int depth, boolean hasEntry, Object value) {
+			if (depth == louds.size()) {
+				louds.add(new BitVector.Builder());
+				entries.add(new BitVector.Builder());
+				labels.add(new StringBuilder());
+				if (values != null) {
+					values.add(new ArrayList<Object>());
+				}
+			}
+			entries.get(depth).append(hasEntry);
+			if (hasEntry && values != null) {
+				values.get(depth).add(value);
+			}
+		}
+
+		<V> LoudsTrieMap<V> build() {
+			if (previous == null) {
+				addNode(0, false, null);
+				previous = "";
+			}
+			for (int depth = previous.length(); depth >= 0; depth--) {
+				louds.get(depth).append(false);
+			}
+			BitVector.Builder loudsBits = new BitVector.Builder();
+			BitVector.Builder entryBits = new BitVector.Builder();
+			for (int depth = 0; depth < louds.size(); depth++) {
+				loudsBits.append(louds.get(depth));
+				entryBits.append(entries.get(depth));
+				// let the level go as soon as it is copied
+				louds.set(depth, null);
+				entries.set(depth, null);
+			}
+			Object[] valueArray = null;
+			if (values != null) {
+				valueArray = new Object[size];
+				int index = 0;
+				for (int depth = 0; depth < values.size(); depth++) {
+					for (Object value : values.get(depth)) {
+						valueArray[index++] = value;
+					}
+					values.set(depth, null);
+				}
+			}
+			return new LoudsTrieMap<V>(loudsBits.build(), entryBits.build(), new Labels(labels), valueArray, size);
+		}
+	}
+
+	private class EntryIterator implements Iterator<Entry<String, V>> {
+		private final StringBuilder key;
+		// node and next child node per depth, children are numbered consecutively
+		private long[] nodes = new long[16];
+		private long[] nextChildren = new long[16];
+		private long[] endChildren = new long[16];
+		private int depth;
+		private Entry<String, V> next;
+
+		EntryIterator(long node, String prefix) {
+			key = new StringBuilder(prefix);
+			if (node < 0 || size == 0) {
+				depth = -1;
+				return;
+			}
+			set(node);
+			if (entries.get(node)) {
+				next = new SimpleImmutableEntry<String, V>(prefix, valueAt(node));
+			}
+			else {
+				advance();
+			}
+		}
+
+		public boolean hasNext() {
+			return next != null;
+		}
+
+		public Entry<String, V> next() {
+			if (next == null) {
+				throw new NoSuchElementException();
+			}
+			Entry<String, V> current = next;
+			advance();
+			return current;
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+		private void set(long node) {
+			long start = firstBit(node);
+			long end = louds.select0(node);
+			long firstChild = louds.rank1(start) + 1;
+			nodes[depth] = node;
+			nextChildren[depth] = firstChild;
+			endChildren[depth] = firstChild + end - start;
+		}
+
+		private void advance() {
+			next = null;
+			while (depth >= 0) {
+				if (nextChildren[depth] == endChildren[depth]) {
+					depth--;
+					if (depth >= 0) {
+						key.setLength(key.length() - 1);
+					}
+					continue;
+				}
+				long child = nextChildren[depth]++;
+				key.append(labels.get(child - 1));
+				depth++;
+				if (depth == nodes.length) {
+					nodes = Arrays.copyOf(nodes, depth * 2);
+					nextChildren = Arrays.copyOf(nextChildren, depth * 2);
+					endChildren = Arrays.copyOf(endChildren, depth * 2);
+				}
+				set(child);
+				if (entries.get(child)) {
+					next = new SimpleImmutableEntry<String, V>(key.toString(), valueAt(child));
+					return;
+				}
+			}
+		}
+	}
+
+	private class EntrySet extends AbstractSet<Entry<String, V>> {
+		@Override
+		public Iterator<Entry<String, V>> iterator() {
+			return new EntryIterator(0, "");
+		}
+
+		@Override
+		public int size() {
+			return size;
+		}
+	}
+}
@@ -0,0 +1,376 @@
+/*
+ * Copyright 2007 Georg Lundesgaard (georg@lundesgaard.dk)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.lundesgaard.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.Set;
+
+/**
+ * Generalized suffix trie of the keys of a {@link TrieMap}, answering 
+ * substring queries. Every suffix of every key is inserted into a path 
+ * compressed trie, whose edge labels are ranges of the key strings, so the 
+ * number of nodes is linear in the total length of the keys. A substring 
+ * query walks the pattern from the root and collects the entries below, in 
+ * time proportional to the length of the pattern plus the number of 
+ * occurrences.
+ * <p>
+ * The index is attached with {@link TrieMap#enableSuffixIndex()} and kept 
+ * up to date by the map. Entries are held by identity, the keys returned 
+ * are the current keys of the entries.
+ */
+public class SuffixTrieIndex<K> {
+	// estimated object sizes in bytes, with compressed object pointers; a 
+	// node is a 12 byte header, three ints and five references, aligned
+	private static final int NODE_SIZE = 48;
+	private static final int ARRAY_HEADER_SIZE = 16;
+	private static final int REFERENCE_SIZE = 4;
+	// a string with compact strings, its byte array counted separately
+	private static final int STRING_SIZE = 24;
+	
+	private SuffixNode root = new SuffixNode(null, 0, 0);
+	private int keyCount;
+	private int nodeCount = 1;
+	private long ownerCount;
+	// estimated bytes of the owner arrays
+	private long ownerArraySize;
+	
+	SuffixTrieIndex() {
+	}
+	
+	/**
+	 * Returns the keys containing the given substring, in no particular 
+	 * order. Every key contains the empty string.
+	 */
+	@SuppressWarnings("unchecked")
+	public List<K> keysContaining(String substring) {
+		SuffixNode node = find(substring, 0);
+		if (node == null) {
+			return new ArrayList<K>(0);
+		}
+		Set<Object> seen = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+		List<K> keys = new ArrayList<K>();
+		List<SuffixNode> stack = new ArrayList<SuffixNode>();
+		stack.add(node);
+		while (stack.isEmpty() == false) {
+			SuffixNode current = stack.remove(stack.size() - 1);
+			for (int i = 0; i < current.ownerCount; i++) {
+				if (seen.add(current.owners[i])) {
+					keys.add(((Entry<K, ?>) current.owners[i]).getKey());
+				}
+			}
+			for (SuffixNode child = current.firstChild; child != null; child = child.nextSibling) {
+				stack.add(child);
+			}
+		}
+		return keys;
+	}
+	
+	/**
+	 * Returns the number of keys in the index.
+	 */
+	public int size() {
+		return keyCount;
+	}
+	
+	/**
+	 * Returns the number of nodes in the suffix trie.
+	 */
+	public int getNodeCount() {
+		return nodeCount;
+	}
+	
+	/**
+	 * Returns the estimated heap size of the index in bytes. The label 
+	 * strings are copies of the keys made for the index, and a label stays 
+	 * referenced by the nodes split from it after its key is removed, so 
+	 * every distinct label still referenced is counted. Finding them walks 
+	 * the whole trie.
+	 */
+	public long getEstimatedSize() {
+		long size = (long) nodeCount * NODE_SIZE + ownerArraySize;
+		Set<String> labels = Collections.newSetFromMap(new IdentityHashMap<String, Boolean>());
+		List<SuffixNode> stack = new ArrayList<SuffixNode>();
+		stack.add(root);
+		while (stack.isEmpty() == false) {
+			SuffixNode node = stack.remove(stack.size() - 1);
+			if (node.label != null && labels.add(node.label)) {
+				size += STRING_SIZE + align(ARRAY_HEADER_SIZE + (long) node.label.length() * bytesPerChar(node.label));
+			}
+			for (SuffixNode child = node.firstChild; child != null; child = child.nextSibling) {
+				stack.add(child);
+			}
+		}
+		return size;
+	}
+	
+	public String toString() {
+		return "SuffixTrieIndex[keys=" + keyCount + ", nodes=" + nodeCount + ", suffixes=" + ownerCount 
+				+ ", estimatedSize=" + getEstimatedSize() + "]";
+	}
+	
+	void add(Entry<K, ?> entry, String keyString) {
+		if (keyString.length() == 0) {
+			addOwner(root, entry);
+		}
+		for (int i = 0; i < keyString.length(); i++) {
+			addOwner(insert(keyString, i), entry);
+		}
+		keyCount++;
+	}
+	
+	void remove(Entry<K, ?> entry, String keyString) {
+		if (keyString.length() == 0) {
+			removeOwner(root, entry);
+		}
+		for (int i = 0; i < keyString.length(); i++) {
+			SuffixNode node = find(keyString, i);
+			if (node != null && removeOwner(node, entry)) {
+				prune(node);
+			}
+		}
+		keyCount--;
+	}
+	
+	void clear() {
+		root = new SuffixNode(null, 0, 0);
+		keyCount = 0;
+		nodeCount = 1;
+		ownerCount = 0;
+		ownerArraySize = 0;
+	}
+	
+	/**
+	 * Returns the node at or below the end of the given path, starting at 
+	 * the given position, or <code>null</code> when no suffix starts with it.
+	 */
+	private SuffixNode find(String path, int start) {
+		SuffixNode node = root;
+		int position = start;
+		while (position < path.length()) {
+			SuffixNode child = getChild(node, path.charAt(position));
+			if (child == null) {
+				return null;
+			}
+			int matched = match(child, path, position);
+			if (matched < child.length() && position + matched < path.length()) {
+				return null;
+			}
+			position += matched;
+			node = child;
+		}
+		return node;
+	}
+	
+	private SuffixNode insert(String keyString, int start) {
+		SuffixNode node = root;
+		int position = start;
+		while (position < keyString.length()) {
+			SuffixNode child = getChild(node, keyString.charAt(position));
+			if (child == null) {
+				SuffixNode leaf = new SuffixNode(keyString, position, keyString.length());
+				addChild(node, leaf);
+				nodeCount++;
+				return leaf;
+			}
+			int matched = match(child, keyString, position);
+			if (matched < child.length()) {
+				child = split(node, child, matched);
+			}
+			position += matched;
+			node = child;
+		}
+		return node;
+	}
+	
+	private static int match(SuffixNode node, String path, int position) {
+		int length = Math.min(node.length(), path.length() - position);
+		int matched = 0;
+		while (matched < length && node.label.charAt(node.start + matched) == path.charAt(position + matched)) {
+			matched++;
+		}
+		return matched;
+	}
+	
+	// splits the label of the child after the given length, returns the new upper node
+	private SuffixNode split(SuffixNode parent, SuffixNode child, int length) {
+		SuffixNode upper = new SuffixNode(child.label, child.start, child.start + length);
+		replaceChild(parent, child, upper);
+		child.start += length;
+		child.nextSibling = null;
+		upper.firstChild = child;
+		child.parent = upper;
+		nodeCount++;
+		return upper;
+	}
+	
+	// removes a node without owners and children, and merges a parent left with a single child into it
+	private void prune(SuffixNode node) {
+		if (node.ownerCount > 0 || node == root) {
+			return;
+		}
+		SuffixNode parent = node.parent;
+		if (node.firstChild == null) {
+			removeChild(parent, node);
+			nodeCount--;
+			prune(parent);
+		}
+		else if (node.firstChild.nextSibling == null) {
+			SuffixNode child = node.firstChild;
+			// the path to a node always ends its label string, so the labels join up in the child's string
+			child.start -= node.length();
+			replaceChild(parent, node, child);
+			nodeCount--;
+		}
+	}
+	
+	private static long arraySize(int length) {
+		return align(ARRAY_HEADER_SIZE + (long) length * REFERENCE_SIZE);
+	}
+	
+	private static long align(long size) {
+		return (size + 7) & ~7L;
+	}
+	
+	// compact strings store a string in one byte per character when every character is Latin-1
+	private static int bytesPerChar(String s) {
+		for (int i = 0; i < s.length(); i++) {
+			if (s.charAt(i) > 0xFF) {
+				return 2;
+			}
+		}
+		return 1;
+	}
+	
+	private static SuffixNode getChild(SuffixNode parent, char c) {
+		for (SuffixNode child = parent.firstChild; child != null && child.firstChar() <= c; child = child.nextSibling) {
+			if (child.firstChar() == c) {
+				return child;
+			}
+		}
+		return null;
+	}
+	
+	private static void addChild(SuffixNode parent, SuffixNode node) {
+		char c = node.firstChar();
+		SuffixNode previous = null;
+		SuffixNode next = parent.firstChild;
+		while (next != null && next.firstChar() < c) {
+			previous = next;
+			next = next.nextSibling;
+		}
+		node.nextSibling = next;
+		node.parent = parent;
+		if (previous == null) {
+			parent.firstChild = node;
+		}
+		else {
+			previous.nextSibling = node;
+		}
+	}
+	
+	// the replacement starts with the same character, so it takes the place of the child
+	private static void replaceChild(SuffixNode parent, SuffixNode child, SuffixNode replacement) {
+		replacement.nextSibling = child.nextSibling;
+		replacement.parent = parent;
+		if (parent.firstChild == child) {
+			parent.firstChild = replacement;
+		}
+		else {
+			SuffixNode previous = parent.firstChild;
+			while (previous.nextSibling != child) {
+				previous = previous.nextSibling;
+			}
+			previous.nextSibling = replacement;
+		}
+		child.nextSibling = null;
+	}
+	
+	private static void removeChild(SuffixNode parent, SuffixNode child) {
+		if (parent.firstChild == child) {
+			parent.firstChild = child.nextSibling;
+		}
+		else {
+			SuffixNode previous = parent.firstChild;
+			while (previous.nextSibling != child) {
+				previous = previous.nextSibling;
+			}
+			previous.nextSibling = child.nextSibling;
+		}
+		child.nextSibling = null;
+	}
+	
+	private void addOwner(SuffixNode node, Object owner) {
+		if (node.owners == null) {
+			node.owners = new Object[1];
+			ownerArraySize += arraySize(1);
+		}
+		else if (node.ownerCount == node.owners.length) {
+			Object[] owners = new Object[node.ownerCount * 2];
+			System.arraycopy(node.owners, 0, owners, 0, node.ownerCount);
+			ownerArraySize += arraySize(owners.length) - arraySize(node.owners.length);
+			node.owners = owners;
+		}
+		node.owners[node.ownerCount++] = owner;
+		ownerCount++;
+	}
+	
+	private boolean removeOwner(SuffixNode node, Object owner) {
+		for (int i = 0; i < node.ownerCount; i++) {
+			if (node.owners[i] == owner) {
+				node.owners[i] = node.owners[--node.ownerCount];
+				node.owners[node.ownerCount] = null;
+				ownerCount--;
+				if (node.ownerCount == 0) {
+					ownerArraySize -= arraySize(node.owners.length);
+					node.owners = null;
+				}
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	private static class SuffixNode {
+		// the label is label.substring(start, end)
+		String label;
+		int start;
+		int end;
+		SuffixNode parent;
+		SuffixNode firstChild;
+		SuffixNode nextSibling;
+		// entries having a suffix ending at this node
+		Object[] owners;
+		int ownerCount;
+		
+		SuffixNode(String label, int start, int end) {
+			this.label = label;
+			this.start = start;
+			this.end = end;
+		}
+		
+		int length() {
+			return end - start;
+		}
+		
+		char firstChar() {
+			return label.charAt(start);
+		}
+	}
+}
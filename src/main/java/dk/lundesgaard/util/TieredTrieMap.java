@@ -0,0 +1,1340 @@
+/*
+ * Copyright 2007 Georg Lundesgaard (georg@lundesgaard.dk)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.lundesgaard.util;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+import dk.lundesgaard.util.DurableTrieMap.Codec;
+
+/**
+ * Map of keys that do not fit in the heap, stored in tiers like a 
+ * log-structured merge tree. Writes go to an in-memory {@link TrieMap} (the 
+ * memtable); when it reaches its size limit it is flushed to an immutable 
+ * segment file in the directory. Removals are written as tombstones that 
+ * hide older values until a compaction drops them.
+ * <p>
+ * A segment holds its records sorted by key string and front coded in 
+ * blocks of about 4 KB. The first key of every block and a Bloom filter of 
+ * the keys and of their 4 and 8 character prefixes are kept in memory. A 
+ * lookup checks the memtable and then the segments from the newest, and 
+ * reads at most one block of every segment whose key range and filter admit 
+ * the key. Iteration in key order and {@link #prefixMap(String)} merge the 
+ * memtable and the segments, skipping segments whose filter rules out the 
+ * prefix.
+ * <p>
+ * Compaction runs in a background thread: when there are at least 
+ * <code>compactionThreshold</code> adjacent segments of similar size (within 
+ * a factor of four) they are merged into one. When there are more than twice 
+ * that many segments and none of similar size, the adjacent run with the 
+ * fewest bytes is merged. Tombstones are dropped when the oldest segment 
+ * takes part.
+ * <p>
+ * The memtable is not logged: what has not been flushed is lost if the 
+ * process dies without {@link #close()}. The map is synchronized on itself. 
+ * Iteration over the views must be synchronized on the map by the caller, 
+ * the views are read-only and fail fast when the map is modified, flushed 
+ * or compacted. {@link #size()} counts the keys by merging all tiers.
+ */
+public class TieredTrieMap<K, V> extends AbstractMap<K, V> implements Closeable {
+	private static final int SEGMENT_MAGIC = 0x54534547;
+	private static final int BLOCK_SIZE = 4096;
+	// trailer offset, trailer length, trailer checksum and magic
+	private static final int FOOTER_SIZE = 24;
+	private static final int BITS_PER_FILTER_ITEM = 10;
+	private static final int FILTER_HASHES = 7;
+	private static final int SHORT_PREFIX = 4;
+	private static final int LONG_PREFIX = 8;
+	private static final int KEY_ITEM = 0;
+	private static final int PREFIX_ITEM = 1;
+	// adjacent segments are merged when the largest is at most this many times the smallest
+	private static final int TIER_RATIO = 4;
+	private static final Object TOMBSTONE = new Object();
+	private static final Pattern SEGMENT_NAME = Pattern.compile("segment\\.[0-9]{1,18}-[0-9]{1,18}");
+
+	private final File directory;
+	private final Codec<K> keyCodec;
+	private final Codec<V> valueCodec;
+	private final int memtableSize;
+	private final int compactionThreshold;
+	private final ExecutorService compactor;
+	private TrieMap<K, Object> memtable = new TrieMap<K, Object>();
+	// oldest first
+	private final List<Segment> segments = new ArrayList<Segment>();
+	private long nextSequence;
+	private boolean compacting;
+	private boolean closed;
+	private int modCount;
+	private volatile IOException compactionFailure;
+	private transient Set<Entry<K, V>> entrySet;
+
+	private TieredTrieMap(Builder<K, V> builder) throws IOException {
+		directory = builder.directory;
+		keyCodec = builder.keyCodec;
+		valueCodec = builder.valueCodec;
+		memtableSize = builder.memtableSize;
+		compactionThreshold = builder.compactionThreshold;
+		if (directory.isDirectory() == false && directory.mkdirs() == false) {
+			throw new IOException("could not create directory " + directory);
+		}
+		recover();
+		compactor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "TieredTrieMap compaction " + directory.getName());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	@Override
+	public synchronized boolean containsKey(Object key) {
+		Record record = lookup(key);
+		return record != null && record.deleted == false;
+	}
+
+	@Override
+	public synchronized V get(Object key) {
+		Record record = lookup(key);
+		return record != null && record.deleted == false ? record.value() : null;
+	}
+
+	/**
+	 * Puts the entry and returns the previous value, which has to be looked 
+	 * up in the segments. Use {@link #set(Object, Object)} when the previous 
+	 * value is not needed.
+	 */
+	@Override
+	public synchronized V put(K key, V value) {
+		V oldValue = get(key);
+		set(key, value);
+		return oldValue;
+	}
+
+	/**
+	 * Puts the entry without looking up the previous value.
+	 */
+	public synchronized void set(K key, V value) {
+		checkOpen();
+		write(key, value);
+	}
+
+	/**
+	 * Removes the entry and returns its value, which has to be looked up in 
+	 * the segments. Use {@link #delete(Object)} when the value is not 
+	 * needed.
+	 */
+	@Override
+	public synchronized V remove(Object key) {
+		Record record = lookup(key);
+		if (record == null || record.deleted) {
+			return null;
+		}
+		delete(key);
+		return record.value();
+	}
+
+	/**
+	 * Removes the entry without looking it up, by writing a tombstone.
+	 */
+	@SuppressWarnings("unchecked")
+	public synchronized void delete(Object key) {
+		checkOpen();
+		// the memtable only needs the string form of the key
+		write((K) key, TOMBSTONE);
+	}
+
+	@Override
+	public synchronized int size() {
+		int size = 0;
+		Merger merger = new Merger("");
+		try {
+			for (Record record = merger.next(); record != null; record = merger.next()) {
+				if (record.deleted == false) {
+					size++;
+				}
+			}
+		}
+		catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return size;
+	}
+
+	@Override
+	public synchronized boolean isEmpty() {
+		return entrySet().iterator().hasNext() == false;
+	}
+
+	/**
+	 * Removes every entry and deletes the segment files.
+	 */
+	@Override
+	public synchronized void clear() {
+		checkOpen();
+		awaitCompaction();
+		try {
+			for (Segment segment : segments) {
+				segment.delete();
+			}
+		}
+		catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		segments.clear();
+		memtable = new TrieMap<K, Object>();
+		modCount++;
+	}
+
+	@Override
+	public synchronized Set<Entry<K, V>> entrySet() {
+		Set<Entry<K, V>> es = entrySet;
+		return es != null ? es : (entrySet = new EntrySet(""));
+	}
+
+	/**
+	 * Returns a read-only view of the entries with keys starting with the 
+	 * given prefix.
+	 */
+	public Map<K, V> prefixMap(String prefix) {
+		return new PrefixMap(prefix != null ? prefix : "");
+	}
+
+	/**
+	 * Returns the number of segment files.
+	 */
+	public synchronized int getSegmentCount() {
+		return segments.size();
+	}
+
+	/**
+	 * Writes the memtable to a new segment.
+	 */
+	public synchronized void flush() throws IOException {
+		checkOpen();
+		flushMemtable();
+	}
+
+	/**
+	 * Flushes the memtable and merges all segments into one, dropping the 
+	 * tombstones, after waiting for a running background compaction.
+	 */
+	public void compact() throws IOException {
+		List<Segment> window;
+		synchronized (this) {
+			checkOpen();
+			awaitCompaction();
+			flushMemtable();
+			awaitCompaction();
+			if (segments.isEmpty() || segments.size() == 1 && segments.get(0).tombstones == 0) {
+				return;
+			}
+			window = new ArrayList<Segment>(segments);
+			compacting = true;
+		}
+		compactWindow(window, true);
+		checkCompactionFailure();
+	}
+
+	/**
+	 * Flushes the memtable, waits for a running compaction and closes the 
+	 * map.
+	 */
+	public void close() throws IOException {
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			flushMemtable();
+			closed = true;
+		}
+		compactor.shutdown();
+		try {
+			compactor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted while waiting for compaction");
+		}
+		synchronized (this) {
+			for (Segment segment : segments) {
+				segment.channel.close();
+			}
+		}
+	}
+
+	private void write(K key, Object value) {
+		memtable.put(key, value);
+		modCount++;
+		if (memtable.size() >= memtableSize) {
+			try {
+				flushMemtable();
+			}
+			catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+	}
+
+	private Record lookup(Object key) {
+		checkNotClosed();
+		Object value = memtable.get(key);
+		if (value != null || memtable.containsKey(key)) {
+			return new Record(keyString(key), value == TOMBSTONE, key, value);
+		}
+		String keyString = keyString(key);
+		try {
+			for (int i = segments.size() - 1; i >= 0; i--) {
+				Record record = segments.get(i).get(keyString);
+				if (record != null) {
+					return record;
+				}
+			}
+		}
+		catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return null;
+	}
+
+	private void flushMemtable() throws IOException {
+		if (memtable.isEmpty()) {
+			return;
+		}
+		long sequence = nextSequence++;
+		// tombstones are needed as long as there are older segments
+		boolean dropTombstones = segments.isEmpty();
+		final Iterator<Entry<K, Object>> entries = memtable.entrySet().iterator();
+		Source source = new Source() {
+			public Record next() {
+				if (entries.hasNext() == false) {
+					return null;
+				}
+				Entry<K, Object> entry = entries.next();
+				Object value = entry.getValue();
+				return new Record(keyString(entry.getKey()), value == TOMBSTONE, entry.getKey(), value);
+			}
+		};
+		Segment segment = writeSegment(sequence, sequence, source, memtable.size(), dropTombstones);
+		if (segment.recordCount > 0) {
+			segments.add(segment);
+		}
+		else {
+			segment.delete();
+		}
+		memtable = new TrieMap<K, Object>();
+		modCount++;
+		scheduleCompaction();
+	}
+
+	// called with the lock held
+	private void scheduleCompaction() {
+		if (compacting || closed) {
+			return;
+		}
+		final List<Segment> window = pickWindow();
+		if (window == null) {
+			return;
+		}
+		final boolean dropTombstones = window.get(0) == segments.get(0);
+		compacting = true;
+		compactor.execute(new Runnable() {
+			public void run() {
+				compactWindow(window, dropTombstones);
+			}
+		});
+	}
+
+	/**
+	 * Returns the newest run of at least <code>compactionThreshold</code> 
+	 * adjacent segments of similar size to merge, or <code>null</code> if 
+	 * there is none.
+	 */
+	private List<Segment> pickWindow() {
+		int count = segments.size();
+		if (count < compactionThreshold) {
+			return null;
+		}
+		for (int start = count - compactionThreshold; start >= 0; start--) {
+			long smallest = Long.MAX_VALUE;
+			long largest = 0;
+			for (int i = start; i < start + compactionThreshold; i++) {
+				long length = segments.get(i).length;
+				smallest = Math.min(smallest, length);
+				largest = Math.max(largest, length);
+			}
+			if (largest <= smallest * TIER_RATIO) {
+				// take in the neighbours of similar size, flushed while another compaction ran
+				int end = start + compactionThreshold;
+				while (start > 0 && similar(segments.get(start - 1).length, smallest, largest)) {
+					smallest = Math.min(smallest, segments.get(--start).length);
+					largest = Math.max(largest, segments.get(start).length);
+				}
+				while (end < count && similar(segments.get(end).length, smallest, largest)) {
+					smallest = Math.min(smallest, segments.get(end).length);
+					largest = Math.max(largest, segments.get(end++).length);
+				}
+				return new ArrayList<Segment>(segments.subList(start, end));
+			}
+		}
+		if (count <= compactionThreshold * 2) {
+			return null;
+		}
+		// too many segments of uneven size: merge the cheapest run
+		int cheapest = 0;
+		long cheapestLength = Long.MAX_VALUE;
+		for (int start = 0; start + compactionThreshold <= count; start++) {
+			long length = 0;
+			for (int i = start; i < start + compactionThreshold; i++) {
+				length += segments.get(i).length;
+			}
+			if (length < cheapestLength) {
+				cheapest = start;
+				cheapestLength = length;
+			}
+		}
+		return new ArrayList<Segment>(segments.subList(cheapest, cheapest + compactionThreshold));
+	}
+
+	private static boolean similar(long length, long smallest, long largest) {
+		return Math.max(length, largest) <= Math.min(length, smallest) * TIER_RATIO;
+	}
+
+	/**
+	 * Merges the given adjacent segments into one and replaces them with it. 
+	 * A failure is reported once, by the next modification of the map; the 
+	 * segments are kept and merged again after a later flush.
+	 */
+	private void compactWindow(List<Segment> window, boolean dropTombstones) {
+		Throwable failure = null;
+		try {
+			List<Cursor> cursors = new ArrayList<Cursor>();
+			long records = 0;
+			for (int i = 0; i < window.size(); i++) {
+				cursors.add(window.get(i).cursor("", i));
+				records += window.get(i).recordCount;
+			}
+			final Merger merger = new Merger(cursors);
+			Segment merged = writeSegment(window.get(0).firstSequence, window.get(window.size() - 1).lastSequence, 
+					new Source() {
+						public Record next() throws IOException {
+							return merger.next();
+						}
+					}, records, dropTombstones);
+			synchronized (this) {
+				int index = segments.indexOf(window.get(0));
+				segments.subList(index, index + window.size()).clear();
+				if (merged.recordCount > 0) {
+					segments.add(index, merged);
+				}
+				else {
+					merged.delete();
+				}
+				modCount++;
+				for (Segment segment : window) {
+					segment.delete();
+				}
+			}
+		}
+		catch (Throwable e) {
+			failure = e;
+		}
+		finally {
+			synchronized (this) {
+				compacting = false;
+				notifyAll();
+				if (failure != null) {
+					compactionFailure = failure instanceof IOException ? (IOException) failure : new IOException(failure);
+				}
+				else {
+					compactionFailure = null;
+					scheduleCompaction();
+				}
+			}
+		}
+	}
+
+	private void awaitCompaction() {
+		while (compacting) {
+			try {
+				wait();
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new UncheckedIOException(new InterruptedIOException("interrupted while waiting for compaction"));
+			}
+		}
+	}
+
+	private void checkOpen() {
+		checkNotClosed();
+		try {
+			checkCompactionFailure();
+		}
+		catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private void checkNotClosed() {
+		if (closed) {
+			throw new IllegalStateException("map is closed");
+		}
+	}
+
+	// reports a failure of the last compaction once
+	private void checkCompactionFailure() throws IOException {
+		IOException failure;
+		synchronized (this) {
+			failure = compactionFailure;
+			compactionFailure = null;
+		}
+		if (failure != null) {
+			throw new IOException("compaction failed", failure);
+		}
+	}
+
+	private void recover() throws IOException {
+		List<Segment> found = new ArrayList<Segment>();
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				String name = file.getName();
+				if (name.startsWith("segment.") && name.endsWith(".tmp")) {
+					// left by a crash during a flush or compaction
+					Files.delete(file.toPath());
+					continue;
+				}
+				if (SEGMENT_NAME.matcher(name).matches() == false) {
+					continue;
+				}
+				int dash = name.indexOf('-');
+				long first = Long.parseLong(name.substring("segment.".length(), dash));
+				long last = Long.parseLong(name.substring(dash + 1));
+				found.add(new Segment(file, first, last));
+			}
+		}
+		Collections.sort(found, new Comparator<Segment>() {
+			public int compare(Segment a, Segment b) {
+				return a.lastSequence < b.lastSequence ? -1 : a.lastSequence == b.lastSequence ? 0 : 1;
+			}
+		});
+		for (Segment segment : found) {
+			// segments merged by a compaction that crashed before deleting them
+			boolean covered = false;
+			for (Segment other : found) {
+				if (other != segment && other.firstSequence <= segment.firstSequence 
+						&& segment.lastSequence <= other.lastSequence) {
+					covered = true;
+				}
+			}
+			if (covered) {
+				segment.delete();
+			}
+			else {
+				segments.add(segment);
+			}
+			nextSequence = Math.max(nextSequence, segment.lastSequence + 1);
+		}
+	}
+
+	private Segment writeSegment(long firstSequence, long lastSequence, Source source, long expectedRecords, 
+			boolean dropTombstones) throws IOException {
+		String name = "segment." + firstSequence + "-" + lastSequence;
+		File tmpFile = new File(directory, name + ".tmp");
+		FileOutputStream fileOut = new FileOutputStream(tmpFile);
+		try {
+			CountingOutputStream counter = new CountingOutputStream(new BufferedOutputStream(fileOut, 64 * 1024));
+			DataOutputStream out = new DataOutputStream(counter);
+			ByteArrayOutputStream payload = new ByteArrayOutputStream();
+			DataOutputStream payloadOut = new DataOutputStream(payload);
+			BloomFilter filter = new BloomFilter(Math.max(expectedRecords, 1) * 3 * BITS_PER_FILTER_ITEM);
+			List<String> blockKeys = new ArrayList<String>();
+			List<Long> blockOffsets = new ArrayList<Long>();
+			int recordCount = 0;
+			int tombstones = 0;
+			long blockStart = -1;
+			String previous = null;
+			out.writeInt(SEGMENT_MAGIC);
+			for (Record record = source.next(); record != null; record = source.next()) {
+				if (record.deleted && dropTombstones) {
+					continue;
+				}
+				String keyString = record.keyString;
+				int shared = previous != null ? sharedPrefix(previous, keyString) : 0;
+				if (blockStart < 0 || counter.count - blockStart >= BLOCK_SIZE) {
+					blockStart = counter.count;
+					blockKeys.add(keyString);
+					blockOffsets.add(blockStart);
+					// blocks are decoded on their own
+					shared = 0;
+				}
+				writeVarInt(out, shared);
+				writeString(out, keyString.substring(shared));
+				if (record.deleted) {
+					out.writeByte(0);
+					tombstones++;
+				}
+				else {
+					out.writeByte(1);
+					byte[] bytes = record.payload;
+					if (bytes == null) {
+						payload.reset();
+						keyCodec.write(payloadOut, record.key());
+						valueCodec.write(payloadOut, record.value());
+						bytes = payload.toByteArray();
+					}
+					writeVarInt(out, bytes.length);
+					out.write(bytes);
+				}
+				filter.add(KEY_ITEM, keyString, keyString.length());
+				// a prefix is new when it is longer than the prefix shared with the previous key
+				int sharedWithPrevious = previous != null ? sharedPrefix(previous, keyString) : 0;
+				for (int prefix = SHORT_PREFIX; prefix <= LONG_PREFIX; prefix += LONG_PREFIX - SHORT_PREFIX) {
+					if (keyString.length() >= prefix && sharedWithPrevious < prefix) {
+						filter.add(PREFIX_ITEM, keyString, prefix);
+					}
+				}
+				previous = keyString;
+				recordCount++;
+			}
+			long trailerOffset = counter.count;
+			ByteArrayOutputStream trailer = new ByteArrayOutputStream();
+			DataOutputStream trailerOut = new DataOutputStream(trailer);
+			trailerOut.writeInt(recordCount);
+			trailerOut.writeInt(tombstones);
+			writeString(trailerOut, previous != null ? previous : "");
+			trailerOut.writeInt(blockKeys.size());
+			for (int i = 0; i < blockKeys.size(); i++) {
+				writeString(trailerOut, blockKeys.get(i));
+				trailerOut.writeLong(blockOffsets.get(i));
+			}
+			filter.write(trailerOut);
+			byte[] trailerBytes = trailer.toByteArray();
+			CRC32 crc = new CRC32();
+			crc.update(trailerBytes);
+			out.write(trailerBytes);
+			out.writeLong(trailerOffset);
+			out.writeInt(trailerBytes.length);
+			out.writeLong(crc.getValue());
+			out.writeInt(SEGMENT_MAGIC);
+			out.flush();
+			fileOut.getChannel().force(true);
+		}
+		catch (IOException e) {
+			fileOut.close();
+			tmpFile.delete();
+			throw e;
+		}
+		fileOut.close();
+		File file = new File(directory, name);
+		Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		syncDirectory();
+		return new Segment(file, firstSequence, lastSequence);
+	}
+
+	private void syncDirectory() {
+		try {
+			FileChannel channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ);
+			try {
+				channel.force(true);
+			}
+			finally {
+				channel.close();
+			}
+		}
+		catch (IOException e) {
+			// directories can not be forced on every platform
+		}
+	}
+
+	private static String keyString(Object key) {
+		return key != null ? key.toString() : "";
+	}
+
+	// length of the common prefix, not splitting a surrogate pair
+	private static int sharedPrefix(String a, String b) {
+		int length = Math.min(a.length(), b.length());
+		int shared = 0;
+		while (shared < length && a.charAt(shared) == b.charAt(shared)) {
+			shared++;
+		}
+		if (shared > 0 && Character.isHighSurrogate(a.charAt(shared - 1))) {
+			shared--;
+		}
+		return shared;
+	}
+
+	private static void writeVarInt(DataOutput out, int value) throws IOException {
+		while ((value & ~0x7F) != 0) {
+			out.writeByte(value & 0x7F | 0x80);
+			value >>>= 7;
+		}
+		out.writeByte(value);
+	}
+
+	private static int readVarInt(DataInput in) throws IOException {
+		int value = 0;
+		for (int shift = 0; shift < 32; shift += 7) {
+			int b = in.readUnsignedByte();
+			value |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IOException("malformed variable length integer");
+	}
+
+	private static void writeString(DataOutput out, String s) throws IOException {
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		writeVarInt(out, bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(DataInput in) throws IOException {
+		byte[] bytes = new byte[readVarInt(in)];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Builder of tiered maps.
+	 */
+	public static class Builder<K, V> {
+		private final File directory;
+		private final Codec<K> keyCodec;
+		private final Codec<V> valueCodec;
+		private int memtableSize = 100000;
+		private int compactionThreshold = 4;
+
+		public Builder(File directory, Codec<K> keyCodec, Codec<V> valueCodec) {
+			if (directory == null || keyCodec == null || valueCodec == null) {
+				throw new NullPointerException();
+			}
+			this.directory = directory;
+			this.keyCodec = keyCodec;
+			this.valueCodec = valueCodec;
+		}
+
+		/**
+		 * Sets the number of entries (tombstones included) at which the 
+		 * memtable is flushed, 100000 by default.
+		 */
+		public Builder<K, V> memtableSize(int memtableSize) {
+			if (memtableSize < 1) {
+				throw new IllegalArgumentException("memtable size must be positive: " + memtableSize);
+			}
+			this.memtableSize = memtableSize;
+			return this;
+		}
+
+		/**
+		 * Sets the number of segments of similar size that are merged by a 
+		 * compaction, 4 by default.
+		 */
+		public Builder<K, V> compactionThreshold(int compactionThreshold) {
+			if (compactionThreshold < 2) {
+				throw new IllegalArgumentException("compaction threshold must be at least 2: " + compactionThreshold);
+			}
+			this.compactionThreshold = compactionThreshold;
+			return this;
+		}
+
+		/**
+		 * Opens the map with the segments found in the directory.
+		 */
+		public TieredTrieMap<K, V> open() throws IOException {
+			return new TieredTrieMap<K, V>(this);
+		}
+	}
+
+	/**
+	 * Entry of a tier: a value or a tombstone. The key and value of a 
+	 * segment record are decoded from the payload when asked for.
+	 */
+	private class Record {
+		final String keyString;
+		final boolean deleted;
+		private Object key;
+		private Object value;
+		private byte[] payload;
+		private boolean decoded;
+
+		Record(String keyString, boolean deleted, Object key, Object value) {
+			this.keyString = keyString;
+			this.deleted = deleted;
+			this.key = key;
+			this.value = value;
+			decoded = true;
+		}
+
+		Record(String keyString, boolean deleted, byte[] payload) {
+			this.keyString = keyString;
+			this.deleted = deleted;
+			this.payload = payload;
+		}
+
+		@SuppressWarnings("unchecked")
+		K key() {
+			decode();
+			return (K) key;
+		}
+
+		@SuppressWarnings("unchecked")
+		V value() {
+			decode();
+			return (V) value;
+		}
+
+		private void decode() {
+			if (decoded) {
+				return;
+			}
+			try {
+				DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+				key = keyCodec.read(in);
+				value = valueCodec.read(in);
+			}
+			catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			decoded = true;
+		}
+	}
+
+	private abstract class Source {
+		/**
+		 * Returns the next record in key order, or <code>null</code>.
+		 */
+		abstract Record next() throws IOException;
+	}
+
+	/**
+	 * Records of one tier from a prefix on. Newer tiers have higher ranks.
+	 */
+	private abstract class Cursor {
+		final int rank;
+		Record current;
+
+		Cursor(int rank) {
+			this.rank = rank;
+		}
+
+		abstract boolean advance() throws IOException;
+	}
+
+	/**
+	 * Merges the tiers in key order; of records with equal keys the one of 
+	 * the newest tier is returned.
+	 */
+	private class Merger extends Source {
+		private final PriorityQueue<Cursor> queue;
+
+		Merger(String prefix) {
+			this(cursors(prefix));
+		}
+
+		Merger(List<Cursor> cursors) {
+			queue = new PriorityQueue<Cursor>(Math.max(cursors.size(), 1), new Comparator<Cursor>() {
+				public int compare(Cursor a, Cursor b) {
+					int c = a.current.keyString.compareTo(b.current.keyString);
+					return c != 0 ? c : b.rank - a.rank;
+				}
+			});
+			try {
+				for (Cursor cursor : cursors) {
+					if (cursor.advance()) {
+						queue.add(cursor);
+					}
+				}
+			}
+			catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+
+		public Record next() throws IOException {
+			Cursor cursor = queue.poll();
+			if (cursor == null) {
+				return null;
+			}
+			Record record = cursor.current;
+			if (cursor.advance()) {
+				queue.add(cursor);
+			}
+			// older records of the same key
+			while (queue.isEmpty() == false && queue.peek().current.keyString.equals(record.keyString)) {
+				Cursor older = queue.poll();
+				if (older.advance()) {
+					queue.add(older);
+				}
+			}
+			return record;
+		}
+	}
+
+	// cursors of the tiers that may hold keys with the given prefix, called with the lock held
+	private List<Cursor> cursors(String prefix) {
+		checkNotClosed();
+		List<Cursor> cursors = new ArrayList<Cursor>();
+		final Iterator<Entry<K, Object>> entries = memtable.prefixMap(prefix).entrySet().iterator();
+		cursors.add(new Cursor(segments.size()) {
+			boolean advance() {
+				if (entries.hasNext() == false) {
+					return false;
+				}
+				Entry<K, Object> entry = entries.next();
+				Object value = entry.getValue();
+				current = new Record(keyString(entry.getKey()), value == TOMBSTONE, entry.getKey(), value);
+				return true;
+			}
+		});
+		for (int i = 0; i < segments.size(); i++) {
+			Segment segment = segments.get(i);
+			if (segment.mightContainPrefix(prefix)) {
+				cursors.add(segment.cursor(prefix, i));
+			}
+		}
+		return cursors;
+	}
+
+	/**
+	 * Immutable segment file. The blocks are read with positional reads, so 
+	 * a segment can be read by several threads.
+	 */
+	private class Segment {
+		final File file;
+		final long firstSequence;
+		final long lastSequence;
+		final FileChannel channel;
+		final long length;
+		final int recordCount;
+		final int tombstones;
+		private final String lastKey;
+		private final String[] blockKeys;
+		// offsets of the blocks, followed by the end of the last block
+		private final long[] blockOffsets;
+		private final BloomFilter filter;
+
+		Segment(File file, long firstSequence, long lastSequence) throws IOException {
+			this.file = file;
+			this.firstSequence = firstSequence;
+			this.lastSequence = lastSequence;
+			channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+			try {
+				length = channel.size();
+				if (length < 4 + FOOTER_SIZE) {
+					throw new IOException("segment too short: " + file);
+				}
+				ByteBuffer footer = ByteBuffer.allocate(FOOTER_SIZE);
+				read(footer, length - FOOTER_SIZE);
+				long trailerOffset = footer.getLong(0);
+				int trailerLength = footer.getInt(8);
+				long checksum = footer.getLong(12);
+				if (footer.getInt(20) != SEGMENT_MAGIC || trailerLength < 0 
+						|| trailerOffset + trailerLength != length - FOOTER_SIZE) {
+					throw new IOException("not a segment: " + file);
+				}
+				ByteBuffer trailer = ByteBuffer.allocate(trailerLength);
+				read(trailer, trailerOffset);
+				CRC32 crc = new CRC32();
+				crc.update(trailer.array());
+				if (crc.getValue() != checksum) {
+					throw new IOException("segment checksum mismatch: " + file);
+				}
+				DataInputStream in = new DataInputStream(new ByteArrayInputStream(trailer.array()));
+				recordCount = in.readInt();
+				tombstones = in.readInt();
+				lastKey = readString(in);
+				int blockCount = in.readInt();
+				blockKeys = new String[blockCount];
+				blockOffsets = new long[blockCount + 1];
+				for (int i = 0; i < blockCount; i++) {
+					blockKeys[i] = readString(in);
+					blockOffsets[i] = in.readLong();
+				}
+				blockOffsets[blockCount] = trailerOffset;
+				filter = new BloomFilter(in);
+			}
+			catch (IOException e) {
+				channel.close();
+				throw e;
+			}
+		}
+
+		Record get(String keyString) throws IOException {
+			int block = floorBlock(keyString);
+			if (block < 0 || keyString.compareTo(lastKey) > 0 
+					|| filter.mightContain(KEY_ITEM, keyString, keyString.length()) == false) {
+				return null;
+			}
+			BlockReader reader = new BlockReader(block);
+			for (Record record = reader.next(); record != null; record = reader.next()) {
+				int c = record.keyString.compareTo(keyString);
+				if (c == 0) {
+					return record;
+				}
+				if (c > 0) {
+					break;
+				}
+			}
+			return null;
+		}
+
+		boolean mightContainPrefix(String prefix) {
+			if (blockKeys.length == 0) {
+				return false;
+			}
+			if (prefix.compareTo(lastKey) > 0 && lastKey.startsWith(prefix) == false) {
+				return false;
+			}
+			String firstKey = blockKeys[0];
+			if (prefix.compareTo(firstKey) < 0 && firstKey.startsWith(prefix) == false) {
+				return false;
+			}
+			if (prefix.length() >= LONG_PREFIX) {
+				return filter.mightContain(PREFIX_ITEM, prefix, LONG_PREFIX);
+			}
+			if (prefix.length() >= SHORT_PREFIX) {
+				return filter.mightContain(PREFIX_ITEM, prefix, SHORT_PREFIX);
+			}
+			return true;
+		}
+
+		Cursor cursor(final String prefix, int rank) {
+			return new Cursor(rank) {
+				private int block = Math.max(floorBlock(prefix), 0);
+				private BlockReader reader;
+
+				boolean advance() throws IOException {
+					while (true) {
+						if (reader == null) {
+							if (block >= blockKeys.length) {
+								return false;
+							}
+							reader = new BlockReader(block++);
+						}
+						Record record = reader.next();
+						if (record == null) {
+							reader = null;
+							continue;
+						}
+						if (record.keyString.startsWith(prefix)) {
+							current = record;
+							return true;
+						}
+						if (record.keyString.compareTo(prefix) > 0) {
+							block = blockKeys.length;
+							reader = null;
+							return false;
+						}
+					}
+				}
+			};
+		}
+
+		void delete() throws IOException {
+			channel.close();
+			Files.deleteIfExists(file.toPath());
+		}
+
+		// index of the last block starting at or before the key
+		private int floorBlock(String keyString) {
+			int low = 0;
+			int high = blockKeys.length - 1;
+			while (low <= high) {
+				int middle = (low + high) >>> 1;
+				if (blockKeys[middle].compareTo(keyString) <= 0) {
+					low = middle + 1;
+				}
+				else {
+					high = middle - 1;
+				}
+			}
+			return high;
+		}
+
+		private void read(ByteBuffer buffer, long position) throws IOException {
+			while (buffer.hasRemaining()) {
+				int read = channel.read(buffer, position + buffer.position());
+				if (read < 0) {
+					throw new EOFException("unexpected end of segment " + file);
+				}
+			}
+		}
+
+		/**
+		 * Decodes the records of one block.
+		 */
+		private class BlockReader {
+			private final DataInputStream in;
+			private final ByteArrayInputStream bytes;
+			private String previous = "";
+
+			BlockReader(int block) throws IOException {
+				ByteBuffer buffer = ByteBuffer.allocate((int) (blockOffsets[block + 1] - blockOffsets[block]));
+				read(buffer, blockOffsets[block]);
+				bytes = new ByteArrayInputStream(buffer.array());
+				in = new DataInputStream(bytes);
+			}
+
+			Record next() throws IOException {
+				if (bytes.available() == 0) {
+					return null;
+				}
+				int shared = readVarInt(in);
+				String keyString = previous.substring(0, shared).concat(readString(in));
+				previous = keyString;
+				if (in.readByte() == 0) {
+					return new Record(keyString, true, null);
+				}
+				byte[] payload = new byte[readVarInt(in)];
+				in.readFully(payload);
+				return new Record(keyString, false, payload);
+			}
+		}
+	}
+
+	/**
+	 * Bloom filter of key strings and key prefixes, with the bit positions 
+	 * derived from one 64 bit hash by double hashing.
+	 */
+	private static class BloomFilter {
+		private final long[] words;
+		private final long bits;
+
+		BloomFilter(long bits) {
+			words = new long[(int) Math.min((bits + 63) >>> 6, Integer.MAX_VALUE - 8)];
+			this.bits = (long) words.length << 6;
+		}
+
+		BloomFilter(DataInput in) throws IOException {
+			words = new long[in.readInt()];
+			for (int i = 0; i < words.length; i++) {
+				words[i] = in.readLong();
+			}
+			bits = (long) words.length << 6;
+		}
+
+		void add(int kind, String s, int length) {
+			long hash = hash(kind, s, length);
+			for (int i = 0; i < FILTER_HASHES; i++) {
+				long bit = index(hash, i);
+				words[(int) (bit >>> 6)] |= 1L << bit;
+			}
+		}
+
+		boolean mightContain(int kind, String s, int length) {
+			if (bits == 0) {
+				return false;
+			}
+			long hash = hash(kind, s, length);
+			for (int i = 0; i < FILTER_HASHES; i++) {
+				long bit = index(hash, i);
+				if ((words[(int) (bit >>> 6)] & 1L << bit) == 0) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		void write(DataOutput out) throws IOException {
+			out.writeInt(words.length);
+			for (long word : words) {
+				out.writeLong(word);
+			}
+		}
+
+		private long index(long hash, int i) {
+			long combined = (hash & 0xFFFFFFFFL) + i * (hash >>> 32 | 1);
+			return (combined & Long.MAX_VALUE) % bits;
+		}
+
+		// FNV-1a of the characters, finished with the murmur3 mixer
+		private static long hash(int kind, String s, int length) {
+			long hash = 0xCBF29CE484222325L ^ kind;
+			for (int i = 0; i < length; i++) {
+				hash ^= s.charAt(i);
+				hash *= 0x100000001B3L;
+			}
+			hash ^= hash >>> 33;
+			hash *= 0xFF51AFD7ED558CCDL;
+			hash ^= hash >>> 33;
+			hash *= 0xC4CEB9FE1A85EC53L;
+			return hash ^ hash >>> 33;
+		}
+	}
+
+	/**
+	 * Counts the bytes written, as a long.
+	 */
+	private static class CountingOutputStream extends FilterOutputStream {
+		long count;
+
+		CountingOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			count += len;
+		}
+	}
+
+	private class EntrySet extends AbstractSet<Entry<K, V>> {
+		private final String prefix;
+
+		EntrySet(String prefix) {
+			this.prefix = prefix;
+		}
+
+		@Override
+		public Iterator<Entry<K, V>> iterator() {
+			synchronized (TieredTrieMap.this) {
+				return new EntryIterator(prefix);
+			}
+		}
+
+		@Override
+		public int size() {
+			if (prefix.length() == 0) {
+				return TieredTrieMap.this.size();
+			}
+			int size = 0;
+			for (Iterator<Entry<K, V>> i = iterator(); i.hasNext(); i.next()) {
+				size++;
+			}
+			return size;
+		}
+	}
+
+	private class EntryIterator implements Iterator<Entry<K, V>> {
+		private final Merger merger;
+		private final int expectedModCount = modCount;
+		private Record next;
+
+		EntryIterator(String prefix) {
+			merger = new Merger(prefix);
+		}
+
+		public boolean hasNext() {
+			if (next == null) {
+				checkModCount();
+				try {
+					for (next = merger.next(); next != null && next.deleted; next = merger.next()) {
+					}
+				}
+				catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}
+			return next != null;
+		}
+
+		public Entry<K, V> next() {
+			if (hasNext() == false) {
+				throw new NoSuchElementException();
+			}
+			Record record = next;
+			next = null;
+			return new SimpleImmutableEntry<K, V>(record.key(), record.value());
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+		private void checkModCount() {
+			if (modCount != expectedModCount) {
+				throw new ConcurrentModificationException();
+			}
+		}
+	}
+
+	private class PrefixMap extends AbstractMap<K, V> {
+		private final String prefix;
+		private transient Set<Entry<K, V>> entrySet;
+
+		PrefixMap(String prefix) {
+			this.prefix = prefix;
+		}
+
+		@Override
+		public boolean containsKey(Object key) {
+			return inRange(key) && TieredTrieMap.this.containsKey(key);
+		}
+
+		@Override
+		public V get(Object key) {
+			return inRange(key) ? TieredTrieMap.this.get(key) : null;
+		}
+
+		@Override
+		public Set<Entry<K, V>> entrySet() {
+			Set<Entry<K, V>> es = entrySet;
+			return es != null ? es : (entrySet = new EntrySet(prefix));
+		}
+
+		private boolean inRange(Object key) {
+			return keyString(key).startsWith(prefix);
+		}
+	}
+}
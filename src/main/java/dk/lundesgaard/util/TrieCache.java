@@ -0,0 +1,747 @@
+/*
+ * Copyright 2007 Georg Lundesgaard (georg@lundesgaard.dk)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.lundesgaard.util;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded cache stored in a {@link TrieMap}. The cache holds at most a
+ * maximum number of entries, or a maximum total weight when a
+ * {@link Weigher} is given, and evicts by one of the {@link Policy policies}.
+ * Entries can expire a fixed time after they were written, tracked by a
+ * hashed timer wheel.
+ * <p>
+ * All keys starting with a prefix are invalidated by unlinking their subtree
+ * from the trie, at a cost proportional to the length of the prefix. The
+ * invalidated entries are dropped from the eviction queues and the timer
+ * wheel a few at a time by the following operations; until then they still
+ * count in {@link #weight()}, but no longer in {@link #size()}.
+ * <p>
+ * All methods are synchronized on the cache.
+ */
+public class TrieCache<K, V> {
+	/**
+	 * Eviction policy.
+	 */
+	public enum Policy {
+		/**
+		 * Evicts the least recently used entry.
+		 */
+		LRU,
+		/**
+		 * Window TinyLFU: new entries enter a small LRU window and are only
+		 * admitted to the main segmented LRU when they have been used more
+		 * often than the entry they would replace, as estimated by a
+		 * count-min sketch.
+		 */
+		TINY_LFU
+	}
+
+	/**
+	 * Weight of an entry, must not be negative.
+	 */
+	public interface Weigher<K, V> {
+		int weigh(K key, V value);
+	}
+
+	/**
+	 * Time source in nanoseconds.
+	 */
+	public interface Ticker {
+		long read();
+	}
+
+	private static final Ticker SYSTEM_TICKER = new Ticker() {
+		public long read() {
+			return System.nanoTime();
+		}
+	};
+
+	private static final long NO_EXPIRY = Long.MAX_VALUE;
+	// invalidated entries dropped per operation
+	private static final int DRAIN_BATCH = 16;
+	private static final int WINDOW = 0;
+	private static final int PROBATION = 1;
+	private static final int PROTECTED = 2;
+
+	private final TrieMap<K, CacheEntry<K, V>> map = new TrieMap<K, CacheEntry<K, V>>();
+	private final long maximumWeight;
+	private final Weigher<? super K, ? super V> weigher;
+	private final Policy policy;
+	private final long expireAfterWriteNanos;
+	private final Ticker ticker;
+
+	// access ordered queues, the LRU policy only uses probation
+	private final AccessQueue<K, V> window = new AccessQueue<K, V>();
+	private final AccessQueue<K, V> probation = new AccessQueue<K, V>();
+	private final AccessQueue<K, V> protectedQueue = new AccessQueue<K, V>();
+	private final long maximumWindowWeight;
+	private final long maximumProtectedWeight;
+	private final FrequencySketch sketch;
+	private final TimerWheel<K, V> timerWheel;
+	// entries of invalidated subtrees still linked in the queues
+	private final Queue<Iterator<CacheEntry<K, V>>> invalidated = new ArrayDeque<Iterator<CacheEntry<K, V>>>();
+	private long weight;
+
+	private long hitCount;
+	private long missCount;
+	private long evictionCount;
+	private long expirationCount;
+	private long invalidationCount;
+
+	private TrieCache(Builder<K, V> builder) {
+		maximumWeight = builder.maximumWeight;
+		weigher = builder.weigher;
+		policy = builder.policy;
+		expireAfterWriteNanos = builder.expireAfterWriteNanos;
+		ticker = builder.ticker;
+		maximumWindowWeight = policy == Policy.TINY_LFU ? Math.max(1, maximumWeight / 100) : 0;
+		maximumProtectedWeight = (maximumWeight - maximumWindowWeight) * 4 / 5;
+		// a weighted cache grows its sketch with the number of entries instead
+		sketch = policy == Policy.TINY_LFU ? new FrequencySketch(weigher == null ? maximumWeight : 0) : null;
+		timerWheel = new TimerWheel<K, V>(builder.tickNanos, ticker.read());
+	}
+
+	/**
+	 * Returns the value of the given key, or <code>null</code> if the key is
+	 * not cached or has expired.
+	 */
+	public synchronized V get(Object key) {
+		long now = ticker.read();
+		maintain(now);
+		if (sketch != null) {
+			sketch.increment(key);
+		}
+		CacheEntry<K, V> entry = map.get(key);
+		if (entry == null) {
+			missCount++;
+			return null;
+		}
+		if (entry.expiresAt <= now) {
+			expire(entry);
+			missCount++;
+			return null;
+		}
+		hitCount++;
+		onAccess(entry);
+		return entry.value;
+	}
+
+	/**
+	 * Caches the given value, expiring after the default time of the cache.
+	 * Returns the previous value of the key.
+	 */
+	public synchronized V put(K key, V value) {
+		return put(key, value, expireAfterWriteNanos);
+	}
+
+	/**
+	 * Caches the given value, expiring after the given time. Returns the
+	 * previous value of the key.
+	 */
+	public synchronized V put(K key, V value, long duration, TimeUnit unit) {
+		if (duration < 0) {
+			throw new IllegalArgumentException("negative duration: " + duration);
+		}
+		return put(key, value, unit.toNanos(duration));
+	}
+
+	private V put(K key, V value, long expireAfterNanos) {
+		long now = ticker.read();
+		maintain(now);
+		int entryWeight = weigher != null ? weigher.weigh(key, value) : 1;
+		if (entryWeight < 0) {
+			throw new IllegalArgumentException("negative weight: " + entryWeight);
+		}
+		CacheEntry<K, V> entry = new CacheEntry<K, V>(key, value, entryWeight);
+		if (expireAfterNanos > 0 && expireAfterNanos < NO_EXPIRY - now) {
+			entry.expiresAt = now + expireAfterNanos;
+			timerWheel.schedule(entry);
+		}
+		if (sketch != null) {
+			sketch.increment(key);
+		}
+		CacheEntry<K, V> oldEntry = map.put(key, entry);
+		V oldValue = null;
+		if (oldEntry != null) {
+			oldValue = oldEntry.expiresAt > now ? oldEntry.value : null;
+			unlink(oldEntry);
+		}
+		else if (sketch != null && weigher != null) {
+			sketch.ensureCapacity(map.size());
+		}
+		weight += entryWeight;
+		if (policy == Policy.TINY_LFU) {
+			window.addLast(entry, WINDOW);
+		}
+		else {
+			probation.addLast(entry, PROBATION);
+		}
+		evict();
+		return oldValue;
+	}
+
+	/**
+	 * Removes the given key from the cache. Returns the value of the key.
+	 */
+	public synchronized V invalidate(Object key) {
+		long now = ticker.read();
+		maintain(now);
+		CacheEntry<K, V> entry = map.remove(key);
+		if (entry == null) {
+			return null;
+		}
+		unlink(entry);
+		invalidationCount++;
+		return entry.expiresAt > now ? entry.value : null;
+	}
+
+	/**
+	 * Removes all keys starting with the given prefix. Returns the number of
+	 * keys removed.
+	 */
+	public synchronized int invalidatePrefix(String prefix) {
+		maintain(ticker.read());
+		TrieMap<K, CacheEntry<K, V>> detached = map.detachPrefix(prefix);
+		if (detached.isEmpty()) {
+			return 0;
+		}
+		invalidated.add(detached.values().iterator());
+		invalidationCount += detached.size();
+		return detached.size();
+	}
+
+	/**
+	 * Removes all keys.
+	 */
+	public synchronized void invalidateAll() {
+		invalidatePrefix(null);
+	}
+
+	/**
+	 * Performs pending maintenance: expires entries and drops all invalidated
+	 * entries from the eviction queues.
+	 */
+	public synchronized void cleanUp() {
+		maintain(ticker.read());
+		while (invalidated.isEmpty() == false) {
+			drainInvalidated();
+		}
+	}
+
+	/**
+	 * Returns the number of cached keys, including expired keys not yet
+	 * removed.
+	 */
+	public synchronized int size() {
+		return map.size();
+	}
+
+	/**
+	 * Returns the total weight of the cached entries, including invalidated
+	 * entries not yet dropped.
+	 */
+	public synchronized long weight() {
+		return weight;
+	}
+
+	public long maximumWeight() {
+		return maximumWeight;
+	}
+
+	public synchronized Stats stats() {
+		return new Stats(hitCount, missCount, evictionCount, expirationCount, invalidationCount);
+	}
+
+	private void maintain(long now) {
+		drainInvalidated();
+		CacheEntry<K, V> expired = timerWheel.advance(now);
+		while (expired != null) {
+			CacheEntry<K, V> next = expired.wheelNext;
+			expired.wheelNext = null;
+			if (expired.unlinked == false) {
+				expire(expired);
+			}
+			expired = next;
+		}
+	}
+
+	private void drainInvalidated() {
+		for (int i = 0; i < DRAIN_BATCH && invalidated.isEmpty() == false;) {
+			Iterator<CacheEntry<K, V>> iterator = invalidated.peek();
+			if (iterator.hasNext()) {
+				unlink(iterator.next());
+				i++;
+			}
+			else {
+				invalidated.remove();
+			}
+		}
+	}
+
+	private void expire(CacheEntry<K, V> entry) {
+		if (map.get(entry.key) == entry) {
+			map.remove(entry.key);
+			expirationCount++;
+		}
+		unlink(entry);
+	}
+
+	private void onAccess(CacheEntry<K, V> entry) {
+		switch (entry.queue) {
+			case WINDOW:
+				window.moveToLast(entry);
+				break;
+			case PROBATION:
+				if (policy == Policy.LRU) {
+					probation.moveToLast(entry);
+				}
+				else {
+					probation.remove(entry);
+					protectedQueue.addLast(entry, PROTECTED);
+					while (protectedQueue.weight > maximumProtectedWeight) {
+						CacheEntry<K, V> demoted = protectedQueue.first();
+						protectedQueue.remove(demoted);
+						probation.addLast(demoted, PROBATION);
+					}
+				}
+				break;
+			case PROTECTED:
+				protectedQueue.moveToLast(entry);
+				break;
+		}
+	}
+
+	private void evict() {
+		// entries leaving the window are candidates for the main segments
+		while (window.weight > maximumWindowWeight) {
+			CacheEntry<K, V> candidate = window.first();
+			window.remove(candidate);
+			probation.addLast(candidate, PROBATION);
+		}
+		while (weight > maximumWeight && invalidated.isEmpty() == false) {
+			drainInvalidated();
+		}
+		while (weight > maximumWeight) {
+			CacheEntry<K, V> victim = probation.first();
+			if (victim == null) {
+				victim = protectedQueue.first() != null ? protectedQueue.first() : window.first();
+			}
+			else if (sketch != null) {
+				CacheEntry<K, V> candidate = probation.last();
+				if (candidate != victim && sketch.frequency(candidate.key) <= sketch.frequency(victim.key)) {
+					victim = candidate;
+				}
+			}
+			if (map.get(victim.key) == victim) {
+				map.remove(victim.key);
+				evictionCount++;
+			}
+			unlink(victim);
+		}
+	}
+
+	private void unlink(CacheEntry<K, V> entry) {
+		if (entry.unlinked) {
+			return;
+		}
+		entry.unlinked = true;
+		switch (entry.queue) {
+			case WINDOW:
+				window.remove(entry);
+				break;
+			case PROBATION:
+				probation.remove(entry);
+				break;
+			case PROTECTED:
+				protectedQueue.remove(entry);
+				break;
+		}
+		timerWheel.cancel(entry);
+		weight -= entry.weight;
+	}
+
+	/**
+	 * Builder of caches. Without a maximum size or weight the cache holds
+	 * 10000 entries.
+	 */
+	public static class Builder<K, V> {
+		private long maximumWeight = 10000;
+		private Weigher<? super K, ? super V> weigher;
+		private Policy policy = Policy.TINY_LFU;
+		private long expireAfterWriteNanos;
+		private long tickNanos = TimeUnit.SECONDS.toNanos(1);
+		private Ticker ticker = SYSTEM_TICKER;
+
+		public Builder<K, V> maximumSize(long maximumSize) {
+			if (maximumSize <= 0) {
+				throw new IllegalArgumentException("maximum size must be positive: " + maximumSize);
+			}
+			this.maximumWeight = maximumSize;
+			this.weigher = null;
+			return this;
+		}
+
+		public Builder<K, V> maximumWeight(long maximumWeight, Weigher<? super K, ? super V> weigher) {
+			if (maximumWeight <= 0) {
+				throw new IllegalArgumentException("maximum weight must be positive: " + maximumWeight);
+			}
+			if (weigher == null) {
+				throw new NullPointerException("weigher");
+			}
+			this.maximumWeight = maximumWeight;
+			this.weigher = weigher;
+			return this;
+		}
+
+		public Builder<K, V> policy(Policy policy) {
+			if (policy == null) {
+				throw new NullPointerException("policy");
+			}
+			this.policy = policy;
+			return this;
+		}
+
+		/**
+		 * Sets the default time to live of the entries, 0 (the default) means
+		 * no expiry.
+		 */
+		public Builder<K, V> expireAfterWrite(long duration, TimeUnit unit) {
+			if (duration < 0) {
+				throw new IllegalArgumentException("negative duration: " + duration);
+			}
+			this.expireAfterWriteNanos = unit.toNanos(duration);
+			return this;
+		}
+
+		/**
+		 * Sets the resolution of the timer wheel, one second by default.
+		 * Expired entries are always missed by {@link TrieCache#get(Object)},
+		 * but are only removed when their tick has passed.
+		 */
+		public Builder<K, V> timerResolution(long duration, TimeUnit unit) {
+			if (duration <= 0) {
+				throw new IllegalArgumentException("resolution must be positive: " + duration);
+			}
+			this.tickNanos = unit.toNanos(duration);
+			return this;
+		}
+
+		public Builder<K, V> ticker(Ticker ticker) {
+			if (ticker == null) {
+				throw new NullPointerException("ticker");
+			}
+			this.ticker = ticker;
+			return this;
+		}
+
+		public TrieCache<K, V> build() {
+			return new TrieCache<K, V>(this);
+		}
+	}
+
+	/**
+	 * Snapshot of the cache statistics.
+	 */
+	public static final class Stats {
+		private final long hitCount;
+		private final long missCount;
+		private final long evictionCount;
+		private final long expirationCount;
+		private final long invalidationCount;
+
+		Stats(long hitCount, long missCount, long evictionCount, long expirationCount, long invalidationCount) {
+			this.hitCount = hitCount;
+			this.missCount = missCount;
+			this.evictionCount = evictionCount;
+			this.expirationCount = expirationCount;
+			this.invalidationCount = invalidationCount;
+		}
+
+		public long getHitCount() {
+			return hitCount;
+		}
+
+		public long getMissCount() {
+			return missCount;
+		}
+
+		public double getHitRate() {
+			long requestCount = hitCount + missCount;
+			return requestCount == 0 ? 1.0 : (double) hitCount / requestCount;
+		}
+
+		public long getEvictionCount() {
+			return evictionCount;
+		}
+
+		public long getExpirationCount() {
+			return expirationCount;
+		}
+
+		public long getInvalidationCount() {
+			return invalidationCount;
+		}
+
+		public String toString() {
+			return "hits: " + hitCount
+					+ ", misses: " + missCount
+					+ ", evictions: " + evictionCount
+					+ ", expirations: " + expirationCount
+					+ ", invalidations: " + invalidationCount;
+		}
+	}
+
+	private static class CacheEntry<K, V> {
+		final K key;
+		final V value;
+		final int weight;
+		long expiresAt = NO_EXPIRY;
+		boolean unlinked;
+		// access queue links
+		int queue = -1;
+		CacheEntry<K, V> previous;
+		CacheEntry<K, V> next;
+		// timer wheel links
+		CacheEntry<K, V> wheelPrevious;
+		CacheEntry<K, V> wheelNext;
+		boolean scheduled;
+
+		CacheEntry(K key, V value, int weight) {
+			this.key = key;
+			this.value = value;
+			this.weight = weight;
+		}
+	}
+
+	/**
+	 * Doubly linked queue of entries in access order, least recent first.
+	 */
+	private static class AccessQueue<K, V> {
+		private final CacheEntry<K, V> head = new CacheEntry<K, V>(null, null, 0);
+		long weight;
+
+		AccessQueue() {
+			head.previous = head;
+			head.next = head;
+		}
+
+		CacheEntry<K, V> first() {
+			return head.next != head ? head.next : null;
+		}
+
+		CacheEntry<K, V> last() {
+			return head.previous != head ? head.previous : null;
+		}
+
+		void addLast(CacheEntry<K, V> entry, int queue) {
+			entry.queue = queue;
+			entry.previous = head.previous;
+			entry.next = head;
+			head.previous.next = entry;
+			head.previous = entry;
+			weight += entry.weight;
+		}
+
+		void remove(CacheEntry<K, V> entry) {
+			entry.previous.next = entry.next;
+			entry.next.previous = entry.previous;
+			entry.previous = null;
+			entry.next = null;
+			entry.queue = -1;
+			weight -= entry.weight;
+		}
+
+		void moveToLast(CacheEntry<K, V> entry) {
+			int queue = entry.queue;
+			remove(entry);
+			addLast(entry, queue);
+		}
+	}
+
+	/**
+	 * Hashed timer wheel. An entry is kept in the bucket of the tick it
+	 * expires in; when a tick has passed, the entries of its bucket that
+	 * have expired are returned and the others, due in a later rotation, are
+	 * left in place.
+	 */
+	private static class TimerWheel<K, V> {
+		private static final int BUCKETS = 512;
+
+		private final CacheEntry<K, V>[] buckets;
+		private final long tickNanos;
+		// last tick that has been fully processed
+		private long processedTick;
+
+		@SuppressWarnings("unchecked")
+		TimerWheel(long tickNanos, long now) {
+			this.tickNanos = tickNanos;
+			this.buckets = (CacheEntry<K, V>[]) new CacheEntry<?, ?>[BUCKETS];
+			this.processedTick = Math.floorDiv(now, tickNanos) - 1;
+		}
+
+		void schedule(CacheEntry<K, V> entry) {
+			int bucket = bucketOf(Math.floorDiv(entry.expiresAt, tickNanos));
+			entry.wheelPrevious = null;
+			entry.wheelNext = buckets[bucket];
+			if (buckets[bucket] != null) {
+				buckets[bucket].wheelPrevious = entry;
+			}
+			buckets[bucket] = entry;
+			entry.scheduled = true;
+		}
+
+		void cancel(CacheEntry<K, V> entry) {
+			if (entry.scheduled == false) {
+				return;
+			}
+			if (entry.wheelPrevious != null) {
+				entry.wheelPrevious.wheelNext = entry.wheelNext;
+			}
+			else {
+				buckets[bucketOf(Math.floorDiv(entry.expiresAt, tickNanos))] = entry.wheelNext;
+			}
+			if (entry.wheelNext != null) {
+				entry.wheelNext.wheelPrevious = entry.wheelPrevious;
+			}
+			entry.wheelPrevious = null;
+			entry.wheelNext = null;
+			entry.scheduled = false;
+		}
+
+		/**
+		 * Returns the expired entries of the ticks that have passed, linked
+		 * through wheelNext and no longer scheduled.
+		 */
+		CacheEntry<K, V> advance(long now) {
+			long currentTick = Math.floorDiv(now, tickNanos);
+			long lastTick = currentTick - 1;
+			if (lastTick <= processedTick) {
+				return null;
+			}
+			long firstTick = Math.max(processedTick + 1, lastTick - BUCKETS + 1);
+			CacheEntry<K, V> expired = null;
+			for (long tick = firstTick; tick <= lastTick; tick++) {
+				CacheEntry<K, V> entry = buckets[bucketOf(tick)];
+				while (entry != null) {
+					CacheEntry<K, V> next = entry.wheelNext;
+					if (entry.expiresAt <= now) {
+						cancel(entry);
+						entry.wheelNext = expired;
+						expired = entry;
+					}
+					entry = next;
+				}
+			}
+			processedTick = lastTick;
+			return expired;
+		}
+
+		private int bucketOf(long tick) {
+			return (int) (tick & (BUCKETS - 1));
+		}
+	}
+
+	/**
+	 * Count-min sketch of the access frequency of keys, with four 4-bit
+	 * counters per key. All counters are halved after a sample of ten
+	 * accesses per counter slot, so that old popularity fades. The table has
+	 * a word per expected entry, and is replaced by a larger empty one when
+	 * more entries are expected.
+	 */
+	private static class FrequencySketch {
+		private static final long[] SEEDS = { 0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+		private static final long RESET_MASK = 0x7777777777777777L;
+
+		private static final int MAXIMUM_LENGTH = 1 << 24;
+
+		private long[] table;
+		private int sampleSize;
+		private int additions;
+
+		FrequencySketch(long expectedSize) {
+			table = new long[lengthFor(expectedSize)];
+			sampleSize = table.length * 10;
+		}
+
+		void ensureCapacity(long expectedSize) {
+			int length = lengthFor(expectedSize);
+			if (length > table.length) {
+				table = new long[length];
+				sampleSize = length * 10;
+				additions = 0;
+			}
+		}
+
+		private static int lengthFor(long expectedSize) {
+			int size = (int) Math.min(MAXIMUM_LENGTH, Math.max(16, expectedSize));
+			return Integer.highestOneBit(size - 1) << 1;
+		}
+
+		void increment(Object key) {
+			int hash = hash(key);
+			boolean added = false;
+			for (int i = 0; i < 4; i++) {
+				int index = indexOf(hash, i);
+				int offset = counterOffset(hash, i);
+				if (((table[index] >>> offset) & 0xfL) != 0xfL) {
+					table[index] += 1L << offset;
+					added = true;
+				}
+			}
+			if (added && ++additions == sampleSize) {
+				reset();
+			}
+		}
+
+		int frequency(Object key) {
+			int hash = hash(key);
+			int frequency = Integer.MAX_VALUE;
+			for (int i = 0; i < 4; i++) {
+				int count = (int) ((table[indexOf(hash, i)] >>> counterOffset(hash, i)) & 0xfL);
+				frequency = Math.min(frequency, count);
+			}
+			return frequency;
+		}
+
+		private void reset() {
+			for (int i = 0; i < table.length; i++) {
+				table[i] = (table[i] >>> 1) & RESET_MASK;
+			}
+			additions /= 2;
+		}
+
+		private int indexOf(int hash, int i) {
+			long h = (hash + SEEDS[i]) * SEEDS[i];
+			h += h >>> 32;
+			return (int) h & (table.length - 1);
+		}
+
+		// counter i uses one of the 16 nibbles of its word
+		private int counterOffset(int hash, int i) {
+			return (((hash >>> (i * 8)) & 3) + i * 4) << 2;
+		}
+
+		private static int hash(Object key) {
+			int h = key != null ? key.toString().hashCode() : 0;
+			h *= 0x9e3779b9;
+			return h ^ (h >>> 16);
+		}
+	}
+}
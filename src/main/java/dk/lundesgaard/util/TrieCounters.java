@@ -0,0 +1,154 @@
+/*
+ * Copyright 2007 Georg Lundesgaard (georg@lundesgaard.dk)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.lundesgaard.util;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Runtime operation counters of a trie map. Counters are only collected 
+ * after they are enabled on the map. They can be exposed as an MBean, and 
+ * every lookup can be recorded as a flight recorder event. Puts count the 
+ * calls that store a value, removes count the entries actually removed, 
+ * by any method except <code>clear</code>.
+ */
+public class TrieCounters implements TrieCountersMBean {
+	private final LongAdder gets = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder puts = new LongAdder();
+	private final LongAdder removes = new LongAdder();
+	private final LongAdder nodesVisited = new LongAdder();
+	private final LongAdder iteratorRestarts = new LongAdder();
+	private volatile String eventName;
+	private ObjectName objectName;
+	
+	public void recordGet(boolean hit, int visited) {
+		gets.increment();
+		if (hit == false) {
+			misses.increment();
+		}
+		nodesVisited.add(visited);
+		String name = eventName;
+		if (name != null) {
+			TrieOperationEvent.emit(name, visited, hit);
+		}
+	}
+	
+	public void recordPut() {
+		puts.increment();
+	}
+	
+	public void recordRemove() {
+		removes.increment();
+	}
+	
+	public void recordRemoves(int count) {
+		removes.add(count);
+	}
+	
+	public void recordIteratorRestart() {
+		iteratorRestarts.increment();
+	}
+	
+	public long getGets() {
+		return gets.sum();
+	}
+	
+	public long getMisses() {
+		return misses.sum();
+	}
+	
+	public long getPuts() {
+		return puts.sum();
+	}
+	
+	public long getRemoves() {
+		return removes.sum();
+	}
+	
+	public long getNodesVisited() {
+		return nodesVisited.sum();
+	}
+	
+	public double getNodesVisitedPerLookup() {
+		long lookups = gets.sum();
+		return lookups == 0 ? 0 : (double) nodesVisited.sum() / lookups;
+	}
+	
+	public long getIteratorRestarts() {
+		return iteratorRestarts.sum();
+	}
+	
+	public void reset() {
+		gets.reset();
+		misses.reset();
+		puts.reset();
+		removes.reset();
+		nodesVisited.reset();
+		iteratorRestarts.reset();
+	}
+	
+	/**
+	 * Emits a flight recorder event, named by the given trie name, for every 
+	 * lookup. Pass <code>null</code> to stop. Nothing is recorded on runtimes 
+	 * without the flight recorder API, see {@link #isEventSupported()}.
+	 */
+	public void setEventName(String name) {
+		eventName = name;
+	}
+	
+	/**
+	 * Returns whether this runtime has the flight recorder API (Java 9 and 
+	 * later, or Java 8 from update 262).
+	 */
+	public static boolean isEventSupported() {
+		return TrieOperationEvent.isSupported();
+	}
+	
+	/**
+	 * Registers the counters with the platform MBean server as 
+	 * <code>dk.lundesgaard.util:type=TrieCounters,name=&lt;name&gt;</code>.
+	 */
+	public synchronized ObjectName register(String name) throws JMException {
+		unregister();
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName on = new ObjectName("dk.lundesgaard.util:type=TrieCounters,name=" + ObjectName.quote(name));
+		server.registerMBean(this, on);
+		objectName = on;
+		return on;
+	}
+	
+	public synchronized void unregister() throws JMException {
+		if (objectName != null) {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+			objectName = null;
+		}
+	}
+	
+	@Override
+	public String toString() {
+		return "gets=" + getGets() 
+			+ ", misses=" + getMisses() 
+			+ ", puts=" + getPuts() 
+			+ ", removes=" + getRemoves() 
+			+ ", nodesVisitedPerLookup=" + String.format("%.2f", getNodesVisitedPerLookup()) 
+			+ ", iteratorRestarts=" + getIteratorRestarts();
+	}
+}
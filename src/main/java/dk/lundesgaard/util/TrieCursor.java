@@ -0,0 +1,76 @@
+/*
+ * Copyright 2007 Georg Lundesgaard (georg@lundesgaard.dk)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.lundesgaard.util;
+
+/**
+ * Position in a {@link TrieMap} that is moved one character at a time. The
+ * cursor starts at the root (the empty prefix). Advancing past the keys of
+ * the map is allowed, the cursor then stays off the trie until it has
+ * retreated back. Each step is independent of the length of the prefix and
+ * does not allocate.
+ */
+public interface TrieCursor<K, V> {
+	/**
+	 * Appends the given character to the prefix. Returns <code>true</code>
+	 * when the new prefix is a prefix of a key in the map.
+	 */
+	boolean advance(char keyPart);
+
+	/**
+	 * Removes the last character from the prefix. Returns <code>false</code>
+	 * when the cursor is at the root.
+	 */
+	boolean retreat();
+
+	/**
+	 * Returns <code>true</code> when the prefix is a prefix of (or equal to)
+	 * a key in the map.
+	 */
+	boolean isPrefix();
+
+	/**
+	 * Returns <code>true</code> when the prefix is a key in the map.
+	 */
+	boolean hasValue();
+
+	/**
+	 * Returns the key of the entry at the cursor, or <code>null</code> if
+	 * there is none.
+	 */
+	K key();
+
+	/**
+	 * Returns the value of the entry at the cursor, or <code>null</code> if
+	 * there is none.
+	 */
+	V value();
+
+	/**
+	 * Returns the characters that continue the prefix towards a key, in
+	 * ascending order.
+	 */
+	char[] children();
+
+	/**
+	 * Returns the length of the prefix.
+	 */
+	int depth();
+
+	/**
+	 * Moves the cursor back to the root.
+	 */
+	void reset();
+}
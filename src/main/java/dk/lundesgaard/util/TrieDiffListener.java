@@ -0,0 +1,36 @@
+/*
+ * Copyright 2007 Georg Lundesgaard (georg@lundesgaard.dk)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.lundesgaard.util;
+
+/**
+ * Receives the differences between two tries, in key order.
+ */
+public interface TrieDiffListener<K, V> {
+	/**
+	 * Called for a key only present in the other trie.
+	 */
+	void added(K key, V value);
+
+	/**
+	 * Called for a key only present in this trie.
+	 */
+	void removed(K key, V value);
+
+	/**
+	 * Called for a key present in both tries with different values.
+	 */
+	void changed(K key, V oldValue, V newValue);
+}
@@ -16,36 +16,57 @@
 package dk.lundesgaard.util;
 
 import java.io.Serializable;
+import java.lang.reflect.Array;
 import java.util.AbstractCollection;
 import java.util.AbstractMap;
 import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.ConcurrentModificationException;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.Random;
 import java.util.Set;
+import java.util.function.BiFunction;
+import java.util.function.Function;
 
 public class TrieMap<K, V> extends AbstractMap<K, V> implements Map<K, V>, Serializable {
 	private static final long serialVersionUID = 1L;
 	
-	private transient Node root = new Node((char) 0, null, null, null, null);
+	// children are indexed when a node has more than this many children
+	private static final int CHILD_INDEX_THRESHOLD = 8;
+	// estimated object sizes in bytes, with compressed object pointers
+	private static final int NODE_SIZE = 48;
+	private static final int CHILD_INDEX_SIZE = 32;
+	private static final int ARRAY_HEADER_SIZE = 16;
+	
+	private transient Node root = new Node((char) 0, null, null, null);
 	private transient int size;
 	private transient int modCount;
 	private transient Set<Entry<K, V>> entrySet;
 	private transient Set<K> keySet;
 	private transient Collection<V> values;
+	private transient TrieCounters counters;
+	private transient SuffixTrieIndex<K> suffixIndex;
 	
 	@Override
 	public void clear() {
 		root.clear();
 		size = 0;
 		modCount = 0;
+		if (suffixIndex != null) {
+			suffixIndex.clear();
+		}
 	}
 
 	@Override
 	public boolean containsKey(Object key) {
-		Node node = getNode(key);
+		Node node = lookupNode(key);
 		return node != null && node.hasEntry();
 	}
 
@@ -64,6 +85,13 @@ public class TrieMap<K, V> extends AbstractMap<K, V> implements Map<K, V>, Seria
 		return false;
 	}
 
+	/**
+	 * Returns the entries of the map. The entries are the nodes of the trie,
+	 * so <code>setValue</code> writes through to the map. An entry that is 
+	 * held after its mapping has been removed reads as a <code>null</code> 
+	 * key with a <code>null</code> value, and its <code>setValue</code> 
+	 * throws <code>IllegalStateException</code>.
+	 */
 	@Override
 	public Set<Entry<K, V>> entrySet() {
 		Set<Entry<K, V>> es = entrySet;
@@ -71,9 +99,9 @@ public class TrieMap<K, V> extends AbstractMap<K, V> implements Map<K, V>, Seria
 	}
 	
 	public V get(Object key) {
-		Node node = getNode(key);
+		Node node = lookupNode(key);
 		if (node != null && node.hasEntry()) {
-			return node.entry.getValue();
+			return node.value;
 		}
 		return null;
 	}
@@ -84,19 +112,209 @@ public class TrieMap<K, V> extends AbstractMap<K, V> implements Map<K, V>, Seria
 	}
 	
 	public V put(K key, V value) {
-		if (key == null) {
-			return createEntry(root, key, value);
+		return createEntry(getOrCreateNode(key), key, value);
+	}
+	
+	@Override
+	public V getOrDefault(Object key, V defaultValue) {
+		Node node = lookupNode(key);
+		if (node != null && node.hasEntry()) {
+			return node.value;
 		}
-		String keyString = objectToString(key);
-		if (keyString == null) {
-			return createEntry(root, key, value);
+		return defaultValue;
+	}
+	
+	/*
+	 * The compute and replace methods below find or create the node of the 
+	 * key once and act on it, instead of the get followed by put or remove 
+	 * of the Map defaults. Nodes created for a key that ends up without an 
+	 * entry are pruned again.
+	 */
+	
+	@Override
+	public V putIfAbsent(K key, V value) {
+		Node node = getOrCreateNode(key);
+		if (node.hasEntry() && node.value != null) {
+			return node.value;
 		}
-		if (root.firstChild == null) {
-			Node node = createNodePath(root, keyString, 0);
-			createEntry(node, key, value);
+		return createEntry(node, key, value);
+	}
+	
+	@Override
+	public V computeIfAbsent(K key, Function<? super K, ? extends V> mappingFunction) {
+		Node node = getOrCreateNode(key);
+		if (node.hasEntry() && node.value != null) {
+			return node.value;
+		}
+		int expectedModCount = modCount;
+		V value;
+		try {
+			value = mappingFunction.apply(key);
+		}
+		catch (RuntimeException e) {
+			pruneNode(node);
+			throw e;
+		}
+		checkModCount(expectedModCount, node);
+		if (value == null) {
+			pruneNode(node);
 			return null;
 		}
-		return put(root.firstChild, keyString, 0, key, value);
+		createEntry(node, key, value);
+		return value;
+	}
+	
+	@Override
+	public V computeIfPresent(K key, BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
+		Node node = getNode(key);
+		if (node == null || node.hasEntry() == false || node.value == null) {
+			return null;
+		}
+		int expectedModCount = modCount;
+		V value = remappingFunction.apply(key, node.value);
+		checkModCount(expectedModCount);
+		if (value == null) {
+			removeEntry(node);
+			return null;
+		}
+		createEntry(node, node.key, value);
+		return value;
+	}
+	
+	@Override
+	public V compute(K key, BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
+		Node node = getOrCreateNode(key);
+		int expectedModCount = modCount;
+		V value;
+		try {
+			value = remappingFunction.apply(key, node.hasEntry() ? node.value : null);
+		}
+		catch (RuntimeException e) {
+			pruneNode(node);
+			throw e;
+		}
+		checkModCount(expectedModCount, node);
+		return storeOrRemove(node, key, value);
+	}
+	
+	@Override
+	public V merge(K key, V value, BiFunction<? super V, ? super V, ? extends V> remappingFunction) {
+		if (value == null || remappingFunction == null) {
+			throw new NullPointerException();
+		}
+		Node node = getOrCreateNode(key);
+		if (node.hasEntry() == false || node.value == null) {
+			createEntry(node, node.hasEntry() ? node.key : key, value);
+			return value;
+		}
+		int expectedModCount = modCount;
+		V newValue = remappingFunction.apply(node.value, value);
+		checkModCount(expectedModCount);
+		return storeOrRemove(node, key, newValue);
+	}
+	
+	@Override
+	public V replace(K key, V value) {
+		Node node = getNode(key);
+		if (node != null && node.hasEntry()) {
+			return createEntry(node, node.key, value);
+		}
+		return null;
+	}
+	
+	@Override
+	public boolean replace(K key, V oldValue, V newValue) {
+		Node node = getNode(key);
+		if (node != null && node.hasEntry() && equalValues(node.value, oldValue)) {
+			createEntry(node, node.key, newValue);
+			return true;
+		}
+		return false;
+	}
+	
+	@Override
+	public boolean remove(Object key, Object value) {
+		Node node = getNode(key);
+		if (node != null && node.hasEntry() && equalValues(node.value, value)) {
+			removeEntry(node);
+			return true;
+		}
+		return false;
+	}
+	
+	// adds the key unless it is present, for TrieSet
+	boolean addKey(K key, V value) {
+		Node node = getOrCreateNode(key);
+		if (node.hasEntry()) {
+			return false;
+		}
+		createEntry(node, key, value);
+		return true;
+	}
+	
+	boolean removeKey(Object key) {
+		Node node = getNode(key);
+		if (node == null || node.hasEntry() == false) {
+			return false;
+		}
+		removeEntry(node);
+		return true;
+	}
+	
+	private Node getOrCreateNode(K key) {
+		String keyString = key != null ? objectToString(key) : null;
+		Node node = root;
+		for (int i = 0; keyString != null && i < keyString.length(); i++) {
+			node = getOrCreateChild(node, keyString.charAt(i));
+		}
+		return node;
+	}
+	
+	// stores the computed value, or removes the entry when it is null
+	private V storeOrRemove(Node node, K key, V value) {
+		if (value != null) {
+			createEntry(node, node.hasEntry() ? node.key : key, value);
+		}
+		else if (node.hasEntry()) {
+			removeEntry(node);
+		}
+		else {
+			pruneNode(node);
+		}
+		return value;
+	}
+	
+	private void pruneNode(Node node) {
+		if (node.hasEntry() == false) {
+			removeNode(node);
+		}
+	}
+	
+	private void checkModCount(int expectedModCount) {
+		if (modCount != expectedModCount) {
+			throw new ConcurrentModificationException();
+		}
+	}
+	
+	// as above, but first prunes the node created for the key when it is 
+	// still in the trie, the mapping function may have removed it
+	private void checkModCount(int expectedModCount, Node node) {
+		if (modCount != expectedModCount) {
+			if (isAttached(node)) {
+				pruneNode(node);
+			}
+			throw new ConcurrentModificationException();
+		}
+	}
+	
+	private boolean isAttached(Node node) {
+		while (node.parent != null) {
+			if (getChild(node.parent, node.keyPart) != node) {
+				return false;
+			}
+			node = node.parent;
+		}
+		return node == root;
 	}
 
 	public V remove(Object key) {
@@ -107,7 +325,7 @@ public class TrieMap<K, V> extends AbstractMap<K, V> implements Map<K, V>, Seria
 		if (keyString == null) {
 			return remove(root);
 		}
-		Node node = getNode(root.firstChild, keyString, 0);
+		Node node = getNode(root, keyString, 0);
 		if (node != null) {
 			return remove(node);
 		}
@@ -121,6 +339,101 @@ public class TrieMap<K, V> extends AbstractMap<K, V> implements Map<K, V>, Seria
 		return null;
 	}
 
+	/**
+	 * Puts all entries of the given map. The entries are sorted by key and 
+	 * inserted in one pass, reusing the path of the previous key. Another 
+	 * trie is merged node by node, copying the subtrees missing in this map 
+	 * without looking up their keys.
+	 */
+	@Override
+	@SuppressWarnings("unchecked")
+	public void putAll(Map<? extends K, ? extends V> map) {
+		if (map instanceof TrieMap) {
+			if (map != this) {
+				mergeNode(root, ((TrieMap<K, V>) map).root);
+				size = root.count;
+				modCount++;
+			}
+			return;
+		}
+		BatchKey[] batch = newBatch(map.size());
+		int i = 0;
+		for (Entry<? extends K, ? extends V> entry : map.entrySet()) {
+			batch[i++] = new BatchKey(entry.getKey(), entry.getValue());
+		}
+		Arrays.sort(batch);
+		findNodes(batch, true);
+		for (BatchKey batchKey : batch) {
+			createEntry(batchKey.node, (K) batchKey.key, (V) batchKey.value);
+		}
+	}
+	
+	/**
+	 * Returns the entries of the given keys that are present in this map, in 
+	 * key order. The keys are sorted and looked up in one pass, reusing the 
+	 * path of the previous key.
+	 */
+	public Map<K, V> getAll(Collection<? extends K> keys) {
+		BatchKey[] batch = sortedBatch(keys);
+		findNodes(batch, false);
+		Map<K, V> result = new LinkedHashMap<K, V>();
+		for (BatchKey batchKey : batch) {
+			Node node = batchKey.node;
+			if (node != null && node.hasEntry()) {
+				result.put(node.key, node.value);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Compares the tries of two trie maps node by node, stopping at the 
+	 * first difference. Other maps are compared entry by entry.
+	 */
+	@Override
+	@SuppressWarnings("unchecked")
+	public boolean equals(Object o) {
+		if (o == this) {
+			return true;
+		}
+		if (o instanceof TrieMap) {
+			TrieMap<K, V> other = (TrieMap<K, V>) o;
+			return size == other.size && equalNodes(root, other.root);
+		}
+		return super.equals(o);
+	}
+	
+	@Override
+	public int hashCode() {
+		int hashCode = 0;
+		for (Node node = getFirstEntryNode(); node != null; node = getNextEntryNode(node)) {
+			hashCode += node.hashCode();
+		}
+		return hashCode;
+	}
+	
+	/**
+	 * Reports the changes that turn this map into the other map, in key 
+	 * order. Both tries are walked together, so keys present in both maps 
+	 * are never looked up.
+	 */
+	public void diff(TrieMap<K, V> other, TrieDiffListener<K, V> listener) {
+		diffNodes(root, other.root, listener);
+	}
+	
+	/**
+	 * Returns the keys of this map paired with the keys of the other map 
+	 * they are a prefix of (including an equal key), in key order. Keys 
+	 * without a match are left out. Both tries are walked together, 
+	 * skipping the subtrees missing in the other map.
+	 */
+	@SuppressWarnings("unchecked")
+	public <L> TrieMap<K, List<L>> prefixJoin(TrieMap<L, ?> other) {
+		TrieMap<K, List<L>> joined = new TrieMap<K, List<L>>();
+		joinNodes(root, ((TrieMap<K, V>) other).root, (TrieMap<K, List<K>>) (TrieMap<?, ?>) joined);
+		return joined;
+	}
+	
 	public int size() {
 		return size;
 	}
@@ -130,6 +443,231 @@ public class TrieMap<K, V> extends AbstractMap<K, V> implements Map<K, V>, Seria
 		return v != null ? v : (values = new Values());
 	}
 	
+	/**
+	 * Returns structural statistics of the trie.
+	 */
+	public TrieStats stats() {
+		TrieStats.Builder builder = new TrieStats.Builder();
+		long estimatedSize = 0;
+		Node node = root;
+		int depth = 0;
+		while (node != null) {
+			builder.addNode(depth, countChildren(node));
+			estimatedSize += NODE_SIZE;
+			if (node.childIndex != null) {
+				int capacity = node.childIndex.nodes.length;
+				estimatedSize += CHILD_INDEX_SIZE + align(ARRAY_HEADER_SIZE + capacity * 2) + align(ARRAY_HEADER_SIZE + capacity * 4);
+			}
+			if (node.hasChildren()) {
+				node = node.firstChild;
+				depth++;
+				continue;
+			}
+			while (node != null && node.hasSiblings() == false) {
+				node = node.parent;
+				depth--;
+			}
+			if (node != null) {
+				node = node.nextSibling;
+			}
+		}
+		return builder.build(size, estimatedSize);
+	}
+	
+	/**
+	 * Starts collecting operation counters for this map and returns them. 
+	 * Counters are not collected by default.
+	 */
+	public TrieCounters enableCounters() {
+		TrieCounters c = counters;
+		return c != null ? c : (counters = new TrieCounters());
+	}
+	
+	public void disableCounters() {
+		counters = null;
+	}
+	
+	/**
+	 * Attaches a suffix index of the keys to this map and returns it. The 
+	 * index answers {@link #keysContaining(String)} without scanning the map, 
+	 * at the cost of memory and slower updates, see 
+	 * {@link SuffixTrieIndex#getEstimatedSize()}.
+	 */
+	public SuffixTrieIndex<K> enableSuffixIndex() {
+		if (suffixIndex == null) {
+			suffixIndex = new SuffixTrieIndex<K>();
+			rebuildSuffixIndex();
+		}
+		return suffixIndex;
+	}
+	
+	public void disableSuffixIndex() {
+		suffixIndex = null;
+	}
+	
+	/**
+	 * Returns the keys containing the given substring. With a suffix index 
+	 * the keys are returned in no particular order, otherwise every key is 
+	 * scanned and they are returned in key order.
+	 */
+	public List<K> keysContaining(String substring) {
+		if (suffixIndex != null) {
+			return suffixIndex.keysContaining(substring);
+		}
+		List<K> keys = new ArrayList<K>();
+		for (Node node = getFirstEntryNode(); node != null; node = getNextEntryNode(node)) {
+			if (keyString(node).contains(substring)) {
+				keys.add(node.key);
+			}
+		}
+		return keys;
+	}
+	
+	/**
+	 * Compiles the entries of this map into a read-only 
+	 * {@link DoubleArrayTrieMap}.
+	 */
+	public DoubleArrayTrieMap<K, V> compile() {
+		return DoubleArrayTrieMap.compile(this);
+	}
+	
+	/**
+	 * Returns a cursor positioned at the root. The cursor fails with a 
+	 * {@link ConcurrentModificationException} if the map is modified after 
+	 * it was created or reset.
+	 */
+	public TrieCursor<K, V> cursor() {
+		return new Cursor();
+	}
+	
+	/**
+	 * Removes all keys starting with the given prefix, in time proportional 
+	 * to the length of the prefix. A <code>null</code> or blank prefix 
+	 * removes every key. Returns the number of keys removed.
+	 */
+	public int removePrefix(String prefix) {
+		Node node = unlinkPrefix(prefix);
+		return node != null ? node.count : 0;
+	}
+	
+	/**
+	 * Removes all keys not starting with the given prefix, in time 
+	 * proportional to the length of the prefix. Returns the number of keys 
+	 * removed.
+	 */
+	public int retainPrefix(String prefix) {
+		if (prefix == null || prefix.length() == 0) {
+			return 0;
+		}
+		Node node = getNode(root, prefix, 0);
+		int retained = node != null ? node.count : 0;
+		int removed = size - retained;
+		if (removed == 0) {
+			return 0;
+		}
+		if (retained == 0) {
+			root = new Node((char) 0, null, null, null);
+		}
+		else {
+			// cut every other branch off the path from the root
+			for (Node child = node; child.parent != null; child = child.parent) {
+				Node parent = child.parent;
+				child.nextSibling = null;
+				parent.firstChild = child;
+				parent.childIndex = null;
+				parent.clearEntry();
+				parent.count = retained;
+			}
+		}
+		size = retained;
+		modCount++;
+		if (suffixIndex != null) {
+			rebuildSuffixIndex();
+		}
+		return removed;
+	}
+	
+	/**
+	 * Returns a view of the entries with keys starting with the given 
+	 * prefix. The view is backed by this map, and clearing it removes the 
+	 * whole subtree as {@link #removePrefix(String)} does. Putting a key 
+	 * outside the prefix throws an {@link IllegalArgumentException}.
+	 */
+	public Map<K, V> prefixMap(String prefix) {
+		return new PrefixMap(prefix != null ? prefix : "");
+	}
+	
+	/**
+	 * Returns the number of keys starting with the given prefix. A 
+	 * <code>null</code> or blank prefix matches every key.
+	 */
+	public int countPrefix(String prefix) {
+		if (prefix == null || prefix.length() == 0) {
+			return size;
+		}
+		Node node = getNode(root, prefix, 0);
+		return node != null ? node.count : 0;
+	}
+	
+	/**
+	 * Returns the number of keys preceding the given key in iteration order. 
+	 * The key does not have to be present in the map.
+	 */
+	public int rank(Object key) {
+		String keyString = key != null ? objectToString(key) : null;
+		if (keyString == null) {
+			return 0;
+		}
+		int rank = root.hasEntry() ? 1 : 0;
+		Node node = root.firstChild;
+		for (int i = 0; i < keyString.length(); i++) {
+			char keyPart = keyString.charAt(i);
+			while (node != null && node.keyPart < keyPart) {
+				rank += node.count;
+				node = node.nextSibling;
+			}
+			if (node == null || node.keyPart > keyPart || i + 1 == keyString.length()) {
+				break;
+			}
+			if (node.hasEntry()) {
+				rank++;
+			}
+			node = node.firstChild;
+		}
+		return rank;
+	}
+	
+	/**
+	 * Returns the key at the given index in iteration order.
+	 */
+	public K select(int index) {
+		if (index < 0 || index >= size) {
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+		}
+		Node node = root;
+		while (node.hasEntry() == false || index > 0) {
+			if (node.hasEntry()) {
+				index--;
+			}
+			node = node.firstChild;
+			while (index >= node.count) {
+				index -= node.count;
+				node = node.nextSibling;
+			}
+		}
+		return node.key;
+	}
+	
+	/**
+	 * Returns a uniformly chosen key.
+	 */
+	public K randomKey(Random random) {
+		if (size == 0) {
+			throw new NoSuchElementException();
+		}
+		return select(random.nextInt(size));
+	}
+	
 	private Node getNode(Object key) {
 		if (key == null) {
 			return root;
@@ -138,136 +676,570 @@ public class TrieMap<K, V> extends AbstractMap<K, V> implements Map<K, V>, Seria
 		if (keyString == null) {
 			return root;
 		}
-		return getNode(root.firstChild, keyString, 0);
+		return getNode(root, keyString, 0);
 	}
 	
-	private Node getNode(Node current, String keyString, int position) {
-		Node node = current;
-		for (int i = position; i < keyString.length();) {
-			if (node == null) {
-				node = null;
-				break;
+	private BatchKey[] sortedBatch(Collection<?> keys) {
+		BatchKey[] batch = newBatch(keys.size());
+		int i = 0;
+		for (Object key : keys) {
+			batch[i++] = new BatchKey(key, null);
+		}
+		Arrays.sort(batch);
+		return batch;
+	}
+	
+	// an array of the inner batch key class cannot be created without a raw type
+	@SuppressWarnings("unchecked")
+	private BatchKey[] newBatch(int length) {
+		return (BatchKey[]) Array.newInstance(BatchKey.class, length);
+	}
+	
+	private void findNodes(BatchKey[] batch, boolean createNodes) {
+		Node[] path = newNodeArray(16);
+		path[0] = root;
+		// path[0..depth] holds the nodes of the first depth characters of the previous key
+		int depth = 0;
+		String previousKeyString = "";
+		for (BatchKey batchKey : batch) {
+			String keyString = batchKey.keyString;
+			int position = 0;
+			int length = Math.min(depth, keyString.length());
+			while (position < length && keyString.charAt(position) == previousKeyString.charAt(position)) {
+				position++;
+			}
+			if (keyString.length() >= path.length) {
+				path = Arrays.copyOf(path, keyString.length() * 2);
+			}
+			Node node = path[position];
+			while (position < keyString.length()) {
+				char keyPart = keyString.charAt(position);
+				node = createNodes ? getOrCreateChild(node, keyPart) : getChild(node, keyPart);
+				if (node == null) {
+					break;
+				}
+				path[++position] = node;
 			}
+			depth = position;
+			previousKeyString = keyString;
+			batchKey.node = node;
+		}
+	}
+	
+	private Node lookupNode(Object key) {
+		TrieCounters c = counters;
+		if (c == null) {
+			return getNode(key);
+		}
+		String keyString = key != null ? objectToString(key) : null;
+		Node node = root;
+		int visited = 1;
+		for (int i = 0; keyString != null && i < keyString.length() && node != null; i++) {
 			char keyPart = keyString.charAt(i);
-			if (keyPart < node.keyPart) {
-				node = null;
-				break;
+			ChildIndex childIndex = node.childIndex;
+			if (childIndex != null) {
+				visited++;
+				int index = childIndex.indexOf(keyPart);
+				node = index >= 0 ? childIndex.nodes[index] : null;
+				continue;
+			}
+			Node child = node.firstChild;
+			while (child != null && child.keyPart < keyPart) {
+				visited++;
+				child = child.nextSibling;
+			}
+			if (child != null) {
+				visited++;
+			}
+			node = child != null && child.keyPart == keyPart ? child : null;
+		}
+		c.recordGet(node != null && node.hasEntry(), visited);
+		return node;
+	}
+	
+	private Node getNode(Node parent, String keyString, int position) {
+		Node node = parent;
+		for (int i = position; i < keyString.length() && node != null; i++) {
+			node = getChild(node, keyString.charAt(i));
+		}
+		return node;
+	}
+	
+	private Node getChild(Node parent, char keyPart) {
+		ChildIndex childIndex = parent.childIndex;
+		if (childIndex != null) {
+			int index = childIndex.indexOf(keyPart);
+			return index >= 0 ? childIndex.nodes[index] : null;
+		}
+		for (Node node = parent.firstChild; node != null && node.keyPart <= keyPart; node = node.nextSibling) {
+			if (node.keyPart == keyPart) {
+				return node;
+			}
+		}
+		return null;
+	}
+	
+	private Node getOrCreateChild(Node parent, char keyPart) {
+		ChildIndex childIndex = parent.childIndex;
+		Node previousSibling = null;
+		int index = 0;
+		if (childIndex != null) {
+			index = childIndex.indexOf(keyPart);
+			if (index >= 0) {
+				return childIndex.nodes[index];
 			}
-			if (keyPart > node.keyPart) {
+			index = -index - 1;
+			previousSibling = index > 0 ? childIndex.nodes[index - 1] : null;
+		}
+		else {
+			Node node = parent.firstChild;
+			while (node != null && node.keyPart < keyPart) {
+				previousSibling = node;
 				node = node.nextSibling;
 			}
-			else {
-				if (i + 1 < keyString.length()) {
-					node = node.firstChild;
-				}
-				i++;
+			if (node != null && node.keyPart == keyPart) {
+				return node;
 			}
 		}
+		
+		Node nextSibling = previousSibling == null ? parent.firstChild : previousSibling.nextSibling;
+		Node node = new Node(keyPart, nextSibling, null, parent);
+		if (previousSibling == null) {
+			parent.firstChild = node;
+		}
+		else {
+			previousSibling.nextSibling = node;
+		}
+		
+		if (childIndex != null) {
+			childIndex.insert(index, node);
+		}
+		else if (countChildren(parent) > CHILD_INDEX_THRESHOLD) {
+			parent.childIndex = new ChildIndex(parent);
+		}
 		return node;
 	}
 	
-	private V put(Node current, String keyString, int position, K key, V value) {
-		char keyPart = keyString.charAt(position);
-		if (keyPart < current.keyPart || keyPart > current.keyPart) {
-			if (keyPart < current.keyPart) {
-				Node previous = current.previous;
-				Node node = new Node(keyPart, current, null, previous, null);
-				if (previous.firstChild == current) {
-					previous.firstChild = node;
-				}
-				else {
-					previous.nextSibling = node;
+	private int countChildren(Node parent) {
+		int count = 0;
+		for (Node node = parent.firstChild; node != null; node = node.nextSibling) {
+			count++;
+		}
+		return count;
+	}
+	
+	// an array of the inner node class cannot be created without a raw type
+	@SuppressWarnings("unchecked")
+	private Node[] newNodeArray(int length) {
+		return (Node[]) Array.newInstance(Node.class, length);
+	}
+	
+	private boolean equalNodes(Node node, Node otherNode) {
+		if (node.count != otherNode.count || node.hasEntry() != otherNode.hasEntry()) {
+			return false;
+		}
+		if (node.hasEntry() && equalValues(node.value, otherNode.value) == false) {
+			return false;
+		}
+		Node child = node.firstChild;
+		Node otherChild = otherNode.firstChild;
+		while (child != null && otherChild != null) {
+			if (child.keyPart != otherChild.keyPart || equalNodes(child, otherChild) == false) {
+				return false;
+			}
+			child = child.nextSibling;
+			otherChild = otherChild.nextSibling;
+		}
+		return child == null && otherChild == null;
+	}
+	
+	private static boolean equalValues(Object value, Object otherValue) {
+		return value == null ? otherValue == null : value.equals(otherValue);
+	}
+	
+	private void diffNodes(Node node, Node otherNode, TrieDiffListener<K, V> listener) {
+		if (node.hasEntry() && otherNode.hasEntry()) {
+			V value = node.value;
+			V otherValue = otherNode.value;
+			if (equalValues(value, otherValue) == false) {
+				listener.changed(otherNode.key, value, otherValue);
+			}
+		}
+		else if (node.hasEntry()) {
+			listener.removed(node.key, node.value);
+		}
+		else if (otherNode.hasEntry()) {
+			listener.added(otherNode.key, otherNode.value);
+		}
+		Node child = node.firstChild;
+		Node otherChild = otherNode.firstChild;
+		while (child != null || otherChild != null) {
+			if (otherChild == null || child != null && child.keyPart < otherChild.keyPart) {
+				diffSubtree(child, false, listener);
+				child = child.nextSibling;
+			}
+			else if (child == null || otherChild.keyPart < child.keyPart) {
+				diffSubtree(otherChild, true, listener);
+				otherChild = otherChild.nextSibling;
+			}
+			else {
+				diffNodes(child, otherChild, listener);
+				child = child.nextSibling;
+				otherChild = otherChild.nextSibling;
+			}
+		}
+	}
+	
+	private void diffSubtree(Node top, boolean added, TrieDiffListener<K, V> listener) {
+		Node node = top.hasEntry() ? top : getNextEntryNode(top, top);
+		for (; node != null; node = getNextEntryNode(node, top)) {
+			if (added) {
+				listener.added(node.key, node.value);
+			}
+			else {
+				listener.removed(node.key, node.value);
+			}
+		}
+	}
+	
+	private void joinNodes(Node node, Node otherNode, TrieMap<K, List<K>> joined) {
+		if (node.hasEntry()) {
+			List<K> keys = new ArrayList<K>(otherNode.count);
+			Node otherEntryNode = otherNode.hasEntry() ? otherNode : getNextEntryNode(otherNode, otherNode);
+			for (; otherEntryNode != null; otherEntryNode = getNextEntryNode(otherEntryNode, otherNode)) {
+				keys.add(otherEntryNode.key);
+			}
+			if (keys.isEmpty() == false) {
+				joined.put(node.key, keys);
+			}
+		}
+		Node otherChild = otherNode.firstChild;
+		for (Node child = node.firstChild; child != null && otherChild != null; child = child.nextSibling) {
+			while (otherChild != null && otherChild.keyPart < child.keyPart) {
+				otherChild = otherChild.nextSibling;
+			}
+			if (otherChild != null && otherChild.keyPart == child.keyPart) {
+				joinNodes(child, otherChild, joined);
+			}
+		}
+	}
+	
+	/**
+	 * Set operations of {@link #combine(TrieMap, SetOperation)}.
+	 */
+	enum SetOperation {
+		UNION, INTERSECTION, DIFFERENCE, SYMMETRIC_DIFFERENCE;
+		
+		boolean keeps(boolean inThis, boolean inOther) {
+			switch (this) {
+			case UNION:
+				return inThis || inOther;
+			case INTERSECTION:
+				return inThis && inOther;
+			case DIFFERENCE:
+				return inThis && inOther == false;
+			default:
+				return inThis != inOther;
+			}
+		}
+	}
+	
+	/**
+	 * Returns a new map with the keys selected by the given operation. Both 
+	 * tries are walked together: subtrees only present on one side are 
+	 * copied or skipped whole, and the result is built node by node. The 
+	 * value of a key present in both maps is taken from this map.
+	 */
+	TrieMap<K, V> combine(TrieMap<K, V> other, SetOperation operation) {
+		TrieMap<K, V> combined = new TrieMap<K, V>();
+		Node node = combined.combineNodes(root, other.root, null, operation);
+		if (node != null) {
+			combined.root = node;
+			combined.size = node.count;
+		}
+		return combined;
+	}
+	
+	// returns null when the combined subtree is empty
+	private Node combineNodes(Node node, Node otherNode, Node parent, SetOperation operation) {
+		Node combined = new Node(node.keyPart, null, null, parent);
+		if (operation.keeps(node.hasEntry(), otherNode.hasEntry())) {
+			Node source = node.hasEntry() ? node : otherNode;
+			combined.setEntry(source.key, source.value);
+			combined.count = 1;
+		}
+		Node previous = null;
+		int children = 0;
+		Node child = node.firstChild;
+		Node otherChild = otherNode.firstChild;
+		while (child != null || otherChild != null) {
+			Node combinedChild = null;
+			if (otherChild == null || child != null && child.keyPart < otherChild.keyPart) {
+				if (operation.keeps(true, false)) {
+					combinedChild = copyNode(child, combined);
 				}
-				current.previous = node;
-				if (position + 1 < keyString.length()) {
-					node = createNodePath(node,  keyString, position + 1);
+				child = child.nextSibling;
+			}
+			else if (child == null || otherChild.keyPart < child.keyPart) {
+				if (operation.keeps(false, true)) {
+					combinedChild = copyNode(otherChild, combined);
 				}
-				return createEntry(node, key, value);
+				otherChild = otherChild.nextSibling;
+			}
+			else {
+				combinedChild = combineNodes(child, otherChild, combined, operation);
+				child = child.nextSibling;
+				otherChild = otherChild.nextSibling;
 			}
-			else if (current.nextSibling == null) {
-				Node node = new Node(keyPart, null, null, current, null);
-				current.nextSibling = node;
-				if (position + 1 < keyString.length()) {
-					node = createNodePath(node, keyString, position + 1);
+			if (combinedChild != null) {
+				if (previous == null) {
+					combined.firstChild = combinedChild;
+				}
+				else {
+					previous.nextSibling = combinedChild;
 				}
-				return createEntry(node, key, value);
+				previous = combinedChild;
+				combined.count += combinedChild.count;
+				children++;
+			}
+		}
+		if (combined.count == 0 && parent != null) {
+			return null;
+		}
+		if (children > CHILD_INDEX_THRESHOLD) {
+			combined.childIndex = new ChildIndex(combined);
+		}
+		return combined;
+	}
+	
+	/**
+	 * Merges the sorted child lists of the two nodes, copying the children 
+	 * only present in the source.
+	 */
+	private void mergeNode(Node target, Node source) {
+		if (source.hasEntry()) {
+			if (suffixIndex != null && target.hasEntry() == false) {
+				suffixIndex.add(target, keyString(target));
+			}
+			target.setEntry(source.key, source.value);
+		}
+		Node previous = null;
+		Node child = target.firstChild;
+		boolean added = false;
+		for (Node sourceChild = source.firstChild; sourceChild != null; sourceChild = sourceChild.nextSibling) {
+			while (child != null && child.keyPart < sourceChild.keyPart) {
+				previous = child;
+				child = child.nextSibling;
+			}
+			if (child != null && child.keyPart == sourceChild.keyPart) {
+				mergeNode(child, sourceChild);
+				previous = child;
+				child = child.nextSibling;
+				continue;
+			}
+			Node copy = copyNode(sourceChild, target);
+			copy.nextSibling = child;
+			if (previous == null) {
+				target.firstChild = copy;
 			}
 			else {
-				return put(current.nextSibling, keyString, position, key, value);
+				previous.nextSibling = copy;
 			}
+			previous = copy;
+			added = true;
 		}
-
-		if (position + 1 == keyString.length()) {
-			return createEntry(current, key, value);
+		int count = target.hasEntry() ? 1 : 0;
+		int children = 0;
+		for (Node node = target.firstChild; node != null; node = node.nextSibling) {
+			count += node.count;
+			children++;
 		}
-		if (current.firstChild == null) {
-			Node node = createNodePath(current, keyString, position + 1);
-			return createEntry(node, key, value);
+		target.count = count;
+		if (added && children > CHILD_INDEX_THRESHOLD) {
+			target.childIndex = new ChildIndex(target);
 		}
-		return put(current.firstChild, keyString, position + 1, key, value);
 	}
 	
-	private Node createNodePath(Node previous, String keyString, int position) {
-		Node node = new Node(keyString.charAt(position), null, null, previous, null);
-		previous.firstChild = node;
-		for (int i = position + 1; i < keyString.length(); i++) {
-			previous = node;
-			node = new Node(keyString.charAt(i), null, null, previous, null);
-			previous.firstChild = node;
+	private Node copyNode(Node source, Node parent) {
+		Node copy = new Node(source.keyPart, null, null, parent);
+		if (source.hasEntry()) {
+			copy.setEntry(source.key, source.value);
+			if (suffixIndex != null) {
+				suffixIndex.add(copy, keyString(copy));
+			}
 		}
-		return node;
+		copy.count = source.count;
+		Node previous = null;
+		int children = 0;
+		for (Node sourceChild = source.firstChild; sourceChild != null; sourceChild = sourceChild.nextSibling) {
+			Node childCopy = copyNode(sourceChild, copy);
+			if (previous == null) {
+				copy.firstChild = childCopy;
+			}
+			else {
+				previous.nextSibling = childCopy;
+			}
+			previous = childCopy;
+			children++;
+		}
+		if (children > CHILD_INDEX_THRESHOLD) {
+			copy.childIndex = new ChildIndex(copy);
+		}
+		return copy;
 	}
 	
 	private V createEntry(Node current, K key, V value) {
-		Entry<K, V> oldEntry = current.entry;
-		current.entry = new SimpleEntry<K, V>(key, value);
+		boolean replaced = current.hasEntry();
+		V oldValue = current.value;
+		current.setEntry(key, value);
 		modCount++;
-		if (oldEntry != null) {
-			return oldEntry.getValue();
+		if (counters != null) {
+			counters.recordPut();
 		}
+		if (replaced) {
+			return oldValue;
+		}
+		updateCount(current, 1);
 		size++;
+		if (suffixIndex != null) {
+			suffixIndex.add(current, keyString(current));
+		}
 		return null;
 	}
 	
 	private V removeEntry(Node current) {
-		Entry<K, V> oldEntry = current.entry;
-		current.entry = null;
+		V oldValue = current.value;
+		if (suffixIndex != null) {
+			suffixIndex.remove(current, keyString(current));
+		}
+		current.clearEntry();
+		updateCount(current, -1);
 		removeNode(current);
+		if (counters != null) {
+			counters.recordRemove();
+		}
 		size--;
 		modCount++;
-		if (oldEntry != null) {
-			return oldEntry.getValue();
-		}
-		return null;
+		return oldValue;
 	}
 	
 	private void removeNode(Node current) {
 		if (current.hasChildren() == false) {
-			Node previous = current.previous;
-			if (previous == null) {
-				// root node is not deleted
-				return;
-			}
-
-			// move references
-			if (previous.firstChild == current) {
-				previous.firstChild = current.nextSibling;
-			}
-			else {
-				previous.nextSibling = current.nextSibling;
+			unlinkNode(current);
+		}
+	}
+	
+	private void unlinkNode(Node current) {
+		Node parent = current.parent;
+		if (parent == null) {
+			// root node is not deleted
+			return;
+		}
+		
+		// unlink from the sibling list
+		ChildIndex childIndex = parent.childIndex;
+		Node previousSibling = null;
+		if (childIndex != null) {
+			int index = childIndex.indexOf(current.keyPart);
+			previousSibling = index > 0 ? childIndex.nodes[index - 1] : null;
+			childIndex.remove(index);
+			if (childIndex.size < CHILD_INDEX_THRESHOLD / 2) {
+				parent.childIndex = null;
 			}
-			
-			if (current.hasSiblings()) {
-				// current node is removed for sibling list
-				current.nextSibling.previous = previous;
-				return;
+		}
+		else {
+			for (Node node = parent.firstChild; node != current; node = node.nextSibling) {
+				previousSibling = node;
 			}
-			
-			if (previous.hasEntry() == false) {
-				// continue node removal when previous node has no entry
-				removeNode(previous);
+		}
+		if (previousSibling == null) {
+			parent.firstChild = current.nextSibling;
+		}
+		else {
+			previousSibling.nextSibling = current.nextSibling;
+		}
+		current.parent = null;
+		
+		if (parent.hasChildren() == false && parent.hasEntry() == false) {
+			// continue node removal when parent node has no entry and no other children
+			removeNode(parent);
+		}
+	}
+	
+	/**
+	 * Unlinks the subtree of the keys starting with the given prefix and 
+	 * returns its entries as a new map. The cost is proportional to the 
+	 * length of the prefix, not to the number of entries removed.
+	 */
+	TrieMap<K, V> detachPrefix(String prefix) {
+		TrieMap<K, V> detached = new TrieMap<K, V>();
+		Node node = unlinkPrefix(prefix);
+		if (node != null) {
+			detached.root = node;
+			detached.size = node.count;
+		}
+		return detached;
+	}
+	
+	private Node unlinkPrefix(String prefix) {
+		Node node = prefix != null ? getNode(root, prefix, 0) : root;
+		if (node == null || node.count == 0) {
+			return null;
+		}
+		int removed = node.count;
+		if (suffixIndex != null && node == root) {
+			suffixIndex.clear();
+		}
+		else if (suffixIndex != null) {
+			Node entryNode = node.hasEntry() ? node : getNextEntryNode(node, node);
+			for (; entryNode != null; entryNode = getNextEntryNode(entryNode, node)) {
+				suffixIndex.remove(entryNode, keyString(entryNode));
 			}
 		}
+		if (node == root) {
+			root = new Node((char) 0, null, null, null);
+		}
+		else {
+			updateCount(node.parent, -removed);
+			unlinkNode(node);
+			node.nextSibling = null;
+		}
+		size -= removed;
+		modCount++;
+		if (counters != null) {
+			counters.recordRemoves(removed);
+		}
+		return node;
+	}
+	
+	private void rebuildSuffixIndex() {
+		suffixIndex.clear();
+		for (Node node = getFirstEntryNode(); node != null; node = getNextEntryNode(node)) {
+			suffixIndex.add(node, keyString(node));
+		}
+	}
+	
+	// the key string of a node, from the key parts on the path from the root
+	private String keyString(Node node) {
+		int length = 0;
+		for (Node current = node; current.parent != null; current = current.parent) {
+			length++;
+		}
+		char[] keyParts = new char[length];
+		for (Node current = node; current.parent != null; current = current.parent) {
+			keyParts[--length] = current.keyPart;
+		}
+		return new String(keyParts);
+	}
+	
+	private void updateCount(Node node, int delta) {
+		for (Node current = node; current != null; current = current.parent) {
+			current.count += delta;
+		}
+	}
+	
+	private static long align(long size) {
+		return (size + 7) & ~7L;
 	}
 	
 	private String objectToString(Object o) {
@@ -286,58 +1258,76 @@ public class TrieMap<K, V> extends AbstractMap<K, V> implements Map<K, V>, Seria
 	}
 	
 	private Node getNextEntryNode(Node current) {
-		if (current.hasChildren()) {
-			if (current.firstChild.hasEntry()) {
-				return current.firstChild;
+		return getNextEntryNode(current, null);
+	}
+	
+	/**
+	 * Returns the next node with an entry in the subtree of the given top 
+	 * node, or in the whole trie when top is <code>null</code>.
+	 */
+	private Node getNextEntryNode(Node current, Node top) {
+		Node node = current;
+		while (true) {
+			if (node.hasChildren()) {
+				node = node.firstChild;
 			}
-			return getNextEntryNode(current.firstChild);
-		}
-		if (current.hasSiblings()) {
-			if (current.nextSibling.hasEntry()) {
-				return current.nextSibling;
+			else {
+				while (node != top && node.hasSiblings() == false) {
+					node = node.parent;
+				}
+				if (node == top || node == null) {
+					return null;
+				}
+				node = node.nextSibling;
 			}
-			return getNextEntryNode(current.nextSibling);
-		}
-		Node parent = getAncestorWithSiblings(current);
-		if (parent != null && parent.hasSiblings()) {
-			if (parent.nextSibling.hasEntry()) {
-				return parent.nextSibling;
+			if (node.hasEntry()) {
+				return node;
 			}
-			return getNextEntryNode(parent.nextSibling);
 		}
-		return null;
 	}
 	
-	private Node getAncestorWithSiblings(Node node) {
-		Node previous = node.previous;
-		if (previous == null) {
-			return null;
-		}
-		if (previous.firstChild == node && previous.hasSiblings()) {
-			return previous;
-		}
-		return getAncestorWithSiblings(previous);
-	}
-	
-	private class Node implements Serializable {
+	/**
+	 * Node of the trie. The key and value of a node with an entry are kept 
+	 * in the node itself, which is also the entry handed out by the 
+	 * iterators, so <code>setValue</code> writes through to the map.
+	 */
+	private class Node implements Entry<K, V>, Serializable {
 		private static final long serialVersionUID = 1L;
 		
 		char keyPart;
 		Node nextSibling;
 		Node firstChild;
-		Node previous;
-		Entry<K, V> entry;
+		Node parent;
+		K key;
+		V value;
+		// the key may be null, so the entry has a marker of its own
+		boolean present;
+		// number of entries in the subtree rooted at this node
+		int count;
+		// sorted index of the children, only present for nodes with many children
+		ChildIndex childIndex;
 		
-		Node(char keyPart, Node nextSibling, Node firstChild, Node previous, Entry<K, V> entry) {
+		Node(char keyPart, Node nextSibling, Node firstChild, Node parent) {
 			this.keyPart = keyPart;
 			this.nextSibling = nextSibling;
 			this.firstChild = firstChild;
-			this.previous = previous;
-			this.entry = entry;
+			this.parent = parent;
 		}
 		
 		boolean hasEntry() {
-			return entry != null;
+			return present;
+		}
+		
+		void setEntry(K key, V value) {
+			this.key = key;
+			this.value = value;
+			present = true;
+		}
+		
+		void clearEntry() {
+			key = null;
+			value = null;
+			present = false;
 		}
 		
 		boolean hasChildren() {
@@ -352,12 +1342,198 @@ public class TrieMap<K, V> extends AbstractMap<K, V> implements Map<K, V>, Seria
 			// TODO: recursive clear?
 			nextSibling = null;
 			firstChild = null;
-			previous = null;
-			entry = null;
+			parent = null;
+			clearEntry();
+			count = 0;
+			childIndex = null;
+		}
+		
+		public K getKey() {
+			return key;
+		}
+		
+		public V getValue() {
+			return value;
+		}
+		
+		public V setValue(V value) {
+			if (present == false) {
+				throw new IllegalStateException("entry has been removed");
+			}
+			V oldValue = this.value;
+			this.value = value;
+			return oldValue;
+		}
+		
+		@Override
+		public boolean equals(Object o) {
+			if (o instanceof Entry == false) {
+				return false;
+			}
+			Entry<?, ?> entry = (Entry<?, ?>) o;
+			return equalValues(key, entry.getKey()) && equalValues(value, entry.getValue());
+		}
+		
+		@Override
+		public int hashCode() {
+			return (key == null ? 0 : key.hashCode()) ^ (value == null ? 0 : value.hashCode());
 		}
 		
 		public String toString() {
-			return keyPart + ", " + entry;
+			return key + "=" + value;
+		}
+	}
+	
+	/**
+	 * Children of a node sorted by key part, searched with binary search 
+	 * instead of walking the sibling list. The sibling list is still kept for 
+	 * iteration.
+	 */
+	private class ChildIndex implements Serializable {
+		private static final long serialVersionUID = 1L;
+		
+		char[] keyParts;
+		Node[] nodes;
+		int size;
+		
+		ChildIndex(Node parent) {
+			int capacity = countChildren(parent) * 2;
+			keyParts = new char[capacity];
+			nodes = newNodeArray(capacity);
+			for (Node node = parent.firstChild; node != null; node = node.nextSibling) {
+				keyParts[size] = node.keyPart;
+				nodes[size] = node;
+				size++;
+			}
+		}
+		
+		int indexOf(char keyPart) {
+			return Arrays.binarySearch(keyParts, 0, size, keyPart);
+		}
+		
+		void insert(int index, Node node) {
+			if (size == nodes.length) {
+				keyParts = Arrays.copyOf(keyParts, size * 2);
+				nodes = Arrays.copyOf(nodes, size * 2);
+			}
+			System.arraycopy(keyParts, index, keyParts, index + 1, size - index);
+			System.arraycopy(nodes, index, nodes, index + 1, size - index);
+			keyParts[index] = node.keyPart;
+			nodes[index] = node;
+			size++;
+		}
+		
+		void remove(int index) {
+			System.arraycopy(keyParts, index + 1, keyParts, index, size - index - 1);
+			System.arraycopy(nodes, index + 1, nodes, index, size - index - 1);
+			size--;
+			nodes[size] = null;
+		}
+	}
+	
+	private class Cursor implements TrieCursor<K, V> {
+		// nodes of the prefix, path[0..validDepth] when the prefix is off the trie
+		private Node[] path;
+		private int depth;
+		private int validDepth;
+		private int expectedModCount;
+		
+		Cursor() {
+			path = newNodeArray(16);
+			reset();
+		}
+		
+		public boolean advance(char keyPart) {
+			checkForComodification();
+			if (depth == validDepth) {
+				Node child = getChild(path[depth], keyPart);
+				if (child != null) {
+					if (validDepth + 1 == path.length) {
+						path = Arrays.copyOf(path, path.length * 2);
+					}
+					path[++validDepth] = child;
+				}
+			}
+			depth++;
+			return isPrefix();
+		}
+		
+		public boolean retreat() {
+			checkForComodification();
+			if (depth == 0) {
+				return false;
+			}
+			if (depth == validDepth) {
+				path[validDepth--] = null;
+			}
+			depth--;
+			return true;
+		}
+		
+		public boolean isPrefix() {
+			checkForComodification();
+			return depth == validDepth && path[depth].count > 0;
+		}
+		
+		public boolean hasValue() {
+			checkForComodification();
+			return depth == validDepth && path[depth].hasEntry();
+		}
+		
+		public K key() {
+			return hasValue() ? path[depth].key : null;
+		}
+		
+		public V value() {
+			return hasValue() ? path[depth].value : null;
+		}
+		
+		public char[] children() {
+			if (isPrefix() == false) {
+				return new char[0];
+			}
+			Node node = path[depth];
+			char[] keyParts = new char[countChildren(node)];
+			int i = 0;
+			for (Node child = node.firstChild; child != null; child = child.nextSibling) {
+				keyParts[i++] = child.keyPart;
+			}
+			return keyParts;
+		}
+		
+		public int depth() {
+			return depth;
+		}
+		
+		public void reset() {
+			Arrays.fill(path, 1, validDepth + 1, null);
+			path[0] = root;
+			depth = 0;
+			validDepth = 0;
+			expectedModCount = modCount;
+		}
+		
+		private void checkForComodification() {
+			if (modCount != expectedModCount) {
+				throw new ConcurrentModificationException();
+			}
+		}
+	}
+	
+	private class BatchKey implements Comparable<BatchKey> {
+		final Object key;
+		final Object value;
+		final String keyString;
+		Node node;
+		
+		BatchKey(Object key, Object value) {
+			this.key = key;
+			this.value = value;
+			this.keyString = key != null ? key.toString() : "";
+		}
+		
+		public int compareTo(BatchKey other) {
+			return keyString.compareTo(other.keyString);
 		}
 	}
 	
@@ -365,11 +1541,26 @@ public class TrieMap<K, V> extends AbstractMap<K, V> implements Map<K, V>, Seria
 		private Node next;
 		private Node lastReturned;
 		private int expectedModCount;
+		// top of the subtree iterated, null for the whole trie
+		private final Node top;
 		
 		public AbstractEntryIterator() {
-			next = getFirstEntryNode();
+			this(null);
+		}
+		
+		public AbstractEntryIterator(Node top) {
+			this.top = top;
+			if (top == null) {
+				next = getFirstEntryNode();
+			}
+			else {
+				next = top.hasEntry() ? top : getNextEntryNode(top, top);
+			}
 			lastReturned = null;
 			expectedModCount = modCount;
+			if (counters != null) {
+				counters.recordIteratorRestart();
+			}
 		}
 		
 		public boolean hasNext() {
@@ -384,8 +1575,8 @@ public class TrieMap<K, V> extends AbstractMap<K, V> implements Map<K, V>, Seria
 			if (modCount != expectedModCount) {
 				throw new ConcurrentModificationException();
 			}
-			next = getNextEntryNode(current);
-			return current.entry;
+			next = getNextEntryNode(current, top);
+			return current;
 		}
 		
 		public void remove() {
@@ -402,6 +1593,13 @@ public class TrieMap<K, V> extends AbstractMap<K, V> implements Map<K, V>, Seria
 	}
 	
 	private class EntryIterator extends AbstractEntryIterator<Entry<K, V>> {
+		public EntryIterator() {
+		}
+		
+		public EntryIterator(Node top) {
+			super(top);
+		}
+		
 		public Entry<K, V> next() {
 			return nextEntry();
 		}
@@ -440,7 +1638,7 @@ public class TrieMap<K, V> extends AbstractMap<K, V> implements Map<K, V>, Seria
 			if (node == null || node.hasEntry() == false) {
 				return false;
 			}
-			return node.entry.equals(otherEntry);
+			return node.equals(otherEntry);
 		}
 		
 		@Override
@@ -479,6 +1677,18 @@ public class TrieMap<K, V> extends AbstractMap<K, V> implements Map<K, V>, Seria
 			return containsKey(o);
 		}
 		
+		@Override
+		public boolean containsAll(Collection<?> c) {
+			BatchKey[] batch = sortedBatch(c);
+			findNodes(batch, false);
+			for (BatchKey batchKey : batch) {
+				if (batchKey.node == null || batchKey.node.hasEntry() == false) {
+					return false;
+				}
+			}
+			return true;
+		}
+		
 		@Override
 		public boolean remove(Object o) {
 			Node node = getNode(o);
@@ -495,6 +1705,77 @@ public class TrieMap<K, V> extends AbstractMap<K, V> implements Map<K, V>, Seria
 		}
 	}
 	
+	private class PrefixMap extends AbstractMap<K, V> {
+		private final String prefix;
+		private transient Set<Entry<K, V>> entrySet;
+		
+		PrefixMap(String prefix) {
+			this.prefix = prefix;
+		}
+		
+		@Override
+		public boolean containsKey(Object key) {
+			return inRange(key) && TrieMap.this.containsKey(key);
+		}
+		
+		@Override
+		public V get(Object key) {
+			return inRange(key) ? TrieMap.this.get(key) : null;
+		}
+		
+		@Override
+		public V put(K key, V value) {
+			if (inRange(key) == false) {
+				throw new IllegalArgumentException("key out of range: " + key);
+			}
+			return TrieMap.this.put(key, value);
+		}
+		
+		@Override
+		public V remove(Object key) {
+			return inRange(key) ? TrieMap.this.remove(key) : null;
+		}
+		
+		@Override
+		public int size() {
+			return countPrefix(prefix);
+		}
+		
+		@Override
+		public void clear() {
+			removePrefix(prefix);
+		}
+		
+		@Override
+		public Set<Entry<K, V>> entrySet() {
+			Set<Entry<K, V>> es = entrySet;
+			return es != null ? es : (entrySet = new AbstractSet<Entry<K, V>>() {
+				@Override
+				public Iterator<Entry<K, V>> iterator() {
+					Node node = getNode(root, prefix, 0);
+					if (node == null) {
+						return Collections.<Entry<K, V>>emptySet().iterator();
+					}
+					return new EntryIterator(node);
+				}
+				
+				@Override
+				public int size() {
+					return PrefixMap.this.size();
+				}
+				
+				@Override
+				public void clear() {
+					PrefixMap.this.clear();
+				}
+			});
+		}
+		
+		private boolean inRange(Object key) {
+			return prefix.length() == 0 || key != null && key.toString().startsWith(prefix);
+		}
+	}
+	
     private class Values extends AbstractCollection<V> {
     	public Iterator<V> iterator() {
             return new ValueIterator();
@@ -510,8 +1791,7 @@ public class TrieMap<K, V> extends AbstractMap<K, V> implements Map<K, V>, Seria
 
         public boolean remove(Object o) {
         	for (Node node = getFirstEntryNode(); node != null; node = getNextEntryNode(node)) {
-        		Entry<K, V> entry = node.entry;
-            	V value = entry.getValue();
+            	V value = node.value;
             	if (value == null && o == null || value != null && value.equals(o)) {
             		removeEntry(node);
             		return true;
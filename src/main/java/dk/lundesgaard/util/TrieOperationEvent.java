@@ -0,0 +1,99 @@
+/*
+ * Copyright 2007 Georg Lundesgaard (georg@lundesgaard.dk)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.lundesgaard.util;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Flight recorder event for a trie lookup. The JFR API is not part of 
+ * Java SE 8, so the event type is defined at run time through 
+ * <code>jdk.jfr.EventFactory</code>, looked up by reflection. On runtimes 
+ * without the API events are not recorded.
+ */
+final class TrieOperationEvent {
+	private static final Object FACTORY;
+	private static final Method NEW_EVENT;
+	private static final Method IS_ENABLED;
+	private static final Method SET;
+	private static final Method COMMIT;
+	
+	static {
+		Object factory = null;
+		Method newEvent = null;
+		Method isEnabled = null;
+		Method set = null;
+		Method commit = null;
+		try {
+			Class<?> annotationClass = Class.forName("jdk.jfr.AnnotationElement");
+			Constructor<?> annotation = annotationClass.getConstructor(Class.class, Object.class);
+			Constructor<?> field = Class.forName("jdk.jfr.ValueDescriptor").getConstructor(Class.class, String.class, List.class);
+			Class<?> label = Class.forName("jdk.jfr.Label");
+			List<Object> annotations = Arrays.asList(
+					annotation.newInstance(Class.forName("jdk.jfr.Name"), "dk.lundesgaard.util.TrieOperation"), 
+					annotation.newInstance(label, "Trie Operation"), 
+					annotation.newInstance(Class.forName("jdk.jfr.Category"), new String[] { "Lundesgaard Collections" }), 
+					annotation.newInstance(Class.forName("jdk.jfr.Description"), "Lookup in a trie map"));
+			List<Object> fields = Arrays.asList(
+					field.newInstance(String.class, "trie", Collections.singletonList(annotation.newInstance(label, "Trie"))), 
+					field.newInstance(int.class, "nodesVisited", Collections.singletonList(annotation.newInstance(label, "Nodes Visited"))), 
+					field.newInstance(boolean.class, "hit", Collections.singletonList(annotation.newInstance(label, "Hit"))));
+			Class<?> factoryClass = Class.forName("jdk.jfr.EventFactory");
+			Class<?> eventClass = Class.forName("jdk.jfr.Event");
+			factory = factoryClass.getMethod("create", List.class, List.class).invoke(null, annotations, fields);
+			newEvent = factoryClass.getMethod("newEvent");
+			isEnabled = eventClass.getMethod("isEnabled");
+			set = eventClass.getMethod("set", int.class, Object.class);
+			commit = eventClass.getMethod("commit");
+		}
+		catch (Exception e) {
+			factory = null;
+		}
+		FACTORY = factory;
+		NEW_EVENT = newEvent;
+		IS_ENABLED = isEnabled;
+		SET = set;
+		COMMIT = commit;
+	}
+	
+	private TrieOperationEvent() {
+	}
+	
+	static boolean isSupported() {
+		return FACTORY != null;
+	}
+	
+	static void emit(String trie, int nodesVisited, boolean hit) {
+		if (FACTORY == null) {
+			return;
+		}
+		try {
+			Object event = NEW_EVENT.invoke(FACTORY);
+			if ((Boolean) IS_ENABLED.invoke(event)) {
+				SET.invoke(event, 0, trie);
+				SET.invoke(event, 1, nodesVisited);
+				SET.invoke(event, 2, hit);
+				COMMIT.invoke(event);
+			}
+		}
+		catch (Exception e) {
+			// recording is best effort, lookups must not fail because of it
+		}
+	}
+}
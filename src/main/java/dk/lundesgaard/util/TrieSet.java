@@ -2,7 +2,10 @@ package dk.lundesgaard.util;
 
 import java.io.Serializable;
 import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
 
 public class TrieSet<T> extends AbstractSet<T> implements Set<T>, Serializable {
@@ -10,6 +13,14 @@ public class TrieSet<T> extends AbstractSet<T> implements Set<T>, Serializable {
 	
 	private TrieMap<T, Object> map;
 	
+	public TrieSet() {
+		this(new TrieMap<T, Object>());
+	}
+	
+	private TrieSet(TrieMap<T, Object> map) {
+		this.map = map;
+	}
+	
 	@Override
 	public Iterator<T> iterator() {
 		return map.keySet().iterator();
@@ -22,11 +33,7 @@ public class TrieSet<T> extends AbstractSet<T> implements Set<T>, Serializable {
 
 	@Override
 	public boolean add(T e) {
-		if (map.containsKey(e)) {
-			return false;
-		}
-		map.put(e, null);
-		return true;
+		return map.addKey(e, null);
 	}
 
 	@Override
@@ -39,13 +46,55 @@ public class TrieSet<T> extends AbstractSet<T> implements Set<T>, Serializable {
 		return map.containsKey(o);
 	}
 
+	@Override
+	public boolean containsAll(Collection<?> c) {
+		return map.keySet().containsAll(c);
+	}
+
 	@Override
 	public boolean remove(Object o) {
-		if (map.containsKey(o)) {
-			map.remove(o);
-			return true;
+		return map.removeKey(o);
+	}
+	
+	/**
+	 * Returns a new set with the elements of both sets. The set algebra 
+	 * methods walk both tries together and build the new trie node by node, 
+	 * instead of looking up the elements one at a time.
+	 */
+	public TrieSet<T> union(TrieSet<T> other) {
+		return new TrieSet<T>(map.combine(other.map, TrieMap.SetOperation.UNION));
+	}
+	
+	/**
+	 * Returns a new set with the elements present in both sets.
+	 */
+	public TrieSet<T> intersection(TrieSet<T> other) {
+		return new TrieSet<T>(map.combine(other.map, TrieMap.SetOperation.INTERSECTION));
+	}
+	
+	/**
+	 * Returns a new set with the elements of this set not present in the 
+	 * other set.
+	 */
+	public TrieSet<T> difference(TrieSet<T> other) {
+		return new TrieSet<T>(map.combine(other.map, TrieMap.SetOperation.DIFFERENCE));
+	}
+	
+	/**
+	 * Returns a new set with the elements present in exactly one of the sets.
+	 */
+	public TrieSet<T> symmetricDifference(TrieSet<T> other) {
+		return new TrieSet<T>(map.combine(other.map, TrieMap.SetOperation.SYMMETRIC_DIFFERENCE));
+	}
+	
+	/**
+	 * Compiles the elements of this set into a read-only {@link DawgSet}.
+	 */
+	public DawgSet compile() {
+		List<String> words = new ArrayList<String>(map.size());
+		for (T e : this) {
+			words.add(e != null ? e.toString() : "");
 		}
-		return false;
+		return DawgSet.fromSorted(words);
 	}
-
 }
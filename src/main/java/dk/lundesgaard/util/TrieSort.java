@@ -0,0 +1,248 @@
+/*
+ * Copyright 2007 Georg Lundesgaard (georg@lundesgaard.dk)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.lundesgaard.util;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.ListIterator;
+
+/**
+ * Burstsort of strings and byte arrays. The keys are distributed over a 
+ * burst trie that branches on one character per level; the keys below a 
+ * branch are kept in an unsorted bucket until it holds more than 2048 keys 
+ * and bursts into a node of its own. Afterwards every bucket is sorted on its 
+ * own, comparing from the depth of the bucket, and the buckets are collected 
+ * in trie order. A shared prefix is read once per key and level instead of 
+ * once per comparison as in {@link Arrays#sort(Object[])}.
+ * <p>
+ * Strings are ordered as by {@link String#compareTo(String)} and byte 
+ * arrays by unsigned bytes. The sort is stable, equal keys keep their order. 
+ * String characters above 255 are not branched on: the keys continuing with 
+ * one are sorted together by comparison.
+ */
+public final class TrieSort {
+	private static final int BURST_THRESHOLD = 2048;
+	// below this size the trie does not pay off
+	private static final int MIN_TRIE_SIZE = 64;
+
+	private TrieSort() {
+	}
+
+	/**
+	 * Sorts the strings.
+	 */
+	public static void sort(String[] strings) {
+		sort(strings, STRINGS);
+	}
+
+	/**
+	 * Sorts the byte arrays as unsigned bytes, a prefix before the longer 
+	 * arrays it is a prefix of.
+	 */
+	public static void sort(byte[][] keys) {
+		sort(keys, BYTES);
+	}
+
+	/**
+	 * Sorts the list in place, like {@link java.util.Collections#sort(List)}.
+	 */
+	public static void sort(List<String> list) {
+		String[] strings = list.toArray(new String[list.size()]);
+		sort(strings);
+		ListIterator<String> i = list.listIterator();
+		for (String string : strings) {
+			i.next();
+			i.set(string);
+		}
+	}
+
+	/**
+	 * Returns a {@link TrieSet} of the strings, built in sorted order.
+	 */
+	public static TrieSet<String> sortedSet(Collection<String> strings) {
+		String[] sorted = strings.toArray(new String[strings.size()]);
+		sort(sorted);
+		TrieSet<String> set = new TrieSet<String>();
+		String previous = null;
+		for (String string : sorted) {
+			if (string.equals(previous) == false) {
+				set.add(string);
+				previous = string;
+			}
+		}
+		return set;
+	}
+
+	private static void sort(Object[] keys, Alphabet alphabet) {
+		if (keys.length < MIN_TRIE_SIZE) {
+			Arrays.sort(keys, alphabet.comparator(0));
+			return;
+		}
+		Node root = new Node();
+		for (Object key : keys) {
+			insert(root, key, 0, alphabet);
+		}
+		collect(root, 0, keys, 0, alphabet);
+	}
+
+	private static void insert(Node root, Object key, int rootDepth, Alphabet alphabet) {
+		Node node = root;
+		for (int depth = rootDepth; ; depth++) {
+			int c = alphabet.charAt(key, depth);
+			if (c < 0) {
+				node.end = Bucket.add(node.end, key);
+				return;
+			}
+			if (c > 255) {
+				node.wide = Bucket.add(node.wide, key);
+				return;
+			}
+			Object child = node.children[c];
+			if (child instanceof Node) {
+				node = (Node) child;
+				continue;
+			}
+			Bucket bucket = Bucket.add((Bucket) child, key);
+			node.children[c] = bucket;
+			if (bucket.count > BURST_THRESHOLD) {
+				// the keys go down in their order, which keeps the sort stable
+				Node burst = new Node();
+				node.children[c] = burst;
+				for (int i = 0; i < bucket.count; i++) {
+					insert(burst, bucket.keys[i], depth + 1, alphabet);
+				}
+			}
+			return;
+		}
+	}
+
+	// writes the keys below the node in order from the given index, returns the next index
+	private static int collect(Node node, int depth, Object[] keys, int index, Alphabet alphabet) {
+		// equal keys that end here, in their order
+		index = copy(node.end, keys, index);
+		for (Object child : node.children) {
+			if (child instanceof Node) {
+				index = collect((Node) child, depth + 1, keys, index, alphabet);
+			}
+			else if (child != null) {
+				Bucket bucket = (Bucket) child;
+				Arrays.sort(bucket.keys, 0, bucket.count, alphabet.comparator(depth + 1));
+				index = copy(bucket, keys, index);
+			}
+		}
+		if (node.wide != null) {
+			Arrays.sort(node.wide.keys, 0, node.wide.count, alphabet.comparator(depth));
+			index = copy(node.wide, keys, index);
+		}
+		return index;
+	}
+
+	private static int copy(Bucket bucket, Object[] keys, int index) {
+		if (bucket == null) {
+			return index;
+		}
+		System.arraycopy(bucket.keys, 0, keys, index, bucket.count);
+		return index + bucket.count;
+	}
+
+	private static class Node {
+		final Object[] children = new Object[256];
+		Bucket end;
+		Bucket wide;
+	}
+
+	private static class Bucket {
+		Object[] keys = new Object[16];
+		int count;
+
+		static Bucket add(Bucket bucket, Object key) {
+			if (bucket == null) {
+				bucket = new Bucket();
+			}
+			else if (bucket.count == bucket.keys.length) {
+				bucket.keys = Arrays.copyOf(bucket.keys, bucket.count * 2);
+			}
+			bucket.keys[bucket.count++] = key;
+			return bucket;
+		}
+	}
+
+	/**
+	 * Characters of a kind of key.
+	 */
+	private abstract static class Alphabet {
+		/**
+		 * Returns the character at the given depth, or -1 past the end of 
+		 * the key.
+		 */
+		abstract int charAt(Object key, int depth);
+
+		/**
+		 * Compares two keys that are equal before the given depth.
+		 */
+		abstract int compare(Object a, Object b, int depth);
+
+		Comparator<Object> comparator(final int depth) {
+			return new Comparator<Object>() {
+				public int compare(Object a, Object b) {
+					return Alphabet.this.compare(a, b, depth);
+				}
+			};
+		}
+	}
+
+	private static final Alphabet STRINGS = new Alphabet() {
+		int charAt(Object key, int depth) {
+			String s = (String) key;
+			return depth < s.length() ? s.charAt(depth) : -1;
+		}
+
+		int compare(Object a, Object b, int depth) {
+			String s = (String) a;
+			String t = (String) b;
+			int length = Math.min(s.length(), t.length());
+			for (int i = depth; i < length; i++) {
+				int c = s.charAt(i) - t.charAt(i);
+				if (c != 0) {
+					return c;
+				}
+			}
+			return s.length() - t.length();
+		}
+	};
+
+	private static final Alphabet BYTES = new Alphabet() {
+		int charAt(Object key, int depth) {
+			byte[] bytes = (byte[]) key;
+			return depth < bytes.length ? bytes[depth] & 0xFF : -1;
+		}
+
+		int compare(Object a, Object b, int depth) {
+			byte[] s = (byte[]) a;
+			byte[] t = (byte[]) b;
+			int length = Math.min(s.length, t.length);
+			for (int i = depth; i < length; i++) {
+				int c = (s[i] & 0xFF) - (t[i] & 0xFF);
+				if (c != 0) {
+					return c;
+				}
+			}
+			return s.length - t.length;
+		}
+	};
+}
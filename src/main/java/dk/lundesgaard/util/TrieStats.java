@@ -0,0 +1,131 @@
+/*
+ * Copyright 2007 Georg Lundesgaard (georg@lundesgaard.dk)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.lundesgaard.util;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Structural statistics of a trie: number of nodes and entries, the number 
+ * of nodes at each depth and with each number of children, and an estimate of
+ * the memory retained by the trie structure itself (keys and values not 
+ * included, compressed object pointers assumed).
+ */
+public class TrieStats implements Serializable {
+	private static final long serialVersionUID = 1L;
+	
+	private final int nodeCount;
+	private final int entryCount;
+	private final int[] depthHistogram;
+	private final int[] fanoutHistogram;
+	private final long estimatedSize;
+	
+	public TrieStats(int entryCount, int[] depthHistogram, int[] fanoutHistogram, long estimatedSize) {
+		int nodes = 0;
+		for (int count : depthHistogram) {
+			nodes += count;
+		}
+		this.nodeCount = nodes;
+		this.entryCount = entryCount;
+		this.depthHistogram = depthHistogram.clone();
+		this.fanoutHistogram = fanoutHistogram.clone();
+		this.estimatedSize = estimatedSize;
+	}
+	
+	public int getNodeCount() {
+		return nodeCount;
+	}
+	
+	public int getEntryCount() {
+		return entryCount;
+	}
+	
+	/**
+	 * Returns the number of nodes at each depth, the root is at depth 0.
+	 */
+	public int[] getDepthHistogram() {
+		return depthHistogram.clone();
+	}
+	
+	/**
+	 * Returns the number of nodes with each number of children.
+	 */
+	public int[] getFanoutHistogram() {
+		return fanoutHistogram.clone();
+	}
+	
+	public int getMaxDepth() {
+		return depthHistogram.length - 1;
+	}
+	
+	public double getNodesPerKey() {
+		return entryCount == 0 ? 0 : (double) nodeCount / entryCount;
+	}
+	
+	/**
+	 * Returns the estimated number of bytes retained by nodes and entries.
+	 */
+	public long getEstimatedSize() {
+		return estimatedSize;
+	}
+	
+	@Override
+	public String toString() {
+		return "nodes=" + nodeCount 
+			+ ", entries=" + entryCount 
+			+ ", nodesPerKey=" + String.format("%.2f", getNodesPerKey()) 
+			+ ", estimatedSize=" + estimatedSize 
+			+ ", depthHistogram=" + Arrays.toString(depthHistogram) 
+			+ ", fanoutHistogram=" + Arrays.toString(fanoutHistogram);
+	}
+	
+	/**
+	 * Collects node statistics during a walk of a trie.
+	 */
+	public static class Builder {
+		private int[] depthHistogram = new int[16];
+		private int[] fanoutHistogram = new int[16];
+		private int maxDepth = -1;
+		private int maxFanout = -1;
+		private int nodeCount;
+		
+		public void addNode(int depth, int fanout) {
+			if (depth >= depthHistogram.length) {
+				depthHistogram = Arrays.copyOf(depthHistogram, Math.max(depth + 1, depthHistogram.length * 2));
+			}
+			if (fanout >= fanoutHistogram.length) {
+				fanoutHistogram = Arrays.copyOf(fanoutHistogram, Math.max(fanout + 1, fanoutHistogram.length * 2));
+			}
+			depthHistogram[depth]++;
+			fanoutHistogram[fanout]++;
+			maxDepth = Math.max(maxDepth, depth);
+			maxFanout = Math.max(maxFanout, fanout);
+			nodeCount++;
+		}
+		
+		/**
+		 * Returns the number of nodes added so far.
+		 */
+		public int getNodeCount() {
+			return nodeCount;
+		}
+		
+		public TrieStats build(int entryCount, long estimatedSize) {
+			return new TrieStats(entryCount, Arrays.copyOf(depthHistogram, maxDepth + 1), 
+					Arrays.copyOf(fanoutHistogram, maxFanout + 1), estimatedSize);
+		}
+	}
+}
@@ -0,0 +1,599 @@
+package no.lundesgaard.util;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Burst trie (HAT-trie) map. The upper levels are trie nodes with an array of 256 children indexed by the next key
+ * byte. Below them the keys are kept in buckets: the key suffixes sorted and packed into one byte array, with the keys
+ * and values in parallel arrays. A bucket that grows past the burst threshold is replaced by a trie node with a bucket
+ * for every next byte. Keys are encoded and ordered as in {@link TrieMap}, and are found only by an equal key.
+ * <p>
+ * Unique key tails, like UUIDs after a short shared prefix, cost a bucket slot per key instead of a node per byte.
+ * Emptied buckets and nodes are removed, but nodes are not merged back into buckets.
+ */
+public class BurstTrieMap<K, V> extends AbstractMap<K, V> {
+	private static final int DEFAULT_BURST_THRESHOLD = 256;
+	private static final Object ABSENT = new Object();
+
+	private final int burstThreshold;
+	private Node<K, V> root = new Node<>();
+	private int size;
+	private int modCount;
+
+	public BurstTrieMap() {
+		this(DEFAULT_BURST_THRESHOLD);
+	}
+
+	/**
+	 * Creates a map whose buckets burst when they hold more than the given number of keys.
+	 */
+	public BurstTrieMap(int burstThreshold) {
+		if (burstThreshold < 1) {
+			throw new IllegalArgumentException("burst threshold must be positive: " + burstThreshold);
+		}
+		this.burstThreshold = burstThreshold;
+	}
+
+	public BurstTrieMap(Map<K, V> map) {
+		this();
+		putAll(map);
+	}
+
+	public int getBurstThreshold() {
+		return burstThreshold;
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return lookup(key) != ABSENT;
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public V get(Object key) {
+		Object value = lookup(key);
+		return value != ABSENT ? (V) value : null;
+	}
+
+	// the value of the key, or ABSENT
+	@SuppressWarnings("unchecked")
+	private Object lookup(Object key) {
+		byte[] bytes = bytesFromKey(key);
+		Node<K, V> node = root;
+		for (int depth = 0; depth < bytes.length; depth++) {
+			Object child = node.children[bytes[depth] & 0xFF];
+			if (child instanceof Bucket) {
+				Bucket<K, V> bucket = (Bucket<K, V>) child;
+				int index = bucket.search(bytes, depth + 1);
+				return index >= 0 && Objects.equals(bucket.keys[index], key) ? bucket.values[index] : ABSENT;
+			}
+			if (child == null) {
+				return ABSENT;
+			}
+			node = (Node<K, V>) child;
+		}
+		return node.present && Objects.equals(node.key, key) ? node.value : ABSENT;
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public V put(K key, V value) {
+		byte[] bytes = bytesFromKey(key);
+		Node<K, V> node = root;
+		for (int depth = 0; depth < bytes.length; depth++) {
+			int slot = bytes[depth] & 0xFF;
+			Object child = node.children[slot];
+			if (child == null) {
+				Bucket<K, V> bucket = new Bucket<>();
+				bucket.insert(0, bytes, depth + 1, bytes.length, key, value);
+				node.setChild(slot, bucket);
+				added();
+				return null;
+			}
+			if (child instanceof Bucket) {
+				Bucket<K, V> bucket = (Bucket<K, V>) child;
+				int index = bucket.search(bytes, depth + 1);
+				if (index >= 0) {
+					V oldValue = (V) bucket.values[index];
+					bucket.keys[index] = key;
+					bucket.values[index] = value;
+					return oldValue;
+				}
+				bucket.insert(-index - 1, bytes, depth + 1, bytes.length, key, value);
+				if (bucket.count > burstThreshold) {
+					burst(node, slot, bucket);
+				}
+				added();
+				return null;
+			}
+			node = (Node<K, V>) child;
+		}
+		V oldValue = node.value;
+		if (!node.present) {
+			oldValue = null;
+			node.present = true;
+			node.occupied++;
+			added();
+		}
+		node.key = key;
+		node.value = value;
+		return oldValue;
+	}
+
+	private void added() {
+		size++;
+		modCount++;
+	}
+
+	// replaces the bucket with a node of buckets split by their first byte, bursting them in turn when needed
+	private void burst(Node<K, V> parent, int slot, Bucket<K, V> bucket) {
+		Node<K, V> node = new Node<>();
+		for (int i = 0; i < bucket.count; i++) {
+			int start = bucket.start(i);
+			int end = bucket.ends[i];
+			if (start == end) {
+				node.key = bucket.key(i);
+				node.value = bucket.value(i);
+				node.present = true;
+				node.occupied++;
+				continue;
+			}
+			int childSlot = bucket.data[start] & 0xFF;
+			@SuppressWarnings("unchecked")
+			Bucket<K, V> child = (Bucket<K, V>) node.children[childSlot];
+			if (child == null) {
+				child = new Bucket<>();
+				node.setChild(childSlot, child);
+			}
+			// the suffixes arrive in order
+			child.insert(child.count, bucket.data, start + 1, end, bucket.key(i), bucket.value(i));
+		}
+		parent.children[slot] = node;
+		for (int childSlot = 0; childSlot < node.children.length; childSlot++) {
+			@SuppressWarnings("unchecked")
+			Bucket<K, V> child = (Bucket<K, V>) node.children[childSlot];
+			if (child != null && child.count > burstThreshold) {
+				burst(node, childSlot, child);
+			}
+		}
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public V remove(Object key) {
+		Object value = remove(root, bytesFromKey(key), 0, key);
+		return value != ABSENT ? (V) value : null;
+	}
+
+	// removes the key below the node and the emptied buckets and nodes, returns the value or ABSENT
+	@SuppressWarnings("unchecked")
+	private Object remove(Node<K, V> node, byte[] bytes, int depth, Object key) {
+		if (depth == bytes.length) {
+			if (!node.present || !Objects.equals(node.key, key)) {
+				return ABSENT;
+			}
+			V value = node.value;
+			node.key = null;
+			node.value = null;
+			node.present = false;
+			node.occupied--;
+			removed();
+			return value;
+		}
+		int slot = bytes[depth] & 0xFF;
+		Object child = node.children[slot];
+		if (child instanceof Bucket) {
+			Bucket<K, V> bucket = (Bucket<K, V>) child;
+			int index = bucket.search(bytes, depth + 1);
+			if (index < 0 || !Objects.equals(bucket.keys[index], key)) {
+				return ABSENT;
+			}
+			V value = bucket.value(index);
+			bucket.remove(index);
+			if (bucket.count == 0) {
+				node.setChild(slot, null);
+			}
+			removed();
+			return value;
+		}
+		if (child == null) {
+			return ABSENT;
+		}
+		Node<K, V> childNode = (Node<K, V>) child;
+		Object value = remove(childNode, bytes, depth + 1, key);
+		if (childNode.occupied == 0) {
+			node.setChild(slot, null);
+		}
+		return value;
+	}
+
+	private void removed() {
+		size--;
+		modCount++;
+	}
+
+	/**
+	 * Returns the number of keys starting with the bytes of the given prefix.
+	 */
+	@SuppressWarnings("unchecked")
+	public int countPrefix(Object prefix) {
+		byte[] bytes = bytesFromKey(prefix);
+		Node<K, V> node = root;
+		for (int depth = 0; depth < bytes.length; depth++) {
+			Object child = node.children[bytes[depth] & 0xFF];
+			if (child instanceof Bucket) {
+				return ((Bucket<K, V>) child).countPrefix(bytes, depth + 1);
+			}
+			if (child == null) {
+				return 0;
+			}
+			node = (Node<K, V>) child;
+		}
+		return node.count();
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	@Override
+	public void clear() {
+		root = new Node<>();
+		size = 0;
+		modCount++;
+	}
+
+	/**
+	 * Returns the number of trie nodes, the root included.
+	 */
+	public int getNodeCount() {
+		return root.countNodes();
+	}
+
+	/**
+	 * Returns the number of buckets.
+	 */
+	public int getBucketCount() {
+		return root.countBuckets();
+	}
+
+	@Override
+	public Set<Entry<K, V>> entrySet() {
+		return new AbstractSet<Entry<K, V>>() {
+			@Override
+			public Iterator<Entry<K, V>> iterator() {
+				return new EntryIterator();
+			}
+
+			@Override
+			public int size() {
+				return size;
+			}
+
+			@Override
+			public void clear() {
+				BurstTrieMap.this.clear();
+			}
+		};
+	}
+
+	private static byte[] bytesFromKey(Object key) {
+		if (key == null) {
+			return new byte[0];
+		}
+		if (key instanceof Trieable) {
+			byte[] bytes = ((Trieable) key).getBytes();
+			return bytes != null ? bytes : new byte[0];
+		}
+		return key.toString().getBytes(UTF_8);
+	}
+
+	// compares the bytes as unsigned, a prefix first
+	private static int compare(byte[] a, int aFrom, int aTo, byte[] b, int bFrom, int bTo) {
+		int length = Math.min(aTo - aFrom, bTo - bFrom);
+		for (int i = 0; i < length; i++) {
+			int c = (a[aFrom + i] & 0xFF) - (b[bFrom + i] & 0xFF);
+			if (c != 0) {
+				return c;
+			}
+		}
+		return (aTo - aFrom) - (bTo - bFrom);
+	}
+
+	/**
+	 * Trie node with the entry of the key ending here and a child (node or bucket) for every next byte.
+	 */
+	private static final class Node<K, V> {
+		private final Object[] children = new Object[256];
+		private K key;
+		private V value;
+		private boolean present;
+		// children plus the entry, the node is removed when it drops to zero
+		private int occupied;
+
+		void setChild(int slot, Object child) {
+			if (children[slot] == null) {
+				occupied++;
+			} else if (child == null) {
+				occupied--;
+			}
+			children[slot] = child;
+		}
+
+		@SuppressWarnings("unchecked")
+		int count() {
+			int count = present ? 1 : 0;
+			for (Object child : children) {
+				if (child instanceof Bucket) {
+					count += ((Bucket<K, V>) child).count;
+				} else if (child != null) {
+					count += ((Node<K, V>) child).count();
+				}
+			}
+			return count;
+		}
+
+		@SuppressWarnings("unchecked")
+		int countNodes() {
+			int count = 1;
+			for (Object child : children) {
+				if (child instanceof Node) {
+					count += ((Node<K, V>) child).countNodes();
+				}
+			}
+			return count;
+		}
+
+		@SuppressWarnings("unchecked")
+		int countBuckets() {
+			int count = 0;
+			for (Object child : children) {
+				if (child instanceof Bucket) {
+					count++;
+				} else if (child != null) {
+					count += ((Node<K, V>) child).countBuckets();
+				}
+			}
+			return count;
+		}
+	}
+
+	/**
+	 * Sorted key suffixes packed into one byte array; suffix i ends at ends[i] and starts where suffix i - 1 ends.
+	 */
+	private static final class Bucket<K, V> {
+		private byte[] data = new byte[32];
+		private int[] ends = new int[4];
+		private Object[] keys = new Object[4];
+		private Object[] values = new Object[4];
+		private int count;
+
+		int start(int index) {
+			return index == 0 ? 0 : ends[index - 1];
+		}
+
+		@SuppressWarnings("unchecked")
+		K key(int index) {
+			return (K) keys[index];
+		}
+
+		@SuppressWarnings("unchecked")
+		V value(int index) {
+			return (V) values[index];
+		}
+
+		// index of the suffix key[from..], or -(insertion point) - 1
+		int search(byte[] key, int from) {
+			int low = 0;
+			int high = count - 1;
+			while (low <= high) {
+				int middle = (low + high) >>> 1;
+				int c = compare(data, start(middle), ends[middle], key, from, key.length);
+				if (c < 0) {
+					low = middle + 1;
+				} else if (c > 0) {
+					high = middle - 1;
+				} else {
+					return middle;
+				}
+			}
+			return -low - 1;
+		}
+
+		int countPrefix(byte[] prefix, int from) {
+			int first = search(prefix, from);
+			if (first < 0) {
+				first = -first - 1;
+			}
+			int length = prefix.length - from;
+			int last = first;
+			while (last < count && ends[last] - start(last) >= length
+					&& compare(data, start(last), start(last) + length, prefix, from, prefix.length) == 0) {
+				last++;
+			}
+			return last - first;
+		}
+
+		void insert(int index, byte[] key, int from, int to, K k, V v) {
+			int length = to - from;
+			int used = count == 0 ? 0 : ends[count - 1];
+			if (used + length > data.length) {
+				data = Arrays.copyOf(data, Math.max(data.length * 2, used + length));
+			}
+			if (count == ends.length) {
+				int capacity = count * 2;
+				ends = Arrays.copyOf(ends, capacity);
+				keys = Arrays.copyOf(keys, capacity);
+				values = Arrays.copyOf(values, capacity);
+			}
+			int start = start(index);
+			System.arraycopy(data, start, data, start + length, used - start);
+			System.arraycopy(key, from, data, start, length);
+			System.arraycopy(ends, index, ends, index + 1, count - index);
+			System.arraycopy(keys, index, keys, index + 1, count - index);
+			System.arraycopy(values, index, values, index + 1, count - index);
+			ends[index] = start + length;
+			for (int i = index + 1; i <= count; i++) {
+				ends[i] += length;
+			}
+			keys[index] = k;
+			values[index] = v;
+			count++;
+		}
+
+		void remove(int index) {
+			int start = start(index);
+			int length = ends[index] - start;
+			int used = ends[count - 1];
+			System.arraycopy(data, ends[index], data, start, used - ends[index]);
+			System.arraycopy(ends, index + 1, ends, index, count - index - 1);
+			System.arraycopy(keys, index + 1, keys, index, count - index - 1);
+			System.arraycopy(values, index + 1, values, index, count - index - 1);
+			count--;
+			for (int i = index; i < count; i++) {
+				ends[i] -= length;
+			}
+			keys[count] = null;
+			values[count] = null;
+		}
+	}
+
+	private static final class Frame<K, V> {
+		final Node<K, V> node;
+		// -1 before the entry of the node
+		int slot = -1;
+
+		Frame(Node<K, V> node) {
+			this.node = node;
+		}
+	}
+
+	/**
+	 * Walks the nodes depth first and the buckets in order. Removing through the iterator shifts the current bucket,
+	 * which the iterator follows; other modifications make it fail.
+	 */
+	private class EntryIterator implements Iterator<Entry<K, V>> {
+		private final Deque<Frame<K, V>> stack = new ArrayDeque<>();
+		private Bucket<K, V> bucket;
+		private int index;
+		private Entry<K, V> next;
+		private Entry<K, V> lastReturned;
+		private Bucket<K, V> lastBucket;
+		private int expectedModCount = modCount;
+
+		EntryIterator() {
+			stack.push(new Frame<>(root));
+		}
+
+		@Override
+		public boolean hasNext() {
+			if (next == null) {
+				next = findNext();
+			}
+			return next != null;
+		}
+
+		@Override
+		public Entry<K, V> next() {
+			if (modCount != expectedModCount) {
+				throw new ConcurrentModificationException();
+			}
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			lastReturned = next;
+			lastBucket = bucket;
+			next = null;
+			return lastReturned;
+		}
+
+		@Override
+		public void remove() {
+			if (lastReturned == null) {
+				throw new IllegalStateException("no current entry");
+			}
+			if (modCount != expectedModCount) {
+				throw new ConcurrentModificationException();
+			}
+			BurstTrieMap.this.remove(lastReturned.getKey());
+			if (lastBucket != null && lastBucket == bucket) {
+				index--;
+			}
+			lastReturned = null;
+			expectedModCount = modCount;
+		}
+
+		@SuppressWarnings("unchecked")
+		private Entry<K, V> findNext() {
+			while (true) {
+				if (bucket != null) {
+					if (index < bucket.count) {
+						int i = index++;
+						return new MapEntry(bucket.key(i), bucket.value(i));
+					}
+					bucket = null;
+				}
+				Frame<K, V> frame = stack.peek();
+				if (frame == null) {
+					return null;
+				}
+				Node<K, V> node = frame.node;
+				if (frame.slot < 0) {
+					frame.slot = 0;
+					if (node.present) {
+						return new MapEntry(node.key, node.value);
+					}
+				}
+				while (frame.slot < node.children.length && node.children[frame.slot] == null) {
+					frame.slot++;
+				}
+				if (frame.slot == node.children.length) {
+					stack.pop();
+					continue;
+				}
+				Object child = node.children[frame.slot++];
+				if (child instanceof Bucket) {
+					bucket = (Bucket<K, V>) child;
+					index = 0;
+				} else {
+					stack.push(new Frame<>((Node<K, V>) child));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Entry returned by the iterator; setting its value puts it in the map.
+	 */
+	private class MapEntry extends SimpleEntry<K, V> {
+		private static final long serialVersionUID = 1L;
+
+		MapEntry(K key, V value) {
+			super(key, value);
+		}
+
+		@Override
+		public V setValue(V value) {
+			BurstTrieMap.this.put(getKey(), value);
+			return super.setValue(value);
+		}
+	}
+}
@@ -0,0 +1,264 @@
+package no.lundesgaard.util;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
+import java.util.stream.IntStream;
+
+/**
+ * {@link TrieMap} split into shards by the first byte of the key, each shard with a lock of its own, so that writers of
+ * different shards do not block each other. A shard holds a contiguous range of first bytes, which makes iteration in
+ * key order a concatenation of the shards. The empty (and {@code null}) key is kept in the first shard.
+ * <p>
+ * Iteration is weakly consistent: the entries of a shard are copied under its read lock when the iterator reaches it.
+ * Compound operations like {@code putIfAbsent} are not atomic.
+ */
+public class ShardedTrieMap<K, V> extends AbstractMap<K, V> {
+	private static final int DEFAULT_SHARD_COUNT = 16;
+	// below this size putAll fills the shards from the calling thread
+	private static final int PARALLEL_THRESHOLD = 10_000;
+
+	private final Shard<K, V>[] shards;
+	private final int shift;
+
+	public ShardedTrieMap() {
+		this(DEFAULT_SHARD_COUNT);
+	}
+
+	@SuppressWarnings("unchecked")
+	public ShardedTrieMap(int shardCount) {
+		if (shardCount < 1 || shardCount > 256 || Integer.bitCount(shardCount) != 1) {
+			throw new IllegalArgumentException("shard count must be a power of two from 1 to 256: " + shardCount);
+		}
+		shards = (Shard<K, V>[]) new Shard<?, ?>[shardCount];
+		for (int i = 0; i < shardCount; i++) {
+			shards[i] = new Shard<>();
+		}
+		shift = 8 - Integer.numberOfTrailingZeros(shardCount);
+	}
+
+	public int getShardCount() {
+		return shards.length;
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		Shard<K, V> shard = shardOf(key);
+		return shard.read(() -> shard.map.containsKey(key));
+	}
+
+	@Override
+	public V get(Object key) {
+		Shard<K, V> shard = shardOf(key);
+		return shard.read(() -> shard.map.get(key));
+	}
+
+	@Override
+	public V put(K key, V value) {
+		Shard<K, V> shard = shardOf(key);
+		return shard.write(() -> shard.map.put(key, value));
+	}
+
+	@Override
+	public V remove(Object key) {
+		Shard<K, V> shard = shardOf(key);
+		return shard.write(() -> shard.map.remove(key));
+	}
+
+	/**
+	 * Puts the entries of the given map. Large maps are split by shard first and the shards are filled in parallel.
+	 */
+	@Override
+	public void putAll(Map<? extends K, ? extends V> map) {
+		if (map.size() < PARALLEL_THRESHOLD || shards.length == 1) {
+			map.forEach(this::put);
+			return;
+		}
+		List<List<Entry<? extends K, ? extends V>>> partitions = new ArrayList<>(shards.length);
+		for (int i = 0; i < shards.length; i++) {
+			partitions.add(new ArrayList<>());
+		}
+		for (Entry<? extends K, ? extends V> entry : map.entrySet()) {
+			partitions.get(shardIndex(entry.getKey())).add(entry);
+		}
+		IntStream.range(0, shards.length).parallel().forEach(i -> {
+			Shard<K, V> shard = shards[i];
+			shard.write(() -> {
+				partitions.get(i).forEach(entry -> shard.map.put(entry.getKey(), entry.getValue()));
+				return null;
+			});
+		});
+	}
+
+	@Override
+	public int size() {
+		int size = 0;
+		for (Shard<K, V> shard : shards) {
+			size += shard.read(shard.map::size);
+		}
+		return size;
+	}
+
+	@Override
+	public boolean isEmpty() {
+		for (Shard<K, V> shard : shards) {
+			if (!shard.read(shard.map::isEmpty)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public void clear() {
+		for (Shard<K, V> shard : shards) {
+			shard.write(() -> {
+				shard.map.clear();
+				return null;
+			});
+		}
+	}
+
+	public int countPrefix(Object prefix) {
+		if (isEmptyKey(prefix)) {
+			return size();
+		}
+		Shard<K, V> shard = shardOf(prefix);
+		return shard.read(() -> shard.map.countPrefix(prefix));
+	}
+
+	@Override
+	public Set<Entry<K, V>> entrySet() {
+		return new AbstractSet<Entry<K, V>>() {
+			@Override
+			public Iterator<Entry<K, V>> iterator() {
+				return new EntryIterator();
+			}
+
+			@Override
+			public int size() {
+				return ShardedTrieMap.this.size();
+			}
+
+			@Override
+			public void clear() {
+				ShardedTrieMap.this.clear();
+			}
+		};
+	}
+
+	private Shard<K, V> shardOf(Object key) {
+		return shards[shardIndex(key)];
+	}
+
+	private int shardIndex(Object key) {
+		return firstByte(key) >>> shift;
+	}
+
+	private static boolean isEmptyKey(Object key) {
+		if (key instanceof Trieable) {
+			byte[] bytes = ((Trieable) key).getBytes();
+			return bytes == null || bytes.length == 0;
+		}
+		return key == null || key.toString().isEmpty();
+	}
+
+	// first byte of the key as encoded by TrieMap, without encoding the whole key
+	private static int firstByte(Object key) {
+		if (key == null) {
+			return 0;
+		}
+		if (key instanceof Trieable) {
+			byte[] bytes = ((Trieable) key).getBytes();
+			return bytes == null || bytes.length == 0 ? 0 : bytes[0] & 0xFF;
+		}
+		String s = key.toString();
+		if (s.isEmpty()) {
+			return 0;
+		}
+		char c = s.charAt(0);
+		if (c < 0x80) {
+			return c;
+		}
+		if (c < 0x800) {
+			return 0xC0 | c >>> 6;
+		}
+		if (Character.isHighSurrogate(c) && s.length() > 1 && Character.isLowSurrogate(s.charAt(1))) {
+			return 0xF0 | Character.toCodePoint(c, s.charAt(1)) >>> 18;
+		}
+		if (Character.isSurrogate(c)) {
+			// unpaired surrogates are encoded as '?'
+			return '?';
+		}
+		return 0xE0 | c >>> 12;
+	}
+
+	private static class Shard<K, V> {
+		private final TrieMap<K, V> map = new TrieMap<>();
+		private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+		<T> T read(Supplier<T> operation) {
+			return locked(lock.readLock(), operation);
+		}
+
+		<T> T write(Supplier<T> operation) {
+			return locked(lock.writeLock(), operation);
+		}
+
+		private static <T> T locked(Lock lock, Supplier<T> operation) {
+			lock.lock();
+			try {
+				return operation.get();
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	private class EntryIterator implements Iterator<Entry<K, V>> {
+		private int nextShard;
+		private Iterator<Entry<K, V>> shardIterator;
+		private Entry<K, V> lastReturned;
+
+		@Override
+		public boolean hasNext() {
+			while ((shardIterator == null || !shardIterator.hasNext()) && nextShard < shards.length) {
+				Shard<K, V> shard = shards[nextShard++];
+				List<Entry<K, V>> entries = shard.read(() -> {
+					List<Entry<K, V>> copy = new ArrayList<>(shard.map.size());
+					shard.map.forEach((key, value) -> copy.add(new SimpleImmutableEntry<>(key, value)));
+					return copy;
+				});
+				shardIterator = entries.iterator();
+			}
+			return shardIterator != null && shardIterator.hasNext();
+		}
+
+		@Override
+		public Entry<K, V> next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			lastReturned = shardIterator.next();
+			return lastReturned;
+		}
+
+		@Override
+		public void remove() {
+			if (lastReturned == null) {
+				throw new IllegalStateException();
+			}
+			ShardedTrieMap.this.remove(lastReturned.getKey());
+			lastReturned = null;
+		}
+	}
+}
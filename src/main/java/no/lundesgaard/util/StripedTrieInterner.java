@@ -0,0 +1,138 @@
+package no.lundesgaard.util;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Thread safe {@link TrieInterner}, split into stripes with a lock of their own. The stripe of a string is chosen from
+ * the first and last byte of its UTF-8 encoding, which are found from the first and last characters without looking at
+ * the rest of the string.
+ */
+public class StripedTrieInterner {
+	private static final int DEFAULT_STRIPE_COUNT = 16;
+
+	private final TrieInterner[] stripes;
+	private final Lock[] locks;
+
+	public StripedTrieInterner() {
+		this(DEFAULT_STRIPE_COUNT, TrieInterner.Strength.STRONG);
+	}
+
+	public StripedTrieInterner(int stripeCount, TrieInterner.Strength strength) {
+		if (stripeCount < 1 || stripeCount > 1 << 16 || Integer.bitCount(stripeCount) != 1) {
+			throw new IllegalArgumentException("stripe count must be a power of two from 1 to 65536: " + stripeCount);
+		}
+		stripes = new TrieInterner[stripeCount];
+		locks = new Lock[stripeCount];
+		for (int i = 0; i < stripeCount; i++) {
+			stripes[i] = new TrieInterner(strength);
+			locks[i] = new ReentrantLock();
+		}
+	}
+
+	public String intern(CharSequence chars) {
+		int stripe = stripeIndex(firstByte(chars), lastByte(chars));
+		Lock lock = locks[stripe];
+		lock.lock();
+		try {
+			return stripes[stripe].intern(chars);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public String intern(byte[] bytes, int offset, int length) {
+		int stripe = length == 0 ? stripeIndex(0, 0) : stripeIndex(bytes[offset] & 0xFF, bytes[offset + length - 1] & 0xFF);
+		Lock lock = locks[stripe];
+		lock.lock();
+		try {
+			return stripes[stripe].intern(bytes, offset, length);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public String intern(ByteBuffer buffer, int offset, int length) {
+		int stripe = length == 0 ? stripeIndex(0, 0)
+				: stripeIndex(buffer.get(offset) & 0xFF, buffer.get(offset + length - 1) & 0xFF);
+		Lock lock = locks[stripe];
+		lock.lock();
+		try {
+			return stripes[stripe].intern(buffer, offset, length);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public int size() {
+		int size = 0;
+		for (int i = 0; i < stripes.length; i++) {
+			locks[i].lock();
+			try {
+				size += stripes[i].size();
+			} finally {
+				locks[i].unlock();
+			}
+		}
+		return size;
+	}
+
+	public void purge() {
+		for (int i = 0; i < stripes.length; i++) {
+			locks[i].lock();
+			try {
+				stripes[i].purge();
+			} finally {
+				locks[i].unlock();
+			}
+		}
+	}
+
+	public int getStripeCount() {
+		return stripes.length;
+	}
+
+	private int stripeIndex(int firstByte, int lastByte) {
+		int hash = firstByte * 31 + lastByte;
+		hash *= 0x9E3779B9;
+		return (hash ^ hash >>> 16) & (stripes.length - 1);
+	}
+
+	private static int firstByte(CharSequence chars) {
+		if (chars.length() == 0) {
+			return 0;
+		}
+		char c = chars.charAt(0);
+		if (c < 0x80) {
+			return c;
+		}
+		if (c < 0x800) {
+			return 0xC0 | c >>> 6;
+		}
+		if (Character.isHighSurrogate(c) && chars.length() > 1 && Character.isLowSurrogate(chars.charAt(1))) {
+			return 0xF0 | Character.toCodePoint(c, chars.charAt(1)) >>> 18;
+		}
+		if (Character.isSurrogate(c)) {
+			return '?';
+		}
+		return 0xE0 | c >>> 12;
+	}
+
+	private static int lastByte(CharSequence chars) {
+		int length = chars.length();
+		if (length == 0) {
+			return 0;
+		}
+		char c = chars.charAt(length - 1);
+		if (c < 0x80) {
+			return c;
+		}
+		if (Character.isSurrogate(c)
+				&& !(Character.isLowSurrogate(c) && length > 1 && Character.isHighSurrogate(chars.charAt(length - 2)))) {
+			return '?';
+		}
+		// the last continuation byte holds the low six bits of the code point, which are those of the low surrogate
+		return 0x80 | c & 0x3F;
+	}
+}
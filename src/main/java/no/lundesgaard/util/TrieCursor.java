@@ -0,0 +1,109 @@
+package no.lundesgaard.util;
+
+import java.util.Arrays;
+
+/**
+ * Position in a {@link TrieMap} that is moved one byte of the UTF-8 key at a time. Advancing past the keys of the map
+ * is allowed, the cursor then stays off the trie until it has retreated back. Each step is independent of the length
+ * of the prefix and does not allocate. Removing keys leaves their nodes in the trie, only {@link TrieMap#clear()}
+ * detaches them. The cursor checks on every step that its path still hangs from the root and otherwise follows its
+ * prefix down again, so it stays valid when the map is modified and sees the current entries.
+ */
+public class TrieCursor<K, V> {
+	private final TrieNode<K, V> rootNode;
+	// nodes of the prefix, path[0..validDepth] when the prefix is off the trie
+	private TrieNode<K, V>[] path;
+	// partial keys of path[1..validDepth]
+	private byte[] partialKeys = new byte[16];
+	private int depth;
+	private int validDepth;
+
+	@SuppressWarnings("unchecked")
+	TrieCursor(TrieNode<K, V> rootNode) {
+		this.rootNode = rootNode;
+		this.path = (TrieNode<K, V>[]) new TrieNode<?, ?>[16];
+		reset();
+	}
+
+	public boolean advance(byte partialKey) {
+		anchor();
+		if (depth == validDepth) {
+			TrieNode<K, V> child = path[depth].getChild(partialKey);
+			if (child != null) {
+				if (validDepth + 1 == path.length) {
+					path = Arrays.copyOf(path, path.length * 2);
+					partialKeys = Arrays.copyOf(partialKeys, path.length);
+				}
+				partialKeys[validDepth] = partialKey;
+				path[++validDepth] = child;
+			}
+		}
+		depth++;
+		return isPrefix();
+	}
+
+	public boolean retreat() {
+		if (depth == 0) {
+			return false;
+		}
+		if (depth == validDepth) {
+			path[validDepth--] = null;
+		}
+		depth--;
+		return true;
+	}
+
+	public boolean isPrefix() {
+		anchor();
+		return depth == validDepth && path[depth].size() > 0;
+	}
+
+	public boolean hasValue() {
+		anchor();
+		return depth == validDepth && path[depth].hasEntry();
+	}
+
+	public K key() {
+		return hasValue() ? path[depth].getKey() : null;
+	}
+
+	public V value() {
+		return hasValue() ? path[depth].getValue() : null;
+	}
+
+	public byte[] children() {
+		anchor();
+		if (depth != validDepth) {
+			return new byte[0];
+		}
+		return path[depth].getChildKeys();
+	}
+
+	public int depth() {
+		return depth;
+	}
+
+	// follows the prefix down from the root again when the map was cleared since the path was taken
+	private void anchor() {
+		if (validDepth == 0 || rootNode.getChild(partialKeys[0]) == path[1]) {
+			return;
+		}
+		int onTrie = validDepth;
+		validDepth = 0;
+		for (int i = 0; i < onTrie; i++) {
+			TrieNode<K, V> child = path[i].getChild(partialKeys[i]);
+			if (child == null) {
+				break;
+			}
+			path[++validDepth] = child;
+		}
+		Arrays.fill(path, validDepth + 1, onTrie + 1, null);
+	}
+
+	public void reset() {
+		Arrays.fill(path, 1, validDepth + 1, null);
+		path[0] = rootNode;
+		depth = 0;
+		validDepth = 0;
+	}
+}
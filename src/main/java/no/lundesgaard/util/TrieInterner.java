@@ -0,0 +1,205 @@
+package no.lundesgaard.util;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Pool of canonical strings, kept in a byte trie of their UTF-8 encoding. The trie is walked straight from the given
+ * characters (encoded on the fly) or bytes, so interning a string already in the pool allocates nothing. The canonical
+ * strings can be held weakly or softly, then strings not used elsewhere are collected and their entries purged as the
+ * pool is used.
+ * <p>
+ * Strings with unpaired surrogates have no UTF-8 encoding of their own and are returned as new strings without being
+ * pooled. Bytes that are not valid UTF-8 are pooled under the given bytes.
+ * <p>
+ * Not thread safe, see {@link StripedTrieInterner}.
+ */
+public class TrieInterner {
+	public enum Strength {
+		STRONG, WEAK, SOFT
+	}
+
+	private final Strength strength;
+	// the values are the canonical strings, or references to them, the keys are not used
+	private final TrieNode<String, Object> rootNode = new TrieNode<>();
+	private final ReferenceQueue<String> queue = new ReferenceQueue<>();
+	private int cleared;
+	@SuppressWarnings("unchecked")
+	private TrieNode<String, Object>[] path = (TrieNode<String, Object>[]) new TrieNode<?, ?>[32];
+
+	public TrieInterner() {
+		this(Strength.STRONG);
+	}
+
+	public TrieInterner(Strength strength) {
+		this.strength = strength;
+	}
+
+	public String intern(CharSequence chars) {
+		expungeCleared();
+		TrieNode<String, Object> node = rootNode;
+		int length = chars.length();
+		for (int i = 0; i < length && node != null; i++) {
+			char c = chars.charAt(i);
+			if (c < 0x80) {
+				node = node.getChild((byte) c);
+			} else if (c < 0x800) {
+				node = child(child(node, 0xC0 | c >>> 6), 0x80 | c & 0x3F);
+			} else if (Character.isSurrogate(c)) {
+				if (!Character.isHighSurrogate(c) || i + 1 == length || !Character.isLowSurrogate(chars.charAt(i + 1))) {
+					return chars.toString();
+				}
+				int codePoint = Character.toCodePoint(c, chars.charAt(++i));
+				node = child(child(child(child(node, 0xF0 | codePoint >>> 18), 0x80 | codePoint >>> 12 & 0x3F),
+						0x80 | codePoint >>> 6 & 0x3F), 0x80 | codePoint & 0x3F);
+			} else {
+				node = child(child(child(node, 0xE0 | c >>> 12), 0x80 | c >>> 6 & 0x3F), 0x80 | c & 0x3F);
+			}
+		}
+		String canonical = canonical(node);
+		// differs only when the canonical string was decoded from invalid UTF-8
+		if (canonical != null && canonical.contentEquals(chars)) {
+			return canonical;
+		}
+		String string = chars.toString();
+		if (hasUnpairedSurrogate(string)) {
+			return string;
+		}
+		byte[] bytes = string.getBytes(UTF_8);
+		return add(bytes, 0, bytes.length, string);
+	}
+
+	/**
+	 * Interns the string of the given UTF-8 bytes.
+	 */
+	public String intern(byte[] bytes, int offset, int length) {
+		expungeCleared();
+		TrieNode<String, Object> node = rootNode;
+		for (int i = 0; i < length && node != null; i++) {
+			node = node.getChild(bytes[offset + i]);
+		}
+		String canonical = canonical(node);
+		if (canonical != null) {
+			return canonical;
+		}
+		return add(bytes, offset, length, new String(bytes, offset, length, UTF_8));
+	}
+
+	/**
+	 * Interns the string of the given UTF-8 bytes, read with absolute gets.
+	 */
+	public String intern(ByteBuffer buffer, int offset, int length) {
+		expungeCleared();
+		TrieNode<String, Object> node = rootNode;
+		for (int i = 0; i < length && node != null; i++) {
+			node = node.getChild(buffer.get(offset + i));
+		}
+		String canonical = canonical(node);
+		if (canonical != null) {
+			return canonical;
+		}
+		byte[] bytes = new byte[length];
+		for (int i = 0; i < length; i++) {
+			bytes[i] = buffer.get(offset + i);
+		}
+		return add(bytes, 0, length, new String(bytes, UTF_8));
+	}
+
+	/**
+	 * Returns the number of strings in the pool, including collected strings not purged yet.
+	 */
+	public int size() {
+		return rootNode.size();
+	}
+
+	/**
+	 * Removes the entries of collected strings.
+	 */
+	public void purge() {
+		while (queue.poll() != null) {
+			cleared++;
+		}
+		rootNode.removeEntries(node -> canonical(node) == null);
+		cleared = 0;
+	}
+
+	public Strength getStrength() {
+		return strength;
+	}
+
+	private static boolean hasUnpairedSurrogate(String string) {
+		for (int i = 0; i < string.length(); i++) {
+			char c = string.charAt(i);
+			if (Character.isHighSurrogate(c) && i + 1 < string.length() && Character.isLowSurrogate(string.charAt(i + 1))) {
+				i++;
+			} else if (Character.isSurrogate(c)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static TrieNode<String, Object> child(TrieNode<String, Object> node, int partialKey) {
+		return node != null ? node.getChild((byte) partialKey) : null;
+	}
+
+	private static String canonical(TrieNode<String, Object> node) {
+		if (node == null || !node.hasEntry()) {
+			return null;
+		}
+		Object value = node.getValue();
+		if (value instanceof Reference) {
+			return (String) ((Reference<?>) value).get();
+		}
+		return (String) value;
+	}
+
+	private String add(byte[] bytes, int offset, int length, String string) {
+		if (length >= path.length) {
+			path = Arrays.copyOf(path, length * 2);
+		}
+		TrieNode<String, Object> node = rootNode;
+		for (int i = 0; i < length; i++) {
+			path[i] = node;
+			node = node.getOrCreateChild(bytes[offset + i]);
+		}
+		boolean added = !node.hasEntry();
+		node.setEntry(null, reference(string));
+		if (added) {
+			for (int i = 0; i < length; i++) {
+				path[i].addSize(1);
+			}
+		}
+		return string;
+	}
+
+	private Object reference(String string) {
+		switch (strength) {
+			case WEAK:
+				return new WeakReference<>(string, queue);
+			case SOFT:
+				return new SoftReference<>(string, queue);
+			default:
+				return string;
+		}
+	}
+
+	// purges once the collected strings make up half of the pool, so every purge is paid for by the strings collected
+	private void expungeCleared() {
+		if (strength == Strength.STRONG) {
+			return;
+		}
+		while (queue.poll() != null) {
+			cleared++;
+		}
+		if (cleared > 0 && cleared >= rootNode.size() / 2) {
+			purge();
+		}
+	}
+}
@@ -0,0 +1,305 @@
+package no.lundesgaard.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardOpenOption.READ;
+
+/**
+ * Bulk loader of line based files into a {@link TrieMap}. The file is memory mapped in chunks and every line is
+ * inserted straight from the mapped bytes: the key bytes are walked down the trie without building a key string or
+ * byte array, and the key decoder is only called for keys not already in the map. A line holds a key, optionally
+ * followed by a delimiter and a value. Empty lines are skipped and a trailing carriage return is ignored.
+ * <p>
+ * The decoded keys must encode to the bytes they were decoded from ({@link Trieable} bytes or UTF-8 of
+ * {@code toString()}), otherwise they can not be found in the map afterwards.
+ * <p>
+ * With a parallelism above one the file is split into ranges on line boundaries, each range is loaded into a trie of
+ * its own and the tries are merged into the map in file order.
+ */
+public class TrieLoader<K, V> {
+	private static final int DEFAULT_CHUNK_SIZE = 64 << 20;
+
+	@FunctionalInterface
+	public interface FieldDecoder<T> {
+		T decode(ByteBuffer buffer, int offset, int length);
+	}
+
+	@FunctionalInterface
+	public interface ProgressListener {
+		/**
+		 * Called after every loaded chunk, from the loading threads.
+		 */
+		void progress(long bytesLoaded, long totalBytes, long linesLoaded);
+	}
+
+	private final FieldDecoder<? extends K> keyDecoder;
+	private FieldDecoder<? extends V> valueDecoder;
+	private V defaultValue;
+	private int delimiter = -1;
+	private int parallelism = 1;
+	private int chunkSize = DEFAULT_CHUNK_SIZE;
+	private ProgressListener progressListener = (bytesLoaded, totalBytes, linesLoaded) -> {
+	};
+
+	public TrieLoader(FieldDecoder<? extends K> keyDecoder) {
+		this.keyDecoder = keyDecoder;
+	}
+
+	/**
+	 * Returns a loader of string keys.
+	 */
+	public static <V> TrieLoader<String, V> forStrings() {
+		return new TrieLoader<>(TrieLoader::decodeString);
+	}
+
+	/**
+	 * Decodes the given bytes as UTF-8.
+	 */
+	public static String decodeString(ByteBuffer buffer, int offset, int length) {
+		byte[] bytes = new byte[length];
+		for (int i = 0; i < length; i++) {
+			bytes[i] = buffer.get(offset + i);
+		}
+		return new String(bytes, UTF_8);
+	}
+
+	/**
+	 * Splits every line at the first occurrence of the given (ASCII) delimiter into key and value.
+	 */
+	public TrieLoader<K, V> withValues(char delimiter, FieldDecoder<? extends V> valueDecoder) {
+		if (delimiter > 0x7F) {
+			throw new IllegalArgumentException("delimiter is not ASCII: " + delimiter);
+		}
+		this.delimiter = delimiter;
+		this.valueDecoder = valueDecoder;
+		return this;
+	}
+
+	/**
+	 * Sets the value of keys without a value field, {@code null} by default.
+	 */
+	public TrieLoader<K, V> withDefaultValue(V defaultValue) {
+		this.defaultValue = defaultValue;
+		return this;
+	}
+
+	public TrieLoader<K, V> withParallelism(int parallelism) {
+		if (parallelism < 1) {
+			throw new IllegalArgumentException("parallelism must be positive: " + parallelism);
+		}
+		this.parallelism = parallelism;
+		return this;
+	}
+
+	/**
+	 * Sets the size of the mapped chunks, 64 MB by default. A line can not be longer than a chunk.
+	 */
+	public TrieLoader<K, V> withChunkSize(int chunkSize) {
+		if (chunkSize < 1) {
+			throw new IllegalArgumentException("chunk size must be positive: " + chunkSize);
+		}
+		this.chunkSize = chunkSize;
+		return this;
+	}
+
+	public TrieLoader<K, V> withProgressListener(ProgressListener progressListener) {
+		this.progressListener = progressListener;
+		return this;
+	}
+
+	/**
+	 * Loads the lines of the given file into the map and returns the number of lines loaded.
+	 */
+	public long load(Path path, TrieMap<K, V> map) throws IOException {
+		try (FileChannel channel = FileChannel.open(path, READ)) {
+			long size = channel.size();
+			Progress progress = new Progress(size);
+			if (parallelism == 1 || size < (long) chunkSize) {
+				return loadRange(channel, 0, size, map.getRootNode(), progress);
+			}
+			return loadParallel(channel, size, map.getRootNode(), progress);
+		}
+	}
+
+	private long loadParallel(FileChannel channel, long size, TrieNode<K, V> rootNode, Progress progress)
+			throws IOException {
+		long[] boundaries = new long[parallelism + 1];
+		for (int i = 1; i < parallelism; i++) {
+			boundaries[i] = nextLineStart(channel, Math.max(boundaries[i - 1], size * i / parallelism), size);
+		}
+		boundaries[parallelism] = size;
+		ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+		try {
+			List<TrieNode<K, V>> rangeRoots = new ArrayList<>();
+			List<Future<Long>> futures = new ArrayList<>();
+			for (int i = 0; i < parallelism; i++) {
+				TrieNode<K, V> rangeRoot = new TrieNode<>();
+				long start = boundaries[i];
+				long end = boundaries[i + 1];
+				rangeRoots.add(rangeRoot);
+				futures.add(executor.submit(() -> loadRange(channel, start, end, rangeRoot, progress)));
+			}
+			long lines = 0;
+			for (int i = 0; i < parallelism; i++) {
+				lines += futures.get(i).get();
+				rootNode.merge(rangeRoots.get(i));
+			}
+			return lines;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("interrupted while loading", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new IOException(e.getCause());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private static long nextLineStart(FileChannel channel, long position, long size) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(8192);
+		while (position < size) {
+			buffer.clear();
+			int read = channel.read(buffer, position);
+			if (read <= 0) {
+				break;
+			}
+			for (int i = 0; i < read; i++) {
+				if (buffer.get(i) == '\n') {
+					return position + i + 1;
+				}
+			}
+			position += read;
+		}
+		return size;
+	}
+
+	private long loadRange(FileChannel channel, long start, long end, TrieNode<K, V> rootNode, Progress progress)
+			throws IOException {
+		Inserter inserter = new Inserter(rootNode);
+		long lines = 0;
+		long position = start;
+		while (position < end) {
+			int length = (int) Math.min(chunkSize, end - position);
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+			int processed = length;
+			if (position + length < end) {
+				processed = lastLineEnd(buffer, length);
+				if (processed == 0) {
+					throw new IOException("line at position " + position + " is longer than the chunk size " + chunkSize);
+				}
+			}
+			long chunkLines = loadLines(buffer, processed, inserter);
+			lines += chunkLines;
+			position += processed;
+			progress.add(processed, chunkLines);
+		}
+		return lines;
+	}
+
+	private static int lastLineEnd(ByteBuffer buffer, int length) {
+		for (int i = length - 1; i >= 0; i--) {
+			if (buffer.get(i) == '\n') {
+				return i + 1;
+			}
+		}
+		return 0;
+	}
+
+	private long loadLines(ByteBuffer buffer, int length, Inserter inserter) {
+		long lines = 0;
+		int lineStart = 0;
+		while (lineStart < length) {
+			int lineEnd = lineStart;
+			int fieldEnd = -1;
+			while (lineEnd < length) {
+				byte b = buffer.get(lineEnd);
+				if (b == '\n') {
+					break;
+				}
+				if (b == delimiter && delimiter >= 0 && fieldEnd < 0) {
+					fieldEnd = lineEnd;
+				}
+				lineEnd++;
+			}
+			int next = lineEnd + 1;
+			if (lineEnd > lineStart && buffer.get(lineEnd - 1) == '\r') {
+				lineEnd--;
+			}
+			if (lineEnd > lineStart) {
+				int keyEnd = fieldEnd >= 0 && fieldEnd < lineEnd ? fieldEnd : lineEnd;
+				inserter.insert(buffer, lineStart, keyEnd, lineEnd);
+				lines++;
+			}
+			lineStart = next;
+		}
+		return lines;
+	}
+
+	private class Inserter {
+		private final TrieNode<K, V> rootNode;
+		// nodes of the key being inserted, reused between keys
+		@SuppressWarnings("unchecked")
+		private TrieNode<K, V>[] path = (TrieNode<K, V>[]) new TrieNode<?, ?>[64];
+
+		Inserter(TrieNode<K, V> rootNode) {
+			this.rootNode = rootNode;
+		}
+
+		void insert(ByteBuffer buffer, int keyStart, int keyEnd, int lineEnd) {
+			int keyLength = keyEnd - keyStart;
+			if (keyLength >= path.length) {
+				path = Arrays.copyOf(path, keyLength * 2);
+			}
+			TrieNode<K, V> node = rootNode;
+			for (int i = 0; i < keyLength; i++) {
+				path[i] = node;
+				node = node.getOrCreateChild(buffer.get(keyStart + i));
+			}
+			V value = defaultValue;
+			if (valueDecoder != null && keyEnd < lineEnd) {
+				value = valueDecoder.decode(buffer, keyEnd + 1, lineEnd - keyEnd - 1);
+			}
+			if (node.hasEntry()) {
+				node.setValue(value);
+				return;
+			}
+			node.setEntry(keyDecoder.decode(buffer, keyStart, keyLength), value);
+			for (int i = 0; i < keyLength; i++) {
+				path[i].addSize(1);
+			}
+		}
+	}
+
+	private class Progress {
+		private final long totalBytes;
+		private final AtomicLong bytesLoaded = new AtomicLong();
+		private final AtomicLong linesLoaded = new AtomicLong();
+
+		Progress(long totalBytes) {
+			this.totalBytes = totalBytes;
+		}
+
+		void add(long bytes, long lines) {
+			progressListener.progress(bytesLoaded.addAndGet(bytes), totalBytes, linesLoaded.addAndGet(lines));
+		}
+	}
+}
@@ -1,16 +1,34 @@
 package no.lundesgaard.util;
 
+import dk.lundesgaard.util.TrieCounters;
+import dk.lundesgaard.util.TrieDiffListener;
+import dk.lundesgaard.util.TrieStats;
+
 import java.util.AbstractMap;
 import java.util.AbstractSet;
+import java.util.ConcurrentModificationException;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.Random;
 import java.util.Set;
+import java.util.function.BiFunction;
+import java.util.function.Function;
 
 import static java.nio.charset.StandardCharsets.UTF_8;
 
 public class TrieMap<K, V> extends AbstractMap<K, V> {
+	// estimated object sizes in bytes, with compressed object pointers
+	private static final int NODE_SIZE = 32 + 48;
+	private static final int CHILD_SIZE = 40;
+
 	private TrieNode<K, V> rootNode = new TrieNode<>();
+	private TrieCounters counters;
+	// number of entry additions and removals, to detect mapping functions that modify the map
+	private int modCount;
 
 	public TrieMap() {
 	}
@@ -19,8 +37,12 @@ public class TrieMap<K, V> extends AbstractMap<K, V> {
 		putAll(map);
 	}
 
+	private TrieMap(TrieNode<K, V> rootNode) {
+		this.rootNode = rootNode;
+	}
+
 	public boolean containsKey(Object key) {
-		return findNode(key).map(TrieNode::hasEntry).orElse(false);
+		return lookupNode(key).map(TrieNode::hasEntry).orElse(false);
 	}
 
 	public boolean containsValue(Object value) {
@@ -28,13 +50,34 @@ public class TrieMap<K, V> extends AbstractMap<K, V> {
 	}
 
 	public V get(Object key) {
-		return findNode(key)
-				.flatMap(TrieNode::getOptionalEntry)
-				.filter(e -> e.getKey() == null && key == null || e.getKey() != null && e.getKey().equals(key))
-				.map(Entry::getValue)
+		return lookupNode(key)
+				.filter(node -> node.hasEntry() && (node.getKey() == null && key == null || node.getKey() != null && node.getKey().equals(key)))
+				.map(TrieNode::getValue)
 				.orElse(null);
 	}
 
+	private Optional<TrieNode<K, V>> lookupNode(Object key) {
+		TrieCounters c = counters;
+		if (c == null) {
+			return findNode(key);
+		}
+		byte[] partialKeys = partialKeysFromKey(key);
+		TrieNode<K, V> node = rootNode;
+		int visited = 1;
+		for (int i = 0; partialKeys != null && i < partialKeys.length && node != null; i++) {
+			node = node.getChild(partialKeys[i]);
+			if (node != null) {
+				visited++;
+			}
+		}
+		c.recordGet(node != null && node.hasEntry(), visited);
+		return Optional.ofNullable(node);
+	}
+
+	TrieNode<K, V> getRootNode() {
+		return rootNode;
+	}
+
 	private Optional<TrieNode<K, V>> findNode(Object key) {
 		return rootNode.findNode(partialKeysFromKey(key));
 	}
@@ -50,24 +93,297 @@ public class TrieMap<K, V> extends AbstractMap<K, V> {
 	}
 
 	public V put(K key, V value) {
-		TrieNode<K, V> node = findOrCreateNodes(key).get();
-		return node.setEntry(key, value).map(Entry::getValue).orElse(null);
+		if (counters != null) {
+			counters.recordPut();
+		}
+		int oldSize = size();
+		V oldValue = rootNode.putEntry(partialKeysFromKey(key), key, value);
+		if (size() != oldSize) {
+			modCount++;
+		}
+		return oldValue;
 	}
 
-	private Optional<TrieNode<K, V>> findOrCreateNodes(K key) {
-		return rootNode.findOrCreateNodes(partialKeysFromKey(key));
+	@Override
+	public V getOrDefault(Object key, V defaultValue) {
+		return lookupNode(key).filter(node -> hasKey(node, key)).map(TrieNode::getValue).orElse(defaultValue);
 	}
 
+	// The compute and replace methods find or create the node of the key once and act on it, instead of the get
+	// followed by put or remove of the Map defaults.
+
 	@Override
+	public V putIfAbsent(K key, V value) {
+		return update(key, true, node -> {
+			if (hasKey(node, key) && node.getValue() != null) {
+				return node.getValue();
+			}
+			return node.setEntry(key, value);
+		});
+	}
+
+	@Override
+	public V computeIfAbsent(K key, Function<? super K, ? extends V> mappingFunction) {
+		return update(key, true, node -> {
+			if (hasKey(node, key) && node.getValue() != null) {
+				return node.getValue();
+			}
+			int expectedModCount = modCount;
+			V value = mappingFunction.apply(key);
+			checkModCount(expectedModCount);
+			if (value != null) {
+				node.setEntry(key, value);
+			}
+			return value;
+		});
+	}
+
+	@Override
+	public V computeIfPresent(K key, BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
+		return update(key, false, node -> {
+			if (!hasKey(node, key) || node.getValue() == null) {
+				return null;
+			}
+			int expectedModCount = modCount;
+			V value = remappingFunction.apply(key, node.getValue());
+			checkModCount(expectedModCount);
+			return store(node, key, value);
+		});
+	}
+
+	@Override
+	public V compute(K key, BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
+		return update(key, true, node -> {
+			V oldValue = hasKey(node, key) ? node.getValue() : null;
+			int expectedModCount = modCount;
+			V value = remappingFunction.apply(key, oldValue);
+			checkModCount(expectedModCount);
+			return store(node, key, value);
+		});
+	}
+
+	@Override
+	public V merge(K key, V value, BiFunction<? super V, ? super V, ? extends V> remappingFunction) {
+		Objects.requireNonNull(value);
+		Objects.requireNonNull(remappingFunction);
+		return update(key, true, node -> {
+			if (!hasKey(node, key) || node.getValue() == null) {
+				return store(node, key, value);
+			}
+			int expectedModCount = modCount;
+			V newValue = remappingFunction.apply(node.getValue(), value);
+			checkModCount(expectedModCount);
+			return store(node, key, newValue);
+		});
+	}
+
+	@Override
+	public V replace(K key, V value) {
+		return update(key, false, node -> hasKey(node, key) ? node.setValue(value) : null);
+	}
+
+	@Override
+	public boolean replace(K key, V oldValue, V newValue) {
+		return update(key, false, node -> {
+			if (hasKey(node, key) && Objects.equals(node.getValue(), oldValue)) {
+				node.setValue(newValue);
+				return true;
+			}
+			return false;
+		});
+	}
+
+	@Override
+	public boolean remove(Object key, Object value) {
+		return update(key, false, node -> {
+			if (hasKey(node, key) && Objects.equals(node.getValue(), value)) {
+				removeEntry(node);
+				return true;
+			}
+			return false;
+		});
+	}
+
+	// adds the key unless the node of the key has an entry, for TrieSet
+	boolean addKey(K key, V value) {
+		return update(key, true, node -> {
+			if (node.hasEntry()) {
+				return false;
+			}
+			node.setEntry(key, value);
+			return true;
+		});
+	}
+
+	boolean removeKey(Object key) {
+		return update(key, false, node -> {
+			if (node == null || !node.hasEntry()) {
+				return false;
+			}
+			removeEntry(node);
+			return true;
+		});
+	}
+
+	/**
+	 * Applies the action to the node of the key, see {@link TrieNode#update(byte[], boolean, Function)}. A change of
+	 * the number of entries counts as a modification.
+	 */
+	private <R> R update(Object key, boolean create, Function<TrieNode<K, V>, R> action) {
+		int oldSize = size();
+		R result = rootNode.update(partialKeysFromKey(key), create, action);
+		if (size() != oldSize) {
+			modCount++;
+		}
+		return result;
+	}
+
+	// a mapping function that adds or removes entries would leave the sizes on the path of the key wrong
+	private void checkModCount(int expectedModCount) {
+		if (modCount != expectedModCount) {
+			throw new ConcurrentModificationException();
+		}
+	}
+
+	// removes the entry of the node and counts it, the caller knows there is one
+	private void removeEntry(TrieNode<K, V> node) {
+		node.removeEntry();
+		if (counters != null) {
+			counters.recordRemove();
+		}
+	}
+
+	private static boolean hasKey(TrieNode<?, ?> node, Object key) {
+		return node != null && node.hasEntry() && Objects.equals(node.getKey(), key);
+	}
+
+	// stores the computed value in the node, or removes the entry when it is null
+	private V store(TrieNode<K, V> node, K key, V value) {
+		if (value == null) {
+			if (hasKey(node, key)) {
+				removeEntry(node);
+			}
+		} else if (hasKey(node, key)) {
+			node.setValue(value);
+		} else {
+			node.setEntry(key, value);
+		}
+		return value;
+	}
+
+	/**
+	 * Puts the entries of the given map. Another trie map is merged node by node, without encoding its keys.
+	 */
+	@Override
+	@SuppressWarnings("unchecked")
 	public void putAll(Map<? extends K, ? extends V> map) {
+		if (map instanceof TrieMap) {
+			if (map != this) {
+				rootNode.putAll(((TrieMap<K, V>) map).rootNode);
+				modCount++;
+			}
+			return;
+		}
 		map.forEach(this::put);
 	}
 
+	/**
+	 * Compares the tries of two trie maps node by node, stopping at the first difference.
+	 */
+	@Override
+	@SuppressWarnings("unchecked")
+	public boolean equals(Object o) {
+		if (o == this) {
+			return true;
+		}
+		if (o instanceof TrieMap) {
+			return rootNode.equalTo(((TrieMap<K, V>) o).rootNode);
+		}
+		return super.equals(o);
+	}
+
+	@Override
+	public int hashCode() {
+		return rootNode.entryHashCode();
+	}
+
+	/**
+	 * Reports the changes that turn this map into the other map, in key order. Both tries are walked together.
+	 */
+	public void diff(TrieMap<K, V> other, TrieDiffListener<K, V> listener) {
+		rootNode.diff(other.rootNode, listener);
+	}
+
+	/**
+	 * Returns the keys of this map paired with the keys of the other map they are a prefix of (including an equal key),
+	 * in key order. Keys without a match are left out. Subtrees missing in the other map are skipped.
+	 */
+	public <L> TrieMap<K, List<L>> prefixJoin(TrieMap<L, ?> other) {
+		TrieMap<K, List<L>> joined = new TrieMap<>();
+		rootNode.prefixJoin(other.rootNode, joined::put);
+		return joined;
+	}
+
+	// new map of the keys selected by the operation, built node by node from both tries
+	TrieMap<K, V> combine(TrieMap<K, V> other, TrieNode.SetOperation operation) {
+		return new TrieMap<>(rootNode.combine(other.rootNode, operation));
+	}
+
 	public V remove(Object key) {
-		return findNode(key)
-				.flatMap(TrieNode::removeEntry)
-				.map(Entry::getValue)
-				.orElse(null);
+		int oldSize = size();
+		V oldValue = rootNode.removeEntry(partialKeysFromKey(key));
+		if (size() < oldSize) {
+			modCount++;
+			if (counters != null) {
+				counters.recordRemove();
+			}
+		}
+		return oldValue;
+	}
+
+	public TrieStats stats() {
+		TrieStats.Builder builder = new TrieStats.Builder();
+		rootNode.collectStats(builder, 0);
+		long estimatedSize = (long) builder.getNodeCount() * NODE_SIZE
+				+ (long) (builder.getNodeCount() - 1) * CHILD_SIZE;
+		return builder.build(size(), estimatedSize);
+	}
+
+	public TrieCounters enableCounters() {
+		if (counters == null) {
+			counters = new TrieCounters();
+		}
+		return counters;
+	}
+
+	public void disableCounters() {
+		counters = null;
+	}
+
+	public TrieCursor<K, V> cursor() {
+		return new TrieCursor<>(rootNode);
+	}
+
+	public int countPrefix(Object prefix) {
+		return findNode(prefix).map(TrieNode::size).orElse(0);
+	}
+
+	public int rank(Object key) {
+		return rootNode.rank(partialKeysFromKey(key));
+	}
+
+	public K select(int index) {
+		if (index < 0 || index >= size()) {
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size());
+		}
+		return rootNode.select(index).getKey();
+	}
+
+	public K randomKey(Random random) {
+		if (isEmpty()) {
+			throw new NoSuchElementException();
+		}
+		return select(random.nextInt(size()));
 	}
 
 	public int size() {
@@ -80,13 +396,22 @@ public class TrieMap<K, V> extends AbstractMap<K, V> {
 
 	public void clear() {
 		rootNode.clear();
+		modCount++;
 	}
 
+	/**
+	 * Returns the entries of the map, which are the nodes of the trie, so {@link Entry#setValue(Object)} writes through
+	 * to the map. An entry held after its mapping has been removed reads as a {@code null} key with a {@code null} value,
+	 * and its {@code setValue} throws {@link IllegalStateException}.
+	 */
 	@Override
 	public Set<Entry<K, V>> entrySet() {
 		return new AbstractSet<Entry<K, V>>() {
 			@Override
 			public Iterator<Entry<K, V>> iterator() {
+				if (counters != null) {
+					counters.recordIteratorRestart();
+				}
 				return new Iterator<Entry<K, V>>() {
 					Iterator<TrieNode<K, V>> iterator = rootNode.nodeWithEntryIterator();
 					TrieNode<K, V> currentNode;
@@ -99,13 +424,13 @@ public class TrieMap<K, V> extends AbstractMap<K, V> {
 					@Override
 					public Entry<K, V> next() {
 						currentNode = iterator.next();
-						return currentNode.getOptionalEntry().get();
+						return currentNode;
 					}
 
 					@Override
 					public void remove() {
 						if (currentNode != null) {
-							currentNode.removeEntry();
+							TrieMap.this.remove(currentNode.getKey());
 							currentNode = null;
 						} else {
 							throw new IllegalStateException("no current entry");
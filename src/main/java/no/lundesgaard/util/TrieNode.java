@@ -1,48 +1,441 @@
 package no.lundesgaard.util;
 
-import java.util.AbstractMap.SimpleEntry;
-import java.util.HashMap;
+import dk.lundesgaard.util.TrieDiffListener;
+import dk.lundesgaard.util.TrieStats;
+
+import java.util.ArrayList;
 import java.util.Iterator;
-import java.util.Map;
+import java.util.List;
 import java.util.Map.Entry;
+import java.util.NavigableMap;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.TreeMap;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
 import java.util.stream.Stream;
 
 import static java.util.Arrays.copyOfRange;
 import static java.util.stream.Stream.concat;
 
-public class TrieNode<K, V> {
-	private final Map<Byte, TrieNode<K, V>> children = new HashMap<>();
-	private Optional<Entry<K, V>> optionalEntry = Optional.empty();
+/**
+ * Node of a {@link TrieMap}. The key and value of a node with an entry are kept in the node itself, which is also the
+ * entry handed out by the map, so {@link #setValue(Object)} writes through to the map.
+ */
+public class TrieNode<K, V> implements Entry<K, V> {
+	private final NavigableMap<Byte, TrieNode<K, V>> children = new TreeMap<>(TrieNode::compareUnsigned);
+	private K key;
+	private V value;
+	// the key may be null, so the entry has a marker of its own
+	private boolean present;
+	// number of entries in the subtree rooted at this node
+	private int size;
+
+	private static int compareUnsigned(Byte a, Byte b) {
+		return Integer.compare(a & 0xFF, b & 0xFF);
+	}
 
 	public Optional<Entry<K, V>> getOptionalEntry() {
-		return optionalEntry;
+		return present ? Optional.of(this) : Optional.empty();
 	}
 
-	public Optional<Entry<K, V>> setEntry(K key, V value) {
-		return setEntry(new SimpleEntry<>(key, value));
+	@Override
+	public K getKey() {
+		return key;
 	}
 
-	private Optional<Entry<K, V>> setEntry(Entry<K, V> entry) {
-		if (optionalEntry.isPresent()) {
-			Optional<Entry<K, V>> oldOptionalEntry = optionalEntry;
-			optionalEntry = Optional.ofNullable(entry);
-			return oldOptionalEntry;
+	@Override
+	public V getValue() {
+		return value;
+	}
+
+	/**
+	 * @throws IllegalStateException if the entry has been removed from the map
+	 */
+	@Override
+	public V setValue(V value) {
+		if (!present) {
+			throw new IllegalStateException("entry has been removed");
 		}
-		optionalEntry = Optional.ofNullable(entry);
-		return Optional.empty();
+		V oldValue = this.value;
+		this.value = value;
+		return oldValue;
 	}
 
-	public Optional<Entry<K, V>> removeEntry() {
-		return setEntry(null);
+	/**
+	 * Sets the entry of this node in place and returns the old value, or {@code null} if there was no entry.
+	 */
+	public V setEntry(K key, V value) {
+		V oldValue = present ? this.value : null;
+		if (!present) {
+			present = true;
+			size++;
+		}
+		this.key = key;
+		this.value = value;
+		return oldValue;
+	}
+
+	public V removeEntry() {
+		V oldValue = value;
+		if (present) {
+			present = false;
+			size--;
+		}
+		key = null;
+		value = null;
+		return oldValue;
 	}
 
 	public boolean hasEntry() {
-		return optionalEntry.isPresent();
+		return present;
+	}
+
+	public V putEntry(byte[] partialKeys, K key, V value) {
+		return putEntry(partialKeys, 0, key, value);
+	}
+
+	private V putEntry(byte[] partialKeys, int position, K key, V value) {
+		if (partialKeys == null || position == partialKeys.length) {
+			return setEntry(key, value);
+		}
+		TrieNode<K, V> node = getOrCreateChild(partialKeys[position]);
+		int childSize = node.size;
+		V oldValue = node.putEntry(partialKeys, position + 1, key, value);
+		size += node.size - childSize;
+		return oldValue;
+	}
+
+	/**
+	 * Applies the action to the node of the given key, or to {@code null} when the node is missing and not created. The
+	 * sizes on the path are adjusted to the entries the action adds or removes, so the action must not change the trie
+	 * other than through the node it is given.
+	 */
+	<R> R update(byte[] partialKeys, boolean create, Function<TrieNode<K, V>, R> action) {
+		return update(partialKeys, 0, create, action);
+	}
+
+	private <R> R update(byte[] partialKeys, int position, boolean create, Function<TrieNode<K, V>, R> action) {
+		if (partialKeys == null || position == partialKeys.length) {
+			return action.apply(this);
+		}
+		TrieNode<K, V> node = create ? getOrCreateChild(partialKeys[position]) : children.get(partialKeys[position]);
+		if (node == null) {
+			return action.apply(null);
+		}
+		int childSize = node.size;
+		R result = node.update(partialKeys, position + 1, create, action);
+		size += node.size - childSize;
+		return result;
+	}
+
+	public V removeEntry(byte[] partialKeys) {
+		return removeEntry(partialKeys, 0);
+	}
+
+	private V removeEntry(byte[] partialKeys, int position) {
+		if (partialKeys == null || position == partialKeys.length) {
+			return removeEntry();
+		}
+		TrieNode<K, V> node = children.get(partialKeys[position]);
+		if (node == null) {
+			return null;
+		}
+		int childSize = node.size;
+		V oldValue = node.removeEntry(partialKeys, position + 1);
+		size += node.size - childSize;
+		return oldValue;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof Entry)) {
+			return false;
+		}
+		Entry<?, ?> entry = (Entry<?, ?>) o;
+		return Objects.equals(key, entry.getKey()) && Objects.equals(value, entry.getValue());
+	}
+
+	@Override
+	public int hashCode() {
+		return Objects.hashCode(key) ^ Objects.hashCode(value);
+	}
+
+	@Override
+	public String toString() {
+		return key + "=" + value;
 	}
 
 	public int size() {
-		return (int) nodeWithEntryStream().count();
+		return size;
+	}
+
+	TrieNode<K, V> getChild(byte partialKey) {
+		return children.get(partialKey);
+	}
+
+	TrieNode<K, V> getOrCreateChild(byte partialKey) {
+		return children.computeIfAbsent(partialKey, k -> new TrieNode<>());
+	}
+
+	void addSize(int delta) {
+		size += delta;
+	}
+
+	// moves the nodes of the other trie into this one, entries of the other trie replace existing entries
+	int merge(TrieNode<K, V> other) {
+		int added = 0;
+		if (other.hasEntry()) {
+			if (!hasEntry()) {
+				added++;
+			}
+			key = other.key;
+			value = other.value;
+			present = true;
+		}
+		for (Entry<Byte, TrieNode<K, V>> child : other.children.entrySet()) {
+			TrieNode<K, V> node = children.get(child.getKey());
+			if (node == null) {
+				children.put(child.getKey(), child.getValue());
+				added += child.getValue().size;
+			} else {
+				added += node.merge(child.getValue());
+			}
+		}
+		size += added;
+		return added;
+	}
+
+	// copies the entries of the other trie into this one, entries of the other trie replace existing entries
+	int putAll(TrieNode<K, V> other) {
+		int added = 0;
+		if (other.hasEntry()) {
+			if (!hasEntry()) {
+				added++;
+			}
+			key = other.key;
+			value = other.value;
+			present = true;
+		}
+		for (Entry<Byte, TrieNode<K, V>> child : other.children.entrySet()) {
+			if (child.getValue().size > 0) {
+				added += getOrCreateChild(child.getKey()).putAll(child.getValue());
+			}
+		}
+		size += added;
+		return added;
+	}
+
+	// walks both tries together and stops at the first difference
+	boolean equalTo(TrieNode<K, V> other) {
+		if (size != other.size || present != other.present || present && !equals(other)) {
+			return false;
+		}
+		Iterator<Entry<Byte, TrieNode<K, V>>> childIterator = nonEmptyChildIterator();
+		Iterator<Entry<Byte, TrieNode<K, V>>> otherChildIterator = other.nonEmptyChildIterator();
+		while (childIterator.hasNext() && otherChildIterator.hasNext()) {
+			Entry<Byte, TrieNode<K, V>> child = childIterator.next();
+			Entry<Byte, TrieNode<K, V>> otherChild = otherChildIterator.next();
+			if (!child.getKey().equals(otherChild.getKey()) || !child.getValue().equalTo(otherChild.getValue())) {
+				return false;
+			}
+		}
+		return !childIterator.hasNext() && !otherChildIterator.hasNext();
+	}
+
+	void diff(TrieNode<K, V> other, TrieDiffListener<K, V> listener) {
+		if (hasEntry() && other.hasEntry()) {
+			if (!equals(other)) {
+				listener.changed(other.key, value, other.value);
+			}
+		} else if (hasEntry()) {
+			listener.removed(key, value);
+		} else if (other.hasEntry()) {
+			listener.added(other.key, other.value);
+		}
+		Iterator<Entry<Byte, TrieNode<K, V>>> childIterator = nonEmptyChildIterator();
+		Iterator<Entry<Byte, TrieNode<K, V>>> otherChildIterator = other.nonEmptyChildIterator();
+		Entry<Byte, TrieNode<K, V>> child = next(childIterator);
+		Entry<Byte, TrieNode<K, V>> otherChild = next(otherChildIterator);
+		while (child != null || otherChild != null) {
+			int comparison = child == null ? 1 : otherChild == null ? -1 : compareUnsigned(child.getKey(), otherChild.getKey());
+			if (comparison < 0) {
+				child.getValue().forEachEntry(entry -> listener.removed(entry.getKey(), entry.getValue()));
+				child = next(childIterator);
+			} else if (comparison > 0) {
+				otherChild.getValue().forEachEntry(entry -> listener.added(entry.getKey(), entry.getValue()));
+				otherChild = next(otherChildIterator);
+			} else {
+				child.getValue().diff(otherChild.getValue(), listener);
+				child = next(childIterator);
+				otherChild = next(otherChildIterator);
+			}
+		}
+	}
+
+	enum SetOperation {
+		UNION, INTERSECTION, DIFFERENCE, SYMMETRIC_DIFFERENCE;
+
+		boolean keeps(boolean inThis, boolean inOther) {
+			switch (this) {
+				case UNION:
+					return inThis || inOther;
+				case INTERSECTION:
+					return inThis && inOther;
+				case DIFFERENCE:
+					return inThis && !inOther;
+				default:
+					return inThis != inOther;
+			}
+		}
+	}
+
+	// builds a new trie of the entries selected by the operation, subtrees only present on one side are copied or
+	// skipped whole, entries of this trie are preferred
+	TrieNode<K, V> combine(TrieNode<K, V> other, SetOperation operation) {
+		TrieNode<K, V> combined = new TrieNode<>();
+		if (operation.keeps(hasEntry(), other.hasEntry())) {
+			TrieNode<K, V> source = hasEntry() ? this : other;
+			combined.setEntry(source.key, source.value);
+		}
+		Iterator<Entry<Byte, TrieNode<K, V>>> childIterator = nonEmptyChildIterator();
+		Iterator<Entry<Byte, TrieNode<K, V>>> otherChildIterator = other.nonEmptyChildIterator();
+		Entry<Byte, TrieNode<K, V>> child = next(childIterator);
+		Entry<Byte, TrieNode<K, V>> otherChild = next(otherChildIterator);
+		while (child != null || otherChild != null) {
+			int comparison = child == null ? 1 : otherChild == null ? -1 : compareUnsigned(child.getKey(), otherChild.getKey());
+			if (comparison < 0) {
+				if (operation.keeps(true, false)) {
+					combined.addChild(child.getKey(), child.getValue().copy());
+				}
+				child = next(childIterator);
+			} else if (comparison > 0) {
+				if (operation.keeps(false, true)) {
+					combined.addChild(otherChild.getKey(), otherChild.getValue().copy());
+				}
+				otherChild = next(otherChildIterator);
+			} else {
+				combined.addChild(child.getKey(), child.getValue().combine(otherChild.getValue(), operation));
+				child = next(childIterator);
+				otherChild = next(otherChildIterator);
+			}
+		}
+		return combined;
+	}
+
+	private TrieNode<K, V> copy() {
+		TrieNode<K, V> copy = new TrieNode<>();
+		copy.putAll(this);
+		return copy;
+	}
+
+	private void addChild(byte partialKey, TrieNode<K, V> child) {
+		if (child.size > 0) {
+			children.put(partialKey, child);
+			size += child.size;
+		}
+	}
+
+	// pairs the keys of this trie with the keys of the other trie they are a prefix of
+	<L> void prefixJoin(TrieNode<L, ?> other, BiConsumer<K, List<L>> action) {
+		if (hasEntry()) {
+			List<L> keys = new ArrayList<>(other.size);
+			other.forEachEntry(entry -> keys.add(entry.getKey()));
+			if (!keys.isEmpty()) {
+				action.accept(key, keys);
+			}
+		}
+		for (Entry<Byte, TrieNode<K, V>> child : children.entrySet()) {
+			TrieNode<L, ?> otherChild = other.children.get(child.getKey());
+			if (otherChild != null && otherChild.size > 0 && child.getValue().size > 0) {
+				child.getValue().prefixJoin(otherChild, action);
+			}
+		}
+	}
+
+	private Iterator<Entry<Byte, TrieNode<K, V>>> nonEmptyChildIterator() {
+		return children.entrySet().stream().filter(child -> child.getValue().size > 0).iterator();
+	}
+
+	private static <T> T next(Iterator<T> iterator) {
+		return iterator.hasNext() ? iterator.next() : null;
+	}
+
+	private void forEachEntry(Consumer<Entry<K, V>> action) {
+		nodeWithEntryStream().forEach(action::accept);
+	}
+
+	int entryHashCode() {
+		return nodeWithEntryStream().mapToInt(TrieNode::hashCode).sum();
+	}
+
+	// removes the entries matching the predicate and prunes the children left empty, returns the number removed
+	int removeEntries(Predicate<TrieNode<K, V>> predicate) {
+		int removed = 0;
+		for (Iterator<TrieNode<K, V>> iterator = children.values().iterator(); iterator.hasNext(); ) {
+			TrieNode<K, V> child = iterator.next();
+			if (child.size > 0) {
+				removed += child.removeEntries(predicate);
+			}
+			if (child.size == 0) {
+				iterator.remove();
+			}
+		}
+		size -= removed;
+		if (present && predicate.test(this)) {
+			removeEntry();
+			removed++;
+		}
+		return removed;
+	}
+
+	// keys of the children having entries, empty children are left behind by removeEntry
+	byte[] getChildKeys() {
+		byte[] childKeys = new byte[children.size()];
+		int i = 0;
+		for (Entry<Byte, TrieNode<K, V>> child : children.entrySet()) {
+			if (child.getValue().size > 0) {
+				childKeys[i++] = child.getKey();
+			}
+		}
+		return i < childKeys.length ? copyOfRange(childKeys, 0, i) : childKeys;
+	}
+
+	void collectStats(TrieStats.Builder builder, int depth) {
+		builder.addNode(depth, children.size());
+		children.values().forEach(node -> node.collectStats(builder, depth + 1));
+	}
+
+	public int rank(byte[] partialKeys) {
+		int rank = 0;
+		TrieNode<K, V> node = this;
+		for (int i = 0; partialKeys != null && i < partialKeys.length && node != null; i++) {
+			if (node.hasEntry()) {
+				rank++;
+			}
+			rank += node.children.headMap(partialKeys[i], false).values().stream().mapToInt(TrieNode::size).sum();
+			node = node.children.get(partialKeys[i]);
+		}
+		return rank;
+	}
+
+	public TrieNode<K, V> select(int index) {
+		TrieNode<K, V> node = this;
+		while (!node.hasEntry() || index > 0) {
+			if (node.hasEntry()) {
+				index--;
+			}
+			for (TrieNode<K, V> child : node.children.values()) {
+				if (index < child.size) {
+					node = child;
+					break;
+				}
+				index -= child.size;
+			}
+		}
+		return node;
 	}
 
 	public boolean isEmpty() {
@@ -52,7 +445,10 @@ public class TrieNode<K, V> {
 	public void clear() {
 		children.forEach((key, node) -> node.clear());
 		children.clear();
-		optionalEntry = Optional.empty();
+		key = null;
+		value = null;
+		present = false;
+		size = 0;
 	}
 
 	public Iterator<TrieNode<K, V>> nodeWithEntryIterator() {
@@ -126,9 +522,6 @@ public class TrieNode<K, V> {
 	}
 
 	public boolean containsValue(Object value) {
-		return optionalEntry
-				.map(e -> e.getValue() == null && value == null || e.getValue() != null && e.getValue().equals(value))
-				.filter(b -> b)
-				.orElse(childrenStream().anyMatch(node -> node.containsValue(value)));
+		return present && Objects.equals(this.value, value) || childrenStream().anyMatch(node -> node.containsValue(value));
 	}
 }
@@ -4,7 +4,15 @@ import java.util.AbstractSet;
 import java.util.Iterator;
 
 public class TrieSet<E> extends AbstractSet<E> {
-	private TrieMap<E, Object> map = new TrieMap<>();
+	private final TrieMap<E, Object> map;
+
+	public TrieSet() {
+		this(new TrieMap<>());
+	}
+
+	private TrieSet(TrieMap<E, Object> map) {
+		this.map = map;
+	}
 
 	@Override
 	public Iterator<E> iterator() {
@@ -18,11 +26,7 @@ public class TrieSet<E> extends AbstractSet<E> {
 
 	@Override
 	public boolean add(E e) {
-		if (map.containsKey(e)) {
-			return false;
-		}
-		map.put(e, null);
-		return true;
+		return map.addKey(e, null);
 	}
 
 	@Override
@@ -37,10 +41,32 @@ public class TrieSet<E> extends AbstractSet<E> {
 
 	@Override
 	public boolean remove(Object o) {
-		if (map.containsKey(o)) {
-			map.remove(o);
-			return true;
-		}
-		return false;
+		return map.removeKey(o);
+	}
+
+	/**
+	 * Returns a new set with the elements of both sets. The set algebra methods walk both tries together and build the
+	 * new trie node by node, instead of looking up the elements one at a time.
+	 */
+	public TrieSet<E> union(TrieSet<E> other) {
+		return new TrieSet<>(map.combine(other.map, TrieNode.SetOperation.UNION));
+	}
+
+	public TrieSet<E> intersection(TrieSet<E> other) {
+		return new TrieSet<>(map.combine(other.map, TrieNode.SetOperation.INTERSECTION));
+	}
+
+	/**
+	 * Returns a new set with the elements of this set not present in the other set.
+	 */
+	public TrieSet<E> difference(TrieSet<E> other) {
+		return new TrieSet<>(map.combine(other.map, TrieNode.SetOperation.DIFFERENCE));
+	}
+
+	/**
+	 * Returns a new set with the elements present in exactly one of the sets.
+	 */
+	public TrieSet<E> symmetricDifference(TrieSet<E> other) {
+		return new TrieSet<>(map.combine(other.map, TrieNode.SetOperation.SYMMETRIC_DIFFERENCE));
 	}
 }
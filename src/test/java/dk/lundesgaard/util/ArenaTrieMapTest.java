@@ -0,0 +1,151 @@
+/*
+ * Copyright 2007 Georg Lundesgaard (georg@lundesgaard.dk)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.lundesgaard.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+public class ArenaTrieMapTest extends TestCase {
+	
+    /**
+     * Create the test case.
+     *
+     * @param testName name of the test case
+     */
+    public ArenaTrieMapTest( String testName )
+    {
+        super( testName );
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite()
+    {
+        return new TestSuite( ArenaTrieMapTest.class );
+    }
+    
+    public void testMap() {
+    	ArenaTrieMap<String, String> map = new ArenaTrieMap<String, String>();
+    	assertTrue("is empty", map.isEmpty());
+    	assertNull("put null", map.put(null, "NULL"));
+    	assertNull("put \"bar\"", map.put("bar", "BAR"));
+    	assertNull("put \"ba\"", map.put("ba", "BA"));
+    	assertEquals("put \"bar\" again", "BAR", map.put("bar", "BAR2"));
+    	assertEquals("size", 3, map.size());
+    	assertEquals("get blank", "NULL", map.get(""));
+    	assertEquals("get \"bar\"", "BAR2", map.get("bar"));
+    	assertFalse("does not contain \"b\"", map.containsKey("b"));
+    	assertEquals("node count", 4, map.nodeCount());
+    	
+    	Map.Entry<String, String> entry = map.entrySet().iterator().next();
+    	entry.setValue("NULL2");
+    	assertEquals("set value writes through", "NULL2", map.get(null));
+    	assertNull("null key kept", entry.getKey());
+    	map.put(null, "NULL3");
+    	map.remove("");
+    	assertNull("removed entry has no value", entry.getValue());
+    	try {
+    		entry.setValue("NULL4");
+    		fail("set value on a removed entry");
+    	}
+    	catch (IllegalStateException e) {
+    	}
+    	assertFalse("still removed", map.containsKey(null));
+    	map.put(null, "NULL2");
+    	
+    	assertEquals("remove \"bar\"", "BAR2", map.remove("bar"));
+    	assertEquals("node count after remove", 3, map.nodeCount());
+    	map.clear();
+    	assertTrue("is empty after clear", map.isEmpty());
+    	assertEquals("node count after clear", 1, map.nodeCount());
+    }
+    
+    /**
+     * An entry held by the caller stays removed when its node and entry 
+     * number are handed out to another key.
+     */
+    public void testReusedEntry() {
+    	ArenaTrieMap<String, String> map = new ArenaTrieMap<String, String>();
+    	map.put("foo", "FOO");
+    	Map.Entry<String, String> entry = map.entrySet().iterator().next();
+    	map.remove("foo");
+    	map.put("bar", "BAR");
+    	assertEquals("nodes reused", 4, map.nodeCount());
+    	assertEquals("key", "foo", entry.getKey());
+    	assertNull("removed entry has no value", entry.getValue());
+    	try {
+    		entry.setValue("FOO2");
+    		fail("set value on a removed entry");
+    	}
+    	catch (IllegalStateException e) {
+    	}
+    	assertEquals("other key untouched", "BAR", map.get("bar"));
+    	
+    	entry = map.entrySet().iterator().next();
+    	map.clear();
+    	map.put("bar", "BAR2");
+    	assertNull("removed by clear", entry.getValue());
+    	try {
+    		entry.setValue("BAR3");
+    		fail("set value on an entry removed by clear");
+    	}
+    	catch (IllegalStateException e) {
+    	}
+    	assertEquals("value after clear untouched", "BAR2", map.get("bar"));
+    }
+    
+    public void testRandom() {
+    	ArenaTrieMap<String, Integer> map = new ArenaTrieMap<String, Integer>();
+    	Map<String, Integer> treeMap = new TreeMap<String, Integer>();
+    	Random random = new Random(1);
+    	for (int i = 0; i < 20000; i++) {
+    		String key = Integer.toString(random.nextInt(5000), 36);
+    		if (random.nextInt(3) == 0) {
+    			assertEquals("remove \"" + key + "\"", treeMap.remove(key), map.remove(key));
+    		}
+    		else {
+    			assertEquals("put \"" + key + "\"", treeMap.put(key, i), map.put(key, i));
+    		}
+    	}
+    	assertEquals("equals tree map", treeMap, map);
+    	Map<Integer, String> integerMap = new ArenaTrieMap<Integer, String>();
+    	integerMap.put(12, "12");
+    	integerMap.put(3, "3");
+    	assertEquals("stored keys", Arrays.asList(12, 3), new ArrayList<Integer>(integerMap.keySet()));
+    	assertEquals("same order", new ArrayList<String>(treeMap.keySet()), new ArrayList<String>(map.keySet()));
+    	
+    	// slots of removed nodes are reused
+    	int capacity = map.capacity();
+    	for (Iterator<String> iterator = map.keySet().iterator(); iterator.hasNext();) {
+    		iterator.next();
+    		iterator.remove();
+    	}
+    	assertEquals("only the root is left", 1, map.nodeCount());
+    	for (String key : treeMap.keySet()) {
+    		map.put(key, 0);
+    	}
+    	assertEquals("no new chunks", capacity, map.capacity());
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2007 Georg Lundesgaard (georg@lundesgaard.dk)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.lundesgaard.util;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Properties;
+import java.util.TreeSet;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+public class DawgSetTest extends TestCase {
+	
+    /**
+     * Create the test case.
+     *
+     * @param testName name of the test case
+     */
+    public DawgSetTest( String testName )
+    {
+        super( testName );
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite()
+    {
+        return new TestSuite( DawgSetTest.class );
+    }
+    
+    public void testDawg() {
+    	String[] words = { "", "tap", "taps", "top", "tops", "walking", "talking", "talked", "walked" };
+    	TrieSet<String> trieSet = new TrieSet<String>();
+    	trieSet.addAll(Arrays.asList(words));
+    	DawgSet dawg = trieSet.compile();
+    	
+    	assertEquals("size", words.length, dawg.size());
+    	for (String word : words) {
+    		assertTrue("contains \"" + word + "\"", dawg.contains(word));
+    	}
+    	assertTrue("contains null", dawg.contains(null));
+    	assertFalse("does not contain \"ta\"", dawg.contains("ta"));
+    	assertFalse("does not contain \"walks\"", dawg.contains("walks"));
+    	assertEquals("sorted iteration", new ArrayList<String>(new TreeSet<String>(Arrays.asList(words))), toList(dawg.iterator()));
+    	assertEquals("prefix iteration", Arrays.asList("talked", "talking"), toList(dawg.prefixIterator("tal")));
+    	assertEquals("prefix iteration with word", Arrays.asList("top", "tops"), toList(dawg.prefixIterator("top")));
+    	assertFalse("no words with prefix", dawg.prefixIterator("x").hasNext());
+    	// "ing" and "ed" endings of talk and walk are shared
+    	assertTrue("states are shared", dawg.stateCount() < 15);
+    }
+    
+    public void testDictionary() throws IOException {
+    	Properties testData = new Properties();
+    	testData.load(getClass().getResourceAsStream("testdata_dict.properties"));
+    	TrieSet<String> trieSet = new TrieSet<String>();
+    	trieSet.addAll(testData.stringPropertyNames());
+    	DawgSet dawg = trieSet.compile();
+    	
+    	assertEquals("size", trieSet.size(), dawg.size());
+    	assertEquals("iteration", toList(trieSet.iterator()), toList(dawg.iterator()));
+    	for (String word : testData.stringPropertyNames()) {
+    		assertTrue("contains \"" + word + "\"", dawg.contains(word));
+    		assertFalse("does not contain \"" + word + "#\"", dawg.contains(word + "#"));
+    	}
+    }
+    
+    public void testUnsortedInput() {
+    	try {
+    		DawgSet.fromSorted(Arrays.asList("b", "a"));
+    		fail("unsorted input");
+    	}
+    	catch (IllegalArgumentException e) {
+    		// expected
+    	}
+    }
+    
+    private static List<String> toList(Iterator<String> iterator) {
+    	List<String> list = new ArrayList<String>();
+    	while (iterator.hasNext()) {
+    		list.add(iterator.next());
+    	}
+    	return list;
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2007 Georg Lundesgaard (georg@lundesgaard.dk)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.lundesgaard.util;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+public class DoubleArrayTrieMapTest extends TestCase {
+	
+    /**
+     * Create the test case.
+     *
+     * @param testName name of the test case
+     */
+    public DoubleArrayTrieMapTest( String testName )
+    {
+        super( testName );
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite()
+    {
+        return new TestSuite( DoubleArrayTrieMapTest.class );
+    }
+    
+    public void testMap() {
+    	TrieMap<String, String> trieMap = new TrieMap<String, String>();
+    	trieMap.put(null, "NULL");
+    	trieMap.put("bar", "BAR");
+    	trieMap.put("ba", "BA");
+    	trieMap.put("foo", null);
+    	trieMap.put("\u00e6\u00f8\u00e5", "AEOA");
+    	DoubleArrayTrieMap<String, String> map = trieMap.compile();
+    	
+    	assertEquals("size", trieMap.size(), map.size());
+    	assertEquals("equals trie map", trieMap, map);
+    	assertEquals("same order", new ArrayList<String>(trieMap.keySet()), new ArrayList<String>(map.keySet()));
+    	assertEquals("get null", "NULL", map.get(null));
+    	assertEquals("get blank", "NULL", map.get(""));
+    	assertEquals("get \"ba\"", "BA", map.get("ba"));
+    	assertTrue("contains \"foo\"", map.containsKey("foo"));
+    	assertFalse("does not contain \"b\"", map.containsKey("b"));
+    	assertFalse("does not contain \"bars\"", map.containsKey("bars"));
+    	assertFalse("does not contain \"x\"", map.containsKey("x"));
+    	try {
+    		map.put("x", "X");
+    		fail("read-only");
+    	}
+    	catch (UnsupportedOperationException e) {
+    		// expected
+    	}
+    }
+    
+    public void testEmpty() {
+    	DoubleArrayTrieMap<String, String> map = DoubleArrayTrieMap.compile(new HashMap<String, String>());
+    	assertTrue("is empty", map.isEmpty());
+    	assertNull("get", map.get("foo"));
+    	assertFalse("does not contain null", map.containsKey(null));
+    }
+    
+    public void testDictionary() throws IOException {
+    	Properties testData = new Properties();
+    	testData.load(getClass().getResourceAsStream("testdata_dict.properties"));
+    	Map<String, String> hashMap = new HashMap<String, String>();
+    	for (String key : testData.stringPropertyNames()) {
+    		hashMap.put(key, testData.getProperty(key));
+    	}
+    	DoubleArrayTrieMap<String, String> map = DoubleArrayTrieMap.compile(hashMap);
+    	assertEquals("equals hash map", hashMap, map);
+    	for (String key : hashMap.keySet()) {
+    		assertFalse("does not contain \"" + key + "#\"", map.containsKey(key + "#"));
+    	}
+    }
+}
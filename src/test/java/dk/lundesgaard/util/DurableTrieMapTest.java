@@ -0,0 +1,249 @@
+/*
+ * Copyright 2007 Georg Lundesgaard (georg@lundesgaard.dk)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.lundesgaard.util;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+public class DurableTrieMapTest extends TestCase {
+	private File directory;
+	
+    /**
+     * Create the test case.
+     *
+     * @param testName name of the test case
+     */
+    public DurableTrieMapTest( String testName )
+    {
+        super( testName );
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite()
+    {
+        return new TestSuite( DurableTrieMapTest.class );
+    }
+    
+    @Override
+    protected void setUp() throws IOException {
+    	directory = File.createTempFile("durable", "");
+    	directory.delete();
+    }
+    
+    @Override
+    protected void tearDown() {
+    	File[] files = directory.listFiles();
+    	if (files != null) {
+    		for (File file : files) {
+    			file.delete();
+    		}
+    	}
+    	directory.delete();
+    }
+    
+    public void testRecovery() throws IOException {
+    	DurableTrieMap<String, String> map = open(DurableTrieMap.SyncPolicy.ALWAYS, 0);
+    	Map<String, String> expected = new TreeMap<String, String>();
+    	Random random = new Random(1);
+    	for (int i = 0; i < 1000; i++) {
+    		String key = Integer.toString(random.nextInt(3000), 7);
+    		map.put(key, "V" + i);
+    		expected.put(key, "V" + i);
+    	}
+    	map.put("", "NULL");
+    	expected.put("", "NULL");
+    	assertEquals("remove", expected.remove("10"), map.remove("10"));
+    	int removed = map.removePrefix("2");
+    	int count = 0;
+    	for (String key : new ArrayList<String>(expected.keySet())) {
+    		if (key.startsWith("2")) {
+    			expected.remove(key);
+    			count++;
+    		}
+    	}
+    	assertEquals("removePrefix", count, removed);
+    	map.close();
+    	
+    	map = open(DurableTrieMap.SyncPolicy.ALWAYS, 0);
+    	assertEquals("recovered", expected, new TreeMap<String, String>(map));
+    	map.clear();
+    	map.put("a", "A");
+    	map.close();
+    	
+    	map = open(DurableTrieMap.SyncPolicy.ALWAYS, 0);
+    	assertEquals("recovered after clear", 1, map.size());
+    	assertEquals("get", "A", map.get("a"));
+    	map.close();
+    	try {
+    		map.put("b", "B");
+    		fail("put on closed map");
+    	}
+    	catch (IllegalStateException e) {
+    		// expected
+    	}
+    }
+    
+    public void testSnapshots() throws IOException {
+    	DurableTrieMap<String, String> map = open(DurableTrieMap.SyncPolicy.NEVER, 100);
+    	Map<String, String> expected = new TreeMap<String, String>();
+    	for (int i = 0; i < 1050; i++) {
+    		String key = "key" + (i % 300);
+    		map.put(key, "V" + i);
+    		expected.put(key, "V" + i);
+    	}
+    	map.close();
+    	List<String> files = new ArrayList<String>();
+    	for (File file : directory.listFiles()) {
+    		files.add(file.getName());
+    	}
+    	assertEquals("only the latest generation is kept: " + files, 2, files.size());
+    	assertTrue("snapshot 10", files.contains("snapshot.10"));
+    	
+    	map = open(DurableTrieMap.SyncPolicy.NEVER, 100);
+    	assertEquals("recovered from snapshot and log", expected, new TreeMap<String, String>(map));
+    	map.snapshot();
+    	map.close();
+    	map = open(DurableTrieMap.SyncPolicy.NEVER, 100);
+    	assertEquals("recovered from snapshot", expected, new TreeMap<String, String>(map));
+    	map.close();
+    }
+    
+    public void testStrayFiles() throws IOException {
+    	DurableTrieMap<String, String> map = open(DurableTrieMap.SyncPolicy.NEVER, 0);
+    	map.put("a", "A");
+    	map.close();
+    	new FileOutputStream(new File(directory, "snapshot.bak")).close();
+    	new FileOutputStream(new File(directory, "snapshot.1.tmp")).close();
+    	
+    	map = open(DurableTrieMap.SyncPolicy.NEVER, 0);
+    	assertEquals("get", "A", map.get("a"));
+    	map.close();
+    	assertTrue("stray file is left alone", new File(directory, "snapshot.bak").exists());
+    	assertFalse("unfinished snapshot is deleted", new File(directory, "snapshot.1.tmp").exists());
+    }
+    
+    public void testFailingCodec() throws IOException {
+    	DurableTrieMap<String, String> map = new DurableTrieMap.Builder<String, String>(directory, 
+    			DurableTrieMap.STRING_CODEC, new DurableTrieMap.Codec<String>() {
+    				public void write(DataOutput out, String value) throws IOException {
+    					if (value.equals("BAD")) {
+    						throw new IOException("cannot encode");
+    					}
+    					DurableTrieMap.STRING_CODEC.write(out, value);
+    				}
+    				
+    				public String read(DataInput in) throws IOException {
+    					return DurableTrieMap.STRING_CODEC.read(in);
+    				}
+    			})
+    			.syncPolicy(DurableTrieMap.SyncPolicy.NEVER)
+    			.open();
+    	map.put("a", "A");
+    	try {
+    		map.put("a", "BAD");
+    		fail("put of value that cannot be encoded");
+    	}
+    	catch (UncheckedIOException e) {
+    		// expected
+    	}
+    	assertEquals("unchanged by failed put", "A", map.get("a"));
+    	assertEquals("size", 1, map.size());
+    	map.close();
+    }
+    
+    public void testTornRecord() throws IOException {
+    	DurableTrieMap<String, String> map = open(DurableTrieMap.SyncPolicy.NEVER, 0);
+    	map.put("a", "A");
+    	map.put("b", "B");
+    	map.close();
+    	
+    	// a record cut off by a crash
+    	FileOutputStream out = new FileOutputStream(new File(directory, "log.0"), true);
+    	out.write(new byte[] { 0, 0, 0, 20, 1, 2, 3, 4, 1, 0 });
+    	out.close();
+    	
+    	map = open(DurableTrieMap.SyncPolicy.NEVER, 0);
+    	assertEquals("size", 2, map.size());
+    	map.put("c", "C");
+    	map.close();
+    	map = open(DurableTrieMap.SyncPolicy.NEVER, 0);
+    	assertEquals("size after torn record was cut off", 3, map.size());
+    	assertEquals("get", "C", map.get("c"));
+    	map.close();
+    }
+    
+    public void testGroupCommit() throws Exception {
+    	final DurableTrieMap<String, String> map = open(DurableTrieMap.SyncPolicy.ALWAYS, 0);
+    	Thread[] threads = new Thread[4];
+    	for (int t = 0; t < threads.length; t++) {
+    		final int thread = t;
+    		threads[t] = new Thread() {
+    			public void run() {
+    				for (int i = 0; i < 200; i++) {
+    					map.put(thread + "/" + i, "V");
+    				}
+    			}
+    		};
+    		threads[t].start();
+    	}
+    	for (Thread thread : threads) {
+    		thread.join();
+    	}
+    	map.close();
+    	DurableTrieMap<String, String> recovered = open(DurableTrieMap.SyncPolicy.ALWAYS, 0);
+    	assertEquals("size", 800, recovered.size());
+    	recovered.close();
+    }
+    
+    public void testInterval() throws IOException {
+    	DurableTrieMap<String, String> map = new DurableTrieMap.Builder<String, String>(directory, 
+    			DurableTrieMap.STRING_CODEC, DurableTrieMap.STRING_CODEC)
+    			.syncPolicy(DurableTrieMap.SyncPolicy.INTERVAL)
+    			.syncInterval(10, TimeUnit.MILLISECONDS)
+    			.open();
+    	for (int i = 0; i < 100; i++) {
+    		map.put("key" + i, "V" + i);
+    	}
+    	map.sync();
+    	map.close();
+    	map = open(DurableTrieMap.SyncPolicy.INTERVAL, 0);
+    	assertEquals("size", 100, map.size());
+    	map.close();
+    }
+    
+    private DurableTrieMap<String, String> open(DurableTrieMap.SyncPolicy syncPolicy, long snapshotThreshold) throws IOException {
+    	return new DurableTrieMap.Builder<String, String>(directory, DurableTrieMap.STRING_CODEC, DurableTrieMap.STRING_CODEC)
+    			.syncPolicy(syncPolicy)
+    			.snapshotThreshold(snapshotThreshold)
+    			.open();
+    }
+}
@@ -0,0 +1,222 @@
+/*
+ * Copyright 2007 Georg Lundesgaard (georg@lundesgaard.dk)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.lundesgaard.util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.Set;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import org.openjdk.jol.info.GraphStats;
+
+import com.sun.management.HotSpotDiagnosticMXBean;
+
+/**
+ * Memory footprint of the trie implementations compared with HashMap and 
+ * TreeMap, measured as retained bytes (keys included) with JOL. Every 
+ * implementation is built from the same seeded data sets. The test fails 
+ * when a result is more than <code>footprint.tolerance</code> (default 10%) 
+ * above the recorded baseline, or when there is no baseline value for it. 
+ * The baseline records the Java version and pointer compression it was 
+ * measured with; on another VM the results are only printed.
+ * <p>
+ * System properties: <code>footprint.sizes</code> (comma separated, default 
+ * 1000), <code>footprint.implementations</code> (comma separated names, 
+ * default all), <code>footprint.tolerance</code> and 
+ * <code>footprint.update</code> (write new baseline values to 
+ * target/footprint_baseline.properties). Run the full suite with 
+ * <code>mvn test -Pfootprint</code>.
+ */
+public class FootprintTest extends TestCase {
+	private static final String FILE_BASELINE = "footprint_baseline.properties";
+	private static final String KEY_VM = "vm";
+	private static final long SEED = 20070114L;
+	
+    /**
+     * Create the test case.
+     *
+     * @param testName name of the test case
+     */
+    public FootprintTest( String testName )
+    {
+        super( testName );
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite()
+    {
+        return new TestSuite( FootprintTest.class );
+    }
+    
+    public void testFootprint() throws IOException {
+    	String[] sizes = System.getProperty("footprint.sizes", "1000").split(",");
+    	double tolerance = Double.parseDouble(System.getProperty("footprint.tolerance", "0.10"));
+    	boolean update = Boolean.getBoolean("footprint.update");
+    	Set<String> selected = selectedImplementations();
+    	Properties baseline = new Properties();
+    	InputStream in = getClass().getResourceAsStream(FILE_BASELINE);
+    	if (in != null) {
+    		baseline.load(in);
+    		in.close();
+    	}
+    	String vm = vmDescription();
+    	boolean sameVm = vm.equals(baseline.getProperty(KEY_VM));
+    	if (sameVm == false) {
+    		System.out.println("\nWARNING: footprint baseline recorded on " + baseline.getProperty(KEY_VM) 
+    				+ ", running on " + vm + ", regressions are not checked");
+    	}
+    	Properties results = new Properties();
+    	results.setProperty(KEY_VM, vm);
+    	List<String> regressions = new ArrayList<String>();
+    	List<String> missing = new ArrayList<String>();
+    	
+    	System.out.println("\nMemory footprint (retained bytes per entry, per key char)");
+    	for (String dataSet : new String[] { "words", "hex" }) {
+    		for (String size : sizes) {
+    			int count = Integer.parseInt(size.trim());
+    			String[] keys = generateKeys(dataSet, count);
+    			long keyChars = 0;
+    			for (String key : keys) {
+    				keyChars += key.length();
+    			}
+    			for (Map.Entry<String, MapImplementations.Factory> implementation : implementations().entrySet()) {
+    				if (selected != null && selected.contains(implementation.getKey()) == false) {
+    					continue;
+    				}
+    				Object collection = implementation.getValue().build(keys);
+    				long bytes = GraphStats.parseInstance(collection).totalSize();
+    				collection = null;
+    				double bytesPerEntry = (double) bytes / count;
+    				String name = implementation.getKey() + "." + dataSet + "." + count;
+    				System.out.println(String.format("\t%-40s %10.1f %8.1f", name, bytesPerEntry, (double) bytes / keyChars));
+    				results.setProperty(name, String.format("%.1f", bytesPerEntry));
+    				String expected = baseline.getProperty(name);
+    				if (expected == null) {
+    					if (sameVm) {
+    						missing.add(name);
+    					}
+    				}
+    				else if (sameVm && bytesPerEntry > Double.parseDouble(expected) * (1 + tolerance)) {
+    					regressions.add(name + ": " + String.format("%.1f", bytesPerEntry) + " > " + expected);
+    				}
+    			}
+    		}
+    	}
+    	if (update) {
+    		OutputStream out = new FileOutputStream(new File("target", FILE_BASELINE));
+    		results.store(out, "Footprint baseline, retained bytes per entry.");
+    		out.close();
+    	}
+    	assertTrue("footprint regressions: " + regressions, regressions.isEmpty());
+    	assertTrue("no footprint baseline, record it with -Dfootprint.update=true: " + missing, update || missing.isEmpty());
+    }
+    
+    /**
+     * Returns the implementations named by <code>footprint.implementations</code>, 
+     * or <code>null</code> for all of them.
+     */
+    private static Set<String> selectedImplementations() {
+    	String names = System.getProperty("footprint.implementations");
+    	if (names == null || names.trim().length() == 0) {
+    		return null;
+    	}
+    	Set<String> selected = new HashSet<String>();
+    	for (String name : names.split(",")) {
+    		selected.add(name.trim());
+    	}
+    	return selected;
+    }
+    
+    /**
+     * Describes what the measured sizes depend on: the Java version and 
+     * whether object pointers are compressed.
+     */
+    private static String vmDescription() {
+    	String compressedOops = "unknown";
+    	try {
+    		HotSpotDiagnosticMXBean hotSpot = ManagementFactory.getPlatformMXBean(HotSpotDiagnosticMXBean.class);
+    		compressedOops = hotSpot.getVMOption("UseCompressedOops").getValue();
+    	}
+    	catch (RuntimeException e) {
+    		// not a HotSpot VM
+    	}
+    	return "java " + System.getProperty("java.specification.version") + ", compressed oops " + compressedOops;
+    }
+    
+    private static Map<String, MapImplementations.Factory> implementations() {
+    	Map<String, MapImplementations.Factory> implementations = MapImplementations.all();
+    	implementations.put("dk.TrieSet", new MapImplementations.Factory() {
+    		Map<String, Object> create() {
+    			throw new UnsupportedOperationException("not a map");
+    		}
+    		
+    		Object build(String[] keys) {
+    			Set<String> set = new TrieSet<String>();
+    			for (String key : keys) {
+    				set.add(key);
+    			}
+    			return set;
+    		}
+    	});
+    	return implementations;
+    }
+    
+    /**
+     * Generates unique keys: lower case words of 3 to 12 characters, or 32 
+     * character hex strings.
+     */
+    static String[] generateKeys(String dataSet, int count) {
+    	Random random = new Random(SEED);
+    	Set<String> keys = new HashSet<String>(count * 2);
+    	String[] result = new String[count];
+    	char[] chars = new char[32];
+    	while (keys.size() < count) {
+    		int length;
+    		if (dataSet.equals("hex")) {
+    			length = 32;
+    			for (int i = 0; i < length; i++) {
+    				chars[i] = Character.forDigit(random.nextInt(16), 16);
+    			}
+    		}
+    		else {
+    			length = 3 + random.nextInt(10);
+    			for (int i = 0; i < length; i++) {
+    				chars[i] = (char) ('a' + random.nextInt(26));
+    			}
+    		}
+    		String key = new String(chars, 0, length);
+    		if (keys.add(key)) {
+    			result[keys.size() - 1] = key;
+    		}
+    	}
+    	return result;
+    }
+}
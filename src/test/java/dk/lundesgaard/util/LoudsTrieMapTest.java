@@ -0,0 +1,126 @@
+/*
+ * Copyright 2007 Georg Lundesgaard (georg@lundesgaard.dk)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.lundesgaard.util;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+public class LoudsTrieMapTest extends TestCase {
+	
+    /**
+     * Create the test case.
+     *
+     * @param testName name of the test case
+     */
+    public LoudsTrieMapTest( String testName )
+    {
+        super( testName );
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite()
+    {
+        return new TestSuite( LoudsTrieMapTest.class );
+    }
+    
+    public void testMap() {
+    	TrieMap<String, String> trieMap = new TrieMap<String, String>();
+    	trieMap.put(null, "NULL");
+    	trieMap.put("bar", "BAR");
+    	trieMap.put("ba", "BA");
+    	trieMap.put("bas", null);
+    	trieMap.put("foo", "FOO");
+    	LoudsTrieMap<String> map = LoudsTrieMap.compile(trieMap);
+    	
+    	assertEquals("size", trieMap.size(), map.size());
+    	assertEquals("node count", 8, map.nodeCount());
+    	assertEquals("get null", "NULL", map.get(null));
+    	assertEquals("get \"ba\"", "BA", map.get("ba"));
+    	assertEquals("get \"foo\"", "FOO", map.get("foo"));
+    	assertTrue("contains \"bas\"", map.containsKey("bas"));
+    	assertFalse("does not contain \"b\"", map.containsKey("b"));
+    	assertFalse("does not contain \"bart\"", map.containsKey("bart"));
+    	assertEquals("keys in order", Arrays.asList("", "ba", "bar", "bas", "foo"), new ArrayList<String>(map.keySet()));
+    	
+    	List<String> prefixKeys = new ArrayList<String>();
+    	for (Iterator<Map.Entry<String, String>> iterator = map.prefixIterator("ba"); iterator.hasNext();) {
+    		prefixKeys.add(iterator.next().getKey());
+    	}
+    	assertEquals("prefix keys", Arrays.asList("ba", "bar", "bas"), prefixKeys);
+    	assertFalse("no keys with prefix", map.prefixIterator("x").hasNext());
+    }
+    
+    public void testSet() {
+    	TrieSet<String> trieSet = new TrieSet<String>();
+    	trieSet.addAll(Arrays.asList("tap", "taps", "top"));
+    	LoudsTrieMap<Object> map = LoudsTrieMap.fromSortedKeys(trieSet);
+    	assertEquals("same keys", trieSet, map.keySet());
+    	assertNull("null value", map.get("top"));
+    	assertTrue("is empty", LoudsTrieMap.fromSortedKeys(new ArrayList<String>()).isEmpty());
+    }
+    
+    public void testDictionary() throws IOException {
+    	Properties testData = new Properties();
+    	testData.load(getClass().getResourceAsStream("testdata_dict.properties"));
+    	Map<String, String> hashMap = new HashMap<String, String>();
+    	for (String key : testData.stringPropertyNames()) {
+    		hashMap.put(key, testData.getProperty(key));
+    	}
+    	LoudsTrieMap<String> map = LoudsTrieMap.compile(hashMap);
+    	assertEquals("equals hash map", hashMap, map);
+    	assertEquals("sorted", new ArrayList<String>(new TreeMap<String, String>(hashMap).keySet()), new ArrayList<String>(map.keySet()));
+    	for (String key : hashMap.keySet()) {
+    		assertFalse("does not contain \"" + key + "#\"", map.containsKey(key + "#"));
+    	}
+    	assertTrue("about two bits per node", map.structureBits() < 4L * map.nodeCount());
+    }
+    
+    public void testSortedInput() {
+    	try {
+    		LoudsTrieMap.fromSortedKeys(Arrays.asList("b", "a"));
+    		fail("unsorted input");
+    	}
+    	catch (IllegalArgumentException e) {
+    	}
+    	// keys longer than a word of bits per level, so levels are joined at odd bit offsets
+    	List<String> keys = new ArrayList<String>();
+    	for (int i = 0; i < 1000; i++) {
+    		keys.add(Integer.toString(i * 7919 % 1000, 3));
+    	}
+    	TreeMap<String, Object> sorted = new TreeMap<String, Object>();
+    	for (String key : keys) {
+    		sorted.put(key, null);
+    	}
+    	LoudsTrieMap<Object> map = LoudsTrieMap.fromSortedKeys(sorted.keySet());
+    	assertEquals("same keys", new ArrayList<String>(sorted.keySet()), new ArrayList<String>(map.keySet()));
+    	for (String key : keys) {
+    		assertTrue("contains \"" + key + "\"", map.containsKey(key));
+    	}
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2007 Georg Lundesgaard (georg@lundesgaard.dk)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.lundesgaard.util;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The map implementations measured by the footprint and scalability tests,
+ * by name.
+ */
+class MapImplementations {
+	private static final Object VALUE = Boolean.TRUE;
+
+	private MapImplementations() {
+	}
+
+	/**
+	 * Returns the trie maps.
+	 */
+	static Map<String, Factory> tries() {
+		Map<String, Factory> implementations = new LinkedHashMap<String, Factory>();
+		implementations.put("dk.TrieMap", new Factory() {
+			Map<String, Object> create() {
+				return new TrieMap<String, Object>();
+			}
+
+			int nodeCount(Map<String, Object> map) {
+				return ((TrieMap<String, Object>) map).stats().getNodeCount();
+			}
+
+			boolean prunes() {
+				return true;
+			}
+		});
+		implementations.put("dk.ArenaTrieMap", new Factory() {
+			Map<String, Object> create() {
+				return new ArenaTrieMap<String, Object>();
+			}
+
+			int nodeCount(Map<String, Object> map) {
+				return ((ArenaTrieMap<String, Object>) map).nodeCount();
+			}
+
+			boolean prunes() {
+				return true;
+			}
+		});
+		implementations.put("no.TrieMap", new Factory() {
+			Map<String, Object> create() {
+				return new no.lundesgaard.util.TrieMap<String, Object>();
+			}
+
+			int nodeCount(Map<String, Object> map) {
+				return ((no.lundesgaard.util.TrieMap<String, Object>) map).stats().getNodeCount();
+			}
+		});
+		implementations.put("no.BurstTrieMap", new Factory() {
+			Map<String, Object> create() {
+				return new no.lundesgaard.util.BurstTrieMap<String, Object>();
+			}
+
+			int nodeCount(Map<String, Object> map) {
+				no.lundesgaard.util.BurstTrieMap<String, Object> burstMap = (no.lundesgaard.util.BurstTrieMap<String, Object>) map;
+				return burstMap.getNodeCount() + burstMap.getBucketCount();
+			}
+		});
+		implementations.put("no.ShardedTrieMap", new Factory() {
+			Map<String, Object> create() {
+				return new no.lundesgaard.util.ShardedTrieMap<String, Object>();
+			}
+		});
+		return implementations;
+	}
+
+	/**
+	 * Returns the trie maps followed by HashMap and TreeMap.
+	 */
+	static Map<String, Factory> all() {
+		Map<String, Factory> implementations = tries();
+		implementations.put("HashMap", new Factory() {
+			Map<String, Object> create() {
+				return new HashMap<String, Object>();
+			}
+		});
+		implementations.put("TreeMap", new Factory() {
+			Map<String, Object> create() {
+				return new TreeMap<String, Object>();
+			}
+		});
+		return implementations;
+	}
+
+	static abstract class Factory {
+		abstract Map<String, Object> create();
+
+		/**
+		 * Returns a new collection holding the given keys.
+		 */
+		Object build(String[] keys) {
+			Map<String, Object> map = create();
+			for (String key : keys) {
+				map.put(key, VALUE);
+			}
+			return map;
+		}
+
+		/**
+		 * Returns the number of nodes of the map, or -1 if it is not known.
+		 */
+		int nodeCount(Map<String, Object> map) {
+			return -1;
+		}
+
+		/**
+		 * Returns <code>true</code> when removing entries removes the nodes
+		 * no longer needed.
+		 */
+		boolean prunes() {
+			return false;
+		}
+	}
+}
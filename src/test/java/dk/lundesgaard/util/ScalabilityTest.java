@@ -0,0 +1,302 @@
+/*
+ * Copyright 2007 Georg Lundesgaard (georg@lundesgaard.dk)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.lundesgaard.util;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.BiFunction;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Scalability and soak harness for the map implementations, with heap and GC 
+ * telemetry from the platform MXBeans.
+ * <p>
+ * The scalability test grows every implementation tenfold from 1000 keys up 
+ * to <code>scalability.max</code> (default 10000). At each step it records 
+ * put and get throughput, the heap used after a full GC and the collections 
+ * and collection time of the step, and reports the first step where put or 
+ * get throughput falls below half of the best step so far. Only steps of at 
+ * least 100000 keys whose puts took 0.2 seconds or more are compared; the 
+ * lookups are repeated until they have taken that long. An implementation 
+ * that runs out of memory is reported and dropped. The keys are derived from 
+ * their index with a seeded bijective mix, so they are unique and are made 
+ * in chunks outside the timed loops, also at 100 million keys.
+ * <p>
+ * The soak test runs mixed reads and writes against the tries for 
+ * <code>scalability.soak.seconds</code> (default 2) over a key space of 
+ * <code>scalability.soak.keys</code> (default 10000) and checks every entry 
+ * against a HashMap. Afterwards the node count must match a fresh copy of the 
+ * map (or, for tries that do not prune, stay within the node count of the 
+ * whole key space), which catches orphaned nodes. Runs of a minute or more 
+ * also fail when the heap after GC grows by more than 
+ * <code>scalability.soak.heapGrowth</code> (default 0.5) between the end of 
+ * the first quarter and the end of the run.
+ * <p>
+ * Run the full harness with <code>mvn test -Pscalability</code>.
+ */
+public class ScalabilityTest extends TestCase {
+	private static final long SEED = 20070114L;
+	private static final Object VALUE = Boolean.TRUE;
+	// a step below this share of the best throughput so far is the fall-off point
+	private static final double FALL_OFF = 0.5;
+	// throughput measured for less time, or at fewer keys, is too noisy to compare
+	private static final double MIN_MEASURED_SECONDS = 0.2;
+	private static final int MIN_COMPARED_KEYS = 100000;
+	private static final int MAX_LOOKUPS = 1000000;
+	private static final int KEY_CHUNK = 100000;
+	private static final int SOAK_BATCH = 10000;
+	private static final int SOAK_SAMPLES = 20;
+	// adds absent entries and removes present ones
+	private static final BiFunction<String, Object, Object> TOGGLE = new BiFunction<String, Object, Object>() {
+		public Object apply(String key, Object value) {
+			return value == null ? Integer.valueOf(key.length()) : null;
+		}
+	};
+	
+    /**
+     * Create the test case.
+     *
+     * @param testName name of the test case
+     */
+    public ScalabilityTest( String testName )
+    {
+        super( testName );
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite()
+    {
+        return new TestSuite( ScalabilityTest.class );
+    }
+    
+    public void testScalability() {
+    	long max = Long.getLong("scalability.max", 10000);
+    	List<String> fallOffs = new ArrayList<String>();
+    	System.out.println("\nScalability (keys, put/s, get/s, heap KB after GC, GC count, GC ms)");
+    	for (Map.Entry<String, MapImplementations.Factory> implementation : MapImplementations.all().entrySet()) {
+    		String name = implementation.getKey();
+    		// warm up so that the first step is not measured in the interpreter
+    		Map<String, Object> map = implementation.getValue().create();
+    		for (int i = 0; i < 20000; i++) {
+    			map.put(key(i), VALUE);
+    			map.get(key(i / 2));
+    		}
+    		map = implementation.getValue().create();
+    		double bestPut = 0;
+    		double bestGet = 0;
+    		long fallOff = -1;
+    		int size = 0;
+    		try {
+    			for (long step = 1000; step <= max && step <= Integer.MAX_VALUE; step *= 10) {
+    				int count = (int) step;
+    				long[] gc = gcTotals();
+    				// the keys are made outside the timed loops, a chunk at a time
+    				String[] keys = new String[Math.min(count - size, KEY_CHUNK)];
+    				long putNanos = 0;
+    				for (int from = size; from < count; from += keys.length) {
+    					int length = Math.min(keys.length, count - from);
+    					for (int i = 0; i < length; i++) {
+    						keys[i] = key(from + i);
+    					}
+    					long start = System.nanoTime();
+    					for (int i = 0; i < length; i++) {
+    						map.put(keys[i], VALUE);
+    					}
+    					putNanos += System.nanoTime() - start;
+    				}
+    				keys = null;
+    				double putSeconds = Math.max(putNanos, 1) / 1e9;
+    				double putRate = (count - size) / putSeconds;
+    				size = count;
+    				assertEquals(name, size, map.size());
+    				String[] lookupKeys = new String[Math.min(count, MAX_LOOKUPS)];
+    				Random random = new Random(SEED + count);
+    				for (int i = 0; i < lookupKeys.length; i++) {
+    					lookupKeys[i] = key(random.nextInt(count));
+    				}
+    				// the lookups are repeated until they have run long enough
+    				long lookups = 0;
+    				long start = System.nanoTime();
+    				do {
+    					for (String key : lookupKeys) {
+    						if (map.get(key) == null) {
+    							fail(name + ": missing key at " + count);
+    						}
+    					}
+    					lookups += lookupKeys.length;
+    				} while (seconds(start) < MIN_MEASURED_SECONDS);
+    				double getRate = lookups / seconds(start);
+    				lookupKeys = null;
+    				long[] gcAfter = gcTotals();
+    				long heap = usedHeapAfterGc();
+    				boolean compared = count >= MIN_COMPARED_KEYS && putSeconds >= MIN_MEASURED_SECONDS;
+    				if (compared) {
+    					if (fallOff < 0 && (putRate < bestPut * FALL_OFF || getRate < bestGet * FALL_OFF)) {
+    						fallOff = count;
+    					}
+    					bestPut = Math.max(bestPut, putRate);
+    					bestGet = Math.max(bestGet, getRate);
+    				}
+    				System.out.println(String.format("\t%-20s %12d %12.0f %12.0f %10d %6d %8d%s", name, count, putRate, getRate, 
+    						heap / 1024, gcAfter[0] - gc[0], gcAfter[1] - gc[1], compared ? "" : "  (not compared)"));
+    			}
+    		}
+    		catch (OutOfMemoryError e) {
+    			map = null;
+    			System.out.println(String.format("\t%-20s out of memory after %d keys", name, size));
+    		}
+    		if (fallOff > 0) {
+    			fallOffs.add(name + " at " + fallOff);
+    		}
+    	}
+    	System.out.println("\tthroughput fall-off: " + (fallOffs.isEmpty() ? "none" : fallOffs));
+    }
+    
+    public void testSoak() {
+    	long seconds = Long.getLong("scalability.soak.seconds", 2);
+    	int keySpace = Integer.getInteger("scalability.soak.keys", 10000);
+    	double heapGrowth = Double.parseDouble(System.getProperty("scalability.soak.heapGrowth", "0.5"));
+    	System.out.println("\nSoak (seconds, operations, size, nodes, heap bytes, GC count, GC ms)");
+    	for (Map.Entry<String, MapImplementations.Factory> implementation : MapImplementations.tries().entrySet()) {
+    		String name = implementation.getKey();
+    		MapImplementations.Factory factory = implementation.getValue();
+    		Map<String, Object> map = factory.create();
+    		Map<String, Object> reference = new HashMap<String, Object>();
+    		Random random = new Random(SEED);
+    		long start = System.nanoTime();
+    		long interval = seconds * 1000000000L / SOAK_SAMPLES;
+    		long nextSample = start + interval;
+    		long operations = 0;
+    		long quarterHeap = -1;
+    		long heap = 0;
+    		long[] gc = gcTotals();
+    		for (int sample = 1; sample <= SOAK_SAMPLES; ) {
+    			for (int i = 0; i < SOAK_BATCH; i++) {
+    				soakOperation(name, map, reference, random, keySpace);
+    			}
+    			operations += SOAK_BATCH;
+    			if (System.nanoTime() >= nextSample) {
+    				long[] gcAfter = gcTotals();
+    				heap = usedHeapAfterGc();
+    				if (sample == SOAK_SAMPLES / 4) {
+    					quarterHeap = heap;
+    				}
+    				System.out.println(String.format("\t%-20s %8.0f %12d %8d %8d %12d %6d %8d", name, seconds(start), operations, 
+    						map.size(), factory.nodeCount(map), heap, gcAfter[0] - gc[0], gcAfter[1] - gc[1]));
+    				gc = gcAfter;
+    				nextSample += interval;
+    				sample++;
+    			}
+    		}
+    		assertEquals(name, reference, map);
+    		int nodeCount = factory.nodeCount(map);
+    		if (nodeCount >= 0) {
+    			if (factory.prunes()) {
+    				Map<String, Object> copy = factory.create();
+    				copy.putAll(reference);
+    				assertEquals(name + ": orphaned nodes", factory.nodeCount(copy), nodeCount);
+    			}
+    			else {
+    				Map<String, Object> all = factory.create();
+    				for (int i = 0; i < keySpace; i++) {
+    					all.put(key(i), VALUE);
+    				}
+    				assertTrue(name + ": orphaned nodes", nodeCount <= factory.nodeCount(all));
+    			}
+    		}
+    		if (seconds >= 60 && quarterHeap > 0) {
+    			assertTrue(name + ": heap grew from " + quarterHeap + " to " + heap, heap <= quarterHeap * (1 + heapGrowth));
+    		}
+    	}
+    }
+    
+    private static void soakOperation(String name, Map<String, Object> map, Map<String, Object> reference, Random random, 
+    		int keySpace) {
+    	String key = key(random.nextInt(keySpace));
+    	Integer value = Integer.valueOf(random.nextInt(100));
+    	switch (random.nextInt(10)) {
+    	case 0:
+    	case 1:
+    	case 2:
+    	case 3:
+    		assertEquals(name, reference.get(key), map.get(key));
+    		break;
+    	case 4:
+    	case 5:
+    		assertEquals(name, reference.put(key, value), map.put(key, value));
+    		break;
+    	case 6:
+    	case 7:
+    		assertEquals(name, reference.remove(key), map.remove(key));
+    		break;
+    	case 8:
+    		assertEquals(name, reference.putIfAbsent(key, value), map.putIfAbsent(key, value));
+    		break;
+    	default:
+    		assertEquals(name, reference.compute(key, TOGGLE), map.compute(key, TOGGLE));
+    		break;
+    	}
+    }
+    
+    /**
+     * Returns the key of the given index: the index mixed with a bijective 
+     * 64 bit function and written with the letters a to z, in practice 13 or 
+     * 14 letters.
+     */
+    static String key(long index) {
+    	long x = (index + SEED) * 0x9E3779B97F4A7C15L;
+    	x ^= x >>> 31;
+    	x *= 0xBF58476D1CE4E5B9L;
+    	x ^= x >>> 29;
+    	char[] chars = new char[14];
+    	int length = 0;
+    	do {
+    		chars[length++] = (char) ('a' + Long.remainderUnsigned(x, 26));
+    		x = Long.divideUnsigned(x, 26);
+    	} while (x != 0);
+    	return new String(chars, 0, length);
+    }
+    
+    private static double seconds(long start) {
+    	return Math.max(System.nanoTime() - start, 1) / 1e9;
+    }
+    
+    private static long usedHeapAfterGc() {
+    	System.gc();
+    	System.gc();
+    	return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+    
+    // collection count and time in milliseconds over all collectors
+    private static long[] gcTotals() {
+    	long[] totals = new long[2];
+    	for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+    		totals[0] += Math.max(collector.getCollectionCount(), 0);
+    		totals[1] += Math.max(collector.getCollectionTime(), 0);
+    	}
+    	return totals;
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright 2007 Georg Lundesgaard (georg@lundesgaard.dk)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.lundesgaard.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import org.openjdk.jol.info.GraphStats;
+
+public class SuffixTrieIndexTest extends TestCase {
+	
+    /**
+     * Create the test case.
+     *
+     * @param testName name of the test case
+     */
+    public SuffixTrieIndexTest( String testName )
+    {
+        super( testName );
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite()
+    {
+        return new TestSuite( SuffixTrieIndexTest.class );
+    }
+    
+    public void testKeysContaining() {
+    	TrieMap<String, String> trieMap = new TrieMap<String, String>();
+    	trieMap.put("connection timeout", "1");
+    	trieMap.put("read timeout", "2");
+    	trieMap.put("timer", "3");
+    	trieMap.put("banana", "4");
+    	trieMap.put("", "5");
+    	SuffixTrieIndex<String> index = trieMap.enableSuffixIndex();
+    	assertEquals("timeout", "[connection timeout, read timeout]", sorted(trieMap.keysContaining("timeout")));
+    	assertEquals("time", "[connection timeout, read timeout, timer]", sorted(trieMap.keysContaining("time")));
+    	assertEquals("repeated substring", "[banana]", sorted(trieMap.keysContaining("ana")));
+    	assertEquals("missing substring", "[]", sorted(trieMap.keysContaining("nab")));
+    	assertEquals("empty substring", 5, trieMap.keysContaining("").size());
+    	assertEquals("index size", 5, index.size());
+    	assertTrue("estimated size", index.getEstimatedSize() > 0);
+    	
+    	trieMap.remove("read timeout");
+    	trieMap.put("timer", "6");
+    	assertEquals("after remove", "[connection timeout, timer]", sorted(trieMap.keysContaining("time")));
+    	trieMap.disableSuffixIndex();
+    	assertEquals("scan without index", "[connection timeout, timer]", trieMap.keysContaining("time").toString());
+    }
+    
+    /**
+     * Random updates through every mutating operation, checked against a 
+     * scan of the keys.
+     */
+    public void testRandomUpdates() {
+    	TrieMap<String, String> trieMap = new TrieMap<String, String>();
+    	SuffixTrieIndex<String> index = trieMap.enableSuffixIndex();
+    	Random random = new Random(11);
+    	for (int round = 0; round < 20; round++) {
+    		for (int i = 0; i < 200; i++) {
+    			String key = randomKey(random);
+    			if (random.nextInt(3) == 0) {
+    				trieMap.remove(key);
+    			}
+    			else {
+    				trieMap.put(key, key);
+    			}
+    		}
+    		switch (round % 5) {
+    		case 1:
+    			trieMap.removePrefix(randomKey(random).substring(0, 1));
+    			break;
+    		case 2:
+    			TrieMap<String, String> other = new TrieMap<String, String>();
+    			for (int i = 0; i < 50; i++) {
+    				String key = randomKey(random);
+    				other.put(key, key);
+    			}
+    			trieMap.putAll(other);
+    			break;
+    		case 3:
+    			if (trieMap.size() > 1000) {
+    				trieMap.retainPrefix(randomKey(random).substring(0, 1));
+    			}
+    			break;
+    		case 4:
+    			for (Iterator<String> keys = trieMap.keySet().iterator(); keys.hasNext();) {
+    				if (keys.next().length() == 3) {
+    					keys.remove();
+    				}
+    			}
+    			break;
+    		}
+    		assertEquals("index size", trieMap.size(), index.size());
+    		for (int i = 0; i < 20; i++) {
+    			String substring = randomKey(random);
+    			substring = substring.substring(random.nextInt(substring.length()));
+    			List<String> expected = new ArrayList<String>();
+    			for (String key : new TreeMap<String, String>(trieMap).keySet()) {
+    				if (key.contains(substring)) {
+    					expected.add(key);
+    				}
+    			}
+    			assertEquals("keys containing " + substring, expected.toString(), sorted(trieMap.keysContaining(substring)));
+    		}
+    	}
+    	int nodes = index.getNodeCount();
+    	trieMap.clear();
+    	assertEquals("cleared index", 1, index.getNodeCount());
+    	assertTrue("nodes before clear", nodes > 1);
+    	trieMap.put("abc", "abc");
+    	assertEquals("after clear", "[abc]", sorted(trieMap.keysContaining("bc")));
+    }
+    
+    /**
+     * Removing every key leaves only the root of the suffix trie.
+     */
+    public void testPruning() {
+    	TrieMap<String, String> trieMap = new TrieMap<String, String>();
+    	SuffixTrieIndex<String> index = trieMap.enableSuffixIndex();
+    	Random random = new Random(13);
+    	List<String> keys = new ArrayList<String>();
+    	for (int i = 0; i < 500; i++) {
+    		String key = randomKey(random);
+    		if (trieMap.put(key, key) == null) {
+    			keys.add(key);
+    		}
+    	}
+    	Collections.shuffle(keys, random);
+    	for (String key : keys) {
+    		trieMap.remove(key);
+    	}
+    	assertEquals("nodes left", 1, index.getNodeCount());
+    	// the root node, 48 bytes in the layout JOL reports with compressed oops
+    	assertEquals("estimated size", 48, index.getEstimatedSize());
+    }
+    
+    /**
+     * Test that the estimated size is close to the size measured by JOL, 
+     * with labels left behind by removed keys.
+     */
+    public void testEstimatedSize() {
+    	TrieMap<String, String> trieMap = new TrieMap<String, String>();
+    	SuffixTrieIndex<String> index = trieMap.enableSuffixIndex();
+    	Random random = new Random(17);
+    	for (int i = 0; i < 2000; i++) {
+    		String key = randomKey(random);
+    		if (random.nextInt(3) == 0) {
+    			trieMap.remove(key);
+    		}
+    		else {
+    			trieMap.put(key, key);
+    		}
+    	}
+    	long withIndex = GraphStats.parseInstance(trieMap).totalSize();
+    	long estimated = index.getEstimatedSize();
+    	trieMap.disableSuffixIndex();
+    	long measured = withIndex - GraphStats.parseInstance(trieMap).totalSize();
+    	assertTrue("estimated " + estimated + " bytes, measured " + measured, Math.abs(estimated - measured) < measured / 200);
+    }
+    
+    private static String randomKey(Random random) {
+    	int length = 1 + random.nextInt(8);
+    	char[] chars = new char[length];
+    	for (int i = 0; i < length; i++) {
+    		chars[i] = (char) ('a' + random.nextInt(4));
+    	}
+    	return new String(chars);
+    }
+    
+    private static String sorted(List<String> keys) {
+    	List<String> sorted = new ArrayList<String>(keys);
+    	Collections.sort(sorted);
+    	return sorted.toString();
+    }
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright 2007 Georg Lundesgaard (georg@lundesgaard.dk)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.lundesgaard.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+public class TieredTrieMapTest extends TestCase {
+	private File directory;
+	
+    /**
+     * Create the test case.
+     *
+     * @param testName name of the test case
+     */
+    public TieredTrieMapTest( String testName )
+    {
+        super( testName );
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite()
+    {
+        return new TestSuite( TieredTrieMapTest.class );
+    }
+    
+    @Override
+    protected void setUp() throws IOException {
+    	directory = File.createTempFile("tiered", "");
+    	directory.delete();
+    }
+    
+    @Override
+    protected void tearDown() {
+    	File[] files = directory.listFiles();
+    	if (files != null) {
+    		for (File file : files) {
+    			file.delete();
+    		}
+    	}
+    	directory.delete();
+    }
+    
+    public void testTiers() throws IOException {
+    	TieredTrieMap<String, String> map = open(50, 3);
+    	TreeMap<String, String> expected = new TreeMap<String, String>();
+    	Random random = new Random(1);
+    	for (int i = 0; i < 5000; i++) {
+    		String key = Integer.toString(random.nextInt(2000), 7);
+    		int operation = random.nextInt(10);
+    		if (operation < 6) {
+    			assertEquals(expected.put(key, "V" + i), map.put(key, "V" + i));
+    		}
+    		else if (operation < 8) {
+    			assertEquals(expected.remove(key), map.remove(key));
+    		}
+    		else if (operation < 9) {
+    			map.set(key, "S" + i);
+    			expected.put(key, "S" + i);
+    		}
+    		else {
+    			map.delete(key);
+    			expected.remove(key);
+    		}
+    	}
+    	assertTrue(map.getSegmentCount() > 1);
+    	assertContents(expected, map);
+    	assertEquals(expected.subMap("12", "13"), map.prefixMap("12"));
+    	assertEquals(expected.subMap("1234", "1235"), map.prefixMap("1234"));
+    	assertTrue(map.prefixMap("9").isEmpty());
+    	assertNull(map.prefixMap("12").get("34"));
+    	map.close();
+    	try {
+    		map.get("1");
+    		fail("closed");
+    	}
+    	catch (IllegalStateException e) {
+    		// expected
+    	}
+    	
+    	map = open(50, 3);
+    	assertContents(expected, map);
+    	map.clear();
+    	assertTrue(map.isEmpty());
+    	assertEquals(0, map.getSegmentCount());
+    	map.close();
+    	assertEquals(0, directory.list().length);
+    }
+    
+    public void testCompaction() throws IOException {
+    	TieredTrieMap<String, String> map = open(100, 100);
+    	TreeMap<String, String> expected = new TreeMap<String, String>();
+    	for (int i = 0; i < 1000; i++) {
+    		String key = "key" + i;
+    		map.set(key, "V" + i);
+    		expected.put(key, "V" + i);
+    	}
+    	for (int i = 0; i < 1000; i += 3) {
+    		map.delete("key" + i);
+    		expected.remove("key" + i);
+    	}
+    	map.flush();
+    	assertEquals(14, map.getSegmentCount());
+    	map.compact();
+    	assertEquals(1, map.getSegmentCount());
+    	assertContents(expected, map);
+    	for (int i = 0; i < 1000; i++) {
+    		map.delete("key" + i);
+    	}
+    	map.compact();
+    	assertEquals(0, map.getSegmentCount());
+    	assertTrue(map.isEmpty());
+    	map.close();
+    }
+    
+    public void testBackgroundCompaction() throws IOException {
+    	TieredTrieMap<String, String> map = open(10, 4);
+    	for (int i = 0; i < 1000; i++) {
+    		map.set(Integer.toString(i), "V" + i);
+    	}
+    	map.close();
+    	map = open(10, 4);
+    	// 100 flushes, merged while the writes went on
+    	assertTrue(map.getSegmentCount() < 50);
+    	assertEquals(1000, map.size());
+    	assertEquals("V999", map.get("999"));
+    	map.close();
+    }
+    
+    public void testRecovery() throws IOException {
+    	TieredTrieMap<String, String> map = open(10, 100);
+    	for (int i = 0; i < 20; i++) {
+    		map.set("k" + i, "V" + i);
+    	}
+    	File[] flushed = directory.listFiles();
+    	assertEquals(2, flushed.length);
+    	File saved = new File(directory.getPath() + ".saved");
+    	saved.mkdir();
+    	for (File file : flushed) {
+    		Files.copy(file.toPath(), new File(saved, file.getName()).toPath());
+    	}
+    	map.delete("k1");
+    	map.compact();
+    	map.close();
+    	
+    	// a compaction that crashed before deleting its input, and an unfinished flush
+    	for (File file : saved.listFiles()) {
+    		Files.move(file.toPath(), new File(directory, file.getName()).toPath(), StandardCopyOption.REPLACE_EXISTING);
+    	}
+    	saved.delete();
+    	new File(directory, "segment.9-9.tmp").createNewFile();
+    	// files that are not segments
+    	new File(directory, "segment.bak").createNewFile();
+    	new File(directory, "segment.1-x").createNewFile();
+    	map = open(10, 100);
+    	assertEquals(1, map.getSegmentCount());
+    	assertEquals(19, map.size());
+    	assertNull(map.get("k1"));
+    	assertEquals("V2", map.get("k2"));
+    	map.close();
+    	assertEquals(3, directory.list().length);
+    }
+    
+    public void testCompactionFailure() throws IOException {
+    	TieredTrieMap<String, String> map = open(10, 100);
+    	for (int i = 0; i < 30; i++) {
+    		map.set("k" + i, "V" + i);
+    	}
+    	assertEquals(3, map.getSegmentCount());
+    	// the merged segment cannot be written
+    	File blocked = new File(directory, "segment.0-2.tmp");
+    	blocked.mkdir();
+    	try {
+    		map.compact();
+    		fail("compaction with blocked segment file");
+    	}
+    	catch (IOException e) {
+    		// expected
+    	}
+    	assertEquals("segments kept", 3, map.getSegmentCount());
+    	blocked.delete();
+    	// the failure was reported, writes and compactions go on
+    	map.set("k30", "V30");
+    	map.compact();
+    	assertEquals(1, map.getSegmentCount());
+    	assertEquals(31, map.size());
+    	assertEquals("V5", map.get("k5"));
+    	map.close();
+    }
+    
+    private TieredTrieMap<String, String> open(int memtableSize, int compactionThreshold) throws IOException {
+    	return new TieredTrieMap.Builder<String, String>(directory, DurableTrieMap.STRING_CODEC, DurableTrieMap.STRING_CODEC)
+    			.memtableSize(memtableSize).compactionThreshold(compactionThreshold).open();
+    }
+    
+    private static void assertContents(TreeMap<String, String> expected, TieredTrieMap<String, String> map) {
+    	assertEquals(expected.size(), map.size());
+    	for (Map.Entry<String, String> entry : expected.entrySet()) {
+    		assertEquals(entry.getValue(), map.get(entry.getKey()));
+    	}
+    	assertEquals(new ArrayList<Map.Entry<String, String>>(expected.entrySet()), 
+    			new ArrayList<Map.Entry<String, String>>(map.entrySet()));
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright 2007 Georg Lundesgaard (georg@lundesgaard.dk)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.lundesgaard.util;
+
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import org.openjdk.jol.info.GraphStats;
+
+public class TrieCacheTest extends TestCase {
+	
+    /**
+     * Create the test case.
+     *
+     * @param testName name of the test case
+     */
+    public TrieCacheTest( String testName )
+    {
+        super( testName );
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite()
+    {
+        return new TestSuite( TrieCacheTest.class );
+    }
+    
+    public void testLru() {
+    	TrieCache<String, String> cache = new TrieCache.Builder<String, String>()
+    			.maximumSize(3)
+    			.policy(TrieCache.Policy.LRU)
+    			.build();
+    	cache.put("/a", "A");
+    	cache.put("/b", "B");
+    	cache.put("/c", "C");
+    	assertEquals("get /a", "A", cache.get("/a"));
+    	cache.put("/d", "D");
+    	assertNull("least recently used evicted", cache.get("/b"));
+    	assertEquals("get /a after eviction", "A", cache.get("/a"));
+    	assertEquals("size", 3, cache.size());
+    	assertEquals("put replaces", "C", cache.put("/c", "C2"));
+    	assertEquals("size after replace", 3, cache.size());
+    	
+    	TrieCache.Stats stats = cache.stats();
+    	assertEquals("hits", 2, stats.getHitCount());
+    	assertEquals("misses", 1, stats.getMissCount());
+    	assertEquals("evictions", 1, stats.getEvictionCount());
+    }
+    
+    public void testTinyLfu() {
+    	TrieCache<String, Integer> cache = new TrieCache.Builder<String, Integer>()
+    			.maximumSize(100)
+    			.build();
+    	for (int i = 0; i < 100; i++) {
+    		cache.put("/hot/" + i, i);
+    	}
+    	for (int round = 0; round < 5; round++) {
+    		for (int i = 0; i < 100; i++) {
+    			assertEquals("hot " + i, Integer.valueOf(i), cache.get("/hot/" + i));
+    		}
+    	}
+    	// a scan of keys used once does not flush the frequently used keys
+    	for (int i = 0; i < 10000; i++) {
+    		cache.put("/scan/" + i, i);
+    		cache.get("/hot/" + i % 100);
+    	}
+    	int hits = 0;
+    	for (int i = 0; i < 100; i++) {
+    		if (cache.get("/hot/" + i) != null) {
+    			hits++;
+    		}
+    	}
+    	assertTrue("hot keys retained: " + hits, hits >= 90);
+    	assertEquals("size", 100, cache.size());
+    }
+    
+    public void testWeight() {
+    	TrieCache<String, String> cache = new TrieCache.Builder<String, String>()
+    			.maximumWeight(10, new TrieCache.Weigher<String, String>() {
+    				public int weigh(String key, String value) {
+    					return value.length();
+    				}
+    			})
+    			.policy(TrieCache.Policy.LRU)
+    			.build();
+    	cache.put("/a", "aaaa");
+    	cache.put("/b", "bbbb");
+    	assertEquals("weight", 8, cache.weight());
+    	cache.put("/c", "cccc");
+    	assertEquals("weight after eviction", 8, cache.weight());
+    	assertNull("evicted", cache.get("/a"));
+    	
+    	// byte weighted: the frequency sketch follows the entry count, not the weight
+    	TrieCache<String, byte[]> byteCache = new TrieCache.Builder<String, byte[]>()
+    			.maximumWeight(1L << 40, new TrieCache.Weigher<String, byte[]>() {
+    				public int weigh(String key, byte[] value) {
+    					return value.length;
+    				}
+    			})
+    			.policy(TrieCache.Policy.TINY_LFU)
+    			.build();
+    	assertTrue("small empty cache", GraphStats.parseInstance(byteCache).totalSize() < 64 * 1024);
+    	for (int i = 0; i < 1000; i++) {
+    		byteCache.put("/" + i, new byte[0]);
+    	}
+    	assertEquals("entries", 1000, byteCache.size());
+    	assertTrue("sketch grown with the entries", GraphStats.parseInstance(byteCache).totalSize() < 1024 * 1024);
+    }
+    
+    public void testExpiry() {
+    	final long[] time = { 0 };
+    	TrieCache<String, String> cache = new TrieCache.Builder<String, String>()
+    			.maximumSize(100)
+    			.expireAfterWrite(10, TimeUnit.SECONDS)
+    			.ticker(new TrieCache.Ticker() {
+    				public long read() {
+    					return time[0];
+    				}
+    			})
+    			.build();
+    	cache.put("/a", "A");
+    	cache.put("/b", "B", 1, TimeUnit.HOURS);
+    	cache.put("/c", "C");
+    	time[0] = TimeUnit.SECONDS.toNanos(9);
+    	assertEquals("not expired", "A", cache.get("/a"));
+    	time[0] = TimeUnit.SECONDS.toNanos(10);
+    	assertNull("expired on read", cache.get("/a"));
+    	time[0] = TimeUnit.SECONDS.toNanos(12);
+    	cache.cleanUp();
+    	assertEquals("expired by the timer wheel", 1, cache.size());
+    	assertEquals("weight", 1, cache.weight());
+    	assertEquals("expirations", 2, cache.stats().getExpirationCount());
+    	
+    	// more than a rotation of the wheel later
+    	time[0] = TimeUnit.HOURS.toNanos(2);
+    	cache.cleanUp();
+    	assertEquals("expired after a long pause", 0, cache.size());
+    }
+    
+    public void testInvalidatePrefix() {
+    	TrieCache<String, String> cache = new TrieCache.Builder<String, String>()
+    			.maximumSize(1000)
+    			.policy(TrieCache.Policy.LRU)
+    			.build();
+    	for (int i = 0; i < 100; i++) {
+    		cache.put("/api/users/42/" + i, "U" + i);
+    		cache.put("/api/users/43/" + i, "V" + i);
+    	}
+    	assertEquals("invalidated", 100, cache.invalidatePrefix("/api/users/42/"));
+    	assertEquals("size", 100, cache.size());
+    	assertNull("invalidated key", cache.get("/api/users/42/1"));
+    	assertEquals("other key", "V1", cache.get("/api/users/43/1"));
+    	assertEquals("nothing to invalidate", 0, cache.invalidatePrefix("/api/users/44/"));
+    	
+    	// a key put again is not dropped with the invalidated entries
+    	cache.put("/api/users/42/1", "U1");
+    	cache.cleanUp();
+    	assertEquals("weight after clean up", 101, cache.weight());
+    	assertEquals("put again", "U1", cache.get("/api/users/42/1"));
+    	
+    	cache.invalidateAll();
+    	assertEquals("size after invalidate all", 0, cache.size());
+    	cache.cleanUp();
+    	assertEquals("weight after invalidate all", 0, cache.weight());
+    	assertEquals("invalidations", 201, cache.stats().getInvalidationCount());
+    }
+}
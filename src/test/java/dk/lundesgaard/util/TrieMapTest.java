@@ -21,20 +21,32 @@ import java.io.BufferedReader;
 import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.AbstractMap;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.ConcurrentModificationException;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Random;
 import java.util.Set;
 import java.util.StringTokenizer;
 import java.util.TreeMap;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+import javax.management.ObjectName;
 
 import junit.framework.Test;
 import junit.framework.TestCase;
 import junit.framework.TestSuite;
 
+import org.openjdk.jol.info.GraphStats;
+
 /**
  * Unit test for trie map.
  */
@@ -220,6 +232,516 @@ public class TrieMapTest extends TestCase
     	emptyMapTests(trieMap);
     }
     
+    /**
+     * Test of subtree counts, rank and select.
+     */
+    public void testCounts() {
+    	TrieMap<String, String> trieMap = new TrieMap<String, String>();
+    	String[] keys = { KEY_NULL, "b", "ba", "bar", "bas", "foo", "foobar", KEY_03 };
+    	for (int i = 0; i < keys.length; i++) {
+    		trieMap.put(keys[i], VALUE_01);
+    	}
+    	assertEquals("count prefix \"\"", keys.length, trieMap.countPrefix(KEY_BLANK));
+    	assertEquals("count prefix \"b\"", 4, trieMap.countPrefix("b"));
+    	assertEquals("count prefix \"ba\"", 3, trieMap.countPrefix("ba"));
+    	assertEquals("count prefix \"foob\"", 1, trieMap.countPrefix("foob"));
+    	assertEquals("count prefix \"x\"", 0, trieMap.countPrefix("x"));
+    	for (int i = 0; i < keys.length; i++) {
+    		assertEquals("rank of \"" + keys[i] + "\"", i, trieMap.rank(keys[i]));
+    		assertEquals("select " + i, keys[i], trieMap.select(i));
+    	}
+    	assertEquals("rank of \"bat\"", 5, trieMap.rank("bat"));
+    	assertEquals("rank of \"zz\"", keys.length, trieMap.rank("zz"));
+    	
+    	trieMap.remove("ba");
+    	trieMap.remove("foobar");
+    	assertEquals("count prefix \"b\" after remove", 3, trieMap.countPrefix("b"));
+    	assertEquals("count prefix \"foo\" after remove", 1, trieMap.countPrefix("foo"));
+    	assertEquals("select 3 after remove", "bas", trieMap.select(3));
+    	
+    	Random random = new Random(1);
+    	for (int i = 0; i < 10; i++) {
+    		assertTrue("random key is present", trieMap.containsKey(trieMap.randomKey(random)));
+    	}
+    	try {
+    		trieMap.select(trieMap.size());
+    		fail("select out of bounds");
+    	}
+    	catch (IndexOutOfBoundsException e) {
+    		// expected
+    	}
+    }
+    
+    /**
+     * Test of nodes with many children, which are indexed.
+     */
+    public void testHighFanout() {
+    	TrieMap<String, String> trieMap = new TrieMap<String, String>();
+    	Map<String, String> treeMap = new TreeMap<String, String>();
+    	Random random = new Random(1);
+    	for (int i = 0; i < 2000; i++) {
+    		String key = new String(new char[] { (char) (0x4e00 + random.nextInt(300)), (char) ('a' + random.nextInt(26)) });
+    		trieMap.put(key, key);
+    		treeMap.put(key, key);
+    	}
+    	assertEquals("equals tree map", treeMap, trieMap);
+    	assertEquals("same order", new ArrayList<String>(treeMap.keySet()), new ArrayList<String>(trieMap.keySet()));
+    	
+    	// remove until the indexes are dropped again
+    	for (Iterator<String> iterator = treeMap.keySet().iterator(); iterator.hasNext();) {
+    		String key = iterator.next();
+    		if (random.nextInt(10) > 0) {
+    			assertEquals("remove \"" + key + "\"", key, trieMap.remove(key));
+    			iterator.remove();
+    		}
+    	}
+    	assertEquals("equals tree map after remove", treeMap, trieMap);
+    	assertEquals("same order after remove", new ArrayList<String>(treeMap.keySet()), new ArrayList<String>(trieMap.keySet()));
+    	for (String key : treeMap.keySet()) {
+    		assertEquals("get \"" + key + "\"", key, trieMap.get(key));
+    	}
+    	assertEquals("rank", 0, trieMap.rank(treeMap.keySet().iterator().next()));
+    }
+    
+    /**
+     * Test of the batched getAll, containsAll and putAll.
+     */
+    public void testBatch() {
+    	Map<String, Integer> hashMap = new HashMap<String, Integer>();
+    	Random random = new Random(2);
+    	for (int i = 0; i < 1000; i++) {
+    		hashMap.put(Integer.toString(random.nextInt(5000), 7), i);
+    	}
+    	hashMap.put("", -1);
+    	TrieMap<String, Integer> trieMap = new TrieMap<String, Integer>();
+    	trieMap.putAll(hashMap);
+    	assertEquals("putAll", hashMap, trieMap);
+    	assertEquals("size", hashMap.size(), trieMap.size());
+    	
+    	TrieMap<String, Integer> copy = new TrieMap<String, Integer>();
+    	copy.put("", 0);
+    	copy.putAll(trieMap);
+    	assertEquals("putAll from trie map", trieMap, copy);
+    	
+    	Set<String> keys = new HashSet<String>();
+    	for (int i = 0; i < 500; i++) {
+    		keys.add(Integer.toString(random.nextInt(5000), 7));
+    	}
+    	keys.add("");
+    	Map<String, Integer> expected = new TreeMap<String, Integer>();
+    	for (String key : keys) {
+    		if (hashMap.containsKey(key)) {
+    			expected.put(key, hashMap.get(key));
+    		}
+    	}
+    	Map<String, Integer> result = trieMap.getAll(keys);
+    	assertEquals("getAll", expected, result);
+    	assertEquals("getAll order", new ArrayList<String>(expected.keySet()), new ArrayList<String>(result.keySet()));
+    	
+    	assertTrue("containsAll", trieMap.keySet().containsAll(expected.keySet()));
+    	assertEquals("containsAll with missing keys", expected.size() == keys.size(), trieMap.keySet().containsAll(keys));
+    	keys.add("7");
+    	assertFalse("containsAll with key outside alphabet", trieMap.keySet().containsAll(keys));
+    }
+    
+    /**
+     * Test of character by character navigation with a cursor.
+     */
+    public void testCursor() {
+    	TrieMap<String, String> trieMap = new TrieMap<String, String>();
+    	trieMap.put("bar", "BAR");
+    	trieMap.put("baz", "BAZ");
+    	trieMap.put("foo", "FOO");
+    	trieMap.put("food", "FOOD");
+    	
+    	TrieCursor<String, String> cursor = trieMap.cursor();
+    	assertTrue("root is prefix", cursor.isPrefix());
+    	assertEquals("root children", "bf", new String(cursor.children()));
+    	assertTrue("advance f", cursor.advance('f'));
+    	assertTrue("advance o", cursor.advance('o'));
+    	assertFalse("no value at fo", cursor.hasValue());
+    	assertNull("no value at fo", cursor.value());
+    	assertFalse("advance x", cursor.advance('x'));
+    	assertFalse("advance past the trie", cursor.advance('y'));
+    	assertEquals("depth off the trie", 4, cursor.depth());
+    	assertEquals("no children off the trie", 0, cursor.children().length);
+    	assertTrue("retreat y", cursor.retreat());
+    	assertTrue("retreat x", cursor.retreat());
+    	assertTrue("back on the trie", cursor.isPrefix());
+    	assertTrue("advance o", cursor.advance('o'));
+    	assertTrue("value at foo", cursor.hasValue());
+    	assertEquals("key", "foo", cursor.key());
+    	assertEquals("value", "FOO", cursor.value());
+    	assertEquals("children of foo", "d", new String(cursor.children()));
+    	
+    	// every prefix of a long key in one pass
+    	StringBuilder key = new StringBuilder();
+    	for (int i = 0; i < 100; i++) {
+    		key.append((char) ('a' + i % 26));
+    	}
+    	trieMap.put(key.toString(), "LONG");
+    	cursor.reset();
+    	for (int i = 0; i < key.length(); i++) {
+    		assertTrue("prefix " + i, cursor.advance(key.charAt(i)));
+    	}
+    	assertEquals("value at long key", "LONG", cursor.value());
+    	
+    	trieMap.remove("foo");
+    	try {
+    		cursor.advance('a');
+    		fail("cursor not failing after modification");
+    	}
+    	catch (ConcurrentModificationException e) {
+    		// expected
+    	}
+    	cursor.reset();
+    	assertEquals("depth after reset", 0, cursor.depth());
+    	assertFalse("retreat at root", cursor.retreat());
+    }
+    
+    /**
+     * Test of equals, hashCode, putAll and diff between trie maps.
+     */
+    public void testStructural() {
+    	final TrieMap<String, Integer> trieMap = new TrieMap<String, Integer>();
+    	TrieMap<String, Integer> otherTrieMap = new TrieMap<String, Integer>();
+    	Map<String, Integer> treeMap = new TreeMap<String, Integer>();
+    	Random random = new Random(5);
+    	for (int i = 0; i < 2000; i++) {
+    		String key = Integer.toString(random.nextInt(100000), 7);
+    		trieMap.put(key, i);
+    		treeMap.put(key, i);
+    	}
+    	trieMap.put("", -1);
+    	treeMap.put("", -1);
+    	otherTrieMap.putAll(treeMap);
+    	assertEquals("equal tries", trieMap, otherTrieMap);
+    	assertEquals("equal to tree map", treeMap, trieMap);
+    	assertEquals("hashCode", treeMap.hashCode(), trieMap.hashCode());
+    	otherTrieMap.put("1", 0);
+    	assertFalse("changed value", trieMap.equals(otherTrieMap));
+    	
+    	final Map<String, Integer> added = new TreeMap<String, Integer>();
+    	final Map<String, Integer> removed = new TreeMap<String, Integer>();
+    	final Map<String, Integer> changed = new TreeMap<String, Integer>();
+    	TrieMap<String, Integer> changedMap = new TrieMap<String, Integer>();
+    	changedMap.putAll(trieMap);
+    	changedMap.removePrefix("2");
+    	String changedKey = trieMap.select(1);
+    	changedMap.put(changedKey, 42);
+    	changedMap.put("9x", 1);
+    	changedMap.put("9y", 2);
+    	changedMap.put("1x", 3);
+    	trieMap.diff(changedMap, new TrieDiffListener<String, Integer>() {
+			public void added(String key, Integer value) {
+				added.put(key, value);
+			}
+			public void removed(String key, Integer value) {
+				removed.put(key, value);
+			}
+			public void changed(String key, Integer oldValue, Integer newValue) {
+				assertEquals("old value", trieMap.get(key), oldValue);
+				changed.put(key, newValue);
+			}
+    	});
+    	Map<String, Integer> expectedAdded = new TreeMap<String, Integer>();
+    	expectedAdded.put("9x", 1);
+    	expectedAdded.put("9y", 2);
+    	expectedAdded.put("1x", 3);
+    	assertEquals("added", expectedAdded, added);
+    	assertEquals("removed", trieMap.prefixMap("2"), removed);
+    	assertEquals("changed", "{" + changedKey + "=42}", changed.toString());
+    	
+    	TrieMap<String, Integer> merged = new TrieMap<String, Integer>();
+    	merged.put("2", 7);
+    	merged.put("9", 9);
+    	merged.putAll(changedMap);
+    	Map<String, Integer> expected = new TreeMap<String, Integer>(changedMap);
+    	expected.put("2", 7);
+    	expected.put("9", 9);
+    	assertEquals("merged", expected, merged);
+    	assertEquals("merged size", expected.size(), merged.size());
+    	assertEquals("merged order", new ArrayList<String>(expected.keySet()), new ArrayList<String>(merged.keySet()));
+    	assertEquals("merged countPrefix", expected.size() - 1, merged.countPrefix("1") + merged.countPrefix("2") + merged.countPrefix("3")
+    			+ merged.countPrefix("4") + merged.countPrefix("5") + merged.countPrefix("6") + merged.countPrefix("9"));
+    	merged.put("9z", 3);
+    	assertFalse("source untouched", changedMap.containsKey("9z"));
+    	changedMap.remove("9x");
+    	assertEquals("copied entries kept", Integer.valueOf(1), merged.get("9x"));
+    }
+    
+    /**
+     * Test of the compute, merge and replace methods against a hash map.
+     */
+    public void testCompute() {
+    	TrieMap<String, Integer> trieMap = new TrieMap<String, Integer>();
+    	Map<String, Integer> hashMap = new HashMap<String, Integer>();
+    	Random random = new Random(17);
+    	for (int i = 0; i < 5000; i++) {
+    		String key = Integer.toString(random.nextInt(300), 4);
+    		final int value = random.nextInt(5);
+    		switch (random.nextInt(8)) {
+    		case 0:
+    			assertEquals("merge", hashMap.merge(key, value, Integer::sum), trieMap.merge(key, value, Integer::sum));
+    			break;
+    		case 1:
+    			BiFunction<String, Integer, Integer> remapping = (k, v) -> v == null || v < 3 ? Integer.valueOf(value) : null;
+    			assertEquals("compute", hashMap.compute(key, remapping), trieMap.compute(key, remapping));
+    			break;
+    		case 2:
+    			Function<String, Integer> mapping = k -> value == 0 ? null : Integer.valueOf(value);
+    			assertEquals("computeIfAbsent", hashMap.computeIfAbsent(key, mapping), trieMap.computeIfAbsent(key, mapping));
+    			break;
+    		case 3:
+    			BiFunction<String, Integer, Integer> present = (k, v) -> v > 2 ? null : v + 1;
+    			assertEquals("computeIfPresent", hashMap.computeIfPresent(key, present), trieMap.computeIfPresent(key, present));
+    			break;
+    		case 4:
+    			assertEquals("putIfAbsent", hashMap.putIfAbsent(key, value), trieMap.putIfAbsent(key, value));
+    			break;
+    		case 5:
+    			assertEquals("replace", hashMap.replace(key, value), trieMap.replace(key, value));
+    			break;
+    		case 6:
+    			assertEquals("conditional replace", hashMap.replace(key, value, value + 1), trieMap.replace(key, value, value + 1));
+    			break;
+    		default:
+    			assertEquals("conditional remove", hashMap.remove(key, value), trieMap.remove(key, value));
+    		}
+    		assertEquals("size", hashMap.size(), trieMap.size());
+    	}
+    	assertEquals("map", hashMap, trieMap);
+    	assertEquals("getOrDefault", Integer.valueOf(-1), trieMap.getOrDefault("x", -1));
+    	
+    	TrieMap<String, Integer> copy = new TrieMap<String, Integer>();
+    	copy.putAll(hashMap);
+    	assertEquals("no empty nodes left", copy.stats().getNodeCount(), trieMap.stats().getNodeCount());
+    	try {
+    		trieMap.computeIfAbsent("zzz", k -> {
+    			throw new IllegalStateException();
+    		});
+    		fail("exception from mapping function");
+    	}
+    	catch (IllegalStateException e) {
+    		assertEquals("pruned after exception", copy.stats().getNodeCount(), trieMap.stats().getNodeCount());
+    	}
+    	try {
+    		trieMap.computeIfAbsent("zzz", k -> {
+    			trieMap.put("yyy", 1);
+    			return 2;
+    		});
+    		fail("mapping function modified the map");
+    	}
+    	catch (ConcurrentModificationException e) {
+    		assertNull("not stored", trieMap.get("zzz"));
+    		trieMap.remove("yyy");
+    		assertEquals("pruned after modification", copy.stats().getNodeCount(), trieMap.stats().getNodeCount());
+    	}
+    	
+    	TrieSet<String> trieSet = new TrieSet<String>();
+    	assertTrue("add", trieSet.add("a"));
+    	assertFalse("add again", trieSet.add("a"));
+    	assertTrue("add null", trieSet.add(null));
+    	assertTrue("remove", trieSet.remove("a"));
+    	assertFalse("remove again", trieSet.remove("a"));
+    	assertEquals("set size", 1, trieSet.size());
+    }
+    
+    /**
+     * Test of setValue on the entries of the entry set.
+     */
+    public void testEntrySetValue() {
+    	TrieMap<String, String> trieMap = new TrieMap<String, String>();
+    	trieMap.put("bar", "1");
+    	trieMap.put("foo", "2");
+    	Map.Entry<String, String> entry = trieMap.entrySet().iterator().next();
+    	assertEquals("old value", "1", entry.setValue("3"));
+    	assertEquals("value written through", "3", trieMap.get("bar"));
+    	assertEquals("put returns old value", "3", trieMap.put("bar", "1"));
+    	assertEquals("entry sees put", "1", entry.getValue());
+    	assertEquals("entry equality", new AbstractMap.SimpleEntry<String, String>("bar", "1"), entry);
+    	assertEquals("entry toString", "bar=1", entry.toString());
+    	assertTrue("entry set contains", trieMap.entrySet().contains(new AbstractMap.SimpleEntry<String, String>("foo", "2")));
+    	assertEquals("remove returns value", "1", trieMap.remove("bar"));
+    	assertEquals("size after remove", 1, trieMap.size());
+    	assertNull("removed entry key", entry.getKey());
+    	assertNull("removed entry value", entry.getValue());
+    	try {
+    		entry.setValue("4");
+    		fail("setValue on removed entry");
+    	}
+    	catch (IllegalStateException e) {
+    		// expected
+    	}
+    	assertFalse("not written through", trieMap.containsKey("bar"));
+    }
+    
+    /**
+     * Test of prefixJoin.
+     */
+    public void testPrefixJoin() {
+    	TrieMap<String, String> prefixes = new TrieMap<String, String>();
+    	prefixes.put("ab", "");
+    	prefixes.put("abc", "");
+    	prefixes.put("b", "");
+    	prefixes.put("x", "");
+    	TrieMap<String, Integer> words = new TrieMap<String, Integer>();
+    	words.put("a", 1);
+    	words.put("ab", 2);
+    	words.put("abd", 3);
+    	words.put("abc", 4);
+    	words.put("bcd", 5);
+    	words.put("c", 6);
+    	Map<String, List<String>> joined = prefixes.prefixJoin(words);
+    	assertEquals("joined", "{ab=[ab, abc, abd], abc=[abc], b=[bcd]}", joined.toString());
+    	assertEquals("join from words", "{a=[ab, abc], ab=[ab, abc], abc=[abc]}", words.prefixJoin(prefixes).toString());
+    	
+    	prefixes.put("", "");
+    	assertEquals("empty prefix joins everything", words.size(), prefixes.prefixJoin(words).get("").size());
+    	assertTrue("join with empty map", prefixes.prefixJoin(new TrieMap<String, Integer>()).isEmpty());
+    }
+    
+    /**
+     * Test of removePrefix, retainPrefix and prefixMap.
+     */
+    public void testPrefixOperations() {
+    	TrieMap<String, String> trieMap = new TrieMap<String, String>();
+    	Map<String, String> treeMap = new TreeMap<String, String>();
+    	Random random = new Random(3);
+    	for (int i = 0; i < 2000; i++) {
+    		String key = Integer.toString(random.nextInt(100000), 5);
+    		trieMap.put(key, key);
+    		treeMap.put(key, key);
+    	}
+    	trieMap.put("", "");
+    	treeMap.put("", "");
+    	
+    	Map<String, String> prefixMap = trieMap.prefixMap("12");
+    	Map<String, String> expected = new TreeMap<String, String>();
+    	for (String key : treeMap.keySet()) {
+    		if (key.startsWith("12")) {
+    			expected.put(key, key);
+    		}
+    	}
+    	assertEquals("prefix map", expected, prefixMap);
+    	assertEquals("prefix map order", new ArrayList<String>(expected.keySet()), new ArrayList<String>(prefixMap.keySet()));
+    	assertNull("get outside prefix", prefixMap.get("2"));
+    	assertEquals("put in prefix map", null, prefixMap.put("12x", "12x"));
+    	assertEquals("put visible in map", "12x", trieMap.get("12x"));
+    	try {
+    		prefixMap.put("2x", "2x");
+    		fail("put outside prefix");
+    	}
+    	catch (IllegalArgumentException e) {
+    		// expected
+    	}
+    	Iterator<String> iterator = prefixMap.keySet().iterator();
+    	String removedKey = iterator.next();
+    	iterator.remove();
+    	treeMap.remove(removedKey);
+    	
+    	int expectedRemoved = expected.size();
+    	prefixMap.clear();
+    	assertTrue("prefix map cleared", prefixMap.isEmpty());
+    	for (Iterator<String> keys = treeMap.keySet().iterator(); keys.hasNext();) {
+    		if (keys.next().startsWith("12")) {
+    			keys.remove();
+    		}
+    	}
+    	assertEquals("map after clear of prefix map", treeMap, trieMap);
+    	assertEquals("size after clear of prefix map", treeMap.size(), trieMap.size());
+    	assertTrue("removed by clear", expectedRemoved > 0);
+    	
+    	int removed = trieMap.removePrefix("3");
+    	int count = 0;
+    	for (Iterator<String> keys = treeMap.keySet().iterator(); keys.hasNext();) {
+    		if (keys.next().startsWith("3")) {
+    			keys.remove();
+    			count++;
+    		}
+    	}
+    	assertEquals("removePrefix count", count, removed);
+    	assertEquals("map after removePrefix", treeMap, trieMap);
+    	assertEquals("rank after removePrefix", treeMap.size(), trieMap.rank("5"));
+    	assertEquals("removePrefix of missing prefix", 0, trieMap.removePrefix("9"));
+    	
+    	removed = trieMap.retainPrefix("4");
+    	count = 0;
+    	for (Iterator<String> keys = treeMap.keySet().iterator(); keys.hasNext();) {
+    		if (keys.next().startsWith("4") == false) {
+    			keys.remove();
+    			count++;
+    		}
+    	}
+    	assertEquals("retainPrefix count", count, removed);
+    	assertEquals("map after retainPrefix", treeMap, trieMap);
+    	assertEquals("countPrefix after retainPrefix", treeMap.size(), trieMap.countPrefix("4"));
+    	assertEquals("select after retainPrefix", treeMap.keySet().iterator().next(), trieMap.select(0));
+    	trieMap.put("1", "1");
+    	assertEquals("put after retainPrefix", treeMap.size() + 1, trieMap.size());
+    	
+    	assertEquals("removePrefix of everything", trieMap.size(), trieMap.removePrefix(null));
+    	assertTrue("empty after removePrefix of everything", trieMap.isEmpty());
+    }
+    
+    /**
+     * Test of structural statistics and operation counters.
+     */
+    public void testStats() throws Exception {
+    	TrieMap<String, String> trieMap = new TrieMap<String, String>();
+    	trieMap.put("bar", VALUE_01);
+    	trieMap.put("baz", VALUE_01);
+    	trieMap.put("foo", VALUE_02);
+    	TrieStats stats = trieMap.stats();
+    	assertEquals("node count", 8, stats.getNodeCount());
+    	assertEquals("entry count", 3, stats.getEntryCount());
+    	assertEquals("max depth", 3, stats.getMaxDepth());
+    	assertEquals("nodes at depth 3", 3, stats.getDepthHistogram()[3]);
+    	assertEquals("leaf nodes", 3, stats.getFanoutHistogram()[0]);
+    	assertEquals("nodes with two children", 2, stats.getFanoutHistogram()[2]);
+    	assertTrue("estimated size", stats.getEstimatedSize() > 0);
+    	
+    	TrieCounters counters = trieMap.enableCounters();
+    	counters.register("testStats");
+    	counters.setEventName("testStats");
+    	assertEquals("flight recorder events on Java 9 and later", System.getProperty("java.specification.version").startsWith("1.") == false, TrieCounters.isEventSupported());
+    	trieMap.get("bar");
+    	trieMap.get("bax");
+    	trieMap.containsKey("foo");
+    	trieMap.put("zot", VALUE_03);
+    	trieMap.remove("zot");
+    	trieMap.keySet().iterator();
+    	assertEquals("gets", 3, counters.getGets());
+    	assertEquals("misses", 1, counters.getMisses());
+    	assertEquals("puts", 1, counters.getPuts());
+    	assertEquals("removes", 1, counters.getRemoves());
+    	assertEquals("iterator restarts", 1, counters.getIteratorRestarts());
+    	assertTrue("nodes visited", counters.getNodesVisitedPerLookup() >= 3);
+    	assertEquals("gets through JMX", 3L, ManagementFactory.getPlatformMBeanServer()
+    			.getAttribute(new ObjectName("dk.lundesgaard.util:type=TrieCounters,name=\"testStats\""), "Gets"));
+    	counters.setEventName(null);
+    	counters.unregister();
+    }
+    
+    /**
+     * Test that the estimated size is close to the size measured by JOL, keys
+     * and values excluded.
+     */
+    public void testEstimatedSize() {
+    	Random random = new Random(42);
+    	TrieMap<String, Object> trieMap = new TrieMap<String, Object>();
+    	List<Object> keysAndValue = new ArrayList<Object>();
+    	keysAndValue.add(Boolean.TRUE);
+    	for (int i = 0; i < 2000; i++) {
+    		String key = Integer.toHexString(random.nextInt());
+    		trieMap.put(key, Boolean.TRUE);
+    		keysAndValue.add(key);
+    	}
+    	long measured = GraphStats.parseInstance(trieMap).totalSize() - GraphStats.parseInstance(keysAndValue.toArray()).totalSize();
+    	long estimated = trieMap.stats().getEstimatedSize();
+    	assertTrue("estimated " + estimated + " bytes, measured " + measured, Math.abs(estimated - measured) < measured / 200);
+    }
+    
     private void emptyMapTests(TrieMap trieMap) {
     	assertTrue("is empty", trieMap.isEmpty());
     	assertEquals("size == 0", 0, trieMap.size());
@@ -319,20 +841,39 @@ public class TrieMapTest extends TestCase
     	Map<String, String> map1 = new TrieMap<String, String>();
     	Map<String, String> map2 = new HashMap<String, String>();
     	Map<String, String> map3 = new TreeMap<String, String>();
+    	Map<String, String> map5 = new ArenaTrieMap<String, String>();
     	
     	Map<Long, String> testResults = new TreeMap<Long, String>();
     	runPutTest(testResults, map1, testData, runs);
     	runPutTest(testResults, map2, testData, runs);
     	runPutTest(testResults, map3, testData, runs);
+    	runPutTest(testResults, map5, testData, runs);
     	System.out.println("put operation: ");
     	printResults(testResults);
     	
+    	Map<String, String> map4 = ((TrieMap<String, String>) map1).compile();
+    	
     	testResults.clear();
     	runGetTest(testResults, map1, testData, runs);
     	runGetTest(testResults, map2, testData, runs);
     	runGetTest(testResults, map3, testData, runs);
+    	runGetTest(testResults, map4, testData, runs);
+    	runGetTest(testResults, map5, testData, runs);
     	System.out.println("get operation: ");
     	printResults(testResults);
+    	
+    	Properties missData = new Properties();
+    	for (String key : testData.stringPropertyNames()) {
+    		missData.setProperty(key + "#", key);
+    	}
+    	testResults.clear();
+    	runGetTest(testResults, map1, missData, runs);
+    	runGetTest(testResults, map2, missData, runs);
+    	runGetTest(testResults, map3, missData, runs);
+    	runGetTest(testResults, map4, missData, runs);
+    	runGetTest(testResults, map5, missData, runs);
+    	System.out.println("get operation (miss): ");
+    	printResults(testResults);
     }
     
     private void printResults(Map<Long, String> testResults) {
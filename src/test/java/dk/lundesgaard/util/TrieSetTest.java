@@ -1,5 +1,9 @@
 package dk.lundesgaard.util;
 
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+
 import junit.framework.Test;
 import junit.framework.TestCase;
 import junit.framework.TestSuite;
@@ -27,4 +31,65 @@ public class TrieSetTest extends TestCase {
     public void testSet() {
     	// TODO
     }
+    
+    /**
+     * Test of union, intersection, difference and symmetricDifference.
+     */
+    public void testSetAlgebra() {
+    	TrieSet<String> a = new TrieSet<String>();
+    	TrieSet<String> b = new TrieSet<String>();
+    	Set<String> treeA = new TreeSet<String>();
+    	Set<String> treeB = new TreeSet<String>();
+    	Random random = new Random(7);
+    	for (int i = 0; i < 3000; i++) {
+    		String key = Integer.toString(random.nextInt(20000), 6);
+    		if (random.nextBoolean()) {
+    			a.add(key);
+    			treeA.add(key);
+    		}
+    		else {
+    			b.add(key);
+    			treeB.add(key);
+    		}
+    	}
+    	a.add("");
+    	treeA.add("");
+    	
+    	Set<String> expected = new TreeSet<String>(treeA);
+    	expected.addAll(treeB);
+    	assertSetEquals("union", expected, a.union(b));
+    	expected = new TreeSet<String>(treeA);
+    	expected.retainAll(treeB);
+    	assertSetEquals("intersection", expected, a.intersection(b));
+    	expected = new TreeSet<String>(treeA);
+    	expected.removeAll(treeB);
+    	assertSetEquals("difference", expected, a.difference(b));
+    	Set<String> symmetric = new TreeSet<String>(expected);
+    	expected = new TreeSet<String>(treeB);
+    	expected.removeAll(treeA);
+    	symmetric.addAll(expected);
+    	assertSetEquals("symmetric difference", symmetric, a.symmetricDifference(b));
+    	assertSetEquals("intersection with empty set", new TreeSet<String>(), a.intersection(new TrieSet<String>()));
+    	assertSetEquals("difference with itself", new TreeSet<String>(), a.difference(a));
+    	
+    	TrieSet<String> union = a.union(b);
+    	union.add("new");
+    	assertFalse("new set is independent", a.contains("new") || b.contains("new"));
+    	union.remove(treeA.iterator().next());
+    	assertTrue("source unchanged", a.contains(treeA.iterator().next()));
+    }
+    
+    private void assertSetEquals(String message, Set<String> expected, TrieSet<String> actual) {
+    	assertEquals(message, expected, actual);
+    	assertEquals(message + " size", expected.size(), actual.size());
+    	StringBuilder expectedOrder = new StringBuilder();
+    	for (String key : expected) {
+    		expectedOrder.append(key).append(',');
+    	}
+    	StringBuilder actualOrder = new StringBuilder();
+    	for (String key : actual) {
+    		actualOrder.append(key).append(',');
+    	}
+    	assertEquals(message + " order", expectedOrder.toString(), actualOrder.toString());
+    }
 }
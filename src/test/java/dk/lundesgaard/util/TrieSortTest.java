@@ -0,0 +1,207 @@
+/*
+ * Copyright 2007 Georg Lundesgaard (georg@lundesgaard.dk)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.lundesgaard.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.TreeSet;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Tests of {@link TrieSort}, and a benchmark against 
+ * {@link Arrays#sort(Object[])} and {@link Arrays#parallelSort(Comparable[])} 
+ * on URL-like keys and phrases of dictionary words. The number of keys is 
+ * set with the system property <code>triesort.size</code> (default 100000), 
+ * e.g. <code>mvn test -Dtest=TrieSortTest -Dtriesort.size=10000000</code> 
+ * with a larger heap.
+ */
+public class TrieSortTest extends TestCase {
+	private static final String FILE_TESTDATA_DICT = "testdata_dict.properties";
+	private static final long SEED = 20070114L;
+	private static final int BENCHMARK_RUNS = 3;
+	private static final Comparator<byte[]> UNSIGNED = new Comparator<byte[]>() {
+		public int compare(byte[] a, byte[] b) {
+			for (int i = 0; i < a.length && i < b.length; i++) {
+				int c = (a[i] & 0xFF) - (b[i] & 0xFF);
+				if (c != 0) {
+					return c;
+				}
+			}
+			return a.length - b.length;
+		}
+	};
+	
+    /**
+     * Create the test case.
+     *
+     * @param testName name of the test case
+     */
+    public TrieSortTest( String testName )
+    {
+        super( testName );
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite()
+    {
+        return new TestSuite( TrieSortTest.class );
+    }
+    
+    public void testSort() throws IOException {
+    	for (String dataSet : new String[] { "urls", "dict" }) {
+    		String[] strings = generate(dataSet, 50000);
+    		String[] expected = strings.clone();
+    		Arrays.sort(expected);
+    		TrieSort.sort(strings);
+    		assertTrue(dataSet, Arrays.equals(expected, strings));
+    	}
+    	
+    	String[] small = { "b", "", "a\u0100", "ab", "a\u00ff", "a", "\u4e2d" };
+    	String[] expected = small.clone();
+    	Arrays.sort(expected);
+    	TrieSort.sort(small);
+    	assertTrue(Arrays.equals(expected, small));
+    }
+    
+    public void testStable() {
+    	// distinct instances of few values, with long shared prefixes and wide characters
+    	Random random = new Random(SEED);
+    	String[] values = { "", "x", "prefix/", "prefix/a", "prefix/\u4e2d", "prefix/\u4e2d\u6587", "prefix/\u00e6" };
+    	String[] strings = new String[30000];
+    	for (int i = 0; i < strings.length; i++) {
+    		strings[i] = new String(values[random.nextInt(values.length)]);
+    	}
+    	String[] expected = strings.clone();
+    	// Arrays.sort of objects is a stable merge sort
+    	Arrays.sort(expected);
+    	TrieSort.sort(strings);
+    	for (int i = 0; i < strings.length; i++) {
+    		assertSame("position " + i, expected[i], strings[i]);
+    	}
+    }
+    
+    public void testBytes() {
+    	Random random = new Random(SEED);
+    	byte[][] keys = new byte[40000][];
+    	for (int i = 0; i < keys.length; i++) {
+    		keys[i] = new byte[random.nextInt(6)];
+    		random.nextBytes(keys[i]);
+    		if (keys[i].length > 0) {
+    			// shared first bytes make the buckets burst
+    			keys[i][0] = (byte) (random.nextBoolean() ? 0x7F : 0x80);
+    		}
+    	}
+    	byte[][] expected = keys.clone();
+    	Arrays.sort(expected, UNSIGNED);
+    	TrieSort.sort(keys);
+    	for (int i = 0; i < keys.length; i++) {
+    		assertSame("position " + i, expected[i], keys[i]);
+    	}
+    }
+    
+    public void testListAndSet() throws IOException {
+    	String[] strings = generate("dict", 5000);
+    	List<String> list = new LinkedList<String>(Arrays.asList(strings));
+    	List<String> expected = new ArrayList<String>(list);
+    	Collections.sort(expected);
+    	TrieSort.sort(list);
+    	assertEquals(expected, list);
+    	
+    	TrieSet<String> set = TrieSort.sortedSet(Arrays.asList(strings));
+    	assertEquals(new TreeSet<String>(expected), set);
+    	assertEquals(new ArrayList<String>(new TreeSet<String>(expected)), new ArrayList<String>(set));
+    }
+    
+    public void testBenchmark() throws IOException {
+    	int size = Integer.getInteger("triesort.size", 100000);
+    	System.out.println("\nSort benchmark, best of " + BENCHMARK_RUNS + " runs (ms)");
+    	for (String dataSet : new String[] { "urls", "dict" }) {
+    		String[] strings = generate(dataSet, size);
+    		long trieSort = Long.MAX_VALUE;
+    		long sort = Long.MAX_VALUE;
+    		long parallelSort = Long.MAX_VALUE;
+    		for (int run = 0; run < BENCHMARK_RUNS; run++) {
+    			String[] copy = strings.clone();
+    			long start = System.nanoTime();
+    			TrieSort.sort(copy);
+    			trieSort = Math.min(trieSort, System.nanoTime() - start);
+    			copy = strings.clone();
+    			start = System.nanoTime();
+    			Arrays.sort(copy);
+    			sort = Math.min(sort, System.nanoTime() - start);
+    			copy = strings.clone();
+    			start = System.nanoTime();
+    			Arrays.parallelSort(copy);
+    			parallelSort = Math.min(parallelSort, System.nanoTime() - start);
+    		}
+    		System.out.println(String.format("\t%-6s %10d  TrieSort %8.1f  Arrays.sort %8.1f  Arrays.parallelSort %8.1f", 
+    				dataSet, size, trieSort / 1e6, sort / 1e6, parallelSort / 1e6));
+    	}
+    }
+    
+    /**
+     * Generates seeded keys, duplicates included: URLs of a few hundred 
+     * hosts, or phrases of two to four dictionary words.
+     */
+    private static String[] generate(String dataSet, int count) throws IOException {
+    	Random random = new Random(SEED);
+    	String[] words = dictionary();
+    	String[] keys = new String[count];
+    	StringBuilder key = new StringBuilder();
+    	for (int i = 0; i < count; i++) {
+    		key.setLength(0);
+    		if (dataSet.equals("urls")) {
+    			key.append(random.nextInt(4) == 0 ? "http://" : "https://");
+    			key.append("www.").append(words[random.nextInt(300)]).append(random.nextBoolean() ? ".com" : ".org");
+    			for (int segments = 1 + random.nextInt(3); segments > 0; segments--) {
+    				key.append('/').append(words[random.nextInt(words.length)]);
+    			}
+    			key.append("?id=").append(random.nextInt(1000000));
+    		}
+    		else {
+    			for (int n = 2 + random.nextInt(3); n > 0; n--) {
+    				key.append(words[random.nextInt(words.length)]).append(n > 1 ? " " : "");
+    			}
+    		}
+    		keys[i] = key.toString();
+    	}
+    	return keys;
+    }
+    
+    private static String[] dictionary() throws IOException {
+    	Properties properties = new Properties();
+    	InputStream in = TrieSortTest.class.getResourceAsStream(FILE_TESTDATA_DICT);
+    	properties.load(in);
+    	in.close();
+    	String[] words = properties.stringPropertyNames().toArray(new String[0]);
+    	// property order is not defined
+    	Arrays.sort(words);
+    	return words;
+    }
+}
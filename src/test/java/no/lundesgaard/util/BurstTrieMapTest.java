@@ -0,0 +1,99 @@
+package no.lundesgaard.util;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class BurstTrieMapTest {
+    @Test
+    public void testAgainstTrieMap() {
+        Random random = new Random(1);
+        TrieMap<String, Integer> trieMap = new TrieMap<>();
+        BurstTrieMap<String, Integer> burstMap = new BurstTrieMap<>(8);
+        for (int i = 0; i < 5000; i++) {
+            String key = randomKey(random);
+            assertEquals("put " + key, trieMap.put(key, i), burstMap.put(key, i));
+        }
+        trieMap.put("", -1);
+        burstMap.put("", -1);
+        assertEquals("size", trieMap.size(), burstMap.size());
+        assertEquals("same order", new ArrayList<>(trieMap.entrySet()), new ArrayList<>(burstMap.entrySet()));
+        assertEquals("equals trie map", trieMap, burstMap);
+        assertEquals("count prefix", trieMap.countPrefix("a"), burstMap.countPrefix("a"));
+        assertEquals("count long prefix", trieMap.countPrefix("ab"), burstMap.countPrefix("ab"));
+        assertEquals("count empty prefix", trieMap.size(), burstMap.countPrefix(""));
+        assertTrue("burst", burstMap.getNodeCount() > 1);
+        assertNull("key of other type", burstMap.get(new StringBuilder("a")));
+
+        for (int i = 0; i < 5000; i++) {
+            String key = randomKey(random);
+            assertEquals("remove " + key, trieMap.remove(key), burstMap.remove(key));
+        }
+        for (Iterator<Map.Entry<String, Integer>> iterator = burstMap.entrySet().iterator(); iterator.hasNext(); ) {
+            Map.Entry<String, Integer> entry = iterator.next();
+            if (entry.getValue() % 3 == 0) {
+                iterator.remove();
+                trieMap.remove(entry.getKey());
+            } else if (entry.getValue() % 3 == 1) {
+                entry.setValue(-entry.getValue());
+                trieMap.put(entry.getKey(), entry.getValue());
+            }
+        }
+        assertEquals("equals after remove", trieMap, burstMap);
+        assertEquals("same order after remove", new ArrayList<>(trieMap.keySet()), new ArrayList<>(burstMap.keySet()));
+
+        for (String key : new ArrayList<>(burstMap.keySet())) {
+            burstMap.remove(key);
+        }
+        assertTrue("empty", burstMap.isEmpty());
+        assertEquals("pruned nodes", 1, burstMap.getNodeCount());
+        assertEquals("pruned buckets", 0, burstMap.getBucketCount());
+    }
+
+    @Test
+    public void testUniqueTails() {
+        TrieMap<String, Integer> trieMap = new TrieMap<>();
+        BurstTrieMap<String, Integer> burstMap = new BurstTrieMap<>();
+        Random random = new Random(2);
+        for (int i = 0; i < 20000; i++) {
+            String key = "order/" + new UUID(random.nextLong(), random.nextLong());
+            trieMap.put(key, i);
+            burstMap.put(key, i);
+        }
+        assertEquals("equals trie map", trieMap, burstMap);
+        int trieNodes = trieMap.stats().getNodeCount();
+        int burstNodes = burstMap.getNodeCount() + burstMap.getBucketCount();
+        assertTrue("nodes " + burstNodes + " vs " + trieNodes, burstNodes * 10 < trieNodes);
+    }
+
+    @Test
+    public void testNonAsciiAndNull() {
+        BurstTrieMap<String, String> burstMap = new BurstTrieMap<>(1);
+        TrieMap<String, String> trieMap = new TrieMap<>();
+        for (String key : new String[] { "a", "\u00e6", "\u00e6\u00f8", "z", "\u4e2d\u6587", "ab", "\ud83d\ude00" }) {
+            burstMap.put(key, key);
+            trieMap.put(key, key);
+        }
+        assertEquals("unsigned byte order", new ArrayList<>(trieMap.keySet()), new ArrayList<>(burstMap.keySet()));
+        burstMap.put(null, "null");
+        assertEquals("null key", "null", burstMap.get(null));
+        assertNull("empty key is another key", burstMap.get(""));
+        assertEquals("remove null key", "null", burstMap.remove(null));
+        assertEquals("size", 7, burstMap.size());
+    }
+
+    private static String randomKey(Random random) {
+        StringBuilder key = new StringBuilder();
+        int length = 1 + random.nextInt(6);
+        for (int i = 0; i < length; i++) {
+            key.append((char) ('a' + random.nextInt(4)));
+        }
+        return key.toString();
+    }
+}
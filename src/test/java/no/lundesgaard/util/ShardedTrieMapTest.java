@@ -0,0 +1,98 @@
+package no.lundesgaard.util;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ShardedTrieMapTest {
+    @Test
+    public void testOrder() {
+        Random random = new Random(1);
+        TrieMap<String, Integer> trieMap = new TrieMap<>();
+        ShardedTrieMap<String, Integer> shardedMap = new ShardedTrieMap<>(8);
+        for (int i = 0; i < 5000; i++) {
+            String key = randomKey(random);
+            trieMap.put(key, i);
+            shardedMap.put(key, i);
+        }
+        assertEquals("equals trie map", trieMap, shardedMap);
+        assertEquals("size", trieMap.size(), shardedMap.size());
+        assertEquals("same order", new ArrayList<>(trieMap.keySet()), new ArrayList<>(shardedMap.keySet()));
+        assertEquals("count prefix", trieMap.countPrefix("a"), shardedMap.countPrefix("a"));
+        assertEquals("count empty prefix", trieMap.size(), shardedMap.countPrefix(""));
+
+        for (Iterator<String> iterator = shardedMap.keySet().iterator(); iterator.hasNext(); ) {
+            String key = iterator.next();
+            if (key.length() % 2 == 0) {
+                iterator.remove();
+                trieMap.remove(key);
+            }
+        }
+        assertEquals("equals after remove", trieMap, shardedMap);
+        shardedMap.clear();
+        assertTrue("empty after clear", shardedMap.isEmpty());
+    }
+
+    @Test
+    public void testConcurrentWriters() throws InterruptedException {
+        ShardedTrieMap<String, Integer> shardedMap = new ShardedTrieMap<>();
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            int thread = t;
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 2000; i++) {
+                    shardedMap.put(Integer.toString(i, 36) + "/" + thread, i);
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals("size", 16000, shardedMap.size());
+        assertEquals("get", Integer.valueOf(100), shardedMap.get(Integer.toString(100, 36) + "/3"));
+    }
+
+    @Test
+    public void testParallelPutAll() {
+        Random random = new Random(2);
+        Map<String, Integer> hashMap = new HashMap<>();
+        for (int i = 0; i < 50000; i++) {
+            hashMap.put(randomKey(random), i);
+        }
+        ShardedTrieMap<String, Integer> shardedMap = new ShardedTrieMap<>(32);
+        shardedMap.putAll(hashMap);
+        assertEquals("equals", hashMap, shardedMap);
+        TrieMap<String, Integer> trieMap = new TrieMap<>(hashMap);
+        List<String> keys = new ArrayList<>(shardedMap.keySet());
+        assertEquals("same order", new ArrayList<>(trieMap.keySet()), keys);
+    }
+
+    private static String randomKey(Random random) {
+        StringBuilder key = new StringBuilder();
+        int length = random.nextInt(8);
+        for (int i = 0; i < length; i++) {
+            switch (random.nextInt(4)) {
+                case 0:
+                    key.append((char) ('a' + random.nextInt(26)));
+                    break;
+                case 1:
+                    key.append((char) (0xC0 + random.nextInt(0x100)));
+                    break;
+                case 2:
+                    key.append((char) (0x4E00 + random.nextInt(100)));
+                    break;
+                default:
+                    key.appendCodePoint(0x1F600 + random.nextInt(50));
+            }
+        }
+        return key.toString();
+    }
+}
@@ -0,0 +1,96 @@
+package no.lundesgaard.util;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.*;
+
+public class TrieInternerTest {
+    private static final String[] STRINGS = {
+            "", "host-01.example.com", "host-02.example.com", "host", "bl\u00e5b\u00e6r", "\u20ac 10", "\ud83d\ude00 smile"
+    };
+
+    @Test
+    public void testIntern() {
+        TrieInterner interner = new TrieInterner();
+        for (String string : STRINGS) {
+            String canonical = interner.intern(new StringBuilder(string));
+            assertEquals("interned " + string, string, canonical);
+            assertSame("same instance from chars", canonical, interner.intern(new String(string.toCharArray())));
+            byte[] bytes = ("xx" + string + "yy").getBytes(UTF_8);
+            int length = bytes.length - 4;
+            assertSame("same instance from bytes", canonical, interner.intern(bytes, 2, length));
+            assertSame("same instance from buffer", canonical, interner.intern(ByteBuffer.wrap(bytes), 2, length));
+        }
+        assertEquals("size", STRINGS.length, interner.size());
+
+        String byBytes = interner.intern("new key".getBytes(UTF_8), 0, 7);
+        assertSame("bytes first", byBytes, interner.intern("new key"));
+        String loneSurrogate = "a\ud800";
+        assertEquals("unpaired surrogate", loneSurrogate, interner.intern(new StringBuilder(loneSurrogate)));
+        assertEquals("unpaired surrogate not pooled", STRINGS.length + 1, interner.size());
+        assertNotEquals("no collision with replacement", loneSurrogate, interner.intern("a?"));
+    }
+
+    @Test
+    public void testWeak() throws InterruptedException {
+        TrieInterner interner = new TrieInterner(TrieInterner.Strength.WEAK);
+        String canonical = interner.intern(new StringBuilder("kept"));
+        for (int i = 0; i < 1000; i++) {
+            interner.intern(new StringBuilder("dropped-").append(i));
+        }
+        assertSame("weakly held", canonical, interner.intern(new StringBuilder("kept")));
+        // the collector decides when the dropped strings go, give it a few rounds
+        for (int round = 0; round < 100 && interner.size() > 1; round++) {
+            System.gc();
+            Thread.sleep(10);
+            interner.purge();
+        }
+        assertEquals("collected entries purged", 1, interner.size());
+        assertSame("kept after purge", canonical, interner.intern("kept"));
+        String dropped = interner.intern("dropped-1");
+        assertSame("re-interned", dropped, interner.intern(new StringBuilder("dropped-1")));
+    }
+
+    @Test
+    public void testStriped() throws Exception {
+        StripedTrieInterner interner = new StripedTrieInterner(8, TrieInterner.Strength.STRONG);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<String[]>> futures = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                futures.add(executor.submit(() -> {
+                    String[] canonical = new String[1000];
+                    for (int i = 0; i < canonical.length; i++) {
+                        String string = "tag-" + i % 100 + "-" + i;
+                        canonical[i] = i % 2 == 0
+                                ? interner.intern(new StringBuilder(string))
+                                : interner.intern(string.getBytes(UTF_8), 0, string.length());
+                    }
+                    return canonical;
+                }));
+            }
+            String[] first = futures.get(0).get();
+            for (Future<String[]> future : futures) {
+                String[] canonical = future.get();
+                for (int i = 0; i < canonical.length; i++) {
+                    assertSame("same instance in all threads", first[i], canonical[i]);
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals("size", 1000, interner.size());
+        for (String string : STRINGS) {
+            byte[] bytes = string.getBytes(UTF_8);
+            assertSame("same stripe for chars and bytes " + string, interner.intern(string), interner.intern(bytes, 0, bytes.length));
+        }
+    }
+}
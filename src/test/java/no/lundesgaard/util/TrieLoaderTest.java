@@ -0,0 +1,93 @@
+package no.lundesgaard.util;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.*;
+
+public class TrieLoaderTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testLoadKeys() throws IOException {
+        Path file = write("bar\nfoo\r\n\nb\u00e6r\nbar\nzot");
+        TrieMap<String, Boolean> map = new TrieMap<>();
+        long lines = TrieLoader.<Boolean>forStrings().withDefaultValue(Boolean.TRUE).load(file, map);
+        assertEquals("lines", 5, lines);
+        assertEquals("size", 4, map.size());
+        assertEquals("get foo", Boolean.TRUE, map.get("foo"));
+        assertEquals("get b\u00e6r", Boolean.TRUE, map.get("b\u00e6r"));
+        assertEquals("get zot without newline", Boolean.TRUE, map.get("zot"));
+        assertEquals("count prefix", 2, map.countPrefix("b"));
+    }
+
+    @Test
+    public void testLoadValues() throws IOException {
+        Path file = write("bar\t1\nfoo\t2\nbaz\nbar\t3\n");
+        TrieMap<String, Integer> map = new TrieMap<>();
+        TrieLoader.<Integer>forStrings()
+                .withValues('\t', (buffer, offset, length) -> Integer.valueOf(TrieLoader.decodeString(buffer, offset, length)))
+                .withDefaultValue(0)
+                .load(file, map);
+        assertEquals("size", 3, map.size());
+        assertEquals("last value wins", Integer.valueOf(3), map.get("bar"));
+        assertEquals("get foo", Integer.valueOf(2), map.get("foo"));
+        assertEquals("default value", Integer.valueOf(0), map.get("baz"));
+    }
+
+    @Test
+    public void testChunkedAndParallel() throws IOException {
+        Random random = new Random(1);
+        Map<String, String> expected = new TreeMap<>();
+        StringBuilder content = new StringBuilder();
+        for (int i = 0; i < 20000; i++) {
+            String key = Integer.toString(random.nextInt(50000), 36);
+            String value = Integer.toString(i);
+            expected.put(key, value);
+            content.append(key).append('=').append(value).append('\n');
+        }
+        Path file = write(content.toString());
+
+        for (int parallelism = 1; parallelism <= 4; parallelism += 3) {
+            TrieMap<String, String> map = new TrieMap<>();
+            AtomicLong lastBytes = new AtomicLong();
+            long lines = TrieLoader.<String>forStrings()
+                    .withValues('=', TrieLoader::decodeString)
+                    .withChunkSize(4096)
+                    .withParallelism(parallelism)
+                    .withProgressListener((bytesLoaded, totalBytes, linesLoaded) -> lastBytes.accumulateAndGet(bytesLoaded, Math::max))
+                    .load(file, map);
+            assertEquals("lines, parallelism " + parallelism, 20000, lines);
+            assertEquals("map, parallelism " + parallelism, expected, map);
+            assertEquals("size, parallelism " + parallelism, expected.size(), map.size());
+            assertEquals("progress, parallelism " + parallelism, Files.size(file), lastBytes.get());
+            List<String> keys = new ArrayList<>(map.keySet());
+            assertEquals("select, parallelism " + parallelism, keys.get(100), map.select(100));
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testLineLongerThanChunk() throws IOException {
+        Path file = write("short\nthis line is too long\nshort\n");
+        TrieLoader.forStrings().withChunkSize(8).load(file, new TrieMap<>());
+    }
+
+    private Path write(String content) throws IOException {
+        Path file = folder.newFile().toPath();
+        Files.write(file, content.getBytes(UTF_8));
+        return file;
+    }
+}
@@ -1,8 +1,14 @@
 package no.lundesgaard.util;
 
+import dk.lundesgaard.util.TrieCounters;
+import dk.lundesgaard.util.TrieDiffListener;
+import dk.lundesgaard.util.TrieStats;
 import org.junit.Test;
+import org.openjdk.jol.info.GraphStats;
 
 import java.util.*;
+import java.util.function.BiFunction;
+import java.util.function.Function;
 
 import static org.junit.Assert.*;
 
@@ -116,6 +122,120 @@ public class TrieMapTest {
         assertEquals("hashCode when empty is 0", 0, trieMap.hashCode());
     }
 
+    @Test
+    public void testCounts() {
+        TrieMap<String, String> trieMap = new TrieMap<>();
+        String[] keys = {KEY_NULL, "b", "ba", "bar", "bas", "foo", "foobar", "\u00e6\u00f8\u00e5"};
+        for (String key : keys) {
+            trieMap.put(key, VALUE_01);
+        }
+        assertEquals("count prefix null", keys.length, trieMap.countPrefix(null));
+        assertEquals("count prefix \"b\"", 4, trieMap.countPrefix("b"));
+        assertEquals("count prefix \"ba\"", 3, trieMap.countPrefix("ba"));
+        assertEquals("count prefix \"x\"", 0, trieMap.countPrefix("x"));
+        for (int i = 0; i < keys.length; i++) {
+            assertEquals("rank of \"" + keys[i] + "\"", i, trieMap.rank(keys[i]));
+            assertEquals("select " + i, keys[i], trieMap.select(i));
+        }
+        assertEquals("rank of \"bat\"", 5, trieMap.rank("bat"));
+
+        trieMap.remove("ba");
+        trieMap.remove("foobar");
+        assertEquals("size after remove", keys.length - 2, trieMap.size());
+        assertEquals("count prefix \"b\" after remove", 3, trieMap.countPrefix("b"));
+        assertEquals("select 3 after remove", "bas", trieMap.select(3));
+
+        Random random = new Random(1);
+        for (int i = 0; i < 10; i++) {
+            assertTrue("random key is present", trieMap.containsKey(trieMap.randomKey(random)));
+        }
+    }
+
+    @Test
+    public void testStats() {
+        TrieMap<String, String> trieMap = new TrieMap<>();
+        trieMap.put("bar", VALUE_01);
+        trieMap.put("baz", VALUE_01);
+        trieMap.put("foo", VALUE_02);
+        TrieStats stats = trieMap.stats();
+        assertEquals("node count", 8, stats.getNodeCount());
+        assertEquals("entry count", 3, stats.getEntryCount());
+        assertEquals("max depth", 3, stats.getMaxDepth());
+        assertEquals("leaf nodes", 3, stats.getFanoutHistogram()[0]);
+        assertTrue("estimated size", stats.getEstimatedSize() > 0);
+
+        TrieCounters counters = trieMap.enableCounters();
+        trieMap.get("bar");
+        trieMap.get("bax");
+        trieMap.put("zot", VALUE_03);
+        trieMap.remove("zot");
+        assertEquals("gets", 2, counters.getGets());
+        assertEquals("misses", 1, counters.getMisses());
+        assertEquals("puts", 1, counters.getPuts());
+        assertEquals("removes", 1, counters.getRemoves());
+    }
+
+    @Test
+    public void testEstimatedSize() {
+        Random random = new Random(42);
+        TrieMap<String, Object> trieMap = new TrieMap<>();
+        List<Object> keysAndValue = new ArrayList<>();
+        keysAndValue.add(Boolean.TRUE);
+        for (int i = 0; i < 2000; i++) {
+            String key = Integer.toHexString(random.nextInt());
+            trieMap.put(key, Boolean.TRUE);
+            keysAndValue.add(key);
+        }
+        // keys and values are not part of the estimate
+        long measured = GraphStats.parseInstance(trieMap).totalSize() - GraphStats.parseInstance(keysAndValue.toArray()).totalSize();
+        long estimated = trieMap.stats().getEstimatedSize();
+        assertTrue("estimated " + estimated + " bytes, measured " + measured, Math.abs(estimated - measured) < measured / 200);
+    }
+
+    @Test
+    public void testCursor() {
+        TrieMap<String, String> trieMap = new TrieMap<>();
+        trieMap.put("bar", VALUE_01);
+        trieMap.put("baz", VALUE_01);
+        trieMap.put("foo", VALUE_02);
+        trieMap.put("food", VALUE_03);
+        trieMap.put("fox", VALUE_03);
+        trieMap.remove("fox");
+
+        TrieCursor<String, String> cursor = trieMap.cursor();
+        assertTrue("root is prefix", cursor.isPrefix());
+        assertArrayEquals("root children", new byte[]{'b', 'f'}, cursor.children());
+        assertTrue("advance f", cursor.advance((byte) 'f'));
+        assertTrue("advance o", cursor.advance((byte) 'o'));
+        assertArrayEquals("children without removed key", new byte[]{'o'}, cursor.children());
+        assertFalse("advance x", cursor.advance((byte) 'x'));
+        assertFalse("no value at fox", cursor.hasValue());
+        assertFalse("advance past the trie", cursor.advance((byte) 'y'));
+        assertEquals("depth off the trie", 4, cursor.depth());
+        assertTrue("retreat y", cursor.retreat());
+        assertTrue("retreat x", cursor.retreat());
+        assertTrue("back on the trie", cursor.isPrefix());
+        assertTrue("advance o", cursor.advance((byte) 'o'));
+        assertTrue("value at foo", cursor.hasValue());
+        assertEquals("key", "foo", cursor.key());
+        assertEquals("value", VALUE_02, cursor.value());
+
+        trieMap.put("foo", VALUE_01);
+        assertEquals("sees updated value", VALUE_01, cursor.value());
+
+        trieMap.clear();
+        trieMap.put("foo", VALUE_03);
+        assertEquals("sees value put after clear", VALUE_03, cursor.value());
+        trieMap.clear();
+        assertFalse("no value after clear", cursor.hasValue());
+        assertFalse("off the trie after clear", cursor.isPrefix());
+        assertEquals("depth kept", 3, cursor.depth());
+
+        cursor.reset();
+        assertEquals("depth after reset", 0, cursor.depth());
+        assertFalse("retreat at root", cursor.retreat());
+    }
+
     private void emptyMapTests(TrieMap trieMap) {
         assertTrue("is empty", trieMap.isEmpty());
         assertEquals("size == 0", 0, trieMap.size());
@@ -179,6 +299,160 @@ public class TrieMapTest {
         }
     }
 
+    @Test
+    public void testStructural() {
+        TrieMap<String, String> trieMap = new TrieMap<>();
+        trieMap.put("bar", VALUE_01);
+        trieMap.put("baz", VALUE_01);
+        trieMap.put("foo", VALUE_02);
+        trieMap.put("fox", VALUE_03);
+        trieMap.remove("fox");
+        TrieMap<String, String> otherTrieMap = new TrieMap<>(new TreeMap<>(trieMap));
+        assertEquals("equal tries", trieMap, otherTrieMap);
+        assertEquals("equal to hash map", new HashMap<>(trieMap), trieMap);
+        assertEquals("hashCode", new HashMap<>(trieMap).hashCode(), trieMap.hashCode());
+        otherTrieMap.put("fox", VALUE_03);
+        assertNotEquals("added key", trieMap, otherTrieMap);
+
+        TrieMap<String, String> changedMap = new TrieMap<>();
+        changedMap.putAll(trieMap);
+        changedMap.remove("bar");
+        changedMap.put("baz", VALUE_02);
+        changedMap.put("food", VALUE_03);
+        changedMap.put("zot", VALUE_03);
+        List<String> changes = new ArrayList<>();
+        trieMap.diff(changedMap, new TrieDiffListener<String, String>() {
+            @Override
+            public void added(String key, String value) {
+                changes.add("+" + key);
+            }
+
+            @Override
+            public void removed(String key, String value) {
+                changes.add("-" + key);
+            }
+
+            @Override
+            public void changed(String key, String oldValue, String newValue) {
+                changes.add("~" + key);
+            }
+        });
+        assertEquals("diff", Arrays.asList("-bar", "~baz", "+food", "+zot"), changes);
+
+        TrieMap<String, String> merged = new TrieMap<>();
+        merged.put("ba", VALUE_01);
+        merged.put("baz", VALUE_01);
+        merged.putAll(changedMap);
+        assertEquals("merged size", 5, merged.size());
+        assertEquals("merged value", VALUE_02, merged.get("baz"));
+        assertEquals("merged countPrefix", 2, merged.countPrefix("foo"));
+        merged.put("zot", VALUE_01);
+        assertEquals("source untouched", VALUE_03, changedMap.get("zot"));
+    }
+
+    @Test
+    public void testPrefixJoin() {
+        TrieMap<String, String> prefixes = new TrieMap<>();
+        prefixes.put("ab", "");
+        prefixes.put("abc", "");
+        prefixes.put("b", "");
+        TrieMap<String, Integer> words = new TrieMap<>();
+        words.put("a", 1);
+        words.put("abc", 2);
+        words.put("abd", 3);
+        words.put("bcd", 4);
+        words.remove("abd");
+        assertEquals("joined", "{ab=[abc], abc=[abc], b=[bcd]}", prefixes.prefixJoin(words).toString());
+        assertEquals("join from words", "{a=[ab, abc], abc=[abc]}", words.prefixJoin(prefixes).toString());
+    }
+
+    @Test
+    public void testEntrySetValue() {
+        TrieMap<String, String> trieMap = new TrieMap<>();
+        trieMap.put("bar", VALUE_01);
+        trieMap.put("foo", VALUE_02);
+        Map.Entry<String, String> entry = trieMap.entrySet().iterator().next();
+        assertEquals("old value", VALUE_01, entry.setValue(VALUE_03));
+        assertEquals("value written through", VALUE_03, trieMap.get("bar"));
+        assertEquals("put returns old value", VALUE_03, trieMap.put("bar", VALUE_01));
+        assertEquals("entry sees put", VALUE_01, entry.getValue());
+        assertEquals("entry equality", new AbstractMap.SimpleEntry<>("bar", VALUE_01), entry);
+        assertEquals("entry hashCode", new AbstractMap.SimpleEntry<>("bar", VALUE_01).hashCode(), entry.hashCode());
+        assertEquals("size after overwrite", 2, trieMap.size());
+        assertEquals("remove returns value", VALUE_01, trieMap.remove("bar"));
+        assertNull("remove of missing key", trieMap.remove("bar"));
+        assertEquals("size after remove", 1, trieMap.size());
+        assertNull("removed entry key", entry.getKey());
+        assertNull("removed entry value", entry.getValue());
+        try {
+            entry.setValue(VALUE_02);
+            fail("setValue on removed entry");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        assertFalse("not written through", trieMap.containsKey("bar"));
+        assertNull("put of removed key returns null", trieMap.put("bar", VALUE_02));
+    }
+
+    @Test
+    public void testCompute() {
+        TrieMap<String, Integer> trieMap = new TrieMap<>();
+        Map<String, Integer> hashMap = new HashMap<>();
+        Random random = new Random(17);
+        for (int i = 0; i < 5000; i++) {
+            String key = Integer.toString(random.nextInt(300), 4);
+            int value = random.nextInt(5);
+            switch (random.nextInt(8)) {
+                case 0:
+                    assertEquals("merge", hashMap.merge(key, value, Integer::sum), trieMap.merge(key, value, Integer::sum));
+                    break;
+                case 1:
+                    BiFunction<String, Integer, Integer> remapping = (k, v) -> v == null || v < 3 ? value : null;
+                    assertEquals("compute", hashMap.compute(key, remapping), trieMap.compute(key, remapping));
+                    break;
+                case 2:
+                    Function<String, Integer> mapping = k -> value == 0 ? null : value;
+                    assertEquals("computeIfAbsent", hashMap.computeIfAbsent(key, mapping), trieMap.computeIfAbsent(key, mapping));
+                    break;
+                case 3:
+                    BiFunction<String, Integer, Integer> present = (k, v) -> v > 2 ? null : v + 1;
+                    assertEquals("computeIfPresent", hashMap.computeIfPresent(key, present), trieMap.computeIfPresent(key, present));
+                    break;
+                case 4:
+                    assertEquals("putIfAbsent", hashMap.putIfAbsent(key, value), trieMap.putIfAbsent(key, value));
+                    break;
+                case 5:
+                    assertEquals("replace", hashMap.replace(key, value), trieMap.replace(key, value));
+                    break;
+                case 6:
+                    assertEquals("conditional replace", hashMap.replace(key, value, value + 1), trieMap.replace(key, value, value + 1));
+                    break;
+                default:
+                    assertEquals("conditional remove", hashMap.remove(key, value), trieMap.remove(key, value));
+            }
+            assertEquals("size", hashMap.size(), trieMap.size());
+        }
+        assertEquals("map", hashMap, trieMap);
+        assertEquals("getOrDefault", Integer.valueOf(-1), trieMap.getOrDefault("x", -1));
+        assertEquals("countPrefix", hashMap.keySet().stream().filter(k -> k.startsWith("1")).count(), trieMap.countPrefix("1"));
+        try {
+            trieMap.computeIfAbsent("1zzz", k -> trieMap.put("1yyy", 1));
+            fail("mapping function modified the map");
+        } catch (ConcurrentModificationException e) {
+            assertNull("not stored", trieMap.get("1zzz"));
+        }
+        hashMap.put("1yyy", 1);
+        assertEquals("sizes kept", hashMap.keySet().stream().filter(k -> k.startsWith("1")).count(), trieMap.countPrefix("1"));
+        assertEquals("size kept", hashMap.size(), trieMap.size());
+
+        TrieSet<String> trieSet = new TrieSet<>();
+        assertTrue("add", trieSet.add("a"));
+        assertFalse("add again", trieSet.add("a"));
+        assertTrue("remove", trieSet.remove("a"));
+        assertFalse("remove again", trieSet.remove("a"));
+        assertTrue("set empty", trieSet.isEmpty());
+    }
+
     private void getTests(TrieMap<String, String> trieMap, String[] keys, String[] values) {
         for (int i = 0; i < keys.length; i++) {
             assertEquals("get value with key \"" + keys[i] + "\" equals \"" + values[i] + "\"", values[i], trieMap.get(keys[i]));
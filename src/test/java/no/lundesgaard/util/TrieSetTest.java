@@ -0,0 +1,45 @@
+package no.lundesgaard.util;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import static org.junit.Assert.*;
+
+public class TrieSetTest {
+    @Test
+    public void testSetAlgebra() {
+        TrieSet<String> a = trieSet("bar", "baz", "foo", "fox", "");
+        TrieSet<String> b = trieSet("baz", "fo", "foo", "zot");
+        a.remove("fox");
+
+        assertSetEquals("union", Arrays.asList("", "bar", "baz", "fo", "foo", "zot"), a.union(b));
+        assertSetEquals("intersection", Arrays.asList("baz", "foo"), a.intersection(b));
+        assertSetEquals("difference", Arrays.asList("", "bar"), a.difference(b));
+        assertSetEquals("symmetric difference", Arrays.asList("", "bar", "fo", "zot"), a.symmetricDifference(b));
+        assertSetEquals("intersection with empty set", Arrays.asList(), a.intersection(new TrieSet<>()));
+
+        TrieSet<String> union = a.union(b);
+        union.add("new");
+        union.remove("bar");
+        assertFalse("new set is independent", a.contains("new"));
+        assertTrue("source unchanged", a.contains("bar"));
+    }
+
+    private static TrieSet<String> trieSet(String... elements) {
+        TrieSet<String> set = new TrieSet<>();
+        set.addAll(Arrays.asList(elements));
+        return set;
+    }
+
+    private static void assertSetEquals(String message, List<String> expected, TrieSet<String> actual) {
+        Set<String> expectedSet = new TreeSet<>(expected);
+        assertEquals(message, expectedSet, actual);
+        assertEquals(message + " size", expectedSet.size(), actual.size());
+        assertEquals(message + " order", new ArrayList<>(expectedSet), new ArrayList<>(actual));
+    }
+}